@@ -29,6 +29,7 @@ import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
 import org.opendatakit.aggregate.odktables.security.TablesUserPermissionsImpl;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.engine.CachingDatastore;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
@@ -74,7 +75,8 @@ public class ContextFactory {
       // for now, only store the servlet context and the serverUrl
       this.ctxt = ctxt;
       String path = ctxt.getContextPath();
-      this.datastore = (Datastore) getBean(BeanDefs.DATASTORE_BEAN);
+      // each request gets its own identity map if the datastore caches rows
+      this.datastore = CachingDatastore.newRequestScope((Datastore) getBean(BeanDefs.DATASTORE_BEAN));
       this.userService = (UserService) getBean(BeanDefs.USER_BEAN);
 
       Realm realm = userService.getCurrentRealm();
@@ -138,7 +140,9 @@ public class ContextFactory {
       this.secureServerUrl = context.getSecureServerURL();
       this.webApplicationBase = context.getWebApplicationURL();
       this.ctxt = context.getServletContext();
-      this.datastore = context.getDatastore();
+      // a request scope must not be shared with the copy, which may be used
+      // by another thread
+      this.datastore = CachingDatastore.newRequestScope(context.getDatastore());
       this.userService = context.getUserService();
       this.asDaemon = context.getAsDeamon();
     }
@@ -35,6 +35,8 @@ public final class ExportSummary implements Serializable {
   private Date timeLastAction;
   private Date timeCompleted;
   private String resultFile;
+  private Long rowsProcessed;
+  private Integer percentComplete;
 
   public String getUri() {
     return uri;
@@ -64,6 +66,22 @@ public final class ExportSummary implements Serializable {
     return resultFile;
   }
 
+  /**
+   * @return the number of submissions exported so far, or null if the
+   *         export has not yet checkpointed its progress.
+   */
+  public Long getRowsProcessed() {
+    return rowsProcessed;
+  }
+
+  /**
+   * @return the percentage of the submissions exported so far, or null if
+   *         not known.
+   */
+  public Integer getPercentComplete() {
+    return percentComplete;
+  }
+
   public void setUri(String uri) {
     this.uri = uri;
   }
@@ -92,6 +110,14 @@ public final class ExportSummary implements Serializable {
     this.resultFile = resultFile;
   }
 
+  public void setRowsProcessed(Long rowsProcessed) {
+    this.rowsProcessed = rowsProcessed;
+  }
+
+  public void setPercentComplete(Integer percentComplete) {
+    this.percentComplete = percentComplete;
+  }
+
   
   
 }
@@ -67,7 +67,7 @@ public class ExportTable extends FlexTable {
       }
       
       if (e.getStatus() != null) {
-        this.setText(i + STARTING_ROW, STATUS, e.getStatus().toString());
+        this.setText(i + STARTING_ROW, STATUS, getStatusText(e));
         if (e.getResultFile() != null && e.getStatus() == ExportStatus.AVAILABLE) {
           this.setWidget(i + STARTING_ROW, DOWNLOAD_FILE, new HTML(new SafeHtmlBuilder().appendEscaped(e.getResultFile()).toSafeHtml()));
         }
@@ -76,5 +76,17 @@ public class ExportTable extends FlexTable {
     }
   }
 
+  private static String getStatusText(ExportSummary e) {
+    String text = e.getStatus().toString();
+    if (e.getStatus() == ExportStatus.AVAILABLE || e.getRowsProcessed() == null) {
+      return text;
+    }
+    text += " - " + e.getRowsProcessed() + " submissions exported";
+    if (e.getPercentComplete() != null) {
+      text += " (" + e.getPercentComplete() + "%)";
+    }
+    return text;
+  }
+
   
 }
@@ -35,4 +35,5 @@ public class BeanDefs {
   public static final String WORKSHEET_BEAN = "worksheet_creator";
   public static final String IMAGE_UTIL = "image_util";
   public static final String WATCHDOG = "watchdog";
+  public static final String SUBMISSION_INGEST_BEAN = "submission_ingest";
 }
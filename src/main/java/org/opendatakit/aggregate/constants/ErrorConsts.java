@@ -73,6 +73,7 @@ public final class ErrorConsts {
   public static final String PARSING_PROBLEM = "Problem parsing submission XML";
   public static final String FORM_DOES_NOT_ALLOW_SUBMISSIONS = "Submissions have been disallowed on this form";
   public static final String TASK_LOCK_PROBLEM = "Unable to gain lock for modification or creation of this submission. Try again.";
+  public static final String SUBMISSION_QUEUE_FULL = "Server is too busy to accept this submission. Try again later.";
   /**
    * Constant used to log error if string array does not match column size
    */
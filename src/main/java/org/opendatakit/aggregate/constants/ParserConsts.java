@@ -59,6 +59,12 @@ public final class ParserConsts {
    */
   public final static int FILE_SIZE_MAX = 5000000;
 
+  /**
+   * Uploaded parts larger than this are held in temporary files rather than
+   * in memory while the request is processed
+   */
+  public final static int FILE_SIZE_THRESHOLD = 256 * 1024;
+
   /**
    * Namespace of ODK extensions to the OpenRosa standards
    */
@@ -30,4 +30,27 @@ public class NetvoteConsts {
 
     public static final String NETROSA_ENDPOINT = "https://api.netrosa.io/v1";
     public static final String IPFS_PIN_URL = NETROSA_ENDPOINT+"/ipfs";
+
+    // submission signing keys are replaced after this many signatures or this long
+    public static final int SIGNING_KEY_BITS = 2048;
+    public static final int SIGNING_KEY_MAX_USES = 1000;
+    public static final long SIGNING_KEY_MAX_AGE_MILLIS = 60L * 60L * 1000L;
+
+    // auth tokens are refreshed this long before they expire
+    public static final long JWT_REFRESH_MARGIN_MILLIS = 60L * 1000L;
+    // assumed lifetime of an auth token that carries no exp claim
+    public static final long DEFAULT_JWT_LIFETIME_MILLIS = 5L * 60L * 1000L;
+
+    // batched publishing: submissions formatted per cursor update, and concurrent
+    // requests across all publishers
+    public static final int PUBLISH_BATCH_SIZE = 50;
+    public static final int PUBLISH_CONCURRENCY = 8;
+
+    // lifetime of an idle publishing or attachment upload thread
+    public static final long POOL_IDLE_SECONDS = 60L;
+
+    // attachment uploads: concurrent requests across all publishers, and the
+    // buffer used to stream content from the datastore
+    public static final int IPFS_UPLOAD_CONCURRENCY = 8;
+    public static final int IPFS_UPLOAD_BUFFER_SIZE = 8192;
 }
@@ -17,7 +17,10 @@ package org.opendatakit.aggregate.datamodel;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.opendatakit.aggregate.constants.common.FormElementNamespace;
 import org.opendatakit.aggregate.form.IForm;
@@ -60,12 +63,15 @@ public final class FormElementModel {
   private final Metadata type;
   private final FormDataModel fdm;
   private final List<FormElementModel> children = new ArrayList<FormElementModel>();
+  /** children by element name; the first child wins if names collide */
+  private final Map<String, FormElementModel> childrenByName;
   private final FormElementModel parent;
 
   FormElementModel(FormElementModel parent, Metadata type) {
     fdm = null;
     this.parent = parent;
     this.type = type;
+    this.childrenByName = Collections.emptyMap();
   }
 
   FormElementModel(final FormDataModel fdm, final FormElementModel parent) {
@@ -107,6 +113,19 @@ public final class FormElementModel {
     default:
       throw new IllegalStateException("Unexpectedly traversing hidden datatypes");
     }
+
+    if (children.isEmpty()) {
+      childrenByName = Collections.emptyMap();
+    } else {
+      Map<String, FormElementModel> byName = new HashMap<String, FormElementModel>(
+          children.size() * 2);
+      for (FormElementModel m : children) {
+        if (!byName.containsKey(m.getElementName())) {
+          byName.put(m.getElementName(), m);
+        }
+      }
+      childrenByName = byName;
+    }
   }
 
   private final void addChildHelper(FormDataModel f) {
@@ -402,12 +421,7 @@ public final class FormElementModel {
       throw new IllegalArgumentException("null elementName passed in!");
     }
 
-    for (FormElementModel m : children) {
-      if (m.getElementName().equals(elementName)) {
-        return m;
-      }
-    }
-    return null;
+    return childrenByName.get(elementName);
   }
 
   // //////////////////////////////////////////////////////////////////////////////
@@ -447,15 +461,8 @@ public final class FormElementModel {
         first = false;
       }
       while (colonParts.length > colonPosition) {
-        boolean found = false;
-        for (FormElementModel m : currentElement.getChildren()) {
-          if (m.getElementName().equals(colonParts[colonPosition])) {
-            found = true;
-            currentElement = m;
-            break;
-          }
-        }
-        if (!found) {
+        currentElement = currentElement.findElementByName(colonParts[colonPosition]);
+        if (currentElement == null) {
           throw new IllegalArgumentException("FormElementKey is not well formed!");
         }
         ++colonPosition;
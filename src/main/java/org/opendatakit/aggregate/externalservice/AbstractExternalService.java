@@ -21,21 +21,19 @@ import java.util.*;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.CookieStore;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.config.SocketConfig;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.opendatakit.aggregate.ContextFactory;
@@ -95,9 +93,8 @@ public abstract class AbstractExternalService implements ExternalService {
   protected static final String PUT = "PUT";
   protected static final String PATCH = "PATCH";
 
-  // and also share all session cookies and credentials across all sessions...
-  // these are thread-safe, so this is OK.
-  protected static final CookieStore cookieStore = new BasicCookieStore();
+  // and also share all credentials across all sessions...
+  // this is thread-safe, so this is OK.
   protected static final CredentialsProvider credsProvider = new BasicCredentialsProvider();
 
   protected static final int SERVICE_TIMEOUT_MILLISECONDS = 60000;
@@ -154,13 +151,12 @@ public abstract class AbstractExternalService implements ExternalService {
   protected HttpResponse sendHttpRequest(String method, String url, HttpEntity entity, List<NameValuePair> qparams, Map<String,String> headers, CallingContext cc) throws
       IOException {
 
-    // setup client
+    // setup client -- the shared client pools connections across all
+    // publishers, so the timeouts are set on the request itself
     HttpClientFactory factory = (HttpClientFactory) cc.getBean(BeanDefs.HTTP_CLIENT_FACTORY);
 
-    SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT)
-        .setSoTimeout(SOCKET_ESTABLISHMENT_TIMEOUT_MILLISECONDS)
-        .build();
     RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
+        .setSocketTimeout(SOCKET_ESTABLISHMENT_TIMEOUT_MILLISECONDS)
         .setConnectTimeout(SERVICE_TIMEOUT_MILLISECONDS)
         .setRedirectsEnabled(true)
         .setAuthenticationEnabled(true)
@@ -168,16 +164,18 @@ public abstract class AbstractExternalService implements ExternalService {
         .setCircularRedirectsAllowed(true)
         .build();
 
-    HttpClient client = factory.createHttpClient(socketConfig, null, requestConfig);
+    CloseableHttpClient client = factory.getSharedHttpClient();
 
-    // context holds authentication state machine, so it cannot be
-    // shared across independent activities.
+    // context holds authentication state machine and cookies, so it cannot
+    // be shared across independent activities. Without it, the shared
+    // client's default cookie store would carry one publisher's session
+    // cookies into the requests of every other publisher.
     HttpContext localContext = new BasicHttpContext();
 
-    localContext.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
+    localContext.setAttribute(HttpClientContext.COOKIE_STORE, new BasicCookieStore());
     localContext.setAttribute(HttpClientContext.CREDS_PROVIDER, credsProvider);
 
-    HttpUriRequest request = null;
+    HttpRequestBase request = null;
     if (entity == null && (POST.equals(method) || PATCH.equals(method) || PUT.equals(method))) {
       throw new IllegalStateException("No body supplied for POST, PATCH or PUT request");
     } else if (entity != null && !(POST.equals(method) || PATCH.equals(method) || PUT.equals(method))) {
@@ -227,11 +225,12 @@ public abstract class AbstractExternalService implements ExternalService {
       throw new IllegalStateException("Unexpected request method");
     }
 
+    request.setConfig(requestConfig);
     for(String key : headers.keySet()){
       request.setHeader(key, headers.get(key));
     }
 
-    HttpResponse resp = client.execute(request);
+    HttpResponse resp = client.execute(request, localContext);
     return resp;
   }
 
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.externalservice;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Records the IPFS pin response for each attachment content hash that the
+ * Netvote publishers have uploaded, so that identical content is pinned only
+ * once. The row URI is derived from the content hash.
+ */
+public final class NetvoteIpfsPinTable extends CommonFieldsBase {
+
+    private static final String TABLE_NAME = "_netvote_ipfs_pin";
+
+    private static final DataField CONTENT_HASH_PROPERTY = new DataField("CONTENT_HASH",
+            DataField.DataType.STRING, true, 4096L);
+
+    private static final DataField PIN_RESPONSE_PROPERTY = new DataField("PIN_RESPONSE",
+            DataField.DataType.STRING, true, 4096L);
+
+    private static NetvoteIpfsPinTable relation = null;
+
+    NetvoteIpfsPinTable(String schemaName) {
+        super(schemaName, TABLE_NAME);
+        fieldList.add(CONTENT_HASH_PROPERTY);
+        fieldList.add(PIN_RESPONSE_PROPERTY);
+    }
+
+    /**
+     * Construct an empty entity. Only called via {@link #getEmptyRow(User)}
+     *
+     * @param ref
+     * @param user
+     */
+    private NetvoteIpfsPinTable(NetvoteIpfsPinTable ref, User user) {
+        super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+        return new NetvoteIpfsPinTable(this, user);
+    }
+
+    public String getContentHash() {
+        return getStringField(CONTENT_HASH_PROPERTY);
+    }
+
+    public String getPinResponse() {
+        return getStringField(PIN_RESPONSE_PROPERTY);
+    }
+
+    /**
+     * @param contentHash
+     * @param cc
+     * @return the recorded pin response for the content, or null if it has not
+     *         been pinned.
+     * @throws ODKDatastoreException
+     */
+    static String getPinResponse(String contentHash, CallingContext cc) throws ODKDatastoreException {
+        NetvoteIpfsPinTable prototype = assertRelation(cc);
+        try {
+            NetvoteIpfsPinTable row = cc.getDatastore().getEntity(prototype,
+                    CommonFieldsBase.newMD5HashUri(contentHash), cc.getCurrentUser());
+            return row.getPinResponse();
+        } catch (ODKEntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the pin response for the content. Responses too long for the
+     * table are not recorded.
+     *
+     * @param contentHash
+     * @param pinResponse
+     * @param cc
+     * @throws ODKDatastoreException
+     */
+    static void putPinResponse(String contentHash, String pinResponse, CallingContext cc)
+            throws ODKDatastoreException {
+        NetvoteIpfsPinTable prototype = assertRelation(cc);
+        Datastore ds = cc.getDatastore();
+        User user = cc.getCurrentUser();
+        NetvoteIpfsPinTable row = ds.createEntityUsingRelation(prototype, user);
+        row.setStringField(prototype.primaryKey, CommonFieldsBase.newMD5HashUri(contentHash));
+        if (!row.setStringField(CONTENT_HASH_PROPERTY, contentHash)
+                || !row.setStringField(PIN_RESPONSE_PROPERTY, pinResponse)) {
+            return;
+        }
+        ds.putEntity(row, user);
+    }
+
+    public static synchronized final NetvoteIpfsPinTable assertRelation(
+            CallingContext cc) throws ODKDatastoreException {
+        if (relation == null) {
+            NetvoteIpfsPinTable relationPrototype;
+            Datastore ds = cc.getDatastore();
+            User user = cc.getCurrentUser();
+            relationPrototype = new NetvoteIpfsPinTable(ds.getDefaultSchemaName());
+            ds.assertRelation(relationPrototype, user); // may throw exception...
+            // at this point, the prototype has become fully populated
+            relation = relationPrototype; // set static variable only upon success...
+        }
+        return relation;
+    }
+}
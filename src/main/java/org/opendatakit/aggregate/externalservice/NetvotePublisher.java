@@ -1,19 +1,20 @@
 package org.opendatakit.aggregate.externalservice;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MIME;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.AbstractContentBody;
 import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
 import org.opendatakit.aggregate.constants.common.ExternalServiceType;
+import org.opendatakit.aggregate.ContextFactory;
 import org.opendatakit.aggregate.constants.common.OperationalStatus;
 import org.opendatakit.aggregate.constants.externalservice.NetvoteConsts;
 import org.opendatakit.aggregate.exception.ODKExternalServiceCredentialsException;
@@ -21,12 +22,16 @@ import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.element.BasicElementFormatter;
 import org.opendatakit.aggregate.format.element.OhmageJsonElementFormatter;
+import org.opendatakit.aggregate.format.element.OhmageJsonElementFormatter.Attachment;
 import org.opendatakit.aggregate.format.header.BasicHeaderFormatter;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.ContentSource;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.security.User;
 import org.opendatakit.common.security.common.EmailParser;
 import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.CallingContext;
@@ -34,25 +39,81 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
-import java.math.BigInteger;
 import java.security.*;
-import java.security.spec.AlgorithmParameterSpec;
-import java.security.spec.RSAKeyGenParameterSpec;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NetvotePublisher extends AbstractExternalService implements ExternalService {
 
     private static final Gson gson;
     private static final Map<String, Boolean> cache = new ConcurrentHashMap<String, Boolean>();
 
+    /**
+     * Attachment uploads of all Netvote publishers share this pool, so the
+     * number of concurrent IPFS requests is bounded however many submissions
+     * are being published.
+     */
+    private static final ExecutorService ipfsExecutor;
+
+    /**
+     * Submissions of all Netvote publishers are sent on this pool, so the
+     * number of concurrent publish requests is bounded however many tasks
+     * are publishing.
+     */
+    private static final ExecutorService publishExecutor;
+
     static {
         GsonBuilder builder = new GsonBuilder()
         .setLenient()
         .setPrettyPrinting();
         gson = builder.create();
 
+        ipfsExecutor = newDaemonPool(NetvoteConsts.IPFS_UPLOAD_CONCURRENCY, "netvote-ipfs-upload-");
+        publishExecutor = newDaemonPool(NetvoteConsts.PUBLISH_CONCURRENCY, "netvote-publish-");
+    }
+
+    /**
+     * Names the threads of a pool and makes them daemons, so that an idle pool
+     * never holds up shutdown.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * @return a pool of up to size threads that exit once idle for
+     *         POOL_IDLE_SECONDS.
+     */
+    private static ExecutorService newDaemonPool(int size, String namePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size,
+                NetvoteConsts.POOL_IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(namePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
 
@@ -113,7 +174,80 @@ public class NetvotePublisher extends AbstractExternalService implements Externa
     }
 
 
-    private String uploadItemToIPFS(String apiKey, String entryName, ByteArrayBody item,  CallingContext cc) throws IOException {
+    /**
+     * Multipart body that streams an attachment from the datastore as the
+     * request is written, rather than holding it in memory.
+     */
+    private static final class ContentSourceBody extends AbstractContentBody {
+        private final ContentSource content;
+        private final String filename;
+
+        ContentSourceBody(ContentSource content, ContentType contentType, String filename) {
+            super(contentType);
+            this.content = content;
+            this.filename = filename;
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = content.openStream();
+            try {
+                byte[] buffer = new byte[NetvoteConsts.IPFS_UPLOAD_BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+            out.flush();
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return MIME.ENC_BINARY;
+        }
+
+        @Override
+        public long getContentLength() {
+            return content.getContentLength();
+        }
+    }
+
+    /**
+     * The response of an IPFS pin request.
+     */
+    private static final class IpfsPin {
+        final String response;
+        final int statusCode;
+        final boolean succeeded;
+
+        IpfsPin(String response, int statusCode) {
+            this.response = response;
+            this.statusCode = statusCode;
+            this.succeeded = statusCode >= 200 && statusCode < 300;
+        }
+    }
+
+    /**
+     * Pins the attachment, reading its content through cc.
+     */
+    private IpfsPin uploadItemToIPFS(String apiKey, String entryName, Attachment item, CallingContext cc) throws IOException {
+        ContentSource content;
+        try {
+            content = item.getContent(cc);
+        } catch (ODKDatastoreException e) {
+            throw new IOException("unable to read attachment " + item.getContentHash(), e);
+        }
+        if (content == null) {
+            throw new IOException("attachment " + item.getContentHash() + " has no content");
+        }
+
         MultipartEntityBuilder builder = MultipartEntityBuilder.create();
         builder.setMode(HttpMultipartMode.STRICT)
                 .setCharset(UTF_CHARSET);
@@ -121,29 +255,114 @@ public class NetvotePublisher extends AbstractExternalService implements Externa
         Map<String,String> headers = new HashMap<>();
         headers.put("x-api-key", apiKey);
 
-        builder.addPart(entryName, item);
+        builder.addPart(entryName, new ContentSourceBody(content,
+                ContentType.create(item.getContentType()), entryName));
 
         HttpResponse response = super.sendHttpRequest(POST, NetvoteConsts.IPFS_PIN_URL, builder.build(), null, headers, cc);
-        return WebUtils.readResponse(response);
+        int statusCode = response.getStatusLine().getStatusCode();
+        String hash = WebUtils.readResponse(response);
+        return new IpfsPin(hash, statusCode);
     }
 
+    /**
+     * Uploads the attachments that have not already been pinned, one upload
+     * per distinct content hash, on the shared IPFS upload pool. Each upload
+     * reads its attachment through a context of its own; the successful pins
+     * are then recorded through cc, on this thread, so that the same content
+     * is not uploaded again.
+     *
+     * @param attachments
+     * @param pinned
+     *          recorded pin responses, by content hash
+     * @param cc
+     * @return the pin response of each attachment, in iteration order.
+     * @throws IOException
+     *           if an attachment could not be read or pinned.
+     */
+    private List<String> uploadToIPFS(Map<UUID, Attachment> attachments, Map<String, String> pinned,
+                              final CallingContext cc) throws IOException {
+
+        final String apiKey = objectEntity.getAccessKeyProperty();
+
+        Map<String, Future<IpfsPin>> uploads = new HashMap<>();
+        for (Map.Entry<UUID, Attachment> entry : attachments.entrySet()) {
+            final String entryName = entry.getKey().toString();
+            final Attachment item = entry.getValue();
+            String contentHash = item.getContentHash();
+            if (pinned.containsKey(contentHash) || uploads.containsKey(contentHash)) {
+                continue;
+            }
+            final CallingContext uploadCc = ContextFactory.duplicateContext(cc);
+            uploads.put(contentHash, ipfsExecutor.submit(new Callable<IpfsPin>() {
+                @Override
+                public IpfsPin call() throws Exception {
+                    return uploadItemToIPFS(apiKey, entryName, item, uploadCc);
+                }
+            }));
+        }
+
+        Map<String, IpfsPin> pins = new HashMap<>();
+        try {
+            for (Map.Entry<String, Future<IpfsPin>> upload : uploads.entrySet()) {
+                pins.put(upload.getKey(), getUpload(upload.getValue()));
+            }
+        } finally {
+            // after a failure, don't leave the other uploads running
+            for (Future<IpfsPin> f : uploads.values()) {
+                f.cancel(true);
+            }
+        }
 
-    private List<String> uploadToIPFS(List<OhmageJsonTypes.Survey> surveys, Map<UUID, ByteArrayBody> photos,
-                              CallingContext cc) throws ClientProtocolException, IOException, ODKExternalServiceException {
+        for (Map.Entry<String, IpfsPin> pin : pins.entrySet()) {
+            if (pin.getValue().succeeded) {
+                try {
+                    NetvoteIpfsPinTable.putPinResponse(pin.getKey(), pin.getValue().response, cc);
+                } catch (ODKDatastoreException e) {
+                    // only costs a repeated upload later
+                    logger.warn("NETVOTE: unable to record IPFS pin: " + e.toString());
+                }
+            }
+        }
 
-        String apiKey = objectEntity.getAccessKeyProperty();
+        // a failed pin's response is an error body, not a hash; fail the
+        // submission so that it is retried
+        for (Map.Entry<String, IpfsPin> pin : pins.entrySet()) {
+            if (!pin.getValue().succeeded) {
+                throw new IOException("IPFS pin of attachment " + pin.getKey() + " failed ("
+                        + pin.getValue().statusCode + "): " + pin.getValue().response);
+            }
+        }
 
         List<String> results = new ArrayList<>();
-
-        // emit the file streams for all the media attachments
-        for (Map.Entry<UUID, ByteArrayBody> entry : photos.entrySet()) {
-            String hash = uploadItemToIPFS(apiKey, entry.getKey().toString(), entry.getValue(), cc);
+        for (Attachment item : attachments.values()) {
+            String hash = pinned.get(item.getContentHash());
+            if (hash == null) {
+                hash = pins.get(item.getContentHash()).response;
+            }
             results.add(hash);
         }
-
         return results;
     }
 
+    private static IpfsPin getUpload(Future<IpfsPin> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while uploading to IPFS", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
     private static synchronized void unlock(String id) {
         cache.remove(id);
     }
@@ -248,36 +467,24 @@ public class NetvotePublisher extends AbstractExternalService implements Externa
         return myMap.get("token");
     }
 
-    private static String encodePublicKey(PublicKey pub) {
-        String publicKeyEncoded = Base64.getEncoder().encodeToString(pub.getEncoded());
-        String[] rows = Iterables.toArray(Splitter.fixedLength(64).split(publicKeyEncoded), String.class);
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("-----BEGIN PUBLIC KEY-----\n");
-        for(String row : rows){
-            sb.append(row).append("\n");
-        }
-        sb.append("-----END PUBLIC KEY-----");
-        return Base64.getEncoder().encodeToString(sb.toString().getBytes());
+    private NetvoteSession getSession() {
+        return NetvoteSession.getSession(fsc.getUri(), objectEntity.getFormIdProperty(),
+                objectEntity.getAccessKeyProperty(), objectEntity.getSecretKeyProperty());
     }
 
-    private void submitToNetrosa(SubmissionObj obj, CallingContext cc) throws IOException, GeneralSecurityException {
+    private void submitToNetrosa(SubmissionObj obj, final CallingContext cc) throws IOException, GeneralSecurityException, ODKExternalServiceException {
         String apiKey = objectEntity.getAccessKeyProperty();
         String formId = objectEntity.getFormIdProperty();
 
 
         String submissionString = gson.toJson(obj);
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-        RSAKeyGenParameterSpec kpgSpec = new RSAKeyGenParameterSpec(2048, BigInteger.valueOf(65537));
-        kpg.initialize(kpgSpec);
-        KeyPair kp = kpg.generateKeyPair();
-        PublicKey pub = kp.getPublic();
-        PrivateKey pvt = kp.getPrivate();
+        NetvoteSession session = getSession();
+        NetvoteSession.SigningKey key = session.getSigningKey();
 
-        String publicKeyBase64 = encodePublicKey(pub);
+        String publicKeyBase64 = key.getEncodedPublicKey();
 
         Signature sign = Signature.getInstance("MD5withRSA");
-        sign.initSign(pvt);
+        sign.initSign(key.getPrivateKey());
         sign.update(submissionString.getBytes());
         String proof = Base64.getEncoder().encodeToString(sign.sign());
 
@@ -289,66 +496,242 @@ public class NetvotePublisher extends AbstractExternalService implements Externa
         String payloadBody = gson.toJson(p);
         logger.info("NETVOTE: Sending payload body="+payloadBody);
 
-        String jwtToken = getJwtToken(cc);
-
-        HttpEntity entity = new StringEntity(payloadBody);
-
-        Map<String,String> headers = new HashMap<>();
-        headers.put("x-api-key", apiKey);
-        headers.put("Authorization", "Bearer "+jwtToken);
-
         String url = String.format("%s/form/%s/submission", NetvoteConsts.NETROSA_ENDPOINT, formId);
 
-        HttpResponse response = super.sendHttpRequest(POST, url, entity, null, headers, cc);
+        HttpResponse response = null;
+        // a cached token may have been revoked; if it is refused, retry once with a new one
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            String jwtToken = session.getToken(new NetvoteSession.TokenSource() {
+                @Override
+                public String fetchToken() throws IOException {
+                    return getJwtToken(cc);
+                }
+            });
+
+            HttpEntity entity = new StringEntity(payloadBody);
+
+            Map<String,String> headers = new HashMap<>();
+            headers.put("x-api-key", apiKey);
+            headers.put("Authorization", "Bearer "+jwtToken);
+
+            response = super.sendHttpRequest(POST, url, entity, null, headers, cc);
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_UNAUTHORIZED) {
+                break;
+            }
+            logger.info("NETVOTE: auth token refused, discarding it");
+            WebUtils.readResponse(response);
+            session.invalidateToken(jwtToken);
+        }
         String resp = WebUtils.readResponse(response);
+
+        // a refused submission must not be treated as published
+        int statusCode = response.getStatusLine().getStatusCode();
+        String reason = response.getStatusLine().getReasonPhrase();
+        if (statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_FORBIDDEN) {
+            throw new ODKExternalServiceCredentialsException("Netrosa refused submission: "
+                    + reason + " (" + statusCode + ")");
+        } else if (statusCode < 200 || statusCode >= 300) {
+            throw new ODKExternalServiceException("Netrosa refused submission: "
+                    + reason + " (" + statusCode + "): " + resp);
+        }
         logger.info("NETVOTE: Submitted payload to API"+resp+", url="+url);
     }
 
-    @Override
-    protected void insertData(Submission submission, CallingContext cc) throws ODKExternalServiceException {
-        try {
-            boolean lock = tryLock(submission.getKey().getKey());
+    /**
+     * A submission that has been formatted for Netrosa but not yet sent.
+     */
+    private class PendingSubmission {
+        final SubmissionObj obj;
+        final Map<UUID, Attachment> attachments;
+        final Map<String, String> pinned;
+
+        PendingSubmission(SubmissionObj obj, Map<UUID, Attachment> attachments,
+                Map<String, String> pinned) {
+            this.obj = obj;
+            this.attachments = attachments;
+            this.pinned = pinned;
+        }
+    }
 
-            if(!lock){
-                logger.info("NETVOTE: duplication execution of "+submission.getKey().getKey()+", bailing");
-                return;
+    /**
+     * Formats the submission and looks up which of its attachments are already
+     * pinned. This reads from the datastore, so it is done on the calling
+     * thread; the attachment content itself is read only as it is uploaded.
+     */
+    private PendingSubmission format(Submission submission, CallingContext cc) throws ODKDatastoreException {
+        logger.info("NETVOTE: Starting Publish of data: "+submission);
+
+        OhmageJsonTypes.Survey survey = new OhmageJsonTypes.Survey();
+        OhmageJsonElementFormatter formatter = new OhmageJsonElementFormatter(true);
+
+        // called purely for side effects
+        submission.getFormattedValuesAsRow(null, formatter, false, cc);
+        survey.setResponses(formatter.getResponses());
+
+        SubmissionObj p = new SubmissionObj();
+        p.setSubmission(survey);
+        p.setOdkFormId(submission.getFormId());
+        p.setOdkSubmitId(submission.getKey().getKey());
+
+        Map<UUID, Attachment> attachments = formatter.getAttachments();
+        Map<String, String> pinned = new HashMap<>();
+        for (Attachment item : attachments.values()) {
+            String contentHash = item.getContentHash();
+            if (!pinned.containsKey(contentHash)) {
+                String hash = NetvoteIpfsPinTable.getPinResponse(contentHash, cc);
+                if (hash != null) {
+                    pinned.put(contentHash, hash);
+                }
             }
+        }
+        return new PendingSubmission(p, attachments, pinned);
+    }
 
-            logger.info("NETVOTE: Starting Publish of data: "+submission);
-
-            OhmageJsonTypes.Survey survey = new OhmageJsonTypes.Survey();
-            OhmageJsonElementFormatter formatter = new OhmageJsonElementFormatter();
-
-            // called purely for side effects
-            submission.getFormattedValuesAsRow(null, formatter, false, cc);
-            survey.setResponses(formatter.getResponses());
+    /**
+     * Uploads the attachments of the formatted submission and then sends it.
+     * Records the new IPFS pins through cc, so cc must not be in use by any
+     * other thread.
+     */
+    private void publish(PendingSubmission pending, CallingContext cc) throws IOException, GeneralSecurityException, ODKExternalServiceException {
+        List<String> attachments = uploadToIPFS(pending.attachments, pending.pinned, cc);
+        pending.obj.setAttachments(attachments);
+        submitToNetrosa(pending.obj, cc);
+    }
 
-            List<String> attachments = uploadToIPFS(Collections.singletonList(survey), formatter.getPhotos(), cc);
-            String submissionJson = gson.toJson(survey);
+    private void handleCredentialsFailure(CallingContext cc) throws ODKExternalServiceException {
+        fsc.setOperationalStatus(OperationalStatus.BAD_CREDENTIALS);
+        try {
+            persist(cc);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw new ODKExternalServiceException("unable to persist bad credentials state", ex);
+        }
+    }
 
-            SubmissionObj p = new SubmissionObj();
-            p.setAttachments(attachments);
-            p.setSubmission(survey);
-            p.setOdkFormId(submission.getFormId());
-            p.setOdkSubmitId(submission.getKey().getKey());
+    @Override
+    protected void insertData(Submission submission, CallingContext cc) throws ODKExternalServiceException {
+        String key = submission.getKey().getKey();
+        if(!tryLock(key)){
+            logger.info("NETVOTE: duplication execution of "+key+", bailing");
+            return;
+        }
+        try {
+            publish(format(submission, cc), cc);
+        } catch (ODKExternalServiceCredentialsException e) {
+            handleCredentialsFailure(cc);
+            throw e;
+        } catch (ODKExternalServiceException e) {
+            throw e;// don't wrap these
+        } catch (Exception e) {
+            throw new ODKExternalServiceException(e);
+        } finally {
+            unlock(key);
+        }
+    }
 
-            submitToNetrosa(p, cc);
+    @Override
+    public boolean canBatchSubmissions() {
+        return true;
+    }
 
-        } catch (ODKExternalServiceCredentialsException e) {
-            fsc.setOperationalStatus(OperationalStatus.BAD_CREDENTIALS);
-            try {
-                persist(cc);
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                throw new ODKExternalServiceException("unable to persist bad credentials state", ex);
+    /**
+     * Sends the submissions PUBLISH_BATCH_SIZE at a time. Each batch is
+     * formatted on this thread and then sent on the shared publish pool. The cursor is advanced once per batch, past the
+     * submissions that were sent before the first failure in the batch.
+     */
+    @Override
+    public void sendSubmissions(List<Submission> submissions, boolean streaming, final CallingContext cc)
+            throws ODKExternalServiceException {
+        if (submissions.isEmpty()) {
+            return;
+        }
+        Datastore ds = cc.getDatastore();
+        User user = cc.getCurrentUser();
+        try {
+            for (int start = 0; start < submissions.size(); start += NetvoteConsts.PUBLISH_BATCH_SIZE) {
+                List<Submission> batch = submissions.subList(start,
+                        Math.min(start + NetvoteConsts.PUBLISH_BATCH_SIZE, submissions.size()));
+                List<String> lockedKeys = new ArrayList<>();
+                List<Future<Void>> futures = new ArrayList<>();
+                try {
+                    // format everything first, so that a datastore failure sends nothing
+                    List<PendingSubmission> pendings = new ArrayList<>();
+                    for (Submission submission : batch) {
+                        String key = submission.getKey().getKey();
+                        if (!tryLock(key)) {
+                            logger.info("NETVOTE: duplication execution of "+key+", skipping");
+                            pendings.add(null);
+                            continue;
+                        }
+                        lockedKeys.add(key);
+                        pendings.add(format(submission, cc));
+                    }
+
+                    for (final PendingSubmission pending : pendings) {
+                        if (pending == null) {
+                            futures.add(null);
+                            continue;
+                        }
+                        final CallingContext publishCc = ContextFactory.duplicateContext(cc);
+                        futures.add(publishExecutor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                publish(pending, publishCc);
+                                return null;
+                            }
+                        }));
+                    }
+
+                    // wait for every request, so that no submission is still
+                    // being sent when its lock is released
+                    Submission lastSent = null;
+                    Throwable failure = null;
+                    for (int i = 0; i < futures.size(); ++i) {
+                        Future<Void> f = futures.get(i);
+                        if (f != null) {
+                            try {
+                                f.get();
+                            } catch (ExecutionException e) {
+                                if (failure == null) {
+                                    failure = e.getCause();
+                                }
+                            }
+                        }
+                        if (failure == null) {
+                            lastSent = batch.get(i);
+                        }
+                    }
+
+                    if (lastSent != null) {
+                        // persist updated last send date
+                        ExternalServiceUtils.updateFscToSuccessfulSubmissionDate(fsc, lastSent, streaming);
+                        ds.putEntity(fsc, user);
+                    }
+                    if (failure instanceof Exception) {
+                        throw (Exception) failure;
+                    } else if (failure != null) {
+                        throw (Error) failure;
+                    }
+                } finally {
+                    // if this thread was interrupted while waiting, don't leave
+                    // requests running once their locks are released
+                    for (Future<Void> f : futures) {
+                        if (f != null) {
+                            f.cancel(true);
+                        }
+                    }
+                    for (String key : lockedKeys) {
+                        unlock(key);
+                    }
+                }
             }
+        } catch (ODKExternalServiceCredentialsException e) {
+            handleCredentialsFailure(cc);
             throw e;
         } catch (ODKExternalServiceException e) {
             throw e;// don't wrap these
         } catch (Exception e) {
             throw new ODKExternalServiceException(e);
-        } finally {
-            unlock(submission.getKey().getKey());
         }
     }
 
@@ -363,6 +746,12 @@ public class NetvotePublisher extends AbstractExternalService implements Externa
         postUploadTask(cc);
     }
 
+    @Override
+    public void delete(CallingContext cc) throws ODKDatastoreException {
+        NetvoteSession.forget(fsc.getUri());
+        super.delete(cc);
+    }
+
     @Override
     public String getDescriptiveTargetString() {
         return objectEntity.getFormIdProperty();
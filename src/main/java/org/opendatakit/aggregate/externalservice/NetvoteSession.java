@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.externalservice;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opendatakit.aggregate.constants.externalservice.NetvoteConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Signing key and auth token shared by all the uploads of one Netvote
+ * publisher.
+ *
+ * NetvotePublisher objects are constructed afresh for every upload task, so
+ * this state is held in a static registry keyed by the publisher's
+ * FormServiceCursor URI. A session is replaced if the publisher's credentials
+ * change.
+ *
+ * The RSA signing key is generated on first use and replaced once it is
+ * SIGNING_KEY_MAX_AGE_MILLIS old or has signed SIGNING_KEY_MAX_USES
+ * submissions. The JWT is fetched on first use and fetched again once it is
+ * within JWT_REFRESH_MARGIN_MILLIS of its exp claim, or if the server rejects
+ * it.
+ *
+ * Thread-safe.
+ */
+class NetvoteSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(NetvoteSession.class);
+
+    private static final ConcurrentHashMap<String, NetvoteSession> sessions =
+        new ConcurrentHashMap<String, NetvoteSession>();
+
+    private static final Gson gson = new Gson();
+
+    /**
+     * Fetches a new JWT from the Netvote API.
+     */
+    interface TokenSource {
+        String fetchToken() throws IOException;
+    }
+
+    /**
+     * A signing key pair and its PEM-encoded public key.
+     */
+    static final class SigningKey {
+        private final PrivateKey privateKey;
+        private final String encodedPublicKey;
+        private final long createdAt;
+        private int uses = 0;
+
+        private SigningKey(KeyPair kp) {
+            this.privateKey = kp.getPrivate();
+            this.encodedPublicKey = encodePublicKey(kp.getPublic());
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        /**
+         * @return the base64 encoding of the PEM encoding of the public key.
+         */
+        String getEncodedPublicKey() {
+            return encodedPublicKey;
+        }
+    }
+
+    private final String credentials;
+
+    // guarded by keyLock
+    private final Object keyLock = new Object();
+    private SigningKey signingKey = null;
+
+    // guarded by tokenLock
+    private final Object tokenLock = new Object();
+    private String token = null;
+    private long tokenRefreshAt = 0L;
+
+    private NetvoteSession(String credentials) {
+        this.credentials = credentials;
+    }
+
+    /**
+     * @param publisherUri
+     *          the URI of the publisher's FormServiceCursor
+     * @param formId
+     * @param apiKey
+     * @param submitKey
+     * @return the session of the publisher.
+     */
+    static NetvoteSession getSession(String publisherUri, String formId, String apiKey,
+            String submitKey) {
+        String credentials = formId + "\u0000" + apiKey + "\u0000" + submitKey;
+        for (;;) {
+            NetvoteSession session = sessions.get(publisherUri);
+            if (session != null && session.credentials.equals(credentials)) {
+                return session;
+            }
+            NetvoteSession fresh = new NetvoteSession(credentials);
+            if (session == null) {
+                if (sessions.putIfAbsent(publisherUri, fresh) == null) {
+                    return fresh;
+                }
+            } else if (sessions.replace(publisherUri, session, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Discards the session of a publisher that is being deleted.
+     */
+    static void forget(String publisherUri) {
+        sessions.remove(publisherUri);
+    }
+
+    private static String encodePublicKey(PublicKey pub) {
+        String publicKeyEncoded = Base64.getEncoder().encodeToString(pub.getEncoded());
+        String[] rows = Iterables.toArray(Splitter.fixedLength(64).split(publicKeyEncoded), String.class);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("-----BEGIN PUBLIC KEY-----\n");
+        for(String row : rows){
+            sb.append(row).append("\n");
+        }
+        sb.append("-----END PUBLIC KEY-----");
+        return Base64.getEncoder().encodeToString(sb.toString().getBytes());
+    }
+
+    /**
+     * @return the key with which to sign the next submission, generating a new
+     *         one if the current key is due for rotation.
+     * @throws GeneralSecurityException
+     */
+    SigningKey getSigningKey() throws GeneralSecurityException {
+        synchronized (keyLock) {
+            if (signingKey == null
+                    || signingKey.uses >= NetvoteConsts.SIGNING_KEY_MAX_USES
+                    || signingKey.createdAt + NetvoteConsts.SIGNING_KEY_MAX_AGE_MILLIS
+                        <= System.currentTimeMillis()) {
+                KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+                RSAKeyGenParameterSpec kpgSpec = new RSAKeyGenParameterSpec(
+                        NetvoteConsts.SIGNING_KEY_BITS, BigInteger.valueOf(65537));
+                kpg.initialize(kpgSpec);
+                signingKey = new SigningKey(kpg.generateKeyPair());
+                logger.info("NETVOTE: generated new signing key");
+            }
+            ++signingKey.uses;
+            return signingKey;
+        }
+    }
+
+    /**
+     * @param source
+     *          used to fetch a new token if there is no usable cached one.
+     * @return a JWT that is not about to expire.
+     * @throws IOException
+     */
+    String getToken(TokenSource source) throws IOException {
+        synchronized (tokenLock) {
+            long now = System.currentTimeMillis();
+            if (token != null && now < tokenRefreshAt) {
+                return token;
+            }
+            String fresh = source.fetchToken();
+            if (fresh == null) {
+                throw new IOException("Netvote auth response did not include a token");
+            }
+            long expiresAt = getExpiration(fresh, now);
+            long lifetime = expiresAt - now;
+            // refresh a margin ahead of expiry, but never use less than half
+            // of a short-lived token's lifetime
+            long margin = Math.min(NetvoteConsts.JWT_REFRESH_MARGIN_MILLIS, lifetime / 2);
+            token = fresh;
+            tokenRefreshAt = expiresAt - margin;
+            return token;
+        }
+    }
+
+    /**
+     * Discards the cached token if it is the given (rejected) token.
+     */
+    void invalidateToken(String rejected) {
+        synchronized (tokenLock) {
+            if (token != null && token.equals(rejected)) {
+                token = null;
+                tokenRefreshAt = 0L;
+            }
+        }
+    }
+
+    /**
+     * @return the time in milliseconds at which the JWT expires, according to
+     *         its exp claim, or DEFAULT_JWT_LIFETIME_MILLIS from now if it
+     *         has none.
+     */
+    private static long getExpiration(String jwt, long now) {
+        String[] parts = jwt.split("\\.");
+        if (parts.length >= 2) {
+            try {
+                String claimsJson = new String(Base64.getUrlDecoder().decode(parts[1]),
+                        StandardCharsets.UTF_8);
+                Type type = new TypeToken<Map<String, Object>>(){}.getType();
+                Map<String, Object> claims = gson.fromJson(claimsJson, type);
+                Object exp = (claims == null) ? null : claims.get("exp");
+                if (exp instanceof Number) {
+                    return ((Number) exp).longValue() * 1000L;
+                }
+            } catch (IllegalArgumentException e) {
+                logger.warn("NETVOTE: unable to decode JWT claims: " + e.toString());
+            } catch (JsonParseException e) {
+                logger.warn("NETVOTE: unable to parse JWT claims: " + e.toString());
+            }
+        }
+        return now + NetvoteConsts.DEFAULT_JWT_LIFETIME_MILLIS;
+    }
+}
@@ -433,27 +433,15 @@ class Form implements IForm {
     formDefinition.setIsSubmissionAllowed(submissionEnabled);
   }
 
-  private FormElementModel findElementByNameHelper(FormElementModel current, String name) {
-    if (current.getElementName().equals(name))
-      return current;
-    FormElementModel m = null;
-    for (FormElementModel c : current.getChildren()) {
-      m = findElementByNameHelper(c, name);
-      if (m != null)
-        break;
-    }
-    return m;
-  }
-
   /**
    * Relies on getElementName() to determine the match of the FormElementModel.
-   * Does a depth-first traversal of the list.
+   * Returns the first match in a depth-first traversal of the list.
    *
    * @param name
    * @return the found element or null if not found.
    */
   public FormElementModel findElementByName(String name) {
-    return findElementByNameHelper(getTopLevelGroupElement(), name);
+    return formDefinition.findElementByName(name);
   }
 
   public FormElementModel getFormElementModel(List<SubmissionKeyPart> submissionKeyParts) {
@@ -471,15 +459,8 @@ class Form implements IForm {
           return null;
         }
       } else {
-        boolean found = false;
-        for (FormElementModel c : m.getChildren()) {
-          if (c.getElementName().equals(p.getElementName())) {
-            m = c;
-            found = true;
-            break;
-          }
-        }
-        if (!found) {
+        m = m.findElementByName(p.getElementName());
+        if (m == null) {
           return null;
         }
       }
@@ -703,9 +684,8 @@ class Form implements IForm {
     if (filePath.indexOf("/") != -1) {
       filePath = filePath.substring(filePath.indexOf("/") + 1);
     }
-    byte[] byteArray = item.getStream().toByteArray();
     BlobSubmissionOutcome outcome =
-        manifest.setValueFromByteArray(byteArray, item.getContentType(), filePath, overwriteOK, cc);
+        manifest.setValueFromContentSource(item, item.getContentType(), filePath, overwriteOK, cc);
     return (outcome == BlobSubmissionOutcome.NEW_FILE_VERSION);
   }
 
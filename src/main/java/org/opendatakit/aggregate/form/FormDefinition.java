@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -70,9 +71,12 @@ public class FormDefinition {
      * If forms are deleted and reloaded, they get a different key each time.
      * The key is defined in the SubmissionAssociationTable.
      *
-     * NOTE: should only be accessed via synchronized methods to get or remove forms.
+     * Definitions are immutable once published here, so reads do not lock.
+     * Loading is serialized on loadLock so that a definition is built only once.
      */
-    private static final Map<String, FormDefinition> formDefinitions = new HashMap<String, FormDefinition>();
+    private static final ConcurrentHashMap<String, FormDefinition> formDefinitions =
+        new ConcurrentHashMap<String, FormDefinition>();
+    private static final Object loadLock = new Object();
 
     /** the entity that defines the mapping of the form id to this data model */
     private final SubmissionAssociationTable submissionAssociation;
@@ -89,6 +93,8 @@ public class FormDefinition {
 
     private FormDataModel topLevelGroup = null;
     private FormElementModel topLevelGroupElement = null;
+    /** first element with a given name in a depth-first traversal of the element tree */
+    private final Map<String, FormElementModel> elementsByName = new HashMap<String, FormElementModel>();
 
     private final String qualifiedTopLevelTable;
     private final String formId;
@@ -146,7 +152,7 @@ public class FormDefinition {
 
     /**
      * Traverse the form data model and assertRelation() on all the backing objects.
-     * Called from within the synchronized getFormDefinition() static method.
+     * Called while holding loadLock in the getFormDefinition() static method.
      *
      * @param m
      * @param objs
@@ -167,8 +173,8 @@ public class FormDefinition {
     }
 
     /**
-     * Synchronized access to the formDefinitions map.  Synchronization is only required for the
-     * put operation on the map, but also aids in efficient quota usage during periods of intense start-up.
+     * Access to the formDefinitions map.  Only the loading of a definition that is not yet in
+     * the map is serialized, which aids in efficient quota usage during periods of intense start-up.
      *
      * @param xformParameters  -- the form id, version and ui version of a form definition.
      * @param uriSubmissionDataModel -- the uri of the definition specification.
@@ -177,7 +183,7 @@ public class FormDefinition {
      *          currently valid definition of a form is being used (should the form be
      *          deleted then reloaded).
      */
-    public static synchronized final FormDefinition getFormDefinition(String formId, CallingContext cc) {
+    public static final FormDefinition getFormDefinition(String formId, CallingContext cc) {
 
         if ( formId.indexOf('/') != -1 ) {
             throw new IllegalArgumentException("formId is not well formed: " + formId);
@@ -204,7 +210,13 @@ public class FormDefinition {
                 if ( fd != null ) {
                     // found it...
                     return fd;
-                } else {
+                }
+                synchronized (loadLock) {
+                    // another thread may have loaded it while we waited
+                    fd = formDefinitions.get(uriSubmissionDataModel);
+                    if ( fd != null ) {
+                        return fd;
+                    }
                     // retrieve it...
                     FormDataModel fdm = FormDataModel.assertRelation(cc);
                     Query query = ds.createQuery(fdm, "FormDefinition.getFormDefinition", user);
@@ -252,7 +264,7 @@ public class FormDefinition {
         return null;
     }
 
-    static synchronized final void forget(String uriSubmissionDataModel) {
+    static final void forget(String uriSubmissionDataModel) {
         formDefinitions.remove(uriSubmissionDataModel);
     }
 
@@ -520,6 +532,16 @@ public class FormDefinition {
         qualifiedTopLevelTable = topLevelGroup.getPersistAsQualifiedTableName();
 
         topLevelGroupElement = FormElementModel.buildFormElementModelTree(topLevelGroup);
+        indexElementsByName(topLevelGroupElement);
+    }
+
+    private final void indexElementsByName(FormElementModel m) {
+        if ( !elementsByName.containsKey(m.getElementName()) ) {
+            elementsByName.put(m.getElementName(), m);
+        }
+        for ( FormElementModel c : m.getChildren() ) {
+            indexElementsByName(c);
+        }
     }
 
     public static void deleteAbnormalModel(String formId, CallingContext cc) {
@@ -657,6 +679,15 @@ public class FormDefinition {
         return m;
     }
 
+    /**
+     * @param name
+     * @return the first element with this name in a depth-first traversal of
+     *         the element tree, or null if there is none.
+     */
+    public final FormElementModel findElementByName(String name) {
+        return elementsByName.get(name);
+    }
+
     private final FormElementModel getElementByNameHelper(FormElementModel group, String name) {
         if ( group.getElementName() != null && group.getElementName().equals(name)) {
             return group;
@@ -33,7 +33,14 @@ import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Factory class for managing Form objects.
@@ -46,140 +53,238 @@ public class FormFactory {
 
   private static final Logger logger = LoggerFactory.getLogger(FormFactory.class);
 
-  private static long cacheTimestamp = 0L;
-  private static final List<IForm> cache = new LinkedList<IForm>();
+  /**
+   * A cached form and when it was last checked against its FormInfoTable row.
+   */
+  private static final class CachedForm {
+    final IForm form;
+    volatile long verifiedTimestamp;
+
+    CachedForm(IForm form, long verifiedTimestamp) {
+      this.form = form;
+      this.verifiedTimestamp = verifiedTimestamp;
+    }
+
+    boolean isFresh(long now) {
+      return verifiedTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS > now;
+    }
+  }
+
+  // keyed by the top-level URI (the MD5 hash URI of the formId)
+  private static final ConcurrentHashMap<String, CachedForm> cache =
+      new ConcurrentHashMap<String, CachedForm>();
+  // held while a form is being (re)loaded, so that it is loaded only once; an
+  // entry is dropped only once the cache holds the result of the load
+  private static final ConcurrentHashMap<String, Object> loadLocks =
+      new ConcurrentHashMap<String, Object>();
+  // held while the list of all forms is being reloaded
+  private static final Object listLock = new Object();
+  private static volatile long listTimestamp = 0L;
+
+  // sort by form title then by form id
+  private static final Comparator<IForm> formOrder = new Comparator<IForm>() {
+
+    @Override
+    public int compare(IForm o1, IForm o2) {
+      int ref = o1.getViewableName().compareToIgnoreCase(o2.getViewableName());
+      if ( ref != 0 ) return ref;
+      return o1.getFormId().compareToIgnoreCase(o2.getFormId());
+    }};
 
   private FormFactory() {};
 
   /**
-   * Return the list of forms in the database.
-   * If topLevelAuri is null, return all forms. Otherwise, return the form with the matching URI.
-   * This is the main interface to the cache of form objects.  The cache is refreshed as a whole
-   * every PersistConsts.MAX_SETTLE_MILLISECONDS.
+   * Return the cached form if it is unchanged since it was loaded, otherwise
+   * load the form described by infoRow.
+   *
+   * Relies on the fact that a persist updates the last-update-date of the
+   * top-level FormInfoTable even if only subordinate values are updated.
+   *
+   * @param infoRow
+   * @param prior
+   *          the cached form, or null
+   * @param cc
+   * @return the form, or null if it is not valid.
+   * @throws ODKDatastoreException
+   */
+  private static final IForm loadForm(FormInfoTable infoRow, CachedForm prior, CallingContext cc)
+      throws ODKDatastoreException {
+    IForm f = (prior == null) ? null : prior.form;
+    Date infoDate = infoRow.getLastUpdateDate();
+    Date oldDate = (f == null) ? null : f.getLastUpdateDate();
+    if ( f != null &&  f.hasValidFormDefinition() &&
+        (infoRow.getCreationDate().equals(f.getCreationDate())) &&
+        ((infoDate == null && oldDate == null) ||
+         (infoDate != null && oldDate != null && infoDate.equals(oldDate))) ) {
+      return f;
+    }
+    logger.info("FormCache: refreshing form definition from database: " + infoRow.getStringField(FormInfoTable.FORM_ID));
+    // pull and update from the datastore
+    f = new Form(infoRow, cc);
+    if (!f.isValid()) {
+      logger.error("Possible corruption: Form with URI " + f.getUri() + " is not valid");
+      return null;
+    }
+    return f;
+  }
+
+  /**
+   * Return the form with the given URI. This is the main interface to the
+   * cache of form objects. Each form is checked against its FormInfoTable row
+   * (and reloaded if that has changed) at most once every
+   * PersistConsts.MAX_SETTLE_MILLISECONDS. Only one thread checks a given
+   * form at a time; the others wait for its result. Lookups of other forms,
+   * and of forms that have been checked recently, do not wait.
    *
    * @param topLevelAuri
    * @param cc
    * @return
    * @throws ODKOverQuotaException
+   * @throws ODKEntityNotFoundException
    * @throws ODKDatastoreException
    */
-  private static synchronized final List<IForm> internalGetForms(String topLevelAuri, CallingContext cc)
-      throws ODKOverQuotaException, ODKDatastoreException {
+  private static IForm getForm(String topLevelAuri, CallingContext cc)
+      throws ODKOverQuotaException, ODKEntityNotFoundException, ODKDatastoreException {
+    CachedForm entry = cache.get(topLevelAuri);
+    if ( entry != null && entry.isFresh(System.currentTimeMillis()) ) {
+      // TODO: check authorization?
+      return entry.form;
+    }
 
-    List<IForm> forms = new ArrayList<IForm>();
-    if ( cacheTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS > System.currentTimeMillis() ) {
-      // TODO: This cache should reside in MemCache.  Right now, different running
-      // servers might see different Form definitions for up to the settle time.
-      //
-      // Since the datastore is treated as having a settle time of MAX_SETTLE_MILLISECONDS,
-      // we should rely on the cache for that time interval.  Without MemCache-style
-      // support, this is somewhat problematic since different server instances might
-      // see different versions of the same Form.
-      //
-      logger.info("FormCache: using cached list of Forms");
-    } else {
-      // we have a fairly stale list of forms -- interrogate the database
-      // for what is really there and update the cache.
-      Map<String,IForm> oldForms = new HashMap<String,IForm>();
-      for ( IForm f : cache ) {
-        oldForms.put(f.getUri(), f);
+    Object newLock = new Object();
+    Object lock = loadLocks.putIfAbsent(topLevelAuri, newLock);
+    if ( lock == null ) {
+      lock = newLock;
+    }
+    synchronized (lock) {
+      // another thread may have just checked it
+      entry = cache.get(topLevelAuri);
+      if ( entry != null && entry.isFresh(System.currentTimeMillis()) ) {
+        return entry.form;
       }
-      cache.clear();
-      logger.info("FormCache: fetching new list of Forms");
 
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
-
       FormInfoTable relation = FormInfoTable.assertRelation(cc);
-      // ensure that Form table exists...
-      Query formQuery = ds.createQuery(relation, "Form.getForms", user);
-      List<? extends CommonFieldsBase> infoRows = formQuery.executeQuery();
-
-      for (CommonFieldsBase cb : infoRows) {
-        FormInfoTable infoRow = (FormInfoTable) cb;
-        IForm f = oldForms.get(infoRow.getUri());
-        // rely on the fact that a persist updates the last-update-date of the
-        // top-level FormInfoTable even if only subordinate values are updated.
-        Date infoDate = infoRow.getLastUpdateDate();
-        Date oldDate = (f == null) ? null : f.getLastUpdateDate();
-        if ( f != null &&  f.hasValidFormDefinition() &&
-            (infoRow.getCreationDate().equals(f.getCreationDate())) &&
-            ((infoDate == null && oldDate == null) ||
-             (infoDate != null && oldDate != null && infoDate.equals(oldDate))) ) {
-          cache.add(f);
-        } else {
-          logger.info("FormCache: refreshing form definition from database: " + infoRow.getStringField(FormInfoTable.FORM_ID));
-          // pull and update from the datastore
-          f = new Form(infoRow, cc);
-          cache.add(f);
-        }
+      FormInfoTable infoRow;
+      try {
+        infoRow = ds.getEntity(relation, topLevelAuri, user);
+      } catch (ODKEntityNotFoundException e) {
+        cache.remove(topLevelAuri);
+        // there is nothing to load, so don't keep a lock for every unknown uri
+        loadLocks.remove(topLevelAuri, lock);
+        throw new ODKEntityNotFoundException("Could not retrieve form uri: " + topLevelAuri, e);
       }
 
-      for (IForm form : cache)
-        if (!form.isValid()) {
-          logger.error("Possible corruption: Form with URI " + form.getUri() + " is not valid");
-          cache.remove(form);
-        }
-
-      // sort by form title then by form id
-      Collections.sort(forms, new Comparator<IForm>() {
-
-        @Override
-        public int compare(IForm o1, IForm o2) {
-          int ref = o1.getViewableName().compareToIgnoreCase(o2.getViewableName());
-          if ( ref != 0 ) return ref;
-          return o1.getFormId().compareToIgnoreCase(o2.getFormId());
-        }});
-
-      // update cacheTimestamp -- note that if the datastore is very slow, this will
-      // space out the updates because the cacheTimestamp is established after all
-      // the datastore accesses.
-      cacheTimestamp = System.currentTimeMillis();
+      IForm f = loadForm(infoRow, entry, cc);
+      if ( f == null ) {
+        cache.remove(topLevelAuri);
+        throw new ODKEntityNotFoundException("Could not retrieve form uri: " + topLevelAuri);
+      }
+      long now = System.currentTimeMillis();
+      if ( entry != null && entry.form == f ) {
+        entry.verifiedTimestamp = now;
+      } else {
+        logger.info("FormCache: caching form " + f.getFormId());
+        cache.put(topLevelAuri, new CachedForm(f, now));
+      }
+      // threads still waiting on this lock find the fresh entry once they
+      // get it, and later ones find it before asking for a lock
+      loadLocks.remove(topLevelAuri, lock);
 
       // test to see if we need to trigger the watchdog
       BackendActionsTable.triggerWatchdog(cc);
+      // TODO: check authorization?
+      return f;
     }
-
-    for (IForm v : cache) {
-      if ( topLevelAuri == null || v.getUri().equals(topLevelAuri) ) {
-        forms.add(v);
-      }
-    }
-    return forms;
-  }
-
-  public static synchronized void clearForm(IForm match) {
-    // NOTE: delays refresh of the forms list by the settle time.
-    cache.remove(match);
-    cacheTimestamp = System.currentTimeMillis();
   }
 
   /**
-   * Common private static method through which all Form objects are obtained.
-   * This provides a cache of the form data.  If known, the top-level object's
-   * row object is passed in.  This is a database access optimization (minimize
-   * GAE billing).
+   * Return the list of all forms in the database, sorted by title and formId.
+   * The list is refreshed from the FormInfoTable every
+   * PersistConsts.MAX_SETTLE_MILLISECONDS; unchanged forms are reused.
    *
-   * @param topLevelAuri
    * @param cc
    * @return
    * @throws ODKOverQuotaException
-   * @throws ODKEntityNotFoundException
    * @throws ODKDatastoreException
    */
-  private static IForm getForm(String topLevelAuri, CallingContext cc)
-      throws ODKOverQuotaException, ODKEntityNotFoundException, ODKDatastoreException {
-    List<IForm> forms = internalGetForms(topLevelAuri, cc);
+  private static final List<IForm> internalGetForms(CallingContext cc)
+      throws ODKOverQuotaException, ODKDatastoreException {
 
-    if ( forms.isEmpty() ) throw new ODKEntityNotFoundException("Could not retrieve form uri: " + topLevelAuri);
-    IForm f = forms.get(0);
-    // TODO: check authorization?
-    return f;
+    if ( listTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS <= System.currentTimeMillis() ) {
+      synchronized (listLock) {
+        if ( listTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS <= System.currentTimeMillis() ) {
+          // we have a fairly stale list of forms -- interrogate the database
+          // for what is really there and update the cache.
+          //
+          // TODO: This cache should reside in MemCache.  Right now, different running
+          // servers might see different Form definitions for up to the settle time.
+          logger.info("FormCache: fetching new list of Forms");
+
+          Datastore ds = cc.getDatastore();
+          User user = cc.getCurrentUser();
+
+          FormInfoTable relation = FormInfoTable.assertRelation(cc);
+          // ensure that Form table exists...
+          Query formQuery = ds.createQuery(relation, "Form.getForms", user);
+          List<? extends CommonFieldsBase> infoRows = formQuery.executeQuery();
+
+          Set<String> present = new HashSet<String>();
+          for (CommonFieldsBase cb : infoRows) {
+            FormInfoTable infoRow = (FormInfoTable) cb;
+            String uri = infoRow.getUri();
+            CachedForm entry = cache.get(uri);
+            IForm f = loadForm(infoRow, entry, cc);
+            long now = System.currentTimeMillis();
+            if ( f == null ) {
+              cache.remove(uri);
+            } else if ( entry != null && entry.form == f ) {
+              entry.verifiedTimestamp = now;
+              present.add(uri);
+            } else {
+              cache.put(uri, new CachedForm(f, now));
+              present.add(uri);
+            }
+          }
+          // drop forms that have been deleted
+          cache.keySet().retainAll(present);
+
+          // update listTimestamp -- note that if the datastore is very slow, this will
+          // space out the updates because the listTimestamp is established after all
+          // the datastore accesses.
+          listTimestamp = System.currentTimeMillis();
+
+          // test to see if we need to trigger the watchdog
+          BackendActionsTable.triggerWatchdog(cc);
+        }
+      }
+    }
+
+    List<IForm> forms = new ArrayList<IForm>(cache.size());
+    for (CachedForm entry : cache.values()) {
+      forms.add(entry.form);
+    }
+    Collections.sort(forms, formOrder);
+    return forms;
+  }
+
+  /**
+   * Drop the form from the cache; it will be reloaded from the datastore on
+   * its next lookup. Other forms are unaffected.
+   *
+   * @param match
+   */
+  public static void clearForm(IForm match) {
+    CachedForm entry = cache.get(match.getUri());
+    if ( entry != null && entry.form == match ) {
+      cache.remove(match.getUri(), entry);
+    }
   }
 
   public static final List<IForm> getForms(boolean checkAuthorization, CallingContext cc)
       throws ODKOverQuotaException, ODKDatastoreException {
-    List<IForm> forms = internalGetForms(null, cc);
+    List<IForm> forms = internalGetForms(cc);
     // TODO: check authorization
     return forms;
   }
@@ -192,7 +297,7 @@ public class FormFactory {
    * @throws ODKDatastoreException
    */
   public static final void initialize(CallingContext cc) throws ODKDatastoreException {
-    internalGetForms(null, cc);
+    internalGetForms(cc);
   }
 
   /**
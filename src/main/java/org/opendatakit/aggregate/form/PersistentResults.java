@@ -15,6 +15,9 @@
  */
 package org.opendatakit.aggregate.form;
 
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -32,14 +35,17 @@ import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.common.datamodel.BinaryContent;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.ContentOutputStream;
 import org.opendatakit.common.datamodel.BinaryContentRefBlob;
 import org.opendatakit.common.datamodel.RefBlob;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -47,6 +53,9 @@ import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
+import org.opendatakit.common.web.constants.HtmlConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * 
@@ -55,6 +64,9 @@ import org.opendatakit.common.web.constants.BasicConsts;
  * 
  */
 public class PersistentResults {
+
+  private static final Logger logger = LoggerFactory.getLogger(PersistentResults.class);
+
   public static final long RETRY_INTERVAL_MILLISECONDS = (11 * 60) * 1000; // 11 minutes
   // public static final long RETRY_INTERVAL_MILLISECONDS = 10000; // for debugging...
   public static final long MAX_RETRY_ATTEMPTS = 3;
@@ -269,6 +281,288 @@ public class PersistentResults {
     bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  /**
+   * Starts streaming the result file into the datastore, replacing any
+   * (possibly partial) result file of an earlier attempt. The result file is
+   * not available until the returned stream is committed.
+   */
+  public ContentOutputStream openResultFile(String contentType, String unrootedFilePath,
+      CallingContext cc) throws ODKDatastoreException {
+    deleteProgress(cc);
+    bcm.deleteAll(cc);
+    return bcm.newContentOutputStream(contentType, unrootedFilePath, cc);
+  }
+
+  /**
+   * Continues streaming a partial result file after its first partCount
+   * parts, as checkpointed by an earlier attempt.
+   */
+  public ContentOutputStream resumeResultFile(String unrootedFilePath, long partCount,
+      CallingContext cc) throws ODKDatastoreException {
+    return bcm.resumeContentOutputStream(unrootedFilePath, partCount, cc);
+  }
+
+  /**
+   * Checkpoint of an export that is being generated, from which a later
+   * attempt resumes.
+   */
+  public static final class ExportProgress {
+    public final QueryResumePoint resumeCursor;
+    public final long resultPartCount;
+    public final long rowsProcessed;
+    // null if the number of rows to export was not counted
+    public final Long rowsExpected;
+
+    ExportProgress(QueryResumePoint resumeCursor, long resultPartCount, long rowsProcessed,
+        Long rowsExpected) {
+      this.resumeCursor = resumeCursor;
+      this.resultPartCount = resultPartCount;
+      this.rowsProcessed = rowsProcessed;
+      this.rowsExpected = rowsExpected;
+    }
+
+    /**
+     * @return the percentage of the rows that have been exported, or null if
+     *         the number of rows to export is not known.
+     */
+    public Integer getPercentComplete() {
+      if (rowsExpected == null) {
+        return null;
+      }
+      if (rowsExpected <= 0L) {
+        return 100;
+      }
+      return (int) Math.min(100L, (rowsProcessed * 100L) / rowsExpected);
+    }
+  }
+
+  /**
+   * @param cc
+   * @return the last checkpoint of the export, or null if there is none.
+   * @throws ODKDatastoreException
+   */
+  public ExportProgress getProgress(CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    PersistentResultsProgressTable relation = PersistentResultsProgressTable.assertRelation(cc);
+    PersistentResultsProgressTable p;
+    try {
+      p = ds.getEntity(relation, row.getUri(), user);
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+    QueryResumePoint resumeCursor = QueryResumePoint.fromWebsafeCursor(
+        p.getStringField(PersistentResultsProgressTable.RESUME_CURSOR));
+    Long resultPartCount = p.getLongField(PersistentResultsProgressTable.RESULT_PART_COUNT);
+    Long rowsProcessed = p.getLongField(PersistentResultsProgressTable.ROWS_PROCESSED);
+    if (resumeCursor == null || resultPartCount == null || rowsProcessed == null) {
+      return null;
+    }
+    return new ExportProgress(resumeCursor, resultPartCount, rowsProcessed,
+        p.getLongField(PersistentResultsProgressTable.ROWS_EXPECTED));
+  }
+
+  /**
+   * Records a checkpoint of the export: the query cursor after the last row
+   * written and the number of result file parts holding those rows.
+   *
+   * @param resumeCursor
+   * @param resultPartCount
+   * @param rowsProcessed
+   * @param rowsExpected
+   *          null if not known
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void setProgress(QueryResumePoint resumeCursor, long resultPartCount,
+      long rowsProcessed, Long rowsExpected, CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    PersistentResultsProgressTable relation = PersistentResultsProgressTable.assertRelation(cc);
+    PersistentResultsProgressTable p;
+    try {
+      p = ds.getEntity(relation, row.getUri(), user);
+    } catch (ODKEntityNotFoundException e) {
+      p = ds.createEntityUsingRelation(relation, user);
+      p.setStringField(relation.primaryKey, row.getUri());
+    }
+    if (!p.setStringField(PersistentResultsProgressTable.RESUME_CURSOR,
+        resumeCursor.asWebsafeCursor())) {
+      throw new IllegalStateException("overflow resumeCursor");
+    }
+    p.setLongField(PersistentResultsProgressTable.RESULT_PART_COUNT, resultPartCount);
+    p.setLongField(PersistentResultsProgressTable.ROWS_PROCESSED, rowsProcessed);
+    p.setLongField(PersistentResultsProgressTable.ROWS_EXPECTED, rowsExpected);
+    ds.putEntity(p, user);
+  }
+
+  /**
+   * One attempt at generating the result file of an export. The file is
+   * streamed into the datastore and checkpointed after each segment of rows,
+   * so that a later attempt can resume from the last checkpoint. Every write
+   * to the results row first checks that the export has not been restarted
+   * (given a new attemptCount) meanwhile.
+   */
+  public static final class ExportSession {
+    private final SubmissionKey persistentResultsKey;
+    private final Long attemptCount;
+    private final ContentOutputStream stream;
+    private final PrintWriter writer;
+    private final QueryResumePoint resumeCursor;
+    private long rowsProcessed;
+    private Long rowsExpected;
+
+    private ExportSession(SubmissionKey persistentResultsKey, Long attemptCount,
+        ContentOutputStream stream, QueryResumePoint resumeCursor, long rowsProcessed,
+        Long rowsExpected) {
+      this.persistentResultsKey = persistentResultsKey;
+      this.attemptCount = attemptCount;
+      this.stream = stream;
+      this.writer = new PrintWriter(new OutputStreamWriter(stream,
+          Charset.forName(HtmlConsts.UTF8_ENCODE)));
+      this.resumeCursor = resumeCursor;
+      this.rowsProcessed = rowsProcessed;
+      this.rowsExpected = rowsExpected;
+    }
+
+    /**
+     * @return true if this attempt continues the file of an earlier one.
+     */
+    public boolean isResumed() {
+      return resumeCursor != null;
+    }
+
+    /**
+     * @return the query cursor after the last row in the resumed file, or
+     *         null if the file was started afresh.
+     */
+    public QueryResumePoint getResumeCursor() {
+      return resumeCursor;
+    }
+
+    public long getRowsProcessed() {
+      return rowsProcessed;
+    }
+
+    /**
+     * @param rowsExpected
+     *          the number of rows to export, or null if not known
+     */
+    public void setRowsExpected(Long rowsExpected) {
+      this.rowsExpected = rowsExpected;
+    }
+
+    /**
+     * @return the writer into the result file.
+     */
+    public PrintWriter getWriter() {
+      return writer;
+    }
+
+    /**
+     * Persists what has been written, records a checkpoint after it and
+     * refreshes the lastRetryDate, so that the watchdog does not take the
+     * export for a stalled one. Nothing is persisted if the export has been
+     * restarted: the new attempt may already be writing the parts that follow
+     * the last recorded checkpoint.
+     *
+     * @param resumeCursor
+     *          the query cursor after the last row written
+     * @param rowCount
+     *          the rows written since the last checkpoint
+     * @param cc
+     * @return false, having recorded nothing, if the export has been restarted.
+     * @throws ODKDatastoreException
+     */
+    public boolean checkpoint(QueryResumePoint resumeCursor, int rowCount, CallingContext cc)
+        throws ODKDatastoreException {
+      rowsProcessed += rowCount;
+      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      if (!attemptCount.equals(r.getAttemptCount())) {
+        return false;
+      }
+      writer.flush();
+      long resultPartCount = stream.checkpoint();
+      r.setProgress(resumeCursor, resultPartCount, rowsProcessed, rowsExpected, cc);
+      r.setLastRetryDate(new Date());
+      r.persist(cc);
+      return true;
+    }
+
+    /**
+     * Completes the result file and makes it available.
+     *
+     * @param cc
+     * @return false, having saved nothing, if the export has been restarted.
+     * @throws ODKDatastoreException
+     */
+    public boolean commit(CallingContext cc) throws ODKDatastoreException {
+      writer.close();
+      // refetch because this might have taken a while...
+      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      if (!attemptCount.equals(r.getAttemptCount())) {
+        return false;
+      }
+      stream.commit();
+      r.setStatus(ExportStatus.AVAILABLE);
+      r.setCompletionDate(new Date());
+      r.persist(cc);
+      r.deleteProgress(cc);
+      return true;
+    }
+  }
+
+  /**
+   * Starts an attempt at generating the result file, resuming from the
+   * checkpoint of an earlier attempt if there is one that can be resumed, and
+   * otherwise starting the file afresh.
+   *
+   * @param attemptCount
+   *          the attempt generating the file
+   * @param contentType
+   * @param unrootedFilePath
+   * @param cc
+   * @return the export session of this attempt.
+   * @throws ODKDatastoreException
+   */
+  public ExportSession startExport(Long attemptCount, String contentType,
+      String unrootedFilePath, CallingContext cc) throws ODKDatastoreException {
+    ExportProgress progress = getProgress(cc);
+    if (progress != null) {
+      try {
+        ContentOutputStream stream = resumeResultFile(unrootedFilePath,
+            progress.resultPartCount, cc);
+        return new ExportSession(getSubmissionKey(), attemptCount, stream,
+            progress.resumeCursor, progress.rowsProcessed, progress.rowsExpected);
+      } catch (ODKEntityNotFoundException | IllegalStateException e) {
+        logger.warn("unable to resume " + unrootedFilePath + " - starting over for "
+            + getFormId() + ": " + e.toString());
+      }
+    }
+    ContentOutputStream stream = openResultFile(contentType, unrootedFilePath, cc);
+    return new ExportSession(getSubmissionKey(), attemptCount, stream, null, 0L, null);
+  }
+
+  /**
+   * Deletes the result file of a failed attempt, unless it has been
+   * checkpointed; a later attempt then resumes it.
+   *
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void deleteUnresumableResultFile(CallingContext cc) throws ODKDatastoreException {
+    if (getProgress(cc) == null) {
+      deleteResultFile(cc);
+    }
+  }
+
+  public void deleteProgress(CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    PersistentResultsProgressTable relation = PersistentResultsProgressTable.assertRelation(cc);
+    ds.deleteEntity(new EntityKey(relation, row.getUri()), user);
+  }
+
   public String getUri() {
     return row.getUri();
   }
@@ -320,6 +614,7 @@ public class PersistentResults {
 
   public void delete(CallingContext cc) throws ODKDatastoreException {
     deleteResultFile(cc);
+    deleteProgress(cc);
     deleteFilterGroup(cc);
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
@@ -398,6 +693,9 @@ public class PersistentResults {
         result.setStatus(ExportStatus.ABANDONED);
         result.setCompletionDate(now);
         result.persist(cc);
+        // discard the partial file kept for the next retry
+        result.deleteResultFile(cc);
+        result.deleteProgress(cc);
         continue;
       }
       // OK. If we are here, a task was last fired for this request
@@ -542,4 +840,71 @@ public class PersistentResults {
           refBlobRelation);
     }
   }
+
+  /**
+   * Checkpoints of the exports being generated, one row per PersistentResults
+   * row and with the same URI. Kept apart from _persistent_results so that the
+   * schema of existing servers is unchanged.
+   */
+  private static final class PersistentResultsProgressTable extends CommonFieldsBase {
+
+    static final String TABLE_NAME = "_persistent_results_progress";
+
+    private static final DataField RESUME_CURSOR = new DataField("RESUME_CURSOR",
+        DataField.DataType.STRING, true, 4096L);
+
+    private static final DataField RESULT_PART_COUNT = new DataField("RESULT_PART_COUNT",
+        DataField.DataType.INTEGER, true);
+
+    private static final DataField ROWS_PROCESSED = new DataField("ROWS_PROCESSED",
+        DataField.DataType.INTEGER, true);
+
+    private static final DataField ROWS_EXPECTED = new DataField("ROWS_EXPECTED",
+        DataField.DataType.INTEGER, true);
+
+    /**
+     * Construct a relation prototype.
+     * 
+     * @param databaseSchema
+     */
+    private PersistentResultsProgressTable(String databaseSchema) {
+      super(databaseSchema, TABLE_NAME);
+      fieldList.add(RESUME_CURSOR);
+      fieldList.add(RESULT_PART_COUNT);
+      fieldList.add(ROWS_PROCESSED);
+      fieldList.add(ROWS_EXPECTED);
+    }
+
+    /**
+     * Construct an empty entity.
+     * 
+     * @param ref
+     * @param user
+     */
+    private PersistentResultsProgressTable(PersistentResultsProgressTable ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public PersistentResultsProgressTable getEmptyRow(User user) {
+      return new PersistentResultsProgressTable(this, user);
+    }
+
+    private static PersistentResultsProgressTable relation = null;
+
+    static synchronized final PersistentResultsProgressTable assertRelation(CallingContext cc)
+        throws ODKDatastoreException {
+      if (relation == null) {
+        PersistentResultsProgressTable relationPrototype;
+        Datastore ds = cc.getDatastore();
+        User user = cc.getUserService().getDaemonAccountUser();
+        relationPrototype = new PersistentResultsProgressTable(ds.getDefaultSchemaName());
+        ds.assertRelation(relationPrototype, user); // may throw exception...
+        // at this point, the prototype has become fully populated
+        relation = relationPrototype; // set static variable only upon
+                                      // success...
+      }
+      return relation;
+    }
+  }
 }
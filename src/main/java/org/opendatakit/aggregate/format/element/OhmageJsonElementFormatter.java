@@ -31,6 +31,7 @@ import org.opendatakit.aggregate.submission.SubmissionRepeat;
 import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
 import org.opendatakit.aggregate.submission.type.GeoPoint;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.ContentSource;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
@@ -42,12 +43,59 @@ import org.opendatakit.common.web.CallingContext;
  */
 public class OhmageJsonElementFormatter implements ElementFormatter {
 
+    /**
+     * A photo whose content is read from the datastore only as it is sent.
+     */
+    public static final class Attachment {
+        private final String contentHash;
+        private final String contentType;
+        private final BlobSubmissionType blob;
+
+        Attachment(String contentHash, String contentType, BlobSubmissionType blob) {
+            this.contentHash = contentHash;
+            this.contentType = contentType;
+            this.blob = blob;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @param cc
+         *            the context through which the content is read; it may
+         *            belong to a thread other than the formatter's.
+         * @return the content of the photo.
+         * @throws ODKDatastoreException
+         */
+        public ContentSource getContent(CallingContext cc) throws ODKDatastoreException {
+            return blob.getContentSource(1, cc);
+        }
+    }
+
+    private final boolean streamPhotos;
     private List<OhmageJsonTypes.Response> responses;
     private Map<UUID, ByteArrayBody> photos;
+    private Map<UUID, Attachment> attachments;
 
     public OhmageJsonElementFormatter() {
+        this(false);
+    }
+
+    /**
+     * @param streamPhotos
+     *            if true, photos are returned by getAttachments() rather than
+     *            read into memory and returned by getPhotos().
+     */
+    public OhmageJsonElementFormatter(boolean streamPhotos) {
+        this.streamPhotos = streamPhotos;
         this.responses = new ArrayList<OhmageJsonTypes.Response>();
         this.photos = new HashMap<UUID, ByteArrayBody>();
+        this.attachments = new HashMap<UUID, Attachment>();
     }
 
     @Override
@@ -62,6 +110,19 @@ public class OhmageJsonElementFormatter implements ElementFormatter {
         if (!(blobSubmission == null
                 || (blobSubmission.getAttachmentCount(cc) == 0) || (blobSubmission
                     .getContentHash(1, cc) == null))) {
+            if (streamPhotos) {
+                Long contentLength = null;
+                if (blobSubmission.getAttachmentCount(cc) == 1) {
+                    contentLength = blobSubmission.getContentLength(1, cc);
+                }
+                if (contentLength != null && contentLength > 0) {
+                    UUID photoUUID = UUID.randomUUID();
+                    responses.add(new OhmageJsonTypes.photo(element.getElementName(), photoUUID));
+                    attachments.put(photoUUID, new Attachment(blobSubmission.getContentHash(1, cc),
+                            blobSubmission.getContentType(1, cc), blobSubmission));
+                }
+                return;
+            }
             byte[] imageBlob = null;
             if (blobSubmission.getAttachmentCount(cc) == 1) {
                 imageBlob = blobSubmission.getBlob(1, cc);
@@ -176,6 +237,13 @@ public class OhmageJsonElementFormatter implements ElementFormatter {
         return photos;
     }
 
+    /**
+     * @return the photos, if constructed to stream them
+     */
+    public Map<UUID, Attachment> getAttachments() {
+        return attachments;
+    }
+
     public static String getBinaryContentTransferEncoding() {
         return "base64";
     }
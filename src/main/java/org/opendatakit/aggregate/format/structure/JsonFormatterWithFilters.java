@@ -74,6 +74,17 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
     first = true;
   }
 
+  /**
+   * Continues output begun by an earlier formatter, in place of
+   * beforeProcessSubmissions().
+   *
+   * @param submissionsWritten
+   *          the number of submissions the earlier formatter wrote.
+   */
+  public void resumeProcessSubmissions(long submissionsWritten) {
+    first = (submissionsWritten == 0L);
+  }
+
   @Override
   public void processSubmissionSegment(List<Submission> submissions, CallingContext cc)
       throws ODKDatastoreException {
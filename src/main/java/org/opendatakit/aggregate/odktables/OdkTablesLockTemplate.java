@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WaitableTaskLock;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
@@ -122,19 +123,27 @@ public class OdkTablesLockTemplate {
     TaskLock lock = ds.createTaskLock(user);
     boolean acquired = false;
     maxBackoffMs = delay.getBaseBackOffTime();
-    for (int i = 0; i < TRIES; i++) {
-      if (lock.obtainLock(lockId, tableId, type)) {
-        acquired = true;
-        break;
-      } else {
-        try {
-          long backOffTime = getNextBackoff();
-          log.info("acquire lock sleeping for: " + backOffTime);
-          Thread.sleep(backOffTime);
-        } catch (RuntimeException e) {
-          throw new ODKTaskLockException(e);
-        } catch (Exception e) {
-          throw new ODKTaskLockException(e);
+    if (lock instanceof WaitableTaskLock) {
+      // block until the lock is free, for at most as long as the backoff
+      // schedule below could take
+      long base = delay.getBaseBackOffTime();
+      acquired = ((WaitableTaskLock) lock).obtainLock(lockId, tableId, type,
+          base * TRIES + base * ((1L << TRIES) - 1L));
+    } else {
+      for (int i = 0; i < TRIES; i++) {
+        if (lock.obtainLock(lockId, tableId, type)) {
+          acquired = true;
+          break;
+        } else {
+          try {
+            long backOffTime = getNextBackoff();
+            log.info("acquire lock sleeping for: " + backOffTime);
+            Thread.sleep(backOffTime);
+          } catch (RuntimeException e) {
+            throw new ODKTaskLockException(e);
+          } catch (Exception e) {
+            throw new ODKTaskLockException(e);
+          }
         }
       }
     }
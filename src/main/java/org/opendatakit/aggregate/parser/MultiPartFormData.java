@@ -17,8 +17,6 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -29,11 +27,12 @@ import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.fileupload.FileItemIterator;
-import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.UploadContext;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.servlet.ServletRequestContext;
 import org.opendatakit.aggregate.constants.ParserConsts;
 
 /**
@@ -41,6 +40,10 @@ import org.opendatakit.aggregate.constants.ParserConsts;
  * information stored in items are indexed by either the field name or the file
  * name (or both) provided in the http submission
  * 
+ * Parts larger than {@link ParserConsts#FILE_SIZE_THRESHOLD} are spilled to
+ * temporary files; call {@link #delete()} once the request has been processed
+ * to remove them.
+ * 
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  * 
@@ -55,6 +58,8 @@ public class MultiPartFormData {
 
     private final Map<String, MultiPartFormItem> fileNameWithoutExtensionNameMap;
 
+    private final List<MultiPartFormItem> items;
+
     /**
      * Construct a mult-part form data container by parsing a multi part form
      * request into a set of multipartformitems. The information are stored in
@@ -69,15 +74,33 @@ public class MultiPartFormData {
      */
     public MultiPartFormData(HttpServletRequest req)
             throws FileUploadException, IOException {
+        this(new ServletRequestContext(req));
+    }
+
+    /**
+     * Construct a mult-part form data container from a multi part form body
+     * that is not (or no longer) attached to an HTTP request, e.g., one that
+     * was spooled to disk.
+     * 
+     * @param ctx
+     *            the content type, length and body of the multi part form
+     * 
+     * @throws FileUploadException
+     * @throws IOException
+     */
+    public MultiPartFormData(UploadContext ctx)
+            throws FileUploadException, IOException {
 
         simpleFieldNameMap = new HashMap<String, String>();
         fieldNameMap = new HashMap<String, MultiPartFormItem>();
         fileNameMap = new HashMap<String, MultiPartFormItem>();
         fileNameWithoutExtensionNameMap = new HashMap<String, MultiPartFormItem>();
 
+        items = new ArrayList<MultiPartFormItem>();
+
         ServletFileUpload upload = new ServletFileUpload(
-                new DiskFileItemFactory());
-        int size = req.getContentLength();
+                new DiskFileItemFactory(ParserConsts.FILE_SIZE_THRESHOLD, null));
+        long size = ctx.contentLength();
         if (size > 0) {
             upload.setFileSizeMax(size);
         } else {
@@ -85,27 +108,17 @@ public class MultiPartFormData {
         }
 
         List<MultiPartFormItem> fileNameList = new ArrayList<MultiPartFormItem>();
-        
-        FileItemIterator items = upload.getItemIterator(req);
-        while (items.hasNext()) {
-            FileItemStream item = items.next();
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            BufferedInputStream formStream = new BufferedInputStream(item
-                    .openStream());
-
-            // TODO: determine ways to possibly improve efficiency
-            int nextByte = formStream.read();
-            while (nextByte != -1) {
-                byteStream.write(nextByte);
-                nextByte = formStream.read();
-            }
-            formStream.close();
 
+        // parts are copied in bulk into memory or, once they exceed the
+        // threshold, into temporary files.
+        for (FileItem item : upload.parseRequest(ctx)) {
             if ( item.isFormField() ) {
-                simpleFieldNameMap.put(item.getFieldName(), byteStream.toString());
+                simpleFieldNameMap.put(item.getFieldName(), new String(item.get()));
+                item.delete();
             } else {
                 MultiPartFormItem data = new MultiPartFormItem(item.getFieldName(),
-                        item.getName(), item.getContentType(), byteStream);
+                        item.getName(), item.getContentType(), item);
+                items.add(data);
     
                 String fieldName = item.getFieldName();
                 if (fieldName != null) {
@@ -200,4 +213,14 @@ public class MultiPartFormData {
     public Set<Map.Entry<String,MultiPartFormItem>> getFieldNameEntrySet() {
         return Collections.unmodifiableSet(fieldNameMap.entrySet());
     }
+
+    /**
+     * Deletes the temporary files holding the content of the larger parts.
+     * The items must not be read afterwards.
+     */
+    public void delete() {
+        for (MultiPartFormItem item : items) {
+            item.delete();
+        }
+    }
 }
@@ -17,16 +17,24 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.fileupload.FileItem;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
 
 /**
- * Object representation of multi part form data
+ * Object representation of multi part form data. Small parts are held in
+ * memory; larger ones are held in a temporary file until {@link #delete()} is
+ * called. Either way, the content can be read directly with
+ * {@link #openStream()} or stored as a blob without an intermediate copy.
  * 
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  * 
  */
-public final class MultiPartFormItem {
+public final class MultiPartFormItem implements BinaryContentManipulator.ContentSource {
 
   /**
    * form data field name
@@ -44,9 +52,9 @@ public final class MultiPartFormItem {
   private final String contentType;
 
   /**
-   * form data's stream
+   * form data's content
    */
-  private final ByteArrayOutputStream stream;
+  private final FileItem item;
   
   /**
    * Constructor of a multi part of data 
@@ -57,14 +65,14 @@ public final class MultiPartFormItem {
    *    form data file name
    * @param contentType
    *    form data content type
-   * @param byteStream
-   *    form data's stream
+   * @param item
+   *    form data's content
    */
-  public MultiPartFormItem(String fieldName, String fileName, String contentType, ByteArrayOutputStream byteStream) {
+  public MultiPartFormItem(String fieldName, String fileName, String contentType, FileItem item) {
     this.name = fieldName;
     this.filename = fileName;
     this.contentType = contentType;
-    this.stream = byteStream;
+    this.item = item;
   }
   
   /**
@@ -109,12 +117,56 @@ public final class MultiPartFormItem {
   }
 
   /**
-   * Get form data's stream
+   * Get the size of the form data
+   * 
+   * @return
+   *    length in bytes
+   */
+  @Override
+  public long getContentLength() {
+    return item.getSize();
+  }
+
+  /**
+   * Open a new stream on the form data
    * 
    * @return
-   *    stream
+   *    stream, to be closed by the caller
+   * @throws IOException
+   */
+  @Override
+  public InputStream openStream() throws IOException {
+    return item.getInputStream();
+  }
+
+  /**
+   * Get the form data as a byte array. This reads a part held in a temporary
+   * file into memory, so prefer {@link #openStream()} for large parts.
+   * 
+   * @return
+   *    content
+   */
+  public byte[] getBytes() {
+    return item.get();
+  }
+
+  /**
+   * Get the form data as a string
+   * 
+   * @param encoding
+   *    character encoding of the content
+   * @return
+   *    content
+   * @throws UnsupportedEncodingException
+   */
+  public String getString(String encoding) throws UnsupportedEncodingException {
+    return item.getString(encoding);
+  }
+
+  /**
+   * Delete the temporary file, if any, holding the form data
    */
-  public ByteArrayOutputStream getStream() {
-    return stream;
+  public void delete() {
+    item.delete();
   }
 }
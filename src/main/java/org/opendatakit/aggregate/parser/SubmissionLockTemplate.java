@@ -23,6 +23,7 @@ import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.ITaskLockType;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WaitableTaskLock;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
@@ -41,6 +42,7 @@ public class SubmissionLockTemplate {
   // 250 + 500 + 1000 + 2000 = 3750
   private static final int TRIES = 4;
   private static final int INITIAL_MAX_BACKOFF = 250;
+  private static final long MAX_WAIT_MILLIS = INITIAL_MAX_BACKOFF * ((1L << TRIES) - 1L);
   
   private enum SubmissionTaskLockType implements ITaskLockType {
     MODIFICATION(66000, PersistConsts.MIN_SETTLE_MILLISECONDS);
@@ -111,17 +113,24 @@ public class SubmissionLockTemplate {
     TaskLock lock = ds.createTaskLock(user);
     boolean acquired = false;
     maxBackoffMs = INITIAL_MAX_BACKOFF;
-    for (int i = 0; i < TRIES; i++) {
-      if (lock.obtainLock(lockId, formId, SubmissionTaskLockType.MODIFICATION)) {
-        acquired = true;
-        break;
-      } else {
-        try {
-          Thread.sleep(getNextBackoff());
-        } catch (RuntimeException e) {
-          throw new ODKTaskLockException(e);
-        } catch (Exception e) {
-          throw new ODKTaskLockException(e);
+    if (lock instanceof WaitableTaskLock) {
+      // wait for the lock rather than sleeping between attempts; allow the
+      // same total time as the backoff schedule.
+      acquired = ((WaitableTaskLock) lock).obtainLock(lockId, formId,
+          SubmissionTaskLockType.MODIFICATION, MAX_WAIT_MILLIS);
+    } else {
+      for (int i = 0; i < TRIES; i++) {
+        if (lock.obtainLock(lockId, formId, SubmissionTaskLockType.MODIFICATION)) {
+          acquired = true;
+          break;
+        } else {
+          try {
+            Thread.sleep(getNextBackoff());
+          } catch (RuntimeException e) {
+            throw new ODKTaskLockException(e);
+          } catch (Exception e) {
+            throw new ODKTaskLockException(e);
+          }
         }
       }
     }
@@ -17,7 +17,7 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -26,23 +26,29 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64OutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.ParserConsts;
 import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.constants.common.OperationalStatus;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.datamodel.TopLevelInstanceData;
 import org.opendatakit.aggregate.exception.ODKConversionException;
+import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.exception.ODKFormSubmissionsDisabledException;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData.Reason;
 import org.opendatakit.aggregate.exception.ODKParseException;
+import org.opendatakit.aggregate.externalservice.ExternalService;
+import org.opendatakit.aggregate.externalservice.FormServiceCursor;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.Submission;
@@ -50,6 +56,8 @@ import org.opendatakit.aggregate.submission.SubmissionField;
 import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
 import org.opendatakit.aggregate.submission.type.RepeatSubmissionType;
+import org.opendatakit.aggregate.task.UploadSubmissions;
+import org.opendatakit.aggregate.util.BackendActionsTable;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -63,12 +71,6 @@ import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
 import org.opendatakit.common.web.constants.HtmlConsts;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * Parsers submission xml and saves to datastore
@@ -86,11 +88,6 @@ public class SubmissionParser {
 
   private IForm form;
 
-  /**
-   * Root of XML submission
-   */
-  private Element root;
-
   /**
    * Submission object created from xml submission
    */
@@ -130,6 +127,42 @@ public class SubmissionParser {
     return form;
   }
 
+  /**
+   * Creates upload tasks for the active publishers of the form if this
+   * submission has just become complete. Only done if no publish request
+   * was issued recently; BackendActionsTable mediates that decision.
+   * Publication failures do not fail the submission.
+   * 
+   * @param cc
+   *          the CallingContext of this request
+   * @param ccDaemon
+   *          the CallingContext under which the upload tasks run
+   * @throws ODKDatastoreException
+   */
+  public void triggerPublishers(CallingContext cc, CallingContext ccDaemon)
+      throws ODKDatastoreException {
+    if (!preExistingComplete && submission.isComplete()
+        && BackendActionsTable.triggerPublisher(form.getUri(), cc)) {
+      // send information to remote servers that need to be notified
+      List<ExternalService> tmp = FormServiceCursor.getExternalServicesForForm(form, cc);
+      UploadSubmissions uploadTask = (UploadSubmissions) cc.getBean(BeanDefs.UPLOAD_TASK_BEAN);
+
+      // publication failures should not fail the submission...
+      try {
+        for (ExternalService rs : tmp) {
+          // only create upload tasks for active publishers
+          if ( rs.getFormServiceCursor().getOperationalStatus() == OperationalStatus.ACTIVE ) {
+            uploadTask.createFormUploadTask(rs.getFormServiceCursor(), false, ccDaemon);
+          }
+        }
+      } catch (ODKExternalServiceException e) {
+        Logger logger = LoggerFactory.getLogger(SubmissionParser.class);
+        logger.info("Publishing enqueue failure (this is recoverable) - " + e.getMessage());
+        e.printStackTrace();
+      }
+    }
+  }
+
   /**
    * Construct an ODK submission by processing XML submission to extract values.
    * The submission is persisted to the database before returning.
@@ -190,7 +223,7 @@ public class SubmissionParser {
       throw new IOException("DID NOT GET A SUBMISSION");
     }
 
-    InputStream inputStreamXML = new ByteArrayInputStream(submission.getStream().toByteArray());
+    InputStream inputStreamXML = submission.openStream();
     try {
       constructorHelper(inputStreamXML, isIncomplete, cc);
     } finally {
@@ -205,83 +238,331 @@ public class SubmissionParser {
   private static final String OPEN_ROSA_INSTANCE_ID = "instanceID";
 
   /**
-   * Find the OpenRosa instanceID defined for this record, if any.
+   * Shared by all requests; factories are expensive to create and reader
+   * creation is thread-safe.
+   */
+  private static final XMLInputFactory xmlInputFactory;
+
+  static {
+    xmlInputFactory = XMLInputFactory.newInstance();
+    xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  /**
+   * Values of a group or repeat group instance read from the submission, in
+   * document order. Only elements that map onto the form's data model are
+   * kept.
+   */
+  private static final class ParsedGroup {
+    final List<ParsedValue> values = new ArrayList<ParsedValue>();
+  }
+
+  /**
+   * The value of one element of the submission. Exactly one of text, bytes
+   * or group is meaningful, depending upon the type of the element.
+   */
+  private static final class ParsedValue {
+    final FormElementModel element;
+    // trimmed text content; null if there is none
+    final String text;
+    // decoded content of a base64-encoded binary; null if there is none
+    final byte[] bytes;
+    final ParsedGroup group;
+
+    ParsedValue(FormElementModel element, String text, byte[] bytes, ParsedGroup group) {
+      this.element = element;
+      this.text = text;
+      this.bytes = bytes;
+      this.group = group;
+    }
+  }
+
+  /**
+   * State of a single pass over the submission xml.
+   */
+  private static final class ParseState {
+    final XMLStreamReader reader;
+    // true once the first OpenRosa meta tag has been entered
+    boolean metaFound = false;
+    String openRosaInstanceId = null;
+
+    ParseState(XMLStreamReader reader) {
+      this.reader = reader;
+    }
+  }
+
+  private static boolean isOpenRosaNamespace(String namespace) {
+    return (namespace == null || namespace.length() == 0
+        || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE)
+        || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH)
+        || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM));
+  }
+
+  /**
+   * @param reader
+   *          positioned on the document element of the submission
+   * @return the form id of the submission, with its slashes escaped.
+   * @throws ODKIncompleteSubmissionData
+   *           if the submission carries neither a form id nor a namespace
+   */
+  private static String readFormId(XMLStreamReader reader) throws ODKIncompleteSubmissionData {
+    // check for odk id
+    String formId = getAttribute(reader, ParserConsts.FORM_ID_ATTRIBUTE_NAME);
+
+    // if odk id is not present use namespace
+    if (formId.equalsIgnoreCase(BasicConsts.EMPTY_STRING)) {
+      String schema = reader.getNamespaceURI();
+
+      // TODO: move this into FormDefinition?
+      if (schema == null) {
+        throw new ODKIncompleteSubmissionData(Reason.ID_MISSING);
+      }
+
+      formId = schema;
+    }
+
+    // need to escape all slashes... for xpath processing...
+    return formId.replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
+  }
+
+  private static IForm retrieveSubmittableForm(String formId, CallingContext cc)
+      throws ODKFormNotFoundException, ODKDatastoreException, ODKFormSubmissionsDisabledException {
+    String fullyQualifiedId = FormFactory.extractWellFormedFormId(formId);
+
+    IForm form = FormFactory.retrieveFormByFormId(fullyQualifiedId, cc);
+    if (!form.getSubmissionEnabled()) {
+      throw new ODKFormSubmissionsDisabledException();
+    }
+    return form;
+  }
+
+  /**
+   * Verifies, from the document element of an xml submission alone, that its
+   * form exists and accepts submissions. Lets a submission that is processed
+   * later be refused while the client is still waiting for the response.
    * 
-   * @return
+   * @param inputStreamXML
+   *          xml submission input stream; only its document element is read
+   * @param cc
+   * @return the form of the submission
+   * @throws IOException
+   * @throws ODKFormNotFoundException
+   * @throws ODKIncompleteSubmissionData
+   * @throws ODKDatastoreException
+   * @throws ODKFormSubmissionsDisabledException
+   */
+  public static IForm verifySubmittableForm(InputStream inputStreamXML, CallingContext cc)
+      throws IOException, ODKFormNotFoundException, ODKIncompleteSubmissionData,
+      ODKDatastoreException, ODKFormSubmissionsDisabledException {
+    try {
+      XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStreamXML);
+      try {
+        reader.nextTag();
+        return retrieveSubmittableForm(readFormId(reader), cc);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static String getAttribute(XMLStreamReader reader, String name) {
+    String value = reader.getAttributeValue(null, name);
+    return (value == null) ? BasicConsts.EMPTY_STRING : value;
+  }
+
+  private static String trimToNull(String value) {
+    if (value == null) {
+      return null;
+    }
+    value = value.trim();
+    return (value.length() == 0) ? null : value;
+  }
+
+  /**
+   * Reads the text content of the current element, skipping any nested
+   * elements, and leaves the reader on its END_ELEMENT.
+   * 
+   * @return the untrimmed text, or null if the element has no text.
+   * @throws XMLStreamException
    */
-  private String getOpenRosaInstanceId() {
-    Node n = findMetaTag(root);
-    if (n != null) {
-      NodeList nl = n.getChildNodes();
-      for (int i = 0; i < nl.getLength(); ++i) {
-        Node cn = nl.item(i);
-        String cnUri = cn.getNamespaceURI();
-        String cnName = cn.getLocalName();
-        if (cn.getNodeType() == Node.ELEMENT_NODE
-            && cnName.equals(OPEN_ROSA_INSTANCE_ID)
-            && (cnUri == null || 
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) ||
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) ||
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
-          NodeList cnl = cn.getChildNodes();
-          boolean textFound = false;
-          int idxText = -1;
-          for (int j = 0; j < cnl.getLength(); ++j) {
-            Node cnln = cnl.item(j);
-            if (cnln.getNodeType() == Node.TEXT_NODE) {
-              if (textFound) {
-                throw new IllegalStateException("Expected a single text node");
-              }
-              textFound = true;
-              idxText = j;
-            }
+  private static String readText(XMLStreamReader reader) throws XMLStreamException {
+    StringBuilder b = null;
+    int depth = 0;
+    for (;;) {
+      int event = reader.next();
+      switch (event) {
+      case XMLStreamConstants.START_ELEMENT:
+        ++depth;
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        if (depth == 0) {
+          return (b == null) ? null : b.toString();
+        }
+        --depth;
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.CDATA:
+      case XMLStreamConstants.SPACE:
+        if (depth == 0) {
+          if (b == null) {
+            b = new StringBuilder();
           }
-          if (textFound) {
-            return cnl.item(idxText).getNodeValue();
+          b.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+        }
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+  /**
+   * Decodes the base64 text content of the current element as it is read,
+   * rather than first collecting it into a string, and leaves the reader on
+   * its END_ELEMENT.
+   * 
+   * @return the decoded content, or null if the element has no content.
+   * @throws XMLStreamException
+   * @throws IOException
+   */
+  private static byte[] readBase64(XMLStreamReader reader) throws XMLStreamException,
+      IOException {
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    Base64OutputStream decoder = new Base64OutputStream(decoded, false);
+    byte[] chunk = new byte[1024];
+    boolean hasContent = false;
+    int depth = 0;
+    for (;;) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        ++depth;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        if (depth == 0) {
+          break;
+        }
+        --depth;
+      } else if (depth == 0
+          && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+        char[] text = reader.getTextCharacters();
+        int start = reader.getTextStart();
+        int end = start + reader.getTextLength();
+        while (start < end) {
+          int len = Math.min(chunk.length, end - start);
+          for (int i = 0; i < len; ++i) {
+            char c = text[start + i];
+            hasContent = hasContent || !Character.isWhitespace(c);
+            chunk[i] = (byte) c;
           }
+          decoder.write(chunk, 0, len);
+          start += len;
         }
       }
     }
-    return null;
+    decoder.close();
+    return hasContent ? decoded.toByteArray() : null;
   }
 
   /**
-   * Traverse submission looking for OpenRosa metadata tag (with or without
-   * namespace).
+   * Reads the children of the current element, up to and including its
+   * END_ELEMENT, adding those that map onto children of node to group. The
+   * OpenRosa instanceID is captured wherever it is found.
    * 
-   * @param parent
-   * @return
+   * @param state
+   * @param node
+   *          data model of the current element; null if it is not part of
+   *          the data model, in which case the children are only scanned for
+   *          the OpenRosa metadata.
+   * @param group
+   *          receives the values; null if node is null.
+   * @param inMeta
+   *          true if the current element is the OpenRosa meta tag.
+   * @throws XMLStreamException
+   * @throws IOException
    */
-  private Node findMetaTag(Node parent) {
-    if (parent.getNodeType() != Node.ELEMENT_NODE)
-      return null;
-    @SuppressWarnings("unused")
-    String parentName = parent.getLocalName();
-    NodeList nl = parent.getChildNodes();
-    for (int i = 0; i < nl.getLength(); ++i) {
-      Node n = nl.item(i);
-      String namespace = n.getNamespaceURI();
-      String name = n.getLocalName();
-      if (n.getNodeType() == Node.ELEMENT_NODE
-          && name.equals(OPEN_ROSA_METADATA_TAG)
-          && (namespace == null || 
-              namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) ||
-              namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) ||
-              namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
-        return n;
-      } else {
-        n = findMetaTag(n);
-        if (n != null)
-          return n;
+  private void readChildren(ParseState state, FormElementModel node, ParsedGroup group,
+      boolean inMeta) throws XMLStreamException, IOException {
+    XMLStreamReader reader = state.reader;
+    for (;;) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        return;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      String name = reader.getLocalName();
+      String namespace = reader.getNamespaceURI();
+      FormElementModel m = (node == null) ? null : node.findElementByName(name);
+
+      if (inMeta && state.openRosaInstanceId == null && name.equals(OPEN_ROSA_INSTANCE_ID)
+          && isOpenRosaNamespace(namespace)) {
+        String text = readText(reader);
+        state.openRosaInstanceId = text;
+        if (m != null && m.getElementType() != FormElementModel.ElementType.GROUP
+            && m.getElementType() != FormElementModel.ElementType.REPEAT
+            && m.getElementType() != FormElementModel.ElementType.METADATA) {
+          group.values.add(new ParsedValue(m, trimToNull(text), null, null));
+        }
+        continue;
+      }
+
+      boolean isMeta = false;
+      if (!state.metaFound && name.equals(OPEN_ROSA_METADATA_TAG)
+          && isOpenRosaNamespace(namespace)) {
+        state.metaFound = true;
+        isMeta = true;
+      }
+
+      if (m == null) {
+        // not in the data model; only the OpenRosa metadata is of interest
+        readChildren(state, null, null, isMeta);
+        continue;
+      }
+
+      switch (m.getElementType()) {
+      case METADATA:
+        readChildren(state, null, null, isMeta);
+        break;
+      case GROUP:
+      case REPEAT: {
+        ParsedGroup child = new ParsedGroup();
+        if (m.getElementName() == null) {
+          readChildren(state, null, null, isMeta);
+        } else {
+          readChildren(state, m, child, isMeta);
+        }
+        group.values.add(new ParsedValue(m, null, null, child));
+      }
+        break;
+      case BINARY:
+        if (submissionFormItems == null) {
+          // base64-encoded content within the xml
+          group.values.add(new ParsedValue(m, null, readBase64(reader), null));
+        } else {
+          // the name of the file or field holding the content
+          group.values.add(new ParsedValue(m, trimToNull(readText(reader)), null, null));
+        }
+        break;
+      default:
+        group.values.add(new ParsedValue(m, trimToNull(readText(reader)), null, null));
+        break;
       }
     }
-    return null;
   }
 
   /**
    * Helper Constructor an ODK submission by processing XML submission to
    * extract values
    * 
+   * The submission is read in a single streaming pass. The root element
+   * identifies the form, and the rest of the document is mapped onto its
+   * data model as it is read. The values are applied to the Submission once
+   * the instanceID is known and the submission lock has been obtained.
+   * 
    * @param inputStreamXML
    *          xml submission input stream
    * @param isIncomplete
@@ -299,50 +580,51 @@ public class SubmissionParser {
   private void constructorHelper(InputStream inputStreamXML, boolean isIncomplete, CallingContext cc)
       throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData,
       ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException {
+
+    String modelVersionString;
+    String uiVersionString;
+    String instanceIdString;
+    String submissionDateString;
+    String markedAsCompleteDateString;
+    ParsedGroup rootValues = new ParsedGroup();
+    String openRosaInstanceId;
     try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setNamespaceAware(true);
-      factory.setIgnoringComments(true);
-      factory.setCoalescing(true);
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document doc = builder.parse(inputStreamXML);
-      root = doc.getDocumentElement();
-      // if debugging: printNode(root);
-
-      // check for odk id
-      formId = root.getAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME);
-
-      // if odk id is not present use namespace
-      if (formId.equalsIgnoreCase(BasicConsts.EMPTY_STRING)) {
-        String schema = root.getAttribute(ParserConsts.NAMESPACE_ATTRIBUTE);
-
-        // TODO: move this into FormDefinition?
-        if (schema == null) {
-          throw new ODKIncompleteSubmissionData(Reason.ID_MISSING);
+      XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStreamXML);
+      try {
+        reader.nextTag();
+
+        formId = readFormId(reader);
+        form = retrieveSubmittableForm(formId, cc);
+
+        modelVersionString = getAttribute(reader, ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME);
+        uiVersionString = getAttribute(reader, ParserConsts.UI_VERSION_ATTRIBUTE_NAME);
+        instanceIdString = getAttribute(reader, ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
+        submissionDateString = getAttribute(reader, ParserConsts.SUBMISSION_DATE_ATTRIBUTE_NAME);
+        markedAsCompleteDateString = getAttribute(reader,
+            ParserConsts.MARKED_AS_COMPLETE_DATE_ATTRIBUTE_NAME);
+
+        // verify that the xml matches the data model...
+        FormElementModel formRoot = form.getTopLevelGroupElement();
+        String rootTag = formRoot.getElementName();
+        if (rootTag != null && !reader.getLocalName().equals(rootTag)) {
+          throw new ODKParseException("Xml document element tag: " + reader.getLocalName()
+              + " does not match the xform data model tag name: " + rootTag);
         }
-
-        formId = schema;
+        ParseState state = new ParseState(reader);
+        if (rootTag == null) {
+          readChildren(state, null, null, false);
+        } else {
+          readChildren(state, formRoot, rootValues, false);
+        }
+        openRosaInstanceId = state.openRosaInstanceId;
+      } finally {
+        reader.close();
       }
-
-    } catch (ParserConfigurationException e) {
-      throw new IOException(e);
-    } catch (SAXException e) {
+    } catch (XMLStreamException e) {
       e.printStackTrace();
       throw new IOException(e);
     }
 
-    // need to escape all slashes... for xpath processing...
-    formId = formId.replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
-
-    String fullyQualifiedId = FormFactory.extractWellFormedFormId(formId);
-
-    form = FormFactory.retrieveFormByFormId(fullyQualifiedId, cc);
-    if (!form.getSubmissionEnabled()) {
-      throw new ODKFormSubmissionsDisabledException();
-    }
-
-    String modelVersionString = root.getAttribute(ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME);
-    String uiVersionString = root.getAttribute(ParserConsts.UI_VERSION_ATTRIBUTE_NAME);
     Long modelVersion = null;
     Long uiVersion = null;
     if (modelVersionString != null && modelVersionString.length() > 0) {
@@ -352,23 +634,20 @@ public class SubmissionParser {
       uiVersion = Long.valueOf(uiVersionString);
     }
 
-    String instanceId = getOpenRosaInstanceId();
+    String instanceId = openRosaInstanceId;
     if (instanceId == null) {
-      instanceId = root.getAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
+      instanceId = instanceIdString;
       if (instanceId == null || instanceId.length() == 0) {
         instanceId = CommonFieldsBase.newUri();
       }
     }
 
     Date submissionDate = new Date();
-    String submissionDateString = root.getAttribute(ParserConsts.SUBMISSION_DATE_ATTRIBUTE_NAME);
     if (submissionDateString != null && submissionDateString.length() != 0) {
       submissionDate = WebUtils.parseDate(submissionDateString);
     }
 
     Date markedAsCompleteDate = new Date();
-    String markedAsCompleteDateString = root
-        .getAttribute(ParserConsts.MARKED_AS_COMPLETE_DATE_ATTRIBUTE_NAME);
     if (markedAsCompleteDateString != null && markedAsCompleteDateString.length() != 0) {
       markedAsCompleteDate = WebUtils.parseDate(markedAsCompleteDateString);
     }
@@ -413,9 +692,8 @@ public class SubmissionParser {
       topLevelTableKey = submission.getKey();
   
       Map<String, Integer> repeatGroupIndices = new HashMap<String, Integer>();
-      FormElementModel formRoot = form.getTopLevelGroupElement();
       // if the submission is pre-existing in the datastore, ONLY update binaries
-      boolean uploadAllBinaries = processSubmissionElement(formRoot, root, submission,
+      boolean uploadAllBinaries = processSubmissionElement(rootValues, submission,
                                                             repeatGroupIndices, preExisting, cc);
       submission.setIsComplete(uploadAllBinaries);
       if (uploadAllBinaries) {
@@ -442,14 +720,13 @@ public class SubmissionParser {
 
   /**
    * 
-   * Helper function to process submission by taking the form element and
-   * extracting the corresponding value from the XML submission. Recursively
-   * applies itself to children of the form element.
+   * Helper function to process submission by taking the values read from the
+   * XML submission for a group and storing them in the corresponding fields.
+   * Recursively applies itself to nested groups and repeat groups.
    * 
-   * @param node
-   *          form data model of the group or repeat group being parsed.
-   * @param currentSubmissionElement
-   *          xml document element that marks the start of this submission set.
+   * @param group
+   *          values read from the xml element that marks the start of this
+   *          submission set.
    * @param submissionSet
    *          the submission set to add the submission values to.
    * @param repeatGroupIndicies
@@ -463,42 +740,16 @@ public class SubmissionParser {
    * @throws ODKConversionException
    * @throws ODKDatastoreException
    */
-  private boolean processSubmissionElement(FormElementModel node, Element currentSubmissionElement,
-      SubmissionSet submissionSet, Map<String, Integer> repeatGroupIndicies, boolean preExisting,
-      CallingContext cc) throws ODKParseException, ODKIncompleteSubmissionData,
-      ODKConversionException, ODKDatastoreException {
-
-    if (node == null || currentSubmissionElement == null) {
-      return true;
-    }
+  private boolean processSubmissionElement(ParsedGroup group, SubmissionSet submissionSet,
+      Map<String, Integer> repeatGroupIndicies, boolean preExisting, CallingContext cc)
+      throws ODKParseException, ODKIncompleteSubmissionData, ODKConversionException,
+      ODKDatastoreException {
 
-    // the element name of the fdm is the tag name...
-    String submissionTag = node.getElementName();
-    if (submissionTag == null) {
-      return true;
-    }
-
-    // verify that the xml matches the node we are processing...
-    if (!currentSubmissionElement.getLocalName().equals(submissionTag)) {
-      throw new ODKParseException("Xml document element tag: "
-          + currentSubmissionElement.getLocalName()
-          + " does not match the xform data model tag name: " + submissionTag);
-    }
-
-    // get the structure under the fdm tag name...
-    List<Element> elements = getElements(currentSubmissionElement);
-    if (elements.size() == 0) {
-      return true; // the group is not relevant...
-    }
-    // and for each of these, they should be fields under the given fdm
-    // and values within the submissionSet
+    // each value is a field under the group's fdm
+    // and a value within the submissionSet
     boolean complete = true;
-    for (Element e : elements) {
-      FormElementModel m = node.findElementByName(e.getLocalName());
-      if (m == null) {
-        continue;
-        // throw new ODKParseException();
-      }
+    for (ParsedValue v : group.values) {
+      FormElementModel m = v.element;
       switch (m.getElementType()) {
       case METADATA:
         // This keeps lint warnings down
@@ -507,7 +758,7 @@ public class SubmissionParser {
         // need to recurse on these elements keeping the same
         // submissionSet...
         complete = complete
-            & processSubmissionElement(m, e, submissionSet, repeatGroupIndicies, preExisting, cc);
+            & processSubmissionElement(v.group, submissionSet, repeatGroupIndicies, preExisting, cc);
         break;
       case REPEAT:
         // get the field that will hold the repeats...
@@ -542,9 +793,9 @@ public class SubmissionParser {
         } else {
           throw new IllegalStateException("incrementing repeats by more than one!");
         }
-        // populate the instance's submission set with values from e...
+        // populate the instance's submission set with values from v...
         complete = complete
-            & processSubmissionElement(m, e, repeatableSubmissionSet, repeatGroupIndicies,
+            & processSubmissionElement(v.group, repeatableSubmissionSet, repeatGroupIndicies,
                 preExisting, cc);
         break;
       case STRING:
@@ -559,23 +810,20 @@ public class SubmissionParser {
       case SELECT1: // identifies SelectChoice table
       case SELECTN: // identifies SelectChoice table
         if (!preExisting) {
-          String value = getSubmissionValue(e);
           SubmissionField<?> subField = (SubmissionField<?>) submissionSet.getElementValue(m);
-          subField.setValueFromString(value);
+          subField.setValueFromString(v.text);
         }
         break;
       case GEOPOINT:
         if (!preExisting) {
-          String value = getSubmissionValue(e);
-          ((SubmissionField<?>) submissionSet.getElementValue(m)).setValueFromString(value);
+          ((SubmissionField<?>) submissionSet.getElementValue(m)).setValueFromString(v.text);
         }
         break;
       case BINARY: // identifies BinaryContent table
         {
-          String value = getSubmissionValue(e);
           SubmissionField<?> submissionElement = ((SubmissionField<?>) submissionSet
               .getElementValue(m));
-          complete = complete & processBinarySubmission(m, submissionElement, value, cc);
+          complete = complete & processBinarySubmission(m, submissionElement, v, cc);
         }
         break;
       }
@@ -584,25 +832,27 @@ public class SubmissionParser {
   }
 
   private boolean processBinarySubmission(FormElementModel m, SubmissionField<?> submissionElement,
-      String value, CallingContext cc) throws ODKDatastoreException {
-
-    // value will either be a byte array (if not a multipart/form-data
-    // submission)
-    // or the filename of the attached media file
-    // or the name of the filed holding the media file contents.
-    // It will be null only if there is no associated file.
-    if (value == null)
-      return true;
+      ParsedValue v, CallingContext cc) throws ODKDatastoreException {
 
     // check to see if we received a multipart submission
     if (submissionFormItems == null) {
-      // TODO: problem, only accept a base64 encoded in a direct XML post
-      byte[] receivedBytes = Base64.decodeBase64(value.getBytes());
+      // the content was base64 encoded in a direct XML post
+      // and was decoded as it was read.
+      // It will be null only if there is no associated file.
+      if (v.bytes == null)
+        return true;
       // TODO: problem since we don't know how to tell what type of
       // binary without content type, defaulting to JPG
-      submissionElement.setValueFromByteArray(receivedBytes, HtmlConsts.RESP_TYPE_IMAGE_JPEG,
+      submissionElement.setValueFromByteArray(v.bytes, HtmlConsts.RESP_TYPE_IMAGE_JPEG,
           null, false, cc);
     } else {
+      // value will either be the filename of the attached media file
+      // or the name of the filed holding the media file contents.
+      // It will be null only if there is no associated file.
+      String value = v.text;
+      if (value == null)
+        return true;
+
       // attempt to find binary data in multi-part form submission
       // first searching by file name, then field name
       MultiPartFormItem binaryData = submissionFormItems.getFormDataByFileName(value);
@@ -617,8 +867,7 @@ public class SubmissionParser {
         if (fileName == null || fileName.length() == 0) {
           fileName = null;
         }
-        byte[] byteArray = binaryData.getStream().toByteArray();
-        submissionElement.setValueFromByteArray(byteArray, binaryData.getContentType(),
+        submissionElement.setValueFromContentSource(binaryData, binaryData.getContentType(),
             fileName, false, cc);
       } else {
         // Assume the value is the filename...
@@ -632,82 +881,4 @@ public class SubmissionParser {
     }
     return true;
   }
-
-  private List<Element> getElements(Element rootNode) {
-    List<Element> elements = new ArrayList<Element>();
-
-    NodeList nodeList = rootNode.getChildNodes();
-
-    for (int i = 0; i < nodeList.getLength(); ++i) {
-      Node node = nodeList.item(i);
-      if (node.getNodeType() == Node.ELEMENT_NODE) {
-        elements.add((Element) node);
-      }
-    }
-    return elements;
-  }
-
-  /**
-   * Extracts value from the XML submission element by getting value from the
-   * text node
-   * 
-   * @param element
-   *          element that has text child node that will contain the value
-   * 
-   * @return value contained in the XML submission
-   */
-  private String getSubmissionValue(Element element) {
-    // could not find element, return null
-    if (element == null) {
-      return null;
-    }
-
-    NodeList childNodeList = element.getChildNodes();
-    // get element value
-    for (int i = 0; i < childNodeList.getLength(); i++) {
-      Node node = childNodeList.item(i);
-      if (node.getNodeType() == Node.TEXT_NODE) {
-        String value = node.getNodeValue().trim();
-        if (value.length() > 0) {
-          return value;
-        } // else go to next node
-      }
-    } // else has no value so continue
-
-    return null;
-  }
-
-  /**
-   * Recursive function that prints the nodes from an XML tree
-   * 
-   * @param node
-   *          xml node to be recursively printed
-   */
-  @SuppressWarnings("unused")
-  private void printNode(Element node) {
-    System.out.println(ParserConsts.NODE_FORMATTED + node.getTagName());
-    if (node.hasAttributes()) {
-      NamedNodeMap attributes = node.getAttributes();
-      for (int i = 0; i < attributes.getLength(); i++) {
-        Node attr = attributes.item(i);
-        System.out.println(ParserConsts.ATTRIBUTE_FORMATTED + attr.getNodeName()
-            + BasicConsts.EQUALS + attr.getNodeValue());
-      }
-    }
-    if (node.hasChildNodes()) {
-      NodeList children = node.getChildNodes();
-      for (int i = 0; i < children.getLength(); i++) {
-        Node child = children.item(i);
-        if (child.getNodeType() == Node.ELEMENT_NODE) {
-          printNode((Element) child);
-        } else if (child.getNodeType() == Node.TEXT_NODE) {
-          String value = child.getNodeValue().trim();
-          if (value.length() > 0) {
-            System.out.println(ParserConsts.VALUE_FORMATTED + value);
-          }
-        }
-      }
-    }
-
-  }
 }
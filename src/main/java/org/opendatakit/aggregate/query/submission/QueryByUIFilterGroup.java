@@ -250,6 +250,23 @@ public class QueryByUIFilterGroup extends QueryBase {
     return retrievedSubmissions;
   }
 
+  /**
+   * @return the cursor from which the next call to getResultSubmissions()
+   *         continues.
+   */
+  public QueryResumePoint getResumeCursor() {
+    return cursor;
+  }
+
+  /**
+   * @return the number of submissions matching the filter group, regardless
+   *         of the cursor.
+   * @throws ODKDatastoreException
+   */
+  public long countResults() throws ODKDatastoreException {
+    return query.count();
+  }
+
   public static final class PartialResults {
     public List<Submission> retrievedSubmissions;
     public List<TopLevelDynamicBase> badTopLevelEntities;
@@ -40,6 +40,7 @@ import org.opendatakit.aggregate.client.form.KmlSelection;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.HtmlUtil;
+import org.opendatakit.aggregate.constants.common.ExportStatus;
 import org.opendatakit.aggregate.constants.common.ExportType;
 import org.opendatakit.aggregate.constants.common.FormActionStatusTimestamp;
 import org.opendatakit.aggregate.constants.format.FormTableConsts;
@@ -49,6 +50,7 @@ import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.form.PersistentResults.ExportProgress;
 import org.opendatakit.aggregate.form.PersistentResults.ResultFileInfo;
 import org.opendatakit.aggregate.task.CsvGenerator;
 import org.opendatakit.aggregate.task.JsonFileGenerator;
@@ -154,6 +156,14 @@ public class FormServiceImpl extends RemoteServiceServlet implements
         summary.setTimeLastAction(export.getLastRetryDate());
         summary.setTimeCompleted(export.getCompletionDate());
 
+        if (export.getStatus() != ExportStatus.AVAILABLE) {
+          ExportProgress progress = export.getProgress(cc);
+          if (progress != null) {
+            summary.setRowsProcessed(progress.rowsProcessed);
+            summary.setPercentComplete(progress.getPercentComplete());
+          }
+        }
+
         // get info about the downloadable file.
         // null if no file yet....
         ResultFileInfo info = export.getResultFileInfo(cc);
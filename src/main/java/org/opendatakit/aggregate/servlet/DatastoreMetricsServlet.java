@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.Operation;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.OperationSnapshot;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.TableSnapshot;
+import org.opendatakit.common.web.constants.HtmlConsts;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reports the per-table datastore access metrics. Returns JSON by default, or
+ * the Prometheus text exposition format if format=prometheus is given.
+ * Restricted to site administrators by its location under ssl/.
+ *
+ */
+public class DatastoreMetricsServlet extends ServletUtilBase {
+
+  /**
+   * Serial number for serialization
+   */
+  private static final long serialVersionUID = -4410395623381592705L;
+
+  /**
+   * URI from base
+   */
+  public static final String ADDR = "ssl/datastore-metrics";
+
+  public static final String FORMAT = "format";
+  public static final String FORMAT_PROMETHEUS = "prometheus";
+
+  private static final String RESP_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+  private static final String METRIC_PREFIX = "odk_datastore_";
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
+      IOException {
+    List<TableSnapshot> tables = DatastoreAccessMetrics.getCombinedSnapshot();
+
+    resp.setHeader("Cache-Control", "no-cache");
+    resp.setHeader("Pragma", "no-cache");
+    resp.addHeader(HtmlConsts.X_FRAME_OPTIONS, HtmlConsts.X_FRAME_SAMEORIGIN);
+    if (FORMAT_PROMETHEUS.equals(req.getParameter(FORMAT))) {
+      resp.setContentType(RESP_TYPE_PROMETHEUS);
+      writePrometheus(resp.getWriter(), tables);
+    } else {
+      resp.setContentType(HtmlConsts.RESP_TYPE_JSON);
+      mapper.writeValue(resp.getWriter(), toJsonTree(tables));
+    }
+  }
+
+  private static String opName(Operation op) {
+    return op.name().toLowerCase(Locale.US);
+  }
+
+  private static Map<String, Object> toJsonTree(List<TableSnapshot> tables) {
+    long[] bounds = DatastoreAccessMetrics.getLatencyBucketMillis();
+    Map<String, Object> tree = new LinkedHashMap<String, Object>();
+    tree.put("windowMillis", DatastoreAccessMetrics.WINDOW_MILLIS);
+    tree.put("latencyBucketMillis", bounds);
+    List<Map<String, Object>> tableList = new ArrayList<Map<String, Object>>();
+    for (TableSnapshot t : tables) {
+      Map<String, Object> table = new LinkedHashMap<String, Object>();
+      table.put("table", t.tableName);
+      table.put("queryRowsRead", t.queryRowsRead);
+      table.put("windowQueryRowsRead", t.windowQueryRowsRead);
+      for (Map.Entry<Operation, OperationSnapshot> e : t.operations.entrySet()) {
+        OperationSnapshot s = e.getValue();
+        Map<String, Object> op = new LinkedHashMap<String, Object>();
+        op.put("calls", s.callCount);
+        op.put("rows", s.rowCount);
+        op.put("windowCalls", s.windowCallCount);
+        op.put("windowRows", s.windowRowCount);
+        op.put("latencyCount", s.latencyCount);
+        op.put("latencySumMillis", s.latencySumNanos / 1000000L);
+        op.put("latencyBuckets", s.latencyBuckets);
+        table.put(opName(e.getKey()), op);
+      }
+      tableList.add(table);
+    }
+    tree.put("tables", tableList);
+    return tree;
+  }
+
+  private static String escapeLabel(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static void writeHeader(PrintWriter out, String name, String type, String help) {
+    out.print("# HELP " + METRIC_PREFIX + name + " " + help + "\n");
+    out.print("# TYPE " + METRIC_PREFIX + name + " " + type + "\n");
+  }
+
+  private static void writeSample(PrintWriter out, String name, String labels, String value) {
+    out.print(METRIC_PREFIX + name + "{" + labels + "} " + value + "\n");
+  }
+
+  private static void writePrometheus(PrintWriter out, List<TableSnapshot> tables) {
+    long[] bounds = DatastoreAccessMetrics.getLatencyBucketMillis();
+
+    writeHeader(out, "calls_total", "counter", "Datastore calls by table and operation.");
+    for (TableSnapshot t : tables) {
+      for (Map.Entry<Operation, OperationSnapshot> e : t.operations.entrySet()) {
+        writeSample(out, "calls_total", "table=\"" + escapeLabel(t.tableName) + "\",operation=\""
+            + opName(e.getKey()) + "\"", Long.toString(e.getValue().callCount));
+      }
+    }
+
+    writeHeader(out, "rows_total", "counter",
+        "Rows returned, written or deleted by table and operation.");
+    for (TableSnapshot t : tables) {
+      for (Map.Entry<Operation, OperationSnapshot> e : t.operations.entrySet()) {
+        writeSample(out, "rows_total", "table=\"" + escapeLabel(t.tableName) + "\",operation=\""
+            + opName(e.getKey()) + "\"", Long.toString(e.getValue().rowCount));
+      }
+    }
+
+    writeHeader(out, "query_rows_read_total", "counter",
+        "Rows read from the database by queries, including rows skipped to reach a cursor.");
+    for (TableSnapshot t : tables) {
+      writeSample(out, "query_rows_read_total", "table=\"" + escapeLabel(t.tableName) + "\"",
+          Long.toString(t.queryRowsRead));
+    }
+
+    writeHeader(out, "window_calls", "gauge", "Datastore calls over the last "
+        + (DatastoreAccessMetrics.WINDOW_MILLIS / 1000L) + " seconds.");
+    for (TableSnapshot t : tables) {
+      for (Map.Entry<Operation, OperationSnapshot> e : t.operations.entrySet()) {
+        writeSample(out, "window_calls", "table=\"" + escapeLabel(t.tableName)
+            + "\",operation=\"" + opName(e.getKey()) + "\"",
+            Long.toString(e.getValue().windowCallCount));
+      }
+    }
+
+    writeHeader(out, "latency_seconds", "histogram", "Datastore call latency.");
+    for (TableSnapshot t : tables) {
+      for (Map.Entry<Operation, OperationSnapshot> e : t.operations.entrySet()) {
+        OperationSnapshot s = e.getValue();
+        if (s.latencyCount == 0L) {
+          continue;
+        }
+        String labels = "table=\"" + escapeLabel(t.tableName) + "\",operation=\""
+            + opName(e.getKey()) + "\"";
+        long cumulative = 0L;
+        for (int i = 0; i < s.latencyBuckets.length; ++i) {
+          cumulative += s.latencyBuckets[i];
+          String le = (i < bounds.length) ? Double.toString(bounds[i] / 1000.0) : "+Inf";
+          writeSample(out, "latency_seconds_bucket", labels + ",le=\"" + le + "\"",
+              Long.toString(cumulative));
+        }
+        writeSample(out, "latency_seconds_sum", labels,
+            Double.toString(s.latencySumNanos / 1.0e9));
+        // the +Inf bucket and the count must agree
+        writeSample(out, "latency_seconds_count", labels, Long.toString(cumulative));
+      }
+    }
+    out.flush();
+  }
+}
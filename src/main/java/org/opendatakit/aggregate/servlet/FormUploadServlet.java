@@ -249,12 +249,12 @@ public class FormUploadServlet extends ServletUtilBase {
       String xmlFileName = "default.xml";
 
       if (formNameData != null) {
-        formName = formNameData.getStream().toString(HtmlConsts.UTF8_ENCODE);
+        formName = formNameData.getString(HtmlConsts.UTF8_ENCODE);
       }
       if (formXmlData != null) {
         // TODO: changed added output stream writer. probably something better
         // exists
-        inputXml = formXmlData.getStream().toString(HtmlConsts.UTF8_ENCODE);
+        inputXml = formXmlData.getString(HtmlConsts.UTF8_ENCODE);
         xmlFileName = formXmlData.getFilename();
       }
 
@@ -389,6 +389,8 @@ public class FormUploadServlet extends ServletUtilBase {
         e.printStackTrace();
         resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
             ErrorConsts.PARSING_PROBLEM + "\n" + e.toString());
+      } finally {
+        uploadedFormItems.delete();
       }
     } catch (FileUploadException e) {
       logger.error("Form upload persistence error: " + e.toString());
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.common.utils.HttpClientFactory;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reports the state of the connection pool shared by the publishers' HTTP
+ * requests as JSON. Restricted to site administrators by its location under
+ * ssl/.
+ *
+ */
+public class HttpClientMetricsServlet extends ServletUtilBase {
+
+  /**
+   * Serial number for serialization
+   */
+  private static final long serialVersionUID = -4630214286745915402L;
+
+  /**
+   * URI from base
+   */
+  public static final String ADDR = "ssl/http-client-metrics";
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
+      IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    HttpClientFactory factory = (HttpClientFactory) cc.getBean(BeanDefs.HTTP_CLIENT_FACTORY);
+
+    resp.setHeader("Cache-Control", "no-cache");
+    resp.setHeader("Pragma", "no-cache");
+    resp.addHeader(HtmlConsts.X_FRAME_OPTIONS, HtmlConsts.X_FRAME_SAMEORIGIN);
+    resp.setContentType(HtmlConsts.RESP_TYPE_JSON);
+    mapper.writeValue(resp.getWriter(), factory.getConnectionMetrics());
+  }
+}
@@ -234,10 +234,14 @@ public class ResetUsersAndPermissionsServlet extends ServletUtilBase {
       
       String inputCsv = null;
 
-      if (usersAndPermissionsCsv != null) {
-        // TODO: changed added output stream writer. probably something better
-        // exists
-        inputCsv = usersAndPermissionsCsv.getStream().toString(HtmlConsts.UTF8_ENCODE);
+      try {
+        if (usersAndPermissionsCsv != null) {
+          // TODO: changed added output stream writer. probably something better
+          // exists
+          inputCsv = usersAndPermissionsCsv.getString(HtmlConsts.UTF8_ENCODE);
+        }
+      } finally {
+        resetUsersAndPermissions.delete();
       }
 
       StringReader csvContentReader = null;
@@ -225,8 +225,12 @@ public class ServiceAccountPrivateKeyUploadServlet extends ServletUtilBase {
 
       byte[] p12FileContent = null;
 
-      if (privateKeyFileData != null) {
-        p12FileContent = privateKeyFileData.getStream().toByteArray();
+      try {
+        if (privateKeyFileData != null) {
+          p12FileContent = privateKeyFileData.getBytes();
+        }
+      } finally {
+        uploadedFormItems.delete();
       }
 
       if ( clientId == null || serviceAccountEmail == null || p12FileContent == null ||
@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -38,30 +37,26 @@ import org.opendatakit.aggregate.constants.HtmlUtil;
 import org.opendatakit.aggregate.constants.ParserConsts;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.common.FormElementNamespace;
-import org.opendatakit.aggregate.constants.common.OperationalStatus;
 import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.exception.ODKConversionException;
-import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.exception.ODKFormSubmissionsDisabledException;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
 import org.opendatakit.aggregate.exception.ODKParseException;
-import org.opendatakit.aggregate.externalservice.ExternalService;
-import org.opendatakit.aggregate.externalservice.FormServiceCursor;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.XmlAttributeFormatter;
 import org.opendatakit.aggregate.parser.MultiPartFormData;
 import org.opendatakit.aggregate.parser.SubmissionParser;
 import org.opendatakit.aggregate.submission.Submission;
-import org.opendatakit.aggregate.task.UploadSubmissions;
-import org.opendatakit.aggregate.util.BackendActionsTable;
+import org.opendatakit.aggregate.task.tomcat.SubmissionIngestQueue;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
 import org.opendatakit.common.web.constants.HtmlConsts;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 
 /**
  * Servlet to process a submission from a form
@@ -88,6 +83,12 @@ public class SubmissionServlet extends ServletUtilBase {
    */
   private static final String TITLE = "Submission Upload";
 
+  /**
+   * Seconds a client is asked to wait before retrying when the ingest queue is
+   * full
+   */
+  private static final int RETRY_AFTER_SECONDS = 30;
+
   private static final String UPLOAD_PAGE_BODY_START =
 
   "<div style=\"overflow: auto;\">"
@@ -219,13 +220,23 @@ public class SubmissionServlet extends ServletUtilBase {
     Double openRosaVersion = getOpenRosaVersion(req);
     boolean isIncomplete = false;
     try {
+      SubmissionIngestQueue ingestQueue = getIngestQueue(cc);
+      if (ingestQueue != null && ingestQueue.isRunning()) {
+        enqueueSubmission(ingestQueue, req, resp, openRosaVersion, cc);
+        return;
+      }
+
       SubmissionParser submissionParser = null;
       if (ServletFileUpload.isMultipartContent(req)) {
         MultiPartFormData uploadedSubmissionItems = new MultiPartFormData(req);
-        String isIncompleteFlag = uploadedSubmissionItems
-            .getSimpleFormField(ServletConsts.TRANSFER_IS_INCOMPLETE);
-        isIncomplete = (isIncompleteFlag != null && isIncompleteFlag.compareToIgnoreCase("YES") == 0);
-        submissionParser = new SubmissionParser(uploadedSubmissionItems, isIncomplete, cc);
+        try {
+          String isIncompleteFlag = uploadedSubmissionItems
+              .getSimpleFormField(ServletConsts.TRANSFER_IS_INCOMPLETE);
+          isIncomplete = (isIncompleteFlag != null && isIncompleteFlag.compareToIgnoreCase("YES") == 0);
+          submissionParser = new SubmissionParser(uploadedSubmissionItems, isIncomplete, cc);
+        } finally {
+          uploadedSubmissionItems.delete();
+        }
       } else {
         // TODO: check that it is the proper types we can deal with
         // XML received, we hope...
@@ -234,35 +245,9 @@ public class SubmissionServlet extends ServletUtilBase {
 
       IForm form = submissionParser.getForm();
 
-      // Only trigger uploads if this submission was not already
-      // marked as complete before this interaction and if it is
-      // now complete. AND...
-      // Issue a publish request only if we haven't issued one recently.
-      // use BackendActionsTable to mediate that decision.
-      // This test ONLY OCCURS during submissions, not during Watchdog
-      // firings, so we don't have to worry about bugs here affecting Watchdog.
-      if (!submissionParser.wasPreexistingComplete() &&
-          submissionParser.getSubmission().isComplete() &&
-          BackendActionsTable.triggerPublisher(form.getUri(), cc) ) {
-        // send information to remote servers that need to be notified
-        List<ExternalService> tmp = FormServiceCursor.getExternalServicesForForm(form, cc);
-        UploadSubmissions uploadTask = (UploadSubmissions) cc.getBean(BeanDefs.UPLOAD_TASK_BEAN);
-
-        // publication failures should not fail the submission...
-        try {
-          CallingContext ccDaemon = ContextFactory.getCallingContext(this, req);
-          ccDaemon.setAsDaemon(true);
-          for (ExternalService rs : tmp) {
-            // only create upload tasks for active publishers
-            if ( rs.getFormServiceCursor().getOperationalStatus() == OperationalStatus.ACTIVE ) {
-              uploadTask.createFormUploadTask(rs.getFormServiceCursor(), false, ccDaemon);
-            }
-          }
-        } catch (ODKExternalServiceException e) {
-          logger.info("Publishing enqueue failure (this is recoverable) - " + e.getMessage());
-          e.printStackTrace();
-        }
-      }
+      CallingContext ccDaemon = ContextFactory.getCallingContext(this, req);
+      ccDaemon.setAsDaemon(true);
+      submissionParser.triggerPublishers(cc, ccDaemon);
 
       // form full url including scheme...
       String serverUrl = cc.getServerURL();
@@ -370,4 +355,62 @@ public class SubmissionServlet extends ServletUtilBase {
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unexpected exception");
     }
   }
+
+  private SubmissionIngestQueue getIngestQueue(CallingContext cc) {
+    try {
+      return (SubmissionIngestQueue) cc.getBean(BeanDefs.SUBMISSION_INGEST_BEAN);
+    } catch (NoSuchBeanDefinitionException e) {
+      // asynchronous ingest is not configured
+      return null;
+    }
+  }
+
+  /**
+   * Spools the submission for asynchronous processing and replies with a 202
+   * Accepted, or with a 503 Service Unavailable if the ingest queue is full.
+   * A submission whose form is unknown or does not accept submissions is
+   * refused as on the synchronous path. The submission has not been parsed
+   * yet, so the reply carries no submissionMetadata.
+   */
+  private void enqueueSubmission(SubmissionIngestQueue ingestQueue, HttpServletRequest req,
+      HttpServletResponse resp, Double openRosaVersion, CallingContext cc) throws IOException,
+      FileUploadException, ODKFormNotFoundException, ODKFormSubmissionsDisabledException,
+      ODKIncompleteSubmissionData, ODKDatastoreException {
+    if (!ingestQueue.enqueue(req, cc)) {
+      logger.warn("Submission ingest queue is full");
+      resp.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, ErrorConsts.SUBMISSION_QUEUE_FULL);
+      return;
+    }
+
+    String serverUrl = cc.getServerURL();
+    String url = serverUrl + BasicConsts.FORWARDSLASH + ADDR;
+    resp.setHeader("Location", url);
+
+    resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+    if (openRosaVersion == null) {
+      logger.info("Queued non-OpenRosa submission");
+
+      resp.setContentType(HtmlConsts.RESP_TYPE_HTML);
+      resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
+      PrintWriter out = resp.getWriter();
+      out.write(HtmlConsts.HTML_OPEN);
+      out.write(HtmlConsts.BODY_OPEN);
+      out.write("<p>Submission upload was accepted and will be processed shortly.</p><p>Click ");
+      out.write(HtmlUtil.createHref(cc.getWebApplicationURL(ADDR), "here", false));
+      out.write(" to return to upload submissions page.</p>");
+      out.write(HtmlConsts.BODY_CLOSE);
+      out.write(HtmlConsts.HTML_CLOSE);
+    } else {
+      logger.info("Queued OpenRosa submission");
+
+      addOpenRosaHeaders(resp);
+      resp.setContentType(HtmlConsts.RESP_TYPE_XML);
+      resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
+      PrintWriter out = resp.getWriter();
+      out.write("<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\">");
+      out.write("<message>submission upload was accepted and will be processed shortly</message>");
+      out.write("</OpenRosaResponse>");
+    }
+  }
 }
@@ -86,5 +86,27 @@ public interface SubmissionField<T> extends SubmissionValue{
   public BinaryContentManipulator.BlobSubmissionOutcome setValueFromByteArray(byte[] byteArray,
       String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
       throws ODKDatastoreException;
+
+  /**
+   * As setValueFromByteArray, but the value is streamed from the source
+   * rather than held in memory.
+   * 
+   * @param source
+   *          the binary content
+   * @param contentType
+   *          type of binary data
+   * @param unrootedFilePath
+   *          the filename for this content
+   * @param overwriteOK
+   *          true if overwriting an existing value is OK.
+   * @param cc
+   *          calling context
+   * @return the outcome of the storage attempt.
+   * @throws ODKDatastoreException
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromContentSource(
+      BinaryContentManipulator.ContentSource source, String contentType,
+      String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException;
   
 }
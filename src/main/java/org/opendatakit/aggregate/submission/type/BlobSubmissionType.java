@@ -82,6 +82,11 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.getBlob(ordinal, cc);
   }
 
+  public BinaryContentManipulator.ContentSource getContentSource(int ordinal, CallingContext cc)
+      throws ODKDatastoreException {
+    return bcm.getContentSource(ordinal, cc);
+  }
+
   /**
    * Constructor
    * 
@@ -134,6 +139,15 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  @Override
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromContentSource(
+      BinaryContentManipulator.ContentSource source, String contentType,
+      String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException {
+
+    return bcm.setValueFromContentSource(source, contentType, unrootedFilePath, overwriteOK, cc);
+  }
+
   /**
    * Cannot convert blob from a string
    * 
@@ -23,6 +23,7 @@ import org.opendatakit.aggregate.exception.ODKConversionException;
 import org.opendatakit.aggregate.submission.SubmissionField;
 import org.opendatakit.aggregate.submission.SubmissionVisitor;
 import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.ContentSource;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.EntityKey;
@@ -92,4 +93,11 @@ public abstract class MetadataBaseType<T> implements SubmissionField<T> {
     throw new IllegalStateException("unexpected call to setValueFromByteArray");
   }
 
+  @Override
+  public BlobSubmissionOutcome setValueFromContentSource(ContentSource source,
+      String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException {
+    throw new IllegalStateException("unexpected call to setValueFromContentSource");
+  }
+
 }
@@ -136,6 +136,18 @@ public abstract class SubmissionFieldBase<T> implements SubmissionField<T>{
       throw new IllegalStateException(ErrorConsts.BINARY_ERROR);
     }
   }
+
+  @Override
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromContentSource(
+      BinaryContentManipulator.ContentSource source, String contentType,
+      String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException {
+    if(isBinary()) {
+      throw new IllegalStateException("Should be overridden in derived class");
+    } else {
+      throw new IllegalStateException(ErrorConsts.BINARY_ERROR);
+    }
+  }
   
   /**
    * @see java.lang.Object#equals(java.lang.Object)
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+/**
+ * When a publisher that sends one submission at a time has its
+ * FormServiceCursor written back to the datastore: after every
+ * everySubmissions submissions, once everyMillis have passed since the last
+ * write, and always at the end of the batch. A zero disables that trigger.
+ *
+ * Submissions sent after the last write are sent again if the upload is
+ * interrupted, so this trades database writes against re-sends; the
+ * publishers tolerate re-sends.
+ */
+public class CursorCheckpointPolicy {
+
+  /**
+   * Writes the cursor after every submission.
+   */
+  public static final CursorCheckpointPolicy EVERY_SUBMISSION = new CursorCheckpointPolicy(1, 0L);
+
+  /**
+   * Writes the cursor only at the end of each batch.
+   */
+  public static final CursorCheckpointPolicy BATCH_END = new CursorCheckpointPolicy(0, 0L);
+
+  public static final CursorCheckpointPolicy DEFAULT = new CursorCheckpointPolicy(25, 5000L);
+
+  private final int everySubmissions;
+  private final long everyMillis;
+
+  public CursorCheckpointPolicy(int everySubmissions, long everyMillis) {
+    this.everySubmissions = everySubmissions;
+    this.everyMillis = everyMillis;
+  }
+
+  public int getEverySubmissions() {
+    return everySubmissions;
+  }
+
+  public long getEveryMillis() {
+    return everyMillis;
+  }
+
+  /**
+   * @param unwritten
+   *          submissions sent since the cursor was last written
+   * @param millisSinceWrite
+   * @return true if the cursor should be written now.
+   */
+  public boolean isCheckpointDue(int unwritten, long millisSinceWrite) {
+    if (unwritten <= 0) {
+      return false;
+    }
+    return (everySubmissions > 0 && unwritten >= everySubmissions)
+        || (everyMillis > 0L && millisSinceWrite >= everyMillis);
+  }
+}
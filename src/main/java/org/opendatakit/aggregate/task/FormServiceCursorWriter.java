@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.security.User;
+
+/**
+ * Write-behind for the FormServiceCursor of a running upload. Checkpoints
+ * are written on the executor while the upload carries on; a checkpoint
+ * requested while a write is in flight is coalesced with any others into
+ * one write of the latest cursor state.
+ *
+ * The cursor is written while synchronized on it, so the upload must also
+ * synchronize on it while updating it. A failed write is thrown from the
+ * next checkpoint() or flush().
+ *
+ * Without an executor, checkpoints are written immediately.
+ */
+class FormServiceCursorWriter {
+
+  private final FormServiceCursor fsc;
+  private final Executor executor;
+  private final Datastore ds;
+  private final User user;
+
+  // guarded by this
+  private boolean requested = false;
+  private boolean writing = false;
+  private Exception failure = null;
+
+  FormServiceCursorWriter(FormServiceCursor fsc, Executor executor, Datastore ds, User user) {
+    this.fsc = fsc;
+    this.executor = executor;
+    this.ds = ds;
+    this.user = user;
+  }
+
+  /**
+   * Requests that the current cursor state be written.
+   */
+  void checkpoint() throws ODKEntityPersistException, ODKOverQuotaException {
+    throwFailure();
+    if (executor == null) {
+      put();
+      return;
+    }
+    synchronized (this) {
+      requested = true;
+      if (writing) {
+        return;
+      }
+      writing = true;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shutting down
+      synchronized (this) {
+        requested = false;
+        writing = false;
+        notifyAll();
+      }
+      put();
+    }
+  }
+
+  private void drain() {
+    for (;;) {
+      synchronized (this) {
+        if (!requested) {
+          writing = false;
+          notifyAll();
+          return;
+        }
+        requested = false;
+      }
+      try {
+        put();
+      } catch (ODKEntityPersistException | ODKOverQuotaException e) {
+        synchronized (this) {
+          failure = e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for any write in flight and then writes the current cursor state.
+   */
+  void flush() throws ODKEntityPersistException, ODKOverQuotaException {
+    close();
+    throwFailure();
+    put();
+  }
+
+  /**
+   * Waits for any write in flight.
+   */
+  synchronized void close() {
+    while (writing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void throwFailure() throws ODKEntityPersistException, ODKOverQuotaException {
+    Exception e;
+    synchronized (this) {
+      e = failure;
+      failure = null;
+    }
+    if (e instanceof ODKOverQuotaException) {
+      throw (ODKOverQuotaException) e;
+    } else if (e != null) {
+      throw (ODKEntityPersistException) e;
+    }
+  }
+
+  private void put() throws ODKEntityPersistException, ODKOverQuotaException {
+    synchronized (fsc) {
+      ds.putEntity(fsc, user);
+    }
+  }
+}
@@ -15,10 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.Date;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -31,9 +28,8 @@ import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.form.PersistentResults.ExportSession;
 import org.opendatakit.aggregate.format.structure.JsonFormatterWithFilters;
-import org.opendatakit.aggregate.query.submission.QueryBase;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
 import org.opendatakit.aggregate.submission.Submission;
@@ -72,9 +68,6 @@ public class JsonFileWorkerImpl {
                 " form " + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
-
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
 
@@ -82,8 +75,8 @@ public class JsonFileWorkerImpl {
       SubmissionFilterGroup subFilterGroup = null;
 
       // create CSV
-      QueryBase query;
-      SubmissionFormatter formatter;
+      QueryByUIFilterGroup query;
+      JsonFormatterWithFilters formatter;
       FilterGroup filterGroup;
 
       // figure out the filterGroup...
@@ -95,11 +88,30 @@ public class JsonFileWorkerImpl {
       }
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
 
+      // resume from the checkpoint of an earlier attempt, if there is one;
+      // otherwise, the file is written into the datastore as it is generated
+      String fileName = form.getViewableFormNameSuitableAsFileName()
+          + ServletConsts.JSON_FILENAME_APPEND;
+      ExportSession export = r.startExport(attemptCount, HtmlConsts.RESP_TYPE_JSON, fileName, cc);
+      if (export.isResumed()) {
+        filterGroup.setCursor(export.getResumeCursor().transform());
+      }
+
       query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+      if (!export.isResumed()) {
+        export.setRowsExpected(query.countResults());
+      }
+      PrintWriter pw = export.getWriter();
       formatter = new JsonFormatterWithFilters(pw, form, filterGroup, BinaryOption.PROVIDE_LINKS, true, cc.getServerURL());
 
       logger.info("after setup of JSON file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
+      if (export.isResumed()) {
+        logger.info("resuming JSON generation after " + Long.toString(export.getRowsProcessed())
+            + " submissions for " + form.getFormId());
+        formatter.resumeProcessSubmissions(export.getRowsProcessed());
+      } else {
+        formatter.beforeProcessSubmissions(cc);
+      }
       List<Submission> submissions;
       int count = 0;
       for (;;) {
@@ -109,26 +121,22 @@ public class JsonFileWorkerImpl {
         if ( submissions.isEmpty()) break;
         logger.info("iteration " + Integer.toString(count) + " before emitting JSON for " + form.getFormId());
         formatter.processSubmissionSegment(submissions, cc);
+
+        // checkpoint, so that a later attempt can resume from here, and
+        // show the watchdog that this attempt has not stalled
+        if (!export.checkpoint(query.getResumeCursor(), submissions.size(), cc)) {
+          logger.warn("stale JSON activity - abandoning generation for " + form.getFormId());
+          return;
+        }
       }
       logger.info("wrapping up JSON generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
-      pw.close();
-      byte[] outputFile = stream.toByteArray();
-
-      // refetch because this might have taken a while...
-      r = new PersistentResults(persistentResultsKey, cc);
-      if (attemptCount.equals(r.getAttemptCount())) {
-        logger.info("saving JSON into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_JSON,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.JSON_FILENAME_APPEND, false, cc);
-        r.setStatus(ExportStatus.AVAILABLE);
-        r.setCompletionDate(new Date());
-        if(subFilterGroup != null) {
+      if (export.commit(cc)) {
+        logger.info("saved JSON into PersistentResults table for " + form.getFormId());
+        if (subFilterGroup != null) {
           subFilterGroup.delete(cc);
         }
-        r.persist(cc);
       } else {
         logger.warn("stale JSON activity - do not save file in PersistentResults table for " + form.getFormId());
       }
@@ -147,7 +155,8 @@ public class JsonFileWorkerImpl {
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("Exception recovery during JSON generation - mark as failed for " + form.getFormId());
-        r.deleteResultFile(cc);
+        // keep a checkpointed partial file for the next attempt to resume
+        r.deleteUnresumableResultFile(cc);
         r.setStatus(ExportStatus.FAILED);
         r.persist(cc);
       } else {
@@ -15,10 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.Date;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -31,9 +28,9 @@ import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.form.PersistentResults.ExportSession;
 import org.opendatakit.aggregate.format.SubmissionFormatter;
 import org.opendatakit.aggregate.format.structure.KmlFormatterWithFilters;
-import org.opendatakit.aggregate.query.submission.QueryBase;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
 import org.opendatakit.aggregate.submission.Submission;
@@ -71,9 +68,6 @@ public class KmlWorkerImpl {
         + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
-
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
 
@@ -81,7 +75,7 @@ public class KmlWorkerImpl {
       SubmissionFilterGroup subFilterGroup = null;
 
       // create KML
-      QueryBase query;
+      QueryByUIFilterGroup query;
       SubmissionFormatter formatter;
       FilterGroup filterGroup;
 
@@ -94,13 +88,31 @@ public class KmlWorkerImpl {
       }
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
 
+      // resume from the checkpoint of an earlier attempt, if there is one;
+      // otherwise, the file is written into the datastore as it is generated
+      String fileName = form.getViewableFormNameSuitableAsFileName()
+          + ServletConsts.KML_FILENAME_APPEND;
+      ExportSession export = r.startExport(attemptCount, HtmlConsts.RESP_TYPE_KML, fileName, cc);
+      if (export.isResumed()) {
+        filterGroup.setCursor(export.getResumeCursor().transform());
+      }
+
       query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS,
           cc);
+      if (!export.isResumed()) {
+        export.setRowsExpected(query.countResults());
+      }
+      PrintWriter pw = export.getWriter();
       formatter = new KmlFormatterWithFilters(form, cc.getServerURL(), kmlElementsToInclude, pw,
           filterGroup, cc);
 
       logger.info("after setup of KML file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
+      if (export.isResumed()) {
+        logger.info("resuming kml generation after " + Long.toString(export.getRowsProcessed())
+            + " submissions for " + form.getFormId());
+      } else {
+        formatter.beforeProcessSubmissions(cc);
+      }
       List<Submission> submissions;
       int count = 0;
       for (;;) {
@@ -113,27 +125,22 @@ public class KmlWorkerImpl {
         logger.info("iteration " + Integer.toString(count) + " before emitting kml for "
             + form.getFormId());
         formatter.processSubmissionSegment(submissions, cc);
+
+        // checkpoint, so that a later attempt can resume from here, and
+        // show the watchdog that this attempt has not stalled
+        if (!export.checkpoint(query.getResumeCursor(), submissions.size(), cc)) {
+          logger.warn("stale KML activity - abandoning generation for " + form.getFormId());
+          return;
+        }
       }
       logger.info("wrapping up kml generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
-      pw.close();
-      byte[] outputFile = stream.toByteArray();
-
-      // refetch because this might have taken a while...
-      r = new PersistentResults(persistentResultsKey, cc);
-      if (attemptCount.equals(r.getAttemptCount())) {
-        logger.info("saving kml into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_KML,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.KML_FILENAME_APPEND,
-            false, cc);
-        r.setStatus(ExportStatus.AVAILABLE);
-        r.setCompletionDate(new Date());
+      if (export.commit(cc)) {
+        logger.info("saved kml into PersistentResults table for " + form.getFormId());
         if (subFilterGroup != null) {
           subFilterGroup.delete(cc);
         }
-        r.persist(cc);
       } else {
         logger.warn("stale KML activity - do not save file in PersistentResults table for "
             + form.getFormId());
@@ -153,7 +160,8 @@ public class KmlWorkerImpl {
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("Exception recovery during KML generation - mark as failed for "
             + form.getFormId());
-        r.deleteResultFile(cc);
+        // keep a checkpointed partial file for the next attempt to resume
+        r.deleteUnresumableResultFile(cc);
         r.setStatus(ExportStatus.FAILED);
         r.persist(cc);
       } else {
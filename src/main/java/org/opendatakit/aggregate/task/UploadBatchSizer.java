@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+/**
+ * Chooses how many submissions to publish per batch from the observed time
+ * taken to send each submission, so that a batch takes about
+ * targetBatchMillis. A fast publisher thus gets large batches (fewer
+ * queries and cursor updates) and a slow one gets small batches (the cursor
+ * advances and the task lock is renewed often enough).
+ *
+ * The time per submission is an exponentially weighted moving average, and
+ * the batch size at most doubles from one batch to the next.
+ *
+ * Thread-safe.
+ */
+public class UploadBatchSizer {
+
+  // weight of the newest sample in the moving average
+  private static final double SMOOTHING = 0.3;
+
+  private final int minBatchSize;
+  private final int maxBatchSize;
+  private final long targetBatchMillis;
+
+  // guarded by this
+  private int batchSize;
+  private double millisPerSubmission = -1.0;
+
+  /**
+   * @param minBatchSize
+   *          also the size of the first batch
+   * @param maxBatchSize
+   * @param targetBatchMillis
+   */
+  public UploadBatchSizer(int minBatchSize, int maxBatchSize, long targetBatchMillis) {
+    if (minBatchSize < 1 || maxBatchSize < minBatchSize) {
+      throw new IllegalArgumentException("invalid batch size bounds");
+    }
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.targetBatchMillis = targetBatchMillis;
+    this.batchSize = minBatchSize;
+  }
+
+  public synchronized int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Records that a batch of count submissions was sent in elapsedMillis and
+   * resizes the next batch accordingly.
+   *
+   * @param count
+   * @param elapsedMillis
+   */
+  public synchronized void recordBatch(int count, long elapsedMillis) {
+    if (count <= 0) {
+      return;
+    }
+    double sample = ((double) Math.max(elapsedMillis, 0L)) / count;
+    if (millisPerSubmission < 0.0) {
+      millisPerSubmission = sample;
+    } else {
+      millisPerSubmission += SMOOTHING * (sample - millisPerSubmission);
+    }
+
+    long ideal;
+    if (millisPerSubmission < 1.0) {
+      ideal = maxBatchSize;
+    } else {
+      ideal = (long) (targetBatchMillis / millisPerSubmission);
+    }
+    ideal = Math.min(ideal, 2L * batchSize);
+    batchSize = (int) Math.max(minBatchSize, Math.min(maxBatchSize, ideal));
+  }
+}
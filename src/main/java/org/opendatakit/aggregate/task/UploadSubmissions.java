@@ -47,4 +47,12 @@ public interface UploadSubmissions {
    */
   public void createFormUploadTask(FormServiceCursor fsc, boolean onBackground, CallingContext cc)
       throws ODKExternalServiceException;
+
+  /**
+   * Drops whatever the implementation keeps for the publisher of the given
+   * FormServiceCursor, which has been deleted.
+   *
+   * @param uriFsc
+   */
+  public void formServiceCursorDeleted(String uriFsc);
 }
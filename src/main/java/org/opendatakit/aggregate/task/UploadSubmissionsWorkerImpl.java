@@ -18,6 +18,10 @@ package org.opendatakit.aggregate.task;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.TaskLockType;
 import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
@@ -77,12 +81,28 @@ public class UploadSubmissionsWorkerImpl {
   private final boolean useLargerBatchSize;
   private final FormServiceCursor formServiceCursor;
   private final ExternalServicePublicationOption externalServicePublicationOption;
+  private final long drainMillis;
+  private final ExecutorService backgroundExecutor;
+  private final UploadBatchSizer batchSizer;
+  private final CursorCheckpointPolicy checkpointPolicy;
   private ExternalService externalService;
   private IForm form;
+  // when the task lock was last obtained or renewed
   private long lastUpdateTimestamp = System.currentTimeMillis();
+  // the slowest single sendSubmission() seen, which the lock must outlast
+  private long longestSendMillis = 0L;
+
+  // the next batch, queried while the current batch is being sent, and the
+  // cursor position it was queried from
+  private Future<List<Submission>> prefetch = null;
+  private boolean prefetchStreaming;
+  private Date prefetchStartDate;
+  private String prefetchUriLast;
 
   private int getQueryLimit() {
-    if (useLargerBatchSize) {
+    if (batchSizer != null) {
+      return batchSizer.getBatchSize();
+    } else if (useLargerBatchSize) {
       // we are running in the background...
       return MAX_FOREGROUND_QUERY_LIMIT * 10;
     } else {
@@ -91,8 +111,33 @@ public class UploadSubmissionsWorkerImpl {
   }
 
   public UploadSubmissionsWorkerImpl(FormServiceCursor fsc, boolean useLargerBatchSize, CallingContext cc) {
+    this(fsc, useLargerBatchSize, 0L, null, null, CursorCheckpointPolicy.DEFAULT, cc);
+  }
+
+  /**
+   * @param fsc
+   * @param useLargerBatchSize
+   * @param drainMillis
+   *          keep publishing batches while there are more for up to this
+   *          long, rather than publishing one batch and re-queuing.
+   * @param backgroundExecutor
+   *          if not null, queries the next batch while the current one is
+   *          being sent, and writes the cursor behind the upload.
+   * @param batchSizer
+   *          if not null, chooses the batch sizes (otherwise they are fixed).
+   * @param checkpointPolicy
+   *          when to write the cursor of publishers that cannot batch.
+   * @param cc
+   */
+  public UploadSubmissionsWorkerImpl(FormServiceCursor fsc, boolean useLargerBatchSize,
+      long drainMillis, ExecutorService backgroundExecutor, UploadBatchSizer batchSizer,
+      CursorCheckpointPolicy checkpointPolicy, CallingContext cc) {
     this.formServiceCursor = fsc;
     this.useLargerBatchSize = useLargerBatchSize;
+    this.drainMillis = drainMillis;
+    this.backgroundExecutor = backgroundExecutor;
+    this.batchSizer = batchSizer;
+    this.checkpointPolicy = checkpointPolicy;
     this.cc = cc;
     this.externalServicePublicationOption = fsc.getExternalServicePublicationOption();
     this.lockId = UUID.randomUUID().toString();
@@ -137,6 +182,7 @@ public class UploadSubmissionsWorkerImpl {
 
     try {
       taskLock.obtainLock(lockId, getUploadSubmissionsTaskLockName(), TaskLockType.UPLOAD_SUBMISSION);
+      lastUpdateTimestamp = System.currentTimeMillis();
     } catch (ODKTaskLockException e) {
       logger.warn("Error while trying to obtain a task lock", e);
       return;
@@ -156,32 +202,36 @@ public class UploadSubmissionsWorkerImpl {
         return;
       }
 
-      // opStatus is one of ACTIVE, ACTIVE_RETRY
-      switch (externalServicePublicationOption) {
-        case UPLOAD_ONLY:
-          if (formServiceCursor.getUploadCompleted()) {
-            // leave the record so we know action has occurred.
-            logger.warn("Upload completed for UPLOAD_ONLY but formServiceCursor operational status slow to be revised");
-            // update this value here, but it should have already been set...
-            formServiceCursor.setOperationalStatus(OperationalStatus.COMPLETED);
-            ds.putEntity(formServiceCursor, user);
-          } else {
-            reQueue = uploadSubmissions();
-          }
-          break;
-        case STREAM_ONLY:
-          reQueue = streamSubmissions();
-          break;
-        case UPLOAD_N_STREAM:
-          if (!formServiceCursor.getUploadCompleted()) {
-            reQueue = uploadSubmissions();
-          } else {
+      long drainDeadline = System.currentTimeMillis() + drainMillis;
+      do {
+        reQueue = false;
+        // opStatus is one of ACTIVE, ACTIVE_RETRY
+        switch (externalServicePublicationOption) {
+          case UPLOAD_ONLY:
+            if (formServiceCursor.getUploadCompleted()) {
+              // leave the record so we know action has occurred.
+              logger.warn("Upload completed for UPLOAD_ONLY but formServiceCursor operational status slow to be revised");
+              // update this value here, but it should have already been set...
+              formServiceCursor.setOperationalStatus(OperationalStatus.COMPLETED);
+              ds.putEntity(formServiceCursor, user);
+            } else {
+              reQueue = uploadSubmissions();
+            }
+            break;
+          case STREAM_ONLY:
             reQueue = streamSubmissions();
-          }
-          break;
-        default:
-          throw new IllegalStateException("Unexpected ExternalServiceOption: " + externalServicePublicationOption.name());
-      }
+            break;
+          case UPLOAD_N_STREAM:
+            if (!formServiceCursor.getUploadCompleted()) {
+              reQueue = uploadSubmissions();
+            } else {
+              reQueue = streamSubmissions();
+            }
+            break;
+          default:
+            throw new IllegalStateException("Unexpected ExternalServiceOption: " + externalServicePublicationOption.name());
+        }
+      } while (reQueue && continueDraining(drainDeadline));
     } catch (ODKExternalServiceException e) {
       logger.error("External service error", e);
       throw e;
@@ -189,6 +239,10 @@ public class UploadSubmissionsWorkerImpl {
       logger.error("Unexpected exception", e);
       throw new ODKExternalServiceException(e);
     } finally {
+      if (prefetch != null) {
+        prefetch.cancel(true);
+        prefetch = null;
+      }
       taskLock = ds.createTaskLock(user);
       try {
         for (int i = 0; i < MAX_NUMBER_OF_RELEASE_RETRIES; i++) {
@@ -223,6 +277,21 @@ public class UploadSubmissionsWorkerImpl {
     }
   }
 
+  /**
+   * @return true if another batch should be published before re-queuing.
+   */
+  private boolean continueDraining(long drainDeadline) throws ODKTaskLockException, ODKExternalServiceException {
+    if (drainMillis <= 0L || System.currentTimeMillis() >= drainDeadline) {
+      return false;
+    }
+    OperationalStatus opStatus = formServiceCursor.getOperationalStatus();
+    if (opStatus != OperationalStatus.ACTIVE_RETRY && opStatus != OperationalStatus.ACTIVE) {
+      return false;
+    }
+    renewTaskLock(0);
+    return true;
+  }
+
   private boolean uploadSubmissions() throws Exception {
 
     Date startDate = formServiceCursor.getLastUploadCursorDate();
@@ -241,6 +310,7 @@ public class UploadSubmissionsWorkerImpl {
     // lastUpdatedDate.
     String lastUploadKey = formServiceCursor.getLastUploadKey();
     List<Submission> submissions = querySubmissionsDateRange(startDate, endDate, lastUploadKey);
+    prefetchDateRange(submissions, endDate);
 
     if (submissions.isEmpty()) {
       logger.info("There are no submissions available for upload");
@@ -266,6 +336,7 @@ public class UploadSubmissionsWorkerImpl {
 
     String lastStreamedKey = formServiceCursor.getLastStreamingKey();
     List<Submission> submissions = querySubmissionsStartDate(startDate, lastStreamedKey);
+    prefetchStartDate(submissions);
 
     if (submissions.isEmpty()) {
       logger.info("There are no submissions available for streaming");
@@ -281,6 +352,9 @@ public class UploadSubmissionsWorkerImpl {
   private void sendSubmissions(List<Submission> submissionsToSend, boolean streaming) throws ODKExternalServiceException {
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
+    long startTime = System.currentTimeMillis();
+    FormServiceCursorWriter cursorWriter = new FormServiceCursorWriter(formServiceCursor,
+        backgroundExecutor, ds, user);
     try {
       // check if publisher is capable of batching transmission
       if (externalService.canBatchSubmissions()) {
@@ -288,18 +362,40 @@ public class UploadSubmissionsWorkerImpl {
 
       } else { // publisher not capable of batching
         int counter = 0;
+        int unwritten = 0;
+        long lastWrite = System.currentTimeMillis();
         for (Submission submission : submissionsToSend) {
+          long sendStart = System.currentTimeMillis();
           externalService.sendSubmission(submission, cc);
+          long now = System.currentTimeMillis();
+          longestSendMillis = Math.max(longestSendMillis, now - sendStart);
           ++counter;
 
-          // persist updated last send date
-          ExternalServiceUtils.updateFscToSuccessfulSubmissionDate(formServiceCursor, submission, streaming);
-          ds.putEntity(formServiceCursor, user);
+          // update last send date, persisting it as the checkpoint policy says
+          synchronized (formServiceCursor) {
+            ExternalServiceUtils.updateFscToSuccessfulSubmissionDate(formServiceCursor, submission, streaming);
+          }
+          ++unwritten;
+          if (checkpointPolicy.isCheckpointDue(unwritten, now - lastWrite)) {
+            cursorWriter.checkpoint();
+            unwritten = 0;
+            lastWrite = now;
+          }
 
           counter = renewTaskLock(counter);
         }
+        // always checkpoint at the end of the batch
+        if (unwritten > 0) {
+          cursorWriter.flush();
+        } else {
+          cursorWriter.close();
+        }
+      }
+      if (batchSizer != null) {
+        batchSizer.recordBatch(submissionsToSend.size(), System.currentTimeMillis() - startTime);
       }
     } catch (ODKExternalServiceCredentialsException e) {
+      cursorWriter.close();
       logger.error("External service credentials error", e);
       // The main goal of this catch is to avoid
       // silently transitioning BAD_CREDENTIALS into
@@ -313,11 +409,13 @@ public class UploadSubmissionsWorkerImpl {
       }
       throw e;
     } catch (ODKExternalServiceException e) {
+      cursorWriter.close();
       logger.error("Error", e);
       ExternalServiceUtils.pauseFscOperationalStatus(formServiceCursor);
       updateOperationalStatus(ds, user);
       throw e;
     } catch (Exception e) {
+      cursorWriter.close();
       logger.error("Error", e);
       ExternalServiceUtils.pauseFscOperationalStatus(formServiceCursor);
       updateOperationalStatus(ds, user);
@@ -339,11 +437,13 @@ public class UploadSubmissionsWorkerImpl {
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
 
-    // renew the lock whenever we've consumed more than 33% of the time
-    // budget for the lock. This adjusts for very slow external service
-    // response times, though if the response time is more than the lock
-    // expiration timeout, we can still get into trouble.
-    if ((System.currentTimeMillis() - lastUpdateTimestamp + 1) > (TaskLockType.UPLOAD_SUBMISSION.getLockExpirationTimeout() / 3)) {
+    // renew the lock only once the lease nears expiry: when what remains of
+    // it is less than a third of the lock's time budget or twice the slowest
+    // send seen, whichever is larger. If a single response takes more than
+    // the lock expiration timeout, we can still get into trouble.
+    long timeout = TaskLockType.UPLOAD_SUBMISSION.getLockExpirationTimeout();
+    long remaining = lastUpdateTimestamp + timeout - System.currentTimeMillis();
+    if (remaining < Math.max(timeout / 3, 2L * longestSendMillis)) {
       // renew lock
       TaskLock taskLock = ds.createTaskLock(user);
       // TODO: figure out what to do if this returns false
@@ -360,15 +460,113 @@ public class UploadSubmissionsWorkerImpl {
   }
 
   private List<Submission> querySubmissionsDateRange(Date startDate, Date endDate, String uriLast) throws ODKIncompleteSubmissionData, ODKDatastoreException {
+    List<Submission> prefetched = takePrefetch(false, startDate, uriLast);
+    if (prefetched != null) {
+      return prefetched;
+    }
     // query for next set of submissions
     QueryByDateRange query = new QueryByDateRange(form, getQueryLimit(), startDate, endDate, uriLast, cc);
     return query.getResultSubmissions(cc);
   }
 
   private List<Submission> querySubmissionsStartDate(Date startDate, String uriLast) throws ODKIncompleteSubmissionData, ODKDatastoreException {
+    List<Submission> prefetched = takePrefetch(true, startDate, uriLast);
+    if (prefetched != null) {
+      return prefetched;
+    }
     // query for next set of submissions
     // (excluding the very recent submissions that haven't settled yet).
     QueryByDateRange query = new QueryByDateRange(form, getQueryLimit(), startDate, uriLast, cc);
     return query.getResultSubmissions(cc);
   }
+
+  /**
+   * If the batch is full, and so probably not the last, starts querying the
+   * batch that follows it.
+   */
+  private void prefetchDateRange(List<Submission> batch, final Date endDate) {
+    if (!shouldPrefetch(batch)) {
+      return;
+    }
+    Submission last = batch.get(batch.size() - 1);
+    final Date startDate = last.getMarkedAsCompleteDate();
+    final String uriLast = last.getKey().getKey();
+    final int limit = getQueryLimit();
+    startPrefetch(false, startDate, uriLast, new Callable<List<Submission>>() {
+      @Override
+      public List<Submission> call() throws Exception {
+        QueryByDateRange query = new QueryByDateRange(form, limit, startDate, endDate, uriLast, cc);
+        return query.getResultSubmissions(cc);
+      }
+    });
+  }
+
+  private void prefetchStartDate(List<Submission> batch) {
+    if (!shouldPrefetch(batch)) {
+      return;
+    }
+    Submission last = batch.get(batch.size() - 1);
+    final Date startDate = last.getMarkedAsCompleteDate();
+    final String uriLast = last.getKey().getKey();
+    final int limit = getQueryLimit();
+    startPrefetch(true, startDate, uriLast, new Callable<List<Submission>>() {
+      @Override
+      public List<Submission> call() throws Exception {
+        QueryByDateRange query = new QueryByDateRange(form, limit, startDate, uriLast, cc);
+        return query.getResultSubmissions(cc);
+      }
+    });
+  }
+
+  private boolean shouldPrefetch(List<Submission> batch) {
+    return backgroundExecutor != null && drainMillis > 0L && !batch.isEmpty()
+        && batch.size() >= getQueryLimit();
+  }
+
+  private void startPrefetch(boolean streaming, Date startDate, String uriLast,
+      Callable<List<Submission>> query) {
+    if (prefetch != null) {
+      prefetch.cancel(true);
+    }
+    prefetchStreaming = streaming;
+    prefetchStartDate = startDate;
+    prefetchUriLast = uriLast;
+    prefetch = backgroundExecutor.submit(query);
+  }
+
+  /**
+   * @return the prefetched batch if it was queried from the given cursor
+   *         position, or null if it must be queried now. The prefetch is
+   *         discarded either way.
+   */
+  private List<Submission> takePrefetch(boolean streaming, Date startDate, String uriLast)
+      throws ODKIncompleteSubmissionData, ODKDatastoreException {
+    Future<List<Submission>> f = prefetch;
+    prefetch = null;
+    if (f == null) {
+      return null;
+    }
+    if (streaming != prefetchStreaming || !startDate.equals(prefetchStartDate)
+        || (uriLast == null ? prefetchUriLast != null : !uriLast.equals(prefetchUriLast))) {
+      // the last batch was not entirely sent
+      f.cancel(true);
+      return null;
+    }
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      f.cancel(true);
+      return null;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ODKDatastoreException) {
+        throw (ODKDatastoreException) cause;
+      } else if (cause instanceof ODKIncompleteSubmissionData) {
+        throw (ODKIncompleteSubmissionData) cause;
+      }
+      logger.warn("Prefetch of next batch failed -- querying again", cause);
+      return null;
+    }
+  }
 }
@@ -22,11 +22,9 @@ import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.common.ExternalServiceType;
 import org.opendatakit.aggregate.constants.common.OperationalStatus;
-import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.constants.externalservice.FusionTableConsts;
 import org.opendatakit.aggregate.constants.externalservice.JsonServerConsts;
 import org.opendatakit.aggregate.constants.externalservice.OhmageJsonServerConsts;
@@ -41,15 +39,17 @@ import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
-import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.util.BackendActionsTable;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.PersistConsts;
-import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
-import org.opendatakit.common.utils.WebUtils;
+import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
 
 /**
  * Common worker implementation for restarting stalled tasks.
@@ -97,23 +97,27 @@ public class WatchdogWorkerImpl {
     // compute the upper limit for data we want to process
     // limitDate is the datastore's settle time into the past.
     Date limitDate = new Date(System.currentTimeMillis() - PersistConsts.MAX_SETTLE_MILLISECONDS);
-    QueryResumePoint qrp = new QueryResumePoint(
-        TopLevelDynamicBase.FIELD_NAME_MARKED_AS_COMPLETE_DATE, WebUtils.iso8601Date(limitDate),
-        null, false);
 
-    FilterGroup filterGroup = new FilterGroup(UIConsts.FILTER_NONE, form.getFormId(), null);
-    filterGroup.setCursor(qrp.transform());
-    filterGroup.setQueryFetchLimit(1);
+    // query for the most recent submission that was marked-as-complete for
+    // this form, reading only its top-level row rather than materializing the
+    // submission itself. A sorted limit-1 query is served from an index on
+    // every engine, whereas max() is a full scan where it is not native (GAE).
+    TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+        .getFormDataModel().getBackingObjectPrototype();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
 
-    // query for the most recent submission that was marked-as-complete for this
-    // form
-    QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
-        CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
-
-    List<Submission> submissions = query.getResultSubmissions(cc);
-    if (submissions != null && submissions.size() >= 1) {
-      Submission lastSubmission = submissions.get(0);
-      metadata = new SubmissionMetadata(lastSubmission.getKey().getKey(),
+    Query query = ds.createQuery(tbl, "WatchdogWorkerImpl.getLastSubmissionMetadata", user);
+    query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
+    query.addFilter(tbl.markedAsCompleteDate, FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
+    query.addFilter(tbl.markedAsCompleteDate, FilterOperation.LESS_THAN_OR_EQUAL, limitDate);
+    query.addSort(tbl.markedAsCompleteDate, Direction.DESCENDING);
+    query.addSort(tbl.primaryKey, Direction.DESCENDING);
+    List<? extends CommonFieldsBase> lastSubmissions = query.executeQuery(null, 1)
+        .getResultList();
+    if (!lastSubmissions.isEmpty()) {
+      TopLevelDynamicBase lastSubmission = (TopLevelDynamicBase) lastSubmissions.get(0);
+      metadata = new SubmissionMetadata(lastSubmission.getUri(),
           lastSubmission.getMarkedAsCompleteDate());
       formSubmissionsMap.put(form.getUri(), metadata);
       return metadata;
@@ -340,6 +344,7 @@ public class WatchdogWorkerImpl {
         logger.info("Found stalled request: " + persistentResult.getSubmissionKey());
         long attemptCount = persistentResult.getAttemptCount();
         persistentResult.setAttemptCount(++attemptCount);
+        persistentResult.setLastRetryDate(new Date());
         persistentResult.persist(cc);
         IForm form = FormFactory.retrieveFormByFormId(persistentResult.getFormId(), cc);
         if (!form.hasValidFormDefinition()) {
@@ -65,4 +65,9 @@ public class UploadSubmissionsImpl implements UploadSubmissions {
 
   }
 
+  @Override
+  public void formServiceCursorDeleted(String uriFsc) {
+    // nothing is kept between tasks
+  }
+
 }
@@ -0,0 +1,603 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.UploadContext;
+import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
+import org.opendatakit.aggregate.exception.ODKFormSubmissionsDisabledException;
+import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
+import org.opendatakit.aggregate.parser.MultiPartFormData;
+import org.opendatakit.aggregate.parser.MultiPartFormItem;
+import org.opendatakit.aggregate.parser.SubmissionParser;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.security.UserService;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.SmartLifecycle;
+
+/**
+ * Optional asynchronous ingest path for submissions.
+ *
+ * When enabled, the SubmissionServlet spools the raw body of each submission
+ * into a journal file in spoolDirectory and, once it has verified that the
+ * submission's form exists and accepts submissions, acknowledges it with a
+ * 202 Accepted. A pool of workerCount threads then drains the journal through the
+ * SubmissionParser, outside of the request. If maxQueueDepth submissions are
+ * already waiting or being processed, new ones are refused so that the
+ * servlet can answer 503 Service Unavailable and the device retries later.
+ *
+ * A journal file is deleted once its submission has been stored. Files left
+ * behind by a shutdown or crash are processed again when the queue next
+ * starts; re-processing a stored submission is harmless, as the parser merges
+ * parts by instanceID. Submissions that fail for reasons that a retry will
+ * not fix (e.g., parse errors) are moved into the failed subdirectory; the
+ * others are retried after an increasing delay.
+ *
+ * Submissions are stored under the identity of the user who posted them,
+ * except those recovered after a restart, which are stored under the daemon
+ * account.
+ */
+public class SubmissionIngestQueue implements SmartLifecycle, InitializingBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(SubmissionIngestQueue.class);
+
+  private static final String SPOOL_SUFFIX = ".submission";
+  private static final String PARTIAL_SUFFIX = ".partial";
+  private static final String FAILED_DIRECTORY = "failed";
+  private static final String MULTIPART_PREFIX = "multipart/";
+  // attempts made when the datastore or the submission lock is unavailable
+  private static final int MAX_ATTEMPTS = 3;
+  // delay before the first retry; doubled for each later one
+  private static final long RETRY_DELAY_MILLIS = 5000L;
+
+  private WatchdogImpl watchdog = null;
+  private boolean enabled = false;
+  private File spoolDirectory = new File(System.getProperty("java.io.tmpdir"),
+      "odk-submission-inbox");
+  private int workerCount = 4;
+  private int maxQueueDepth = 200;
+
+  private final AtomicInteger pending = new AtomicInteger(0);
+  private final AtomicLong accepted = new AtomicLong(0L);
+  private final AtomicLong rejected = new AtomicLong(0L);
+  private final AtomicLong completed = new AtomicLong(0L);
+  private final AtomicLong retried = new AtomicLong(0L);
+  private final AtomicLong failed = new AtomicLong(0L);
+
+  private volatile ScheduledThreadPoolExecutor executor = null;
+
+  public SubmissionIngestQueue() {
+  }
+
+  public void setWatchdog(WatchdogImpl watchdog) {
+    this.watchdog = watchdog;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public void setSpoolDirectory(String spoolDirectory) {
+    this.spoolDirectory = new File(spoolDirectory);
+  }
+
+  public void setWorkerCount(int workerCount) {
+    this.workerCount = workerCount;
+  }
+
+  public void setMaxQueueDepth(int maxQueueDepth) {
+    this.maxQueueDepth = maxQueueDepth;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (watchdog == null) {
+      throw new IllegalStateException("watchdog property must be set!");
+    }
+    if (workerCount < 1 || maxQueueDepth < 1) {
+      throw new IllegalStateException("workerCount and maxQueueDepth must be positive!");
+    }
+  }
+
+  /**
+   * Spools the body of the request, verifies that its form exists and accepts
+   * submissions, and queues it for processing.
+   *
+   * @param req
+   *          the submission request; its body is consumed.
+   * @param cc
+   *          the context of the request; the submission is stored under its
+   *          current user.
+   * @return false if the queue is full or not running, in which case nothing
+   *         was spooled.
+   * @throws IOException
+   *           if the body could not be spooled.
+   * @throws FileUploadException
+   *           if a multipart body could not be parsed
+   * @throws ODKFormNotFoundException
+   * @throws ODKFormSubmissionsDisabledException
+   * @throws ODKIncompleteSubmissionData
+   *           if the submission does not identify its form
+   * @throws ODKDatastoreException
+   */
+  public boolean enqueue(HttpServletRequest req, CallingContext cc) throws IOException,
+      FileUploadException, ODKFormNotFoundException, ODKFormSubmissionsDisabledException,
+      ODKIncompleteSubmissionData, ODKDatastoreException {
+    ScheduledThreadPoolExecutor exec = executor;
+    if (exec == null) {
+      return false;
+    }
+    if (pending.incrementAndGet() > maxQueueDepth) {
+      pending.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    File spoolFile;
+    boolean queued = false;
+    try {
+      spoolFile = spool(req, cc);
+      queued = true;
+    } finally {
+      if (!queued) {
+        pending.decrementAndGet();
+      }
+    }
+    accepted.incrementAndGet();
+    exec.execute(new IngestTask(spoolFile, cc.getCurrentUser(), 1));
+    return true;
+  }
+
+  /**
+   * Writes the content type and body of the request to a new journal file.
+   * The file only receives its final name once it has been written, synced
+   * and verified, so a partially written or refused body is never processed.
+   */
+  private File spool(HttpServletRequest req, CallingContext cc) throws IOException,
+      FileUploadException, ODKFormNotFoundException, ODKFormSubmissionsDisabledException,
+      ODKIncompleteSubmissionData, ODKDatastoreException {
+    String name = Long.toString(System.currentTimeMillis()) + "-" + UUID.randomUUID().toString();
+    File partial = new File(spoolDirectory, name + PARTIAL_SUFFIX);
+    File spoolFile = new File(spoolDirectory, name + SPOOL_SUFFIX);
+    String contentType = req.getContentType();
+    FileOutputStream out = new FileOutputStream(partial);
+    try {
+      InputStream in = req.getInputStream();
+      out.write(((contentType == null) ? "" : contentType).getBytes(StandardCharsets.ISO_8859_1));
+      out.write('\n');
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        out.write(buffer, 0, len);
+      }
+      out.getFD().sync();
+    } catch (IOException e) {
+      out.close();
+      partial.delete();
+      throw e;
+    }
+    out.close();
+    boolean verified = false;
+    try {
+      verify(partial, cc);
+      verified = true;
+    } finally {
+      if (!verified) {
+        partial.delete();
+      }
+    }
+    if (!partial.renameTo(spoolFile)) {
+      partial.delete();
+      throw new IOException("Unable to rename spooled submission " + partial.getPath());
+    }
+    return spoolFile;
+  }
+
+  /**
+   * Reads the submission in a journal file far enough to verify that its form
+   * exists and accepts submissions.
+   */
+  private static void verify(File spooled, CallingContext cc) throws IOException,
+      FileUploadException, ODKFormNotFoundException, ODKFormSubmissionsDisabledException,
+      ODKIncompleteSubmissionData, ODKDatastoreException {
+    SpooledUploadContext body = SpooledUploadContext.open(spooled);
+    try {
+      if (!body.isMultipart()) {
+        SubmissionParser.verifySubmittableForm(body.getInputStream(), cc);
+        return;
+      }
+      MultiPartFormData uploadedSubmissionItems = new MultiPartFormData(body);
+      try {
+        MultiPartFormItem submission = uploadedSubmissionItems
+            .getFormDataByFieldName(ServletConsts.XML_SUBMISSION_FILE);
+        if (submission == null) {
+          throw new IOException("DID NOT GET A SUBMISSION");
+        }
+        InputStream inputStreamXML = submission.openStream();
+        try {
+          SubmissionParser.verifySubmittableForm(inputStreamXML, cc);
+        } finally {
+          inputStreamXML.close();
+        }
+      } finally {
+        uploadedSubmissionItems.delete();
+      }
+    } finally {
+      body.getInputStream().close();
+    }
+  }
+
+  /**
+   * @return the queue's counters: submissions pending (queued or being
+   *         processed), the number being processed, and totals accepted,
+   *         rejected as over capacity, completed, retried and failed.
+   */
+  public Map<String, Long> getMetrics() {
+    ScheduledThreadPoolExecutor exec = executor;
+    Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+    metrics.put("maxQueueDepth", Long.valueOf(maxQueueDepth));
+    metrics.put("pending", Long.valueOf(pending.get()));
+    metrics.put("active", Long.valueOf((exec == null) ? 0 : exec.getActiveCount()));
+    metrics.put("accepted", accepted.get());
+    metrics.put("rejected", rejected.get());
+    metrics.put("completed", completed.get());
+    metrics.put("retried", retried.get());
+    metrics.put("failed", failed.get());
+    return metrics;
+  }
+
+  /**
+   * The spooled body of a submission, presented to the multipart parser as if
+   * it were the original request.
+   */
+  private static final class SpooledUploadContext implements UploadContext {
+    private final String contentType;
+    private final long contentLength;
+    private final InputStream in;
+
+    private SpooledUploadContext(String contentType, long contentLength, InputStream in) {
+      this.contentType = contentType;
+      this.contentLength = contentLength;
+      this.in = in;
+    }
+
+    /**
+     * Opens a journal file; the content type is on its first line, followed
+     * by the body. The caller closes the input stream.
+     */
+    static SpooledUploadContext open(File spoolFile) throws IOException {
+      InputStream in = new BufferedInputStream(new FileInputStream(spoolFile));
+      try {
+        StringBuilder b = new StringBuilder();
+        int ch;
+        while ((ch = in.read()) != -1 && ch != '\n') {
+          b.append((char) ch);
+        }
+        long contentLength = spoolFile.length() - (b.length() + 1);
+        return new SpooledUploadContext(b.toString(), contentLength, in);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    boolean isMultipart() {
+      return contentType.toLowerCase().startsWith(MULTIPART_PREFIX);
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+      return null;
+    }
+
+    @Override
+    public String getContentType() {
+      return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+      return contentLength;
+    }
+
+    @Override
+    @Deprecated
+    public int getContentLength() {
+      return (contentLength > Integer.MAX_VALUE) ? -1 : (int) contentLength;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return in;
+    }
+  }
+
+  /**
+   * The watchdog's calling context, acting on behalf of the submitter.
+   */
+  private static final class SubmitterCallingContext implements CallingContext {
+    private final CallingContext cc;
+    private final User submitter;
+
+    SubmitterCallingContext(CallingContext cc, User submitter) {
+      this.cc = cc;
+      this.submitter = submitter;
+    }
+
+    @Override
+    public Object getBean(String beanName) {
+      return cc.getBean(beanName);
+    }
+
+    @Override
+    public Datastore getDatastore() {
+      return cc.getDatastore();
+    }
+
+    @Override
+    public UserService getUserService() {
+      return cc.getUserService();
+    }
+
+    @Override
+    public void setAsDaemon(boolean asDaemon) {
+      cc.setAsDaemon(asDaemon);
+    }
+
+    @Override
+    public boolean getAsDeamon() {
+      return cc.getAsDeamon();
+    }
+
+    @Override
+    public User getCurrentUser() {
+      return submitter;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+      return cc.getServletContext();
+    }
+
+    @Override
+    public String getWebApplicationURL() {
+      return cc.getWebApplicationURL();
+    }
+
+    @Override
+    public String getWebApplicationURL(String servletAddr) {
+      return cc.getWebApplicationURL(servletAddr);
+    }
+
+    @Override
+    public String getServerURL() {
+      return cc.getServerURL();
+    }
+
+    @Override
+    public String getSecureServerURL() {
+      return cc.getSecureServerURL();
+    }
+  }
+
+  private final class IngestTask implements Runnable {
+    private final File spoolFile;
+    private final User submitter;
+    private final int attempt;
+
+    IngestTask(File spoolFile, User submitter, int attempt) {
+      this.spoolFile = spoolFile;
+      this.submitter = submitter;
+      this.attempt = attempt;
+    }
+
+    @Override
+    public void run() {
+      boolean done = true;
+      try {
+        process();
+        if (!spoolFile.delete()) {
+          logger.warn("Unable to delete processed submission " + spoolFile.getPath());
+        }
+        completed.incrementAndGet();
+      } catch (ODKTaskLockException e) {
+        done = !retry(e);
+      } catch (ODKDatastoreException e) {
+        done = !retry(e);
+      } catch (Exception e) {
+        fail(e);
+      } finally {
+        if (done) {
+          pending.decrementAndGet();
+        }
+      }
+    }
+
+    private void process() throws Exception {
+      CallingContext ccDaemon = watchdog.getCallingContext();
+      CallingContext cc = (submitter == null) ? ccDaemon : new SubmitterCallingContext(
+          ccDaemon, submitter);
+
+      SpooledUploadContext body = SpooledUploadContext.open(spoolFile);
+      try {
+        SubmissionParser submissionParser;
+        if (body.isMultipart()) {
+          MultiPartFormData uploadedSubmissionItems = new MultiPartFormData(body);
+          try {
+            String isIncompleteFlag = uploadedSubmissionItems
+                .getSimpleFormField(ServletConsts.TRANSFER_IS_INCOMPLETE);
+            boolean isIncomplete = (isIncompleteFlag != null && isIncompleteFlag
+                .compareToIgnoreCase("YES") == 0);
+            submissionParser = new SubmissionParser(uploadedSubmissionItems, isIncomplete, cc);
+          } finally {
+            uploadedSubmissionItems.delete();
+          }
+        } else {
+          submissionParser = new SubmissionParser(body.getInputStream(), cc);
+        }
+        submissionParser.triggerPublishers(cc, ccDaemon);
+      } finally {
+        body.getInputStream().close();
+      }
+    }
+
+    /**
+     * @return true if the submission was queued again.
+     */
+    private boolean retry(Exception e) {
+      ScheduledThreadPoolExecutor exec = executor;
+      if (attempt < MAX_ATTEMPTS && exec != null && !exec.isShutdown()) {
+        // back off, so that a contended lock or a struggling datastore has
+        // time to recover
+        long delay = RETRY_DELAY_MILLIS << (attempt - 1);
+        logger.warn("Queued submission " + spoolFile.getName() + " failed on attempt " + attempt
+            + "; retrying in " + delay + " ms - " + e.toString());
+        retried.incrementAndGet();
+        exec.schedule(new IngestTask(spoolFile, submitter, attempt + 1), delay,
+            TimeUnit.MILLISECONDS);
+        return true;
+      }
+      if (exec == null || exec.isShutdown()) {
+        // leave it in the journal for the next start
+        return false;
+      }
+      fail(e);
+      return false;
+    }
+
+    private void fail(Exception e) {
+      logger.error("Queued submission " + spoolFile.getName() + " failed - " + e.toString());
+      e.printStackTrace();
+      failed.incrementAndGet();
+      File failedDirectory = new File(spoolDirectory, FAILED_DIRECTORY);
+      if (!spoolFile.renameTo(new File(failedDirectory, spoolFile.getName()))) {
+        logger.error("Unable to move failed submission " + spoolFile.getPath());
+      }
+    }
+  }
+
+  @Override
+  public boolean isAutoStartup() {
+    return true;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (!enabled || executor != null) {
+      return;
+    }
+    new File(spoolDirectory, FAILED_DIRECTORY).mkdirs();
+    if (!spoolDirectory.isDirectory()) {
+      logger.error("Submission ingest disabled: unable to create spool directory "
+          + spoolDirectory.getPath());
+      return;
+    }
+
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    ScheduledThreadPoolExecutor exec = new ScheduledThreadPoolExecutor(workerCount,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "submission-ingest-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+
+    // recover the journal, oldest first
+    File[] spooled = spoolDirectory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SPOOL_SUFFIX);
+      }
+    });
+    if (spooled != null && spooled.length != 0) {
+      Arrays.sort(spooled);
+      logger.info("Recovering " + spooled.length + " queued submissions");
+      for (File f : spooled) {
+        pending.incrementAndGet();
+        exec.execute(new IngestTask(f, null, 1));
+      }
+    }
+    executor = exec;
+  }
+
+  @Override
+  public synchronized void stop() {
+    ScheduledThreadPoolExecutor exec = executor;
+    if (exec == null) {
+      return;
+    }
+    executor = null;
+    // queued and delayed submissions stay in the journal; let those in
+    // progress finish
+    int abandoned = exec.shutdownNow().size();
+    pending.addAndGet(-abandoned);
+    try {
+      exec.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void stop(Runnable callback) {
+    stop();
+    callback.run();
+  }
+
+  @Override
+  public boolean isRunning() {
+    return executor != null;
+  }
+
+  @Override
+  public int getPhase() {
+    // after the watchdog, whose calling context the workers use
+    return 20;
+  }
+}
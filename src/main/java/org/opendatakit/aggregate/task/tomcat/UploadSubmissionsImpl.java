@@ -15,50 +15,311 @@
  */
 package org.opendatakit.aggregate.task.tomcat;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.constants.common.ExternalServiceType;
 import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.task.CursorCheckpointPolicy;
+import org.opendatakit.aggregate.task.UploadBatchSizer;
 import org.opendatakit.aggregate.task.UploadSubmissions;
 import org.opendatakit.aggregate.task.UploadSubmissionsWorkerImpl;
 import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 /**
  * This is a singleton bean.  It cannot have any per-request state.
  * It uses a static inner class to encapsulate the per-request state
  * of a running background task.
  *
+ * Uploads run on a pool of workerCount threads of their own, rather than on
+ * the shared task scheduler, so the publishers of a form drain their
+ * backlogs in parallel. At most maxConcurrentPerPublisherType uploads of
+ * any one type of publisher run at once; the rest wait their turn. An
+ * upload requested while one is already queued or running for the same
+ * publisher is coalesced with it.
+ *
+ * Each upload publishes batch after batch for up to drainMillis, querying
+ * the next batch while the current one is sent, and then re-queues itself.
+ * Batch sizes adapt to each publisher's observed latency. For publishers that
+ * send one submission at a time, the cursor is written behind the upload
+ * every checkpointEverySubmissions submissions or checkpointEveryMillis
+ * (zero disables either) and at the end of each batch.
+ *
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  *
  */
-public class UploadSubmissionsImpl implements UploadSubmissions {
+public class UploadSubmissionsImpl implements UploadSubmissions, DisposableBean {
 
-    static class UploadSubmissionsRunner implements Runnable {
-        final UploadSubmissionsWorkerImpl impl;
+  private static final Logger logger = LoggerFactory.getLogger(UploadSubmissionsImpl.class);
 
-        public UploadSubmissionsRunner(FormServiceCursor fsc, boolean useLargerBatchSize, CallingContext cc) {
-            impl = new UploadSubmissionsWorkerImpl(fsc, useLargerBatchSize, cc);
-        }
+  // batches are sized to take about TARGET_BATCH_MILLIS to send
+  private static final int MIN_BATCH_SIZE = 10;
+  private static final int MAX_BATCH_SIZE = 500;
+  private static final long TARGET_BATCH_MILLIS = 10000L;
+
+  private int workerCount = 8;
+  private int maxConcurrentPerPublisherType = 4;
+  private long drainMillis = 300000L;
+  private int checkpointEverySubmissions = CursorCheckpointPolicy.DEFAULT.getEverySubmissions();
+  private long checkpointEveryMillis = CursorCheckpointPolicy.DEFAULT.getEveryMillis();
+
+  /**
+   * The uploads of one publisher. Guarded by the UploadSubmissionsImpl.
+   */
+  private static final class CursorState {
+    boolean started = false;
+    // set if another upload was requested once this one started
+    FormServiceCursor rerun = null;
+  }
+
+  /**
+   * The uploads of one type of publisher. Guarded by the
+   * UploadSubmissionsImpl.
+   */
+  private static final class PublisherTypeState {
+    int running = 0;
+    final Deque<UploadSubmissionsRunner> waiting = new ArrayDeque<UploadSubmissionsRunner>();
+  }
 
-        @Override
-        public void run() {
-            try {
-                impl.uploadAllSubmissions();
-            } catch (Exception e) {
-                e.printStackTrace();
-                // TODO: Problem - decide what to do if an exception occurs
-            }
+  // guarded by this
+  private ThreadPoolExecutor workers = null;
+  private ThreadPoolExecutor background = null;
+  private final Map<String, CursorState> cursors = new HashMap<String, CursorState>();
+  private final Map<ExternalServiceType, PublisherTypeState> publisherTypes =
+      new HashMap<ExternalServiceType, PublisherTypeState>();
+
+  private final ConcurrentHashMap<String, UploadBatchSizer> batchSizers =
+      new ConcurrentHashMap<String, UploadBatchSizer>();
+
+  class UploadSubmissionsRunner implements Runnable {
+    final FormServiceCursor fsc;
+    final boolean useLargerBatchSize;
+    final CallingContext cc;
+
+    public UploadSubmissionsRunner(FormServiceCursor fsc, boolean useLargerBatchSize, CallingContext cc) {
+      this.fsc = fsc;
+      this.useLargerBatchSize = useLargerBatchSize;
+      this.cc = cc;
+    }
+
+    @Override
+    public void run() {
+      try {
+        ThreadPoolExecutor backgroundExecutor = started(this);
+        if (backgroundExecutor == null) {
+          // the publisher was deleted before this upload started
+          return;
         }
+        UploadSubmissionsWorkerImpl impl = new UploadSubmissionsWorkerImpl(fsc, useLargerBatchSize,
+            drainMillis, backgroundExecutor, getBatchSizer(fsc.getUri()),
+            new CursorCheckpointPolicy(checkpointEverySubmissions, checkpointEveryMillis), cc);
+        impl.uploadAllSubmissions();
+      } catch (Exception e) {
+        e.printStackTrace();
+        // TODO: Problem - decide what to do if an exception occurs
+      } finally {
+        finished(this);
+      }
     }
+  }
 
   @Override
   public void createFormUploadTask(FormServiceCursor fsc, boolean onBackground, CallingContext cc)
       throws ODKExternalServiceException {
     WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
-    // use watchdog's calling context in runner...
-    UploadSubmissionsRunner ur = new UploadSubmissionsRunner(fsc, wd.getFasterWatchdogCycleEnabled(), wd.getCallingContext());
-    System.out.println("UPLOAD TASK IN TOMCAT");
-    AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(ur);
+    synchronized (this) {
+      CursorState state = cursors.get(fsc.getUri());
+      if (state != null) {
+        if (state.started) {
+          // there may be submissions the running upload has already passed over
+          state.rerun = fsc;
+        }
+        return;
+      }
+      cursors.put(fsc.getUri(), new CursorState());
+      // use watchdog's calling context in runner...
+      dispatch(new UploadSubmissionsRunner(fsc, wd.getFasterWatchdogCycleEnabled(), wd.getCallingContext()));
+    }
+  }
+
+  private UploadBatchSizer getBatchSizer(String fscUri) {
+    UploadBatchSizer sizer = batchSizers.get(fscUri);
+    if (sizer == null) {
+      UploadBatchSizer fresh = new UploadBatchSizer(MIN_BATCH_SIZE, MAX_BATCH_SIZE, TARGET_BATCH_MILLIS);
+      sizer = batchSizers.putIfAbsent(fscUri, fresh);
+      if (sizer == null) {
+        sizer = fresh;
+      }
+    }
+    return sizer;
+  }
+
+  /**
+   * Forgets the batch size of a deleted publisher and drops any upload of it
+   * that has yet to start.
+   */
+  @Override
+  public synchronized void formServiceCursorDeleted(String uriFsc) {
+    batchSizers.remove(uriFsc);
+    CursorState state = cursors.get(uriFsc);
+    if (state == null) {
+      return;
+    }
+    if (state.started) {
+      state.rerun = null;
+      return;
+    }
+    cursors.remove(uriFsc);
+    for (PublisherTypeState typeState : publisherTypes.values()) {
+      Iterator<UploadSubmissionsRunner> it = typeState.waiting.iterator();
+      while (it.hasNext()) {
+        if (it.next().fsc.getUri().equals(uriFsc)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private PublisherTypeState getPublisherTypeState(FormServiceCursor fsc) {
+    PublisherTypeState typeState = publisherTypes.get(fsc.getExternalServiceType());
+    if (typeState == null) {
+      typeState = new PublisherTypeState();
+      publisherTypes.put(fsc.getExternalServiceType(), typeState);
+    }
+    return typeState;
+  }
+
+  /**
+   * Runs the upload now if its type of publisher is under its limit, and
+   * otherwise queues it behind the other uploads of that type.
+   */
+  private synchronized void dispatch(UploadSubmissionsRunner runner) {
+    PublisherTypeState typeState = getPublisherTypeState(runner.fsc);
+    if (typeState.running >= maxConcurrentPerPublisherType) {
+      typeState.waiting.addLast(runner);
+      return;
+    }
+    ++typeState.running;
+    try {
+      getWorkers().execute(runner);
+    } catch (RejectedExecutionException e) {
+      // shutting down
+      --typeState.running;
+      cursors.remove(runner.fsc.getUri());
+      logger.warn("Upload for " + runner.fsc.getUri() + " dropped: " + e.toString());
+    }
+  }
+
+  /**
+   * @return the executor on which to prefetch batches and write cursors, or
+   *         null if the publisher has since been deleted.
+   */
+  private synchronized ThreadPoolExecutor started(UploadSubmissionsRunner runner) {
+    CursorState state = cursors.get(runner.fsc.getUri());
+    if (state == null) {
+      return null;
+    }
+    state.started = true;
+    return background;
+  }
+
+  private synchronized void finished(UploadSubmissionsRunner runner) {
+    PublisherTypeState typeState = getPublisherTypeState(runner.fsc);
+    --typeState.running;
+    UploadSubmissionsRunner next = typeState.waiting.pollFirst();
+    if (next != null) {
+      dispatch(next);
+    }
+
+    CursorState state = cursors.remove(runner.fsc.getUri());
+    if (state != null && state.rerun != null) {
+      cursors.put(runner.fsc.getUri(), new CursorState());
+      dispatch(new UploadSubmissionsRunner(state.rerun, runner.useLargerBatchSize, runner.cc));
+    }
+  }
+
+  private synchronized ThreadPoolExecutor getWorkers() {
+    if (workers == null) {
+      workers = newExecutor("upload-submissions-");
+      background = newExecutor("upload-background-");
+    }
+    return workers;
+  }
+
+  private ThreadPoolExecutor newExecutor(final String threadNamePrefix) {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    return new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, threadNamePrefix + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  @Override
+  public synchronized void destroy() {
+    if (workers != null) {
+      workers.shutdownNow();
+      background.shutdownNow();
+    }
+  }
+
+  public int getWorkerCount() {
+    return workerCount;
+  }
+
+  public void setWorkerCount(int workerCount) {
+    this.workerCount = workerCount;
+  }
+
+  public int getMaxConcurrentPerPublisherType() {
+    return maxConcurrentPerPublisherType;
+  }
+
+  public void setMaxConcurrentPerPublisherType(int maxConcurrentPerPublisherType) {
+    this.maxConcurrentPerPublisherType = maxConcurrentPerPublisherType;
+  }
+
+  public long getDrainMillis() {
+    return drainMillis;
+  }
+
+  public void setDrainMillis(long drainMillis) {
+    this.drainMillis = drainMillis;
+  }
+
+  public int getCheckpointEverySubmissions() {
+    return checkpointEverySubmissions;
+  }
+
+  public void setCheckpointEverySubmissions(int checkpointEverySubmissions) {
+    this.checkpointEverySubmissions = checkpointEverySubmissions;
+  }
+
+  public long getCheckpointEveryMillis() {
+    return checkpointEveryMillis;
+  }
+
+  public void setCheckpointEveryMillis(long checkpointEveryMillis) {
+    this.checkpointEveryMillis = checkpointEveryMillis;
   }
 }
@@ -13,7 +13,13 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -28,6 +34,7 @@ import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.Direction;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.User;
@@ -58,6 +65,118 @@ public class BinaryContentManipulator {
     FILE_UNCHANGED, NEW_FILE_VERSION, COMPLETELY_NEW_FILE
   }
 
+  /**
+   * Binary content that is read from a stream rather than held in a byte
+   * array, e.g., an uploaded file that has been spilled to disk. It is read
+   * twice: once to compute its md5 hash and once to store it.
+   */
+  public interface ContentSource {
+
+    /**
+     * @return the number of bytes openStream() will return.
+     */
+    long getContentLength();
+
+    /**
+     * @return a new stream positioned at the start of the content. The caller
+     *         closes it.
+     * @throws IOException
+     */
+    InputStream openStream() throws IOException;
+  }
+
+  private static final class ByteArrayContentSource implements ContentSource {
+    private final byte[] byteArray;
+
+    ByteArrayContentSource(byte[] byteArray) {
+      this.byteArray = byteArray;
+    }
+
+    @Override
+    public long getContentLength() {
+      return byteArray.length;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new ByteArrayInputStream(byteArray);
+    }
+  }
+
+  /**
+   * A stored blob, read from the datastore one part at a time as the stream
+   * is consumed. Each stream returned by openStream() re-reads the parts.
+   */
+  private static final class BlobPartsContentSource implements ContentSource {
+    private final long contentLength;
+    private final List<String> subAuris;
+    private final RefBlob blbRelation;
+    private final Datastore ds;
+    private final User user;
+
+    BlobPartsContentSource(long contentLength, List<String> subAuris, RefBlob blbRelation,
+        Datastore ds, User user) {
+      this.contentLength = contentLength;
+      this.subAuris = subAuris;
+      this.blbRelation = blbRelation;
+      this.ds = ds;
+      this.user = user;
+    }
+
+    @Override
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new InputStream() {
+        private int nextPart = 0;
+        private byte[] part = null;
+        private int offset = 0;
+
+        private boolean fill() throws IOException {
+          while (part == null || offset == part.length) {
+            if (nextPart == subAuris.size()) {
+              return false;
+            }
+            try {
+              RefBlob eBlob = ds.getEntity(blbRelation, subAuris.get(nextPart), user);
+              part = eBlob.getValue();
+            } catch (ODKDatastoreException e) {
+              throw new IOException("Unable to read blob part " + subAuris.get(nextPart), e);
+            }
+            ++nextPart;
+            offset = 0;
+          }
+          return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+          if (!fill()) {
+            return -1;
+          }
+          return part[offset++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (len == 0) {
+            return 0;
+          }
+          if (!fill()) {
+            return -1;
+          }
+          int n = Math.min(len, part.length - offset);
+          System.arraycopy(part, offset, b, off, n);
+          offset += n;
+          return n;
+        }
+      };
+    }
+  }
+
   private final String parentKey;
   private final String topLevelKey;
 
@@ -95,18 +214,52 @@ public class BinaryContentManipulator {
      */
     public BlobManipulator(byte[] blob, String uriVersionedContent, BinaryContentRefBlob bcbRef,
         RefBlob ref, String topLevelKey, CallingContext cc) throws ODKDatastoreException {
+      this(new ByteArrayInputStream(blob), blob.length, uriVersionedContent, bcbRef, ref,
+          topLevelKey, cc);
+    }
+
+    /**
+     * Construct an blob entity from the content of the stream and persist it
+     * into the data store. Only one part of the blob is held in memory at a
+     * time.
+     *
+     * @param in
+     * @param contentLength
+     *          the number of bytes to read from the stream.
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param topLevelKey
+     * @param cc
+     *          - the CallingContext of this request
+     * @throws ODKDatastoreException
+     */
+    public BlobManipulator(InputStream in, long contentLength, String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, RefBlob ref, String topLevelKey, CallingContext cc)
+        throws ODKDatastoreException {
 
-      // loop to create the VBCRB and RB entries for each part of the
-      // larger blob
       long blobLimit = ref.value.getMaxCharLen();
       long part = 1L;
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
-      for (long index = 0; index < blob.length; index = index + blobLimit) {
+      for (long index = 0; index < contentLength; index = index + blobLimit) {
         long endCopy = index + blobLimit;
-        if (endCopy > blob.length)
-          endCopy = blob.length;
-        byte[] partialBlob = Arrays.copyOfRange(blob, (int) index, (int) endCopy);
+        if (endCopy > contentLength)
+          endCopy = contentLength;
+        byte[] partialBlob = new byte[(int) (endCopy - index)];
+        try {
+          int offset = 0;
+          while (offset < partialBlob.length) {
+            int len = in.read(partialBlob, offset, partialBlob.length - offset);
+            if (len == -1) {
+              throw new ODKDatastoreException("Binary content ended after " + (index + offset)
+                  + " of " + contentLength + " bytes");
+            }
+            offset += len;
+          }
+        } catch (IOException e) {
+          throw new ODKDatastoreException("Unable to read binary content", e);
+        }
         RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
         eBlob.setTopLevelAuri(topLevelKey);
         eBlob.setValue(partialBlob);
@@ -127,12 +280,42 @@ public class BinaryContentManipulator {
 
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
+      dbBcbEntityList.addAll(queryParts(uriVersionedContent, bcbRef, cc));
+
+      // and gather the blob parts themselves...
+      List<String> subAuris = new ArrayList<String>();
+      for (BinaryContentRefBlob b : dbBcbEntityList) {
+        subAuris.add(b.getSubAuri());
+      }
+      Map<String, RefBlob> blobParts = new HashMap<String, RefBlob>();
+      for (RefBlob eBlob : ds.getEntities(ref, subAuris, user)) {
+        blobParts.put(eBlob.getUri(), eBlob);
+      }
+      for (BinaryContentRefBlob b : dbBcbEntityList) {
+        RefBlob eBlob = blobParts.get(b.getSubAuri());
+        if (eBlob == null) {
+          throw new ODKEntityNotFoundException("Missing blob part! " + ref.getSchemaName() + "."
+              + ref.getTableName() + " key: " + b.getSubAuri());
+        }
+        dbRefBlobList.add(eBlob);
+      }
+    }
+
+    /**
+     * @return the ordered list of references to the parts of the blob.
+     * @throws ODKDatastoreException
+     */
+    static List<BinaryContentRefBlob> queryParts(String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, CallingContext cc) throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
       // gather the ordered list of parts...
       Query q = ds.createQuery(bcbRef, "BinaryContentManipulator.BlobManipulator.constructor", user);
       q.addFilter(bcbRef.domAuri, FilterOperation.EQUAL, uriVersionedContent);
       q.addSort(bcbRef.domAuri, Direction.ASCENDING); // gae optimization
       q.addSort(bcbRef.part, Direction.ASCENDING);
       List<? extends CommonFieldsBase> bcbList = q.executeQuery();
+      List<BinaryContentRefBlob> parts = new ArrayList<BinaryContentRefBlob>();
       long expectedPart = 1L;
       for (CommonFieldsBase cb : bcbList) {
         BinaryContentRefBlob bcref = (BinaryContentRefBlob) cb;
@@ -144,17 +327,9 @@ public class BinaryContentManipulator {
           throw new ODKEnumeratedElementException(errString);
         }
         ++expectedPart;
-        dbBcbEntityList.add(bcref);
-      }
-
-      // and gather the blob parts themselves...
-      for (BinaryContentRefBlob b : dbBcbEntityList) {
-        RefBlob eBlob = ds.getEntity(ref, b.getSubAuri(), user);
-        if (eBlob == null) {
-          throw new IllegalStateException("Missing blob part!");
-        }
-        dbRefBlobList.add(eBlob);
+        parts.add(bcref);
       }
+      return parts;
     }
 
     public String getTopLevelAuri() {
@@ -239,6 +414,8 @@ public class BinaryContentManipulator {
   }
 
   public int getAttachmentCount(CallingContext cc) throws ODKDatastoreException {
+    // not a count() query: updateAttachments() verifies that the ordinals are
+    // consistent, and the count is the highest ordinal.
     updateAttachments(cc);
     return internalGetAttachmentCount();
   }
@@ -358,6 +535,33 @@ public class BinaryContentManipulator {
     return blbManipulator.getBlob();
   }
 
+  /**
+   * Unlike getBlob(), does not read the content itself; the parts are read as
+   * the returned source's streams are consumed.
+   *
+   * @param ordinal
+   * @param cc
+   * @return the content of the attachment, or null if it has none.
+   * @throws ODKDatastoreException
+   */
+  public ContentSource getContentSource(int ordinal, CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    if (b.getContentHash() == null) {
+      return null;
+    }
+    List<String> subAuris = new ArrayList<String>();
+    for (BinaryContentRefBlob ref : BlobManipulator.queryParts(b.getUri(), vrefRelation, cc)) {
+      subAuris.add(ref.getSubAuri());
+    }
+    return new BlobPartsContentSource(b.getContentLength(), subAuris, blbRelation,
+        cc.getDatastore(), cc.getCurrentUser());
+  }
+
   /**
    * Atomically rename the given source file path to the destination path.
    * Will fail if the destination path already exists.
@@ -428,28 +632,37 @@ public class BinaryContentManipulator {
   public BinaryContentManipulator.BlobSubmissionOutcome setValueFromByteArray(byte[] byteArray,
       String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
       throws ODKDatastoreException {
+    return setValueFromContentSource(
+        (byteArray == null) ? null : new ByteArrayContentSource(byteArray), contentType,
+        unrootedFilePath, overwriteOK, cc);
+  }
 
-    @SuppressWarnings("unused")
-  Long contentLength = (byteArray == null) ? null : Long.valueOf(byteArray.length);
-    // search for a matching entry for unrootedFilePath
-    BinaryContent matchedBc = null;
-    String currentContentHash = null;
+  /**
+   * As setValueFromByteArray, but streams the content into the datastore
+   * rather than requiring it to be held in memory.
+   *
+   * @param source
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK -- if the file exists and is different, must be true to overwrite existing value.
+   * @param cc
+   * @return COMPLETELY_NEW_FILE on successful save; FILE_UNCHANGED on hash
+   *         equivalence; NEW_FILE_VERSION on updating existing file (save not allowed unless overwriteOK).
+   * @throws ODKDatastoreException
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromContentSource(
+      ContentSource source, String contentType, String unrootedFilePath, boolean overwriteOK,
+      CallingContext cc) throws ODKDatastoreException {
 
+    // search for a matching entry for unrootedFilePath
     updateAttachments(cc);
-    for (BinaryContent bc : attachments.values()) {
-      String bcFilePath = bc.getUnrootedFilePath();
-      if ((bcFilePath == null) ? (unrootedFilePath == null)
-          : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
-        matchedBc = bc;
-        currentContentHash = matchedBc.getContentHash();
-        break;
-      }
-    }
+    BinaryContent matchedBc = findAttachment(unrootedFilePath);
+    String currentContentHash = (matchedBc == null) ? null : matchedBc.getContentHash();
 
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
 
-    if (byteArray == null && contentType == null) {
+    if (source == null && contentType == null) {
       // adding a file entry without any actual file...
 
       if (matchedBc == null) {
@@ -469,10 +682,10 @@ public class BinaryContentManipulator {
         // record already exists (and it might have file data, too)...
         return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
       }
-    } else if (byteArray != null && contentType != null) {
+    } else if (source != null && contentType != null) {
       // adding a file entry with an actual file...
 
-      String md5Hash = CommonFieldsBase.newMD5HashUri(byteArray);
+      String md5Hash = computeContentHash(source);
 
       if (matchedBc == null || currentContentHash == null) {
         // either
@@ -500,7 +713,7 @@ public class BinaryContentManipulator {
 
         // Step (1)
         matchedBc.setContentType(contentType);
-        matchedBc.setContentLength(Long.valueOf(byteArray.length));
+        matchedBc.setContentLength(Long.valueOf(source.getContentLength()));
         ds.putEntity(matchedBc, user);
 
         if (newBc) {
@@ -517,9 +730,7 @@ public class BinaryContentManipulator {
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistContent(source, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -542,7 +753,7 @@ public class BinaryContentManipulator {
         // Step (1)
         matchedBc.setContentHash(null);
         matchedBc.setContentType(contentType);
-        matchedBc.setContentLength(Long.valueOf(byteArray.length));
+        matchedBc.setContentLength(Long.valueOf(source.getContentLength()));
         ds.putEntity(matchedBc, user);
 
         // Step (2)
@@ -553,9 +764,7 @@ public class BinaryContentManipulator {
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistContent(source, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -568,6 +777,305 @@ public class BinaryContentManipulator {
     }
   }
 
+  private BinaryContent findAttachment(String unrootedFilePath) {
+    for (BinaryContent bc : attachments.values()) {
+      String bcFilePath = bc.getUnrootedFilePath();
+      if ((bcFilePath == null) ? (unrootedFilePath == null)
+          : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
+        return bc;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Content that is written into the datastore as it is produced, one blob
+   * part at a time, so that it is never held in memory. Obtained from
+   * newContentOutputStream() or resumeContentOutputStream().
+   *
+   * Each part is persisted once it fills; checkpoint() also persists a
+   * partly-filled part, after which everything written so far survives a
+   * crash and can be resumed. The content has no content hash, and so is
+   * incomplete, until commit() succeeds. Write failures are also thrown from
+   * commit(), as writers such as PrintWriter swallow IOExceptions.
+   */
+  public final class ContentOutputStream extends OutputStream {
+    private final BinaryContent bc;
+    private final CallingContext cc;
+    private final MessageDigest md;
+    private final byte[] buffer;
+    private int buffered = 0;
+    private long partCount;
+    private long persistedLength;
+    private ODKDatastoreException failure = null;
+    private boolean committed = false;
+
+    private ContentOutputStream(BinaryContent bc, long partCount, long persistedLength,
+        MessageDigest md, CallingContext cc) {
+      this.bc = bc;
+      this.partCount = partCount;
+      this.persistedLength = persistedLength;
+      this.md = md;
+      this.cc = cc;
+      this.buffer = new byte[blbRelation.value.getMaxCharLen().intValue()];
+    }
+
+    /**
+     * @return the number of parts persisted so far.
+     */
+    public long getPartCount() {
+      return partCount;
+    }
+
+    /**
+     * @return the number of bytes persisted so far.
+     */
+    public long getPersistedLength() {
+      return persistedLength;
+    }
+
+    /**
+     * Refuses further writes once the content is committed, or once a part
+     * could not be persisted (its bytes are still in the buffer).
+     */
+    private void ensureWritable() throws IOException {
+      if (committed) {
+        throw new IOException("content already committed");
+      }
+      if (failure != null || buffered == buffer.length) {
+        throw new IOException("Unable to persist content part", failure);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      ensureWritable();
+      buffer[buffered++] = (byte) b;
+      if (buffered == buffer.length) {
+        writePart();
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensureWritable();
+      while (len > 0) {
+        int n = Math.min(len, buffer.length - buffered);
+        System.arraycopy(b, off, buffer, buffered, n);
+        buffered += n;
+        off += n;
+        len -= n;
+        if (buffered == buffer.length) {
+          writePart();
+        }
+      }
+    }
+
+    private void writePart() throws IOException {
+      try {
+        persistPart();
+      } catch (ODKDatastoreException e) {
+        failure = e;
+        throw new IOException("Unable to persist content part", e);
+      }
+    }
+
+    private void persistPart() throws ODKDatastoreException {
+      if (buffered == 0) {
+        return;
+      }
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      RefBlob eBlob = ds.createEntityUsingRelation(blbRelation, user);
+      eBlob.setTopLevelAuri(topLevelKey);
+      eBlob.setValue(Arrays.copyOf(buffer, buffered));
+      BinaryContentRefBlob bcb = ds.createEntityUsingRelation(vrefRelation, user);
+      bcb.setTopLevelAuri(topLevelKey);
+      bcb.setDomAuri(bc.getUri());
+      bcb.setSubAuri(eBlob.getUri());
+      bcb.setPart(partCount + 1L);
+      ds.putEntity(eBlob, user);
+      ds.putEntity(bcb, user);
+      md.update(buffer, 0, buffered);
+      ++partCount;
+      persistedLength += buffered;
+      buffered = 0;
+    }
+
+    private void throwFailure() throws ODKDatastoreException {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    /**
+     * Persists everything written so far.
+     *
+     * @return the number of parts persisted, from which the content can be
+     *         resumed.
+     * @throws ODKDatastoreException
+     */
+    public long checkpoint() throws ODKDatastoreException {
+      throwFailure();
+      persistPart();
+      return partCount;
+    }
+
+    /**
+     * Persists the remaining content and marks it complete.
+     *
+     * @throws ODKDatastoreException
+     */
+    public void commit() throws ODKDatastoreException {
+      throwFailure();
+      persistPart();
+      bc.setContentLength(persistedLength);
+      bc.setContentHash(CommonFieldsBase.newMD5HashUri(md));
+      cc.getDatastore().putEntity(bc, cc.getCurrentUser());
+      committed = true;
+    }
+
+    /**
+     * Does not persist anything; see checkpoint() and commit().
+     */
+    @Override
+    public void close() {
+    }
+  }
+
+  private static MessageDigest newMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
+  /**
+   * Starts streaming new content for unrootedFilePath, replacing any content
+   * it already has.
+   *
+   * @param contentType
+   * @param unrootedFilePath
+   * @param cc
+   * @return the stream to which to write the content.
+   * @throws ODKDatastoreException
+   */
+  public ContentOutputStream newContentOutputStream(String contentType, String unrootedFilePath,
+      CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent matchedBc = findAttachment(unrootedFilePath);
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    boolean newBc = (matchedBc == null);
+    if (newBc) {
+      matchedBc = (BinaryContent) ds.createEntityUsingRelation(ctntRelation, user);
+      matchedBc.setTopLevelAuri(topLevelKey);
+      matchedBc.setParentAuri(parentKey);
+      matchedBc.setOrdinalNumber(internalGetAttachmentCount() + 1L);
+      matchedBc.setUnrootedFilePath(unrootedFilePath);
+    }
+    // intermediate update state (null md5 hash) until committed
+    matchedBc.setContentHash(null);
+    matchedBc.setContentType(contentType);
+    matchedBc.setContentLength(null);
+    ds.putEntity(matchedBc, user);
+    if (newBc) {
+      attachments.put(matchedBc.getOrdinalNumber(), matchedBc);
+    }
+
+    // delete any old data
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    addPartKeysForDeletion(matchedBc.getUri(), keyList, cc);
+    DeleteHelper.deleteEntities(keyList, cc);
+
+    return new ContentOutputStream(matchedBc, 0L, 0L, newMD5Digest(), cc);
+  }
+
+  /**
+   * Resumes streaming the incomplete content of unrootedFilePath after its
+   * first partCount parts (as returned by ContentOutputStream.checkpoint()).
+   * Any later parts are discarded.
+   *
+   * @param unrootedFilePath
+   * @param partCount
+   * @param cc
+   * @return the stream to which to write the rest of the content.
+   * @throws ODKDatastoreException
+   */
+  public ContentOutputStream resumeContentOutputStream(String unrootedFilePath, long partCount,
+      CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent matchedBc = findAttachment(unrootedFilePath);
+    if (matchedBc == null) {
+      throw new ODKEntityNotFoundException("No content to resume for " + unrootedFilePath);
+    }
+    if (matchedBc.getContentHash() != null) {
+      throw new IllegalStateException("Content is already complete for " + unrootedFilePath);
+    }
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    List<BinaryContentRefBlob> parts = BlobManipulator.queryParts(matchedBc.getUri(),
+        vrefRelation, cc);
+    if (parts.size() < partCount) {
+      throw new ODKEntityNotFoundException("Only " + parts.size() + " of " + partCount
+          + " parts persisted for " + unrootedFilePath);
+    }
+
+    // re-read the parts being kept to restore the md5 hash state
+    MessageDigest md = newMD5Digest();
+    long persistedLength = 0L;
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    for (BinaryContentRefBlob part : parts) {
+      if (part.getPart() <= partCount) {
+        byte[] value = ds.getEntity(blbRelation, part.getSubAuri(), user).getValue();
+        md.update(value);
+        persistedLength += value.length;
+      } else {
+        keyList.add(new EntityKey(blbRelation, part.getSubAuri()));
+        keyList.add(part.getEntityKey());
+      }
+    }
+    DeleteHelper.deleteEntities(keyList, cc);
+
+    return new ContentOutputStream(matchedBc, partCount, persistedLength, md, cc);
+  }
+
+  private static String computeContentHash(ContentSource source) throws ODKDatastoreException {
+    try {
+      InputStream in = source.openStream();
+      try {
+        return CommonFieldsBase.newMD5HashUri(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new ODKDatastoreException("Unable to read binary content", e);
+    }
+  }
+
+  private void persistContent(ContentSource source, String uriVersionedContent,
+      CallingContext cc) throws ODKDatastoreException {
+    InputStream in;
+    try {
+      in = source.openStream();
+    } catch (IOException e) {
+      throw new ODKDatastoreException("Unable to read binary content", e);
+    }
+    try {
+      new BlobManipulator(in, source.getContentLength(), uriVersionedContent, vrefRelation,
+          blbRelation, topLevelKey, cc);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
   public synchronized void updateAttachments(CallingContext cc) throws ODKDatastoreException {
     if ( refreshBeforeUse ) {
       // clear our mutable state.
@@ -681,14 +1189,24 @@ public class BinaryContentManipulator {
 
     updateAttachments(cc);
     for (BinaryContent bc : attachments.values()) {
-      if (bc.getContentHash() != null) {
-        BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, cc);
-        b.recursivelyAddEntityKeysForDeletion(keyList);
-      }
+      // incomplete (e.g., partly streamed) content may also have parts
+      addPartKeysForDeletion(bc.getUri(), keyList, cc);
       keyList.add(bc.getEntityKey());
     }
   }
 
+  /**
+   * Adds the keys of the parts of the content, without reading the parts
+   * themselves.
+   */
+  private void addPartKeysForDeletion(String uriVersionedContent, List<EntityKey> keyList,
+      CallingContext cc) throws ODKDatastoreException {
+    for (BinaryContentRefBlob part : BlobManipulator.queryParts(uriVersionedContent, vrefRelation, cc)) {
+      keyList.add(new EntityKey(blbRelation, part.getSubAuri()));
+      keyList.add(part.getEntityKey());
+    }
+  }
+
   /**
    * @see java.lang.Object#hashCode()
    */
@@ -13,6 +13,8 @@
  */
 package org.opendatakit.common.persistence;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
@@ -472,6 +474,46 @@ public abstract class CommonFieldsBase {
     }
   }
 
+  /**
+   * Computes the md5 hash of the remaining content of the stream without
+   * holding it in memory. The stream is not closed.
+   *
+   * @param in
+   * @return the md5 hash uri of the content.
+   * @throws IOException
+   */
+  public final static String newMD5HashUri(InputStream in) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        md.update(buffer, 0, len);
+      }
+      return newMD5HashUri(md);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
+  /**
+   * Completes an md5 digest of content that was fed to it incrementally. The
+   * digest is reset.
+   *
+   * @param md
+   *          an MD5 MessageDigest
+   * @return the md5 hash uri of the content.
+   */
+  public final static String newMD5HashUri(MessageDigest md) {
+    byte[] messageDigest = md.digest();
+
+    BigInteger number = new BigInteger(1, messageDigest);
+    String md5 = number.toString(16);
+    while (md5.length() < 32)
+      md5 = "0" + md5;
+    return "md5:" + md5;
+  }
+
   /**********************************************************************************
    **********************************************************************************
    **********************************************************************************
@@ -529,6 +571,42 @@ public abstract class CommonFieldsBase {
     this.opaquePersistenceData = opaquePersistenceData;
   }
 
+  /**
+   * Copy the field values and database-origin flag of a row of an identically
+   * structured relation into this row. Date and binary values are duplicated
+   * so the two rows can be modified independently. The opaque persistence
+   * data is not copied; the persistence layers recreate it as needed. This
+   * should only be called from within the persistence layer implementation.
+   *
+   * @param ref
+   *          row whose values are copied.
+   * @throws IllegalArgumentException
+   *           if ref is not from a relation with the same table and columns.
+   */
+  public final void copyFieldValuesFrom(CommonFieldsBase ref) {
+    if (!sameTable(ref) || fieldList.size() != ref.fieldList.size()) {
+      throw new IllegalArgumentException("row is not from the same relation");
+    }
+    fieldValueMap.clear();
+    for (int i = 0; i < fieldList.size(); ++i) {
+      DataField f = fieldList.get(i);
+      DataField refField = ref.fieldList.get(i);
+      if (!f.getName().equals(refField.getName())) {
+        throw new IllegalArgumentException("row is not from the same relation");
+      }
+      Object o = ref.fieldValueMap.get(refField);
+      if (o instanceof Date) {
+        o = new Date(((Date) o).getTime());
+      } else if (o instanceof byte[]) {
+        o = ((byte[]) o).clone();
+      }
+      if (o != null) {
+        fieldValueMap.put(f, o);
+      }
+    }
+    fromDatabase = ref.fromDatabase;
+  }
+
   public final boolean isNull(DataField f) {
     return (fieldValueMap.get(f) == null);
   }
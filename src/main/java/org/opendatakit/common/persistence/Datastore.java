@@ -136,6 +136,25 @@ public interface Datastore {
     public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user)
         throws ODKOverQuotaException, ODKEntityNotFoundException, ODKDatastoreException;
 
+    /**
+     * Returns the entities corresponding to the given relation and uris.
+     * The objects returned are of the same class as the relation (the 
+     * relation acts as a prototype). Uris that do not correspond to a
+     * stored entity are silently omitted.
+     * 
+     * @param relation -  the prototype relation to be fetched.
+     * @param uris the primary keys of the desired Entities
+     * @param user non-null user responsible for this request.
+     * 
+     * @return the Entities found, in no particular order
+     * @throws ODKDatastoreException 
+     *             if there is an unspecified error in the Datastore layer
+     * @throws ODKOverQuotaException
+     *             if there is a quota limit violation
+     */
+    public <T extends CommonFieldsBase> List<T> getEntities(T relation, Collection<String> uris,
+        User user) throws ODKOverQuotaException, ODKDatastoreException;
+
     /**
      * Returns a new Query -- possibly for a record with a specific primary key.
      * 
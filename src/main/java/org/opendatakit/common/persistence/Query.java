@@ -15,6 +15,7 @@ package org.opendatakit.common.persistence;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -51,6 +52,20 @@ public interface Query {
    LESS_THAN_OR_EQUAL;
   };
   
+  /**
+   * Receives the rows of a query one at a time.
+   *
+   * @see Query#forEach(RowCallback, int)
+   */
+  public interface RowCallback {
+    /**
+     * @param row the next row of the result set
+     * @return true to continue the scan, false to stop it
+     * @throws ODKDatastoreException to abort the scan; it is rethrown by forEach
+     */
+    public boolean processRow(CommonFieldsBase row) throws ODKDatastoreException;
+  }
+
   /**
    * Adds a sort to the query using the given attribute name and sort direction.
    * 
@@ -86,6 +101,25 @@ public interface Query {
    */
   public List<? extends CommonFieldsBase> executeQuery() throws ODKDatastoreException;
 
+  /**
+   * Passes each entity in the result of the query, in sort order, to the callback.
+   * Unlike executeQuery(), the full result is never held in memory: the relational
+   * engines read a single forward-only result set fetchSize rows at a time, and the
+   * GAE engine pages through the query fetchSize rows at a time.
+   * 
+   * A scan that must be resumed after an interruption (e.g., an export) should
+   * page with executeQuery(QueryResumePoint, int) instead: forEach offers no
+   * position that can be checkpointed.
+   * 
+   * @param callback -- receives each row; may stop the scan early
+   * @param fetchSize -- rows to fetch per round trip (0 for the engine default);
+   *              MySQL always streams rows one at a time and ignores it
+   * @throws ODKDatastoreException if there was a problem executing the Query
+   *              or the callback threw one
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public void forEach(RowCallback callback, int fetchSize) throws ODKDatastoreException, ODKOverQuotaException;
+
   /**
    * Returns a list of entities which are the results of executing the query.
    * 
@@ -121,4 +155,51 @@ public interface Query {
    * @throws ODKOverQuotaException if the usage quota was exceeded
    */
   public List<?> executeDistinctValueForDataField(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Returns the number of records matching the filters of this query.
+   * Sort criteria are ignored.
+   * 
+   * @return the count of matching records
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public long count() throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Returns the smallest non-null value of the given field across the records
+   * matching the filters of this query, or null if there are none. The value is
+   * of the same type as would be held in the field of a fetched record (e.g.,
+   * String, Long, WrappedBigDecimal, Boolean, Date). Binary fields are not supported.
+   * 
+   * @param dataField
+   * @return the minimum value or null
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public Object min(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Returns the largest non-null value of the given field across the records
+   * matching the filters of this query, or null if there are none.
+   * 
+   * @see #min(DataField)
+   * @param dataField
+   * @return the maximum value or null
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public Object max(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Returns, for each distinct value of the given field across the records
+   * matching the filters of this query, the number of records having that
+   * value. Records with a null value are counted under the null key.
+   * 
+   * @param dataField
+   * @return map of field value to record count
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public Map<Object, Long> countByValue(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException;
 }
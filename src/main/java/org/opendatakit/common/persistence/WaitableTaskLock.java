@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+
+/**
+ * A TaskLock that can block until the lock becomes available, rather than
+ * requiring the caller to poll obtainLock() with a sleep between attempts.
+ * The lock templates use this form when the datastore provides it.
+ */
+public interface WaitableTaskLock extends TaskLock {
+
+  /**
+   * Obtains the lock, waiting up to maxWaitMillis for its current holder to
+   * release it or for its lease to expire.
+   *
+   * @param lockId
+   * @param formId
+   * @param taskType
+   * @param maxWaitMillis
+   * @return true if the lock was obtained.
+   * @throws ODKTaskLockException
+   */
+  boolean obtainLock(String lockId, String formId, ITaskLockType taskType, long maxWaitMillis)
+      throws ODKTaskLockException;
+
+}
@@ -0,0 +1,769 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.security.User;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Datastore decorator that caches rows of read-mostly relations.
+ *
+ * Only the relations whose table names are listed in cachedTableNames are
+ * cached; everything else passes straight through to the wrapped datastore.
+ * For those relations, getEntity, getEntities and the unbounded
+ * Query.executeQuery() are served from:
+ * <ul>
+ * <li>a request-scoped identity map, obtained through
+ * {@link #newRequestScope(Datastore)} and held by the CallingContext of a
+ * single request. Repeated reads within the request return the same row
+ * objects.</li>
+ * <li>a shared LRU cache bounded by maxEntries whose entries expire after
+ * timeToLiveMillis. Rows are copied into and out of this cache, so callers
+ * never share row objects across requests. Setting either bound to zero
+ * disables the shared cache.</li>
+ * </ul>
+ * Any write through this datastore to a cached relation (put, delete, batch
+ * alter or drop) invalidates everything cached for that relation. Writes made
+ * by other servers are not seen until the shared entries expire, so only
+ * relations that can tolerate that staleness should be listed.
+ *
+ * Thread-safe. Request scopes are not; each is confined to its request.
+ */
+public class CachingDatastore implements Datastore, InitializingBean {
+
+  private static final String K_ENTITY = "E|";
+  private static final String K_QUERY = "Q|";
+  private static final String K_SEP = "|";
+
+  private static final int DEFAULT_MAX_ENTRIES = 2000;
+  private static final long DEFAULT_TIME_TO_LIVE_MILLIS = 60000L;
+
+  private static final class SharedEntry {
+    final long generation;
+    final long expiresAt;
+    final List<CommonFieldsBase> rows;
+
+    SharedEntry(long generation, long expiresAt, List<CommonFieldsBase> rows) {
+      this.generation = generation;
+      this.expiresAt = expiresAt;
+      this.rows = rows;
+    }
+  }
+
+  private Datastore datastore = null;
+  private Set<String> cachedTableNames = Collections.emptySet();
+  private int maxEntries = DEFAULT_MAX_ENTRIES;
+  private long timeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+  private LocalTaskLockManager localTaskLocks = null;
+
+  /**
+   * Bumped after every write to a table. Shared entries remember the
+   * generation that was current before they were read from the datastore and
+   * are ignored once it changes.
+   */
+  private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+  private Map<String, SharedEntry> sharedCache = null;
+
+  public CachingDatastore() {
+  }
+
+  public Datastore getDatastore() {
+    return datastore;
+  }
+
+  public void setDatastore(Datastore datastore) {
+    this.datastore = datastore;
+  }
+
+  public void setCachedTableNames(List<String> cachedTableNames) {
+    this.cachedTableNames = new HashSet<String>(cachedTableNames);
+  }
+
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  public void setTimeToLiveMillis(long timeToLiveMillis) {
+    this.timeToLiveMillis = timeToLiveMillis;
+  }
+
+  /**
+   * @param localTaskLocks
+   *          if set, task locks first take a lease from this in-memory lock
+   *          table; see {@link LocalTaskLockManager}.
+   */
+  public void setLocalTaskLocks(LocalTaskLockManager localTaskLocks) {
+    this.localTaskLocks = localTaskLocks;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (datastore == null) {
+      throw new IllegalStateException("datastore property must be set!");
+    }
+    if (maxEntries > 0 && timeToLiveMillis > 0L) {
+      final int limit = maxEntries;
+      sharedCache = Collections.synchronizedMap(new LinkedHashMap<String, SharedEntry>(16, 0.75f,
+          true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SharedEntry> eldest) {
+          return size() > limit;
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the datastore to hold in a newly constructed CallingContext. If
+   * the configured datastore is a CachingDatastore (or a request scope of
+   * one), this is a fresh request scope with an empty identity map; otherwise
+   * it is the datastore itself.
+   *
+   * @param datastore
+   *          the configured datastore bean or the datastore of the context
+   *          being copied.
+   * @return the datastore for the new context.
+   */
+  public static Datastore newRequestScope(Datastore datastore) {
+    if (datastore instanceof CachingDatastore) {
+      return ((CachingDatastore) datastore).new RequestScope();
+    } else if (datastore instanceof RequestScope) {
+      return ((RequestScope) datastore).getCachingDatastore().new RequestScope();
+    }
+    return datastore;
+  }
+
+  private static String tableKey(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
+  }
+
+  private boolean isCached(CommonFieldsBase relation) {
+    return cachedTableNames.contains(relation.getTableName());
+  }
+
+  private long currentGeneration(String tableKey) {
+    AtomicLong g = generations.get(tableKey);
+    if (g == null) {
+      AtomicLong prior = generations.putIfAbsent(tableKey, g = new AtomicLong());
+      if (prior != null) {
+        g = prior;
+      }
+    }
+    return g.get();
+  }
+
+  private void invalidate(CommonFieldsBase relation) {
+    String tableKey = tableKey(relation);
+    AtomicLong g = generations.get(tableKey);
+    if (g != null) {
+      g.incrementAndGet();
+    }
+  }
+
+  private static boolean sameColumns(CommonFieldsBase relation, CommonFieldsBase row) {
+    List<DataField> a = relation.getFieldList();
+    List<DataField> b = row.getFieldList();
+    if (!relation.sameTable(row) || a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); ++i) {
+      if (!a.get(i).getName().equals(b.get(i).getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends CommonFieldsBase> T copyRow(T relation, CommonFieldsBase row, User user) {
+    T copy = (T) relation.getEmptyRow(user);
+    copy.copyFieldValuesFrom(row);
+    return copy;
+  }
+
+  private static <T extends CommonFieldsBase> List<CommonFieldsBase> copyRows(T relation,
+      List<? extends CommonFieldsBase> rows, User user) {
+    List<CommonFieldsBase> copies = new ArrayList<CommonFieldsBase>(rows.size());
+    for (CommonFieldsBase row : rows) {
+      copies.add(copyRow(relation, row, user));
+    }
+    return copies;
+  }
+
+  /**
+   * @return copies of the cached rows, or null if nothing usable is cached.
+   */
+  private <T extends CommonFieldsBase> List<CommonFieldsBase> sharedGet(String key, T relation,
+      long generation, User user) {
+    if (sharedCache == null) {
+      return null;
+    }
+    SharedEntry e = sharedCache.get(key);
+    if (e == null) {
+      return null;
+    }
+    if (e.generation != generation || e.expiresAt < System.currentTimeMillis()) {
+      sharedCache.remove(key);
+      return null;
+    }
+    for (CommonFieldsBase row : e.rows) {
+      if (!sameColumns(relation, row)) {
+        sharedCache.remove(key);
+        return null;
+      }
+    }
+    return copyRows(relation, e.rows, user);
+  }
+
+  private <T extends CommonFieldsBase> void sharedPut(String key, T relation, long generation,
+      List<? extends CommonFieldsBase> rows, User user) {
+    if (sharedCache == null) {
+      return;
+    }
+    sharedCache.put(key, new SharedEntry(generation, System.currentTimeMillis() + timeToLiveMillis,
+        copyRows(relation, rows, user)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T extends CommonFieldsBase> T cachedGetEntity(T relation, String uri, User user,
+      RequestScope scope) throws ODKOverQuotaException, ODKEntityNotFoundException,
+      ODKDatastoreException {
+    String tableKey = tableKey(relation);
+    String key = K_ENTITY + tableKey + K_SEP + uri;
+    if (scope != null) {
+      Object o = scope.get(tableKey, key);
+      if (o != null) {
+        return (T) o;
+      }
+    }
+    T row;
+    long generation = currentGeneration(tableKey);
+    List<CommonFieldsBase> cached = sharedGet(key, relation, generation, user);
+    if (cached != null) {
+      row = (T) cached.get(0);
+    } else {
+      row = datastore.getEntity(relation, uri, user);
+      sharedPut(key, relation, generation, Collections.singletonList(row), user);
+    }
+    if (scope != null) {
+      scope.put(tableKey, key, row);
+    }
+    return row;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T extends CommonFieldsBase> List<T> cachedGetEntities(T relation,
+      Collection<String> uris, User user, RequestScope scope) throws ODKOverQuotaException,
+      ODKDatastoreException {
+    String tableKey = tableKey(relation);
+    String keyPrefix = K_ENTITY + tableKey + K_SEP;
+    long generation = currentGeneration(tableKey);
+    List<T> rows = new ArrayList<T>(uris.size());
+    List<String> misses = new ArrayList<String>();
+    for (String uri : new HashSet<String>(uris)) {
+      String key = keyPrefix + uri;
+      Object o = (scope == null) ? null : scope.get(tableKey, key);
+      if (o == null) {
+        List<CommonFieldsBase> cached = sharedGet(key, relation, generation, user);
+        if (cached != null) {
+          o = cached.get(0);
+          if (scope != null) {
+            scope.put(tableKey, key, o);
+          }
+        }
+      }
+      if (o != null) {
+        rows.add((T) o);
+      } else {
+        misses.add(uri);
+      }
+    }
+    if (!misses.isEmpty()) {
+      for (T row : datastore.getEntities(relation, misses, user)) {
+        String key = keyPrefix + row.getUri();
+        sharedPut(key, relation, generation, Collections.singletonList(row), user);
+        if (scope != null) {
+          scope.put(tableKey, key, row);
+        }
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  private Query createCachingQuery(CommonFieldsBase table, String loggingContextTag, User user,
+      RequestScope scope) {
+    Query query = datastore.createQuery(table, loggingContextTag, user);
+    if (!isCached(table)) {
+      return query;
+    }
+    return new CachingQuery(query, table, user, scope);
+  }
+
+  private void invalidateEntities(Collection<? extends CommonFieldsBase> entities,
+      RequestScope scope) {
+    Map<String, CommonFieldsBase> relations = new HashMap<String, CommonFieldsBase>();
+    for (CommonFieldsBase entity : entities) {
+      if (isCached(entity)) {
+        relations.put(tableKey(entity), entity);
+      }
+    }
+    for (CommonFieldsBase relation : relations.values()) {
+      invalidate(relation);
+      if (scope != null) {
+        scope.clear(tableKey(relation));
+      }
+    }
+  }
+
+  private void invalidateKeys(Collection<EntityKey> keys, RequestScope scope) {
+    List<CommonFieldsBase> relations = new ArrayList<CommonFieldsBase>();
+    for (EntityKey key : keys) {
+      relations.add(key.getRelation());
+    }
+    invalidateEntities(relations, scope);
+  }
+
+  /**
+   * Query wrapper that serves executeQuery() for a cached relation from the
+   * caches. The cache key is built from the filters and sorts as they are
+   * added. Resumable, streaming, foreign-key and distinct-value queries pass
+   * through.
+   */
+  private final class CachingQuery implements Query {
+    private final Query query;
+    private final CommonFieldsBase relation;
+    private final User user;
+    private final RequestScope scope;
+    private final StringBuilder key;
+
+    CachingQuery(Query query, CommonFieldsBase relation, User user, RequestScope scope) {
+      this.query = query;
+      this.relation = relation;
+      this.user = user;
+      this.scope = scope;
+      this.key = new StringBuilder();
+      this.key.append(K_QUERY).append(tableKey(relation));
+    }
+
+    private void appendValue(Object value) {
+      key.append(K_SEP);
+      if (value == null) {
+        key.append("null");
+      } else {
+        key.append(value.getClass().getSimpleName()).append(":");
+        if (value instanceof Date) {
+          key.append(((Date) value).getTime());
+        } else {
+          key.append(value.toString());
+        }
+      }
+    }
+
+    @Override
+    public void addSort(DataField attributeName, Direction direction) {
+      key.append(K_SEP).append("S").append(K_SEP).append(attributeName.getName())
+          .append(K_SEP).append(direction.name());
+      query.addSort(attributeName, direction);
+    }
+
+    @Override
+    public void addFilter(DataField attributeName, FilterOperation op, Object value) {
+      key.append(K_SEP).append("F").append(K_SEP).append(attributeName.getName())
+          .append(K_SEP).append(op.name());
+      appendValue(value);
+      query.addFilter(attributeName, op, value);
+    }
+
+    @Override
+    public void addValueSetFilter(DataField attributeName, Collection<?> valueSet) {
+      key.append(K_SEP).append("V").append(K_SEP).append(attributeName.getName())
+          .append(K_SEP).append(valueSet.size());
+      for (Object value : valueSet) {
+        appendValue(value);
+      }
+      query.addValueSetFilter(attributeName, valueSet);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<? extends CommonFieldsBase> executeQuery() throws ODKDatastoreException {
+      String tableKey = tableKey(relation);
+      String queryKey = key.toString();
+      if (scope != null) {
+        Object o = scope.get(tableKey, queryKey);
+        if (o != null) {
+          return new ArrayList<CommonFieldsBase>((List<CommonFieldsBase>) o);
+        }
+      }
+      long generation = currentGeneration(tableKey);
+      List<? extends CommonFieldsBase> rows = sharedGet(queryKey, relation, generation, user);
+      if (rows == null) {
+        rows = query.executeQuery();
+        sharedPut(queryKey, relation, generation, rows, user);
+      }
+      if (scope != null) {
+        scope.put(tableKey, queryKey, new ArrayList<CommonFieldsBase>(rows));
+      }
+      return rows;
+    }
+
+    @Override
+    public QueryResult executeQuery(QueryResumePoint startCursor, int fetchLimit)
+        throws ODKDatastoreException, ODKOverQuotaException {
+      return query.executeQuery(startCursor, fetchLimit);
+    }
+
+    @Override
+    public void forEach(RowCallback callback, int fetchSize) throws ODKDatastoreException,
+        ODKOverQuotaException {
+      query.forEach(callback, fetchSize);
+    }
+
+    @Override
+    public Set<EntityKey> executeForeignKeyQuery(CommonFieldsBase topLevelTable,
+        DataField foreignKeyField) throws ODKDatastoreException, ODKOverQuotaException {
+      return query.executeForeignKeyQuery(topLevelTable, foreignKeyField);
+    }
+
+    @Override
+    public List<?> executeDistinctValueForDataField(DataField dataField)
+        throws ODKDatastoreException, ODKOverQuotaException {
+      return query.executeDistinctValueForDataField(dataField);
+    }
+
+    @Override
+    public long count() throws ODKDatastoreException, ODKOverQuotaException {
+      return query.count();
+    }
+
+    @Override
+    public Object min(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException {
+      return query.min(dataField);
+    }
+
+    @Override
+    public Object max(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException {
+      return query.max(dataField);
+    }
+
+    @Override
+    public Map<Object, Long> countByValue(DataField dataField) throws ODKDatastoreException,
+        ODKOverQuotaException {
+      return query.countByValue(dataField);
+    }
+  }
+
+  /**
+   * The view of a CachingDatastore held by the CallingContext of a single
+   * request. Adds an identity map in front of the shared cache.
+   */
+  public final class RequestScope implements Datastore {
+    private final Map<String, Map<String, Object>> identityMap = new HashMap<String, Map<String, Object>>();
+
+    private RequestScope() {
+    }
+
+    CachingDatastore getCachingDatastore() {
+      return CachingDatastore.this;
+    }
+
+    private Object get(String tableKey, String key) {
+      Map<String, Object> rows = identityMap.get(tableKey);
+      return (rows == null) ? null : rows.get(key);
+    }
+
+    private void put(String tableKey, String key, Object value) {
+      Map<String, Object> rows = identityMap.get(tableKey);
+      if (rows == null) {
+        rows = new HashMap<String, Object>();
+        identityMap.put(tableKey, rows);
+      }
+      rows.put(key, value);
+    }
+
+    private void clear(String tableKey) {
+      identityMap.remove(tableKey);
+    }
+
+    @Override
+    public String getDefaultSchemaName() {
+      return datastore.getDefaultSchemaName();
+    }
+
+    @Override
+    public int getMaxLenTableName() {
+      return datastore.getMaxLenTableName();
+    }
+
+    @Override
+    public int getMaxLenColumnName() {
+      return datastore.getMaxLenColumnName();
+    }
+
+    @Override
+    public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+      datastore.assertRelation(relation, user);
+    }
+
+    @Override
+    public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+      try {
+        CachingDatastore.this.dropRelation(relation, user);
+      } finally {
+        clear(tableKey(relation));
+      }
+    }
+
+    @Override
+    public boolean hasRelation(String schema, String tableName, User user)
+        throws ODKDatastoreException {
+      return datastore.hasRelation(schema, tableName, user);
+    }
+
+    @Override
+    public <T extends CommonFieldsBase> T createEntityUsingRelation(T relation, User user) {
+      return datastore.createEntityUsingRelation(relation, user);
+    }
+
+    @Override
+    public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user)
+        throws ODKOverQuotaException, ODKEntityNotFoundException, ODKDatastoreException {
+      if (!isCached(relation)) {
+        return datastore.getEntity(relation, uri, user);
+      }
+      return cachedGetEntity(relation, uri, user, this);
+    }
+
+    @Override
+    public <T extends CommonFieldsBase> List<T> getEntities(T relation, Collection<String> uris,
+        User user) throws ODKOverQuotaException, ODKDatastoreException {
+      if (!isCached(relation)) {
+        return datastore.getEntities(relation, uris, user);
+      }
+      return cachedGetEntities(relation, uris, user, this);
+    }
+
+    @Override
+    public Query createQuery(CommonFieldsBase table, String loggingContextTag, User user) {
+      return createCachingQuery(table, loggingContextTag, user, this);
+    }
+
+    @Override
+    public void putEntity(CommonFieldsBase entity, User user)
+        throws ODKEntityPersistException, ODKOverQuotaException {
+      try {
+        datastore.putEntity(entity, user);
+      } finally {
+        invalidateEntities(Collections.singletonList(entity), this);
+      }
+    }
+
+    @Override
+    public void putEntities(Collection<? extends CommonFieldsBase> entities, User user)
+        throws ODKEntityPersistException, ODKOverQuotaException {
+      try {
+        datastore.putEntities(entities, user);
+      } finally {
+        invalidateEntities(entities, this);
+      }
+    }
+
+    @Override
+    public void deleteEntity(EntityKey key, User user)
+        throws ODKOverQuotaException, ODKDatastoreException {
+      try {
+        datastore.deleteEntity(key, user);
+      } finally {
+        invalidateKeys(Collections.singletonList(key), this);
+      }
+    }
+
+    @Override
+    public void deleteEntities(Collection<EntityKey> keys, User user)
+        throws ODKOverQuotaException, ODKDatastoreException {
+      try {
+        datastore.deleteEntities(keys, user);
+      } finally {
+        invalidateKeys(keys, this);
+      }
+    }
+
+    @Override
+    public void batchAlterData(List<? extends CommonFieldsBase> changes, User user)
+        throws ODKEntityPersistException, ODKOverQuotaException {
+      try {
+        datastore.batchAlterData(changes, user);
+      } finally {
+        invalidateEntities(changes, this);
+      }
+    }
+
+    @Override
+    public TaskLock createTaskLock(User user) {
+      return CachingDatastore.this.createTaskLock(user);
+    }
+  }
+
+  @Override
+  public String getDefaultSchemaName() {
+    return datastore.getDefaultSchemaName();
+  }
+
+  @Override
+  public int getMaxLenTableName() {
+    return datastore.getMaxLenTableName();
+  }
+
+  @Override
+  public int getMaxLenColumnName() {
+    return datastore.getMaxLenColumnName();
+  }
+
+  @Override
+  public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    datastore.assertRelation(relation, user);
+  }
+
+  @Override
+  public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    try {
+      datastore.dropRelation(relation, user);
+    } finally {
+      if (isCached(relation)) {
+        invalidate(relation);
+      }
+    }
+  }
+
+  @Override
+  public boolean hasRelation(String schema, String tableName, User user)
+      throws ODKDatastoreException {
+    return datastore.hasRelation(schema, tableName, user);
+  }
+
+  @Override
+  public <T extends CommonFieldsBase> T createEntityUsingRelation(T relation, User user) {
+    return datastore.createEntityUsingRelation(relation, user);
+  }
+
+  @Override
+  public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user)
+      throws ODKOverQuotaException, ODKEntityNotFoundException, ODKDatastoreException {
+    if (!isCached(relation)) {
+      return datastore.getEntity(relation, uri, user);
+    }
+    return cachedGetEntity(relation, uri, user, null);
+  }
+
+  @Override
+  public <T extends CommonFieldsBase> List<T> getEntities(T relation, Collection<String> uris,
+      User user) throws ODKOverQuotaException, ODKDatastoreException {
+    if (!isCached(relation)) {
+      return datastore.getEntities(relation, uris, user);
+    }
+    return cachedGetEntities(relation, uris, user, null);
+  }
+
+  @Override
+  public Query createQuery(CommonFieldsBase table, String loggingContextTag, User user) {
+    return createCachingQuery(table, loggingContextTag, user, null);
+  }
+
+  @Override
+  public void putEntity(CommonFieldsBase entity, User user)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    try {
+      datastore.putEntity(entity, user);
+    } finally {
+      invalidateEntities(Collections.singletonList(entity), null);
+    }
+  }
+
+  @Override
+  public void putEntities(Collection<? extends CommonFieldsBase> entities, User user)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    try {
+      datastore.putEntities(entities, user);
+    } finally {
+      invalidateEntities(entities, null);
+    }
+  }
+
+  @Override
+  public void deleteEntity(EntityKey key, User user)
+      throws ODKOverQuotaException, ODKDatastoreException {
+    try {
+      datastore.deleteEntity(key, user);
+    } finally {
+      invalidateKeys(Collections.singletonList(key), null);
+    }
+  }
+
+  @Override
+  public void deleteEntities(Collection<EntityKey> keys, User user)
+      throws ODKOverQuotaException, ODKDatastoreException {
+    try {
+      datastore.deleteEntities(keys, user);
+    } finally {
+      invalidateKeys(keys, null);
+    }
+  }
+
+  @Override
+  public void batchAlterData(List<? extends CommonFieldsBase> changes, User user)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    try {
+      datastore.batchAlterData(changes, user);
+    } finally {
+      invalidateEntities(changes, null);
+    }
+  }
+
+  @Override
+  public TaskLock createTaskLock(User user) {
+    if (localTaskLocks == null) {
+      return datastore.createTaskLock(user);
+    }
+    return localTaskLocks.createTaskLock(datastore, user);
+  }
+}
@@ -13,8 +13,18 @@
  */
 package org.opendatakit.common.persistence.engine;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,8 +37,19 @@ import org.opendatakit.common.utils.WebUtils;
  * inefficient datastore access patterns and minimizing excessive read/write
  * actions.
  * 
+ * For each table, the number of queries, gets, puts and deletes, the rows
+ * they touched and (where the caller supplies it) a latency histogram are
+ * kept. Queries record both the rows read from the database and the rows
+ * returned to the caller; the ratio is the read amplification caused by
+ * skipping rows to reach a cursor position. Counts are kept both since
+ * startup and over a rolling window of the last {@link #WINDOW_MILLIS}.
+ * 
+ * All recording is lock-free so that the metrics do not serialize datastore
+ * access. Snapshots are not atomic across counters, and a count recorded
+ * exactly as a window slot is recycled may be lost from the rolling window.
+ * 
  * Note that if you create and delete many tables and don't reuse table names,
- * the tableMap and count arrays will grow without bounds.
+ * the table map will grow without bounds.
  * 
  * @author mitchellsundt@gmail.com
  * 
@@ -37,177 +58,407 @@ public final class DatastoreAccessMetrics {
 
   private static final Logger logger = LoggerFactory.getLogger(DatastoreAccessMetrics.class);
 
-  // map of fully qualified table name to index in counter array.
-  private final Map<String, Short> tableMap = new TreeMap<String, Short>();
-  private short nextCountIdx = 0;
-  private int readCount = 0;
+  /**
+   * Every live instance, so that the metrics can be reported without a
+   * reference to the datastore that owns them. Weakly held, so that the
+   * metrics of a discarded datastore (e.g., of a closed application context)
+   * are dropped with it.
+   */
+  private static final Set<DatastoreAccessMetrics> instances = Collections
+      .newSetFromMap(new WeakHashMap<DatastoreAccessMetrics, Boolean>());
+
+  // rolling window of 6 slots of 10 seconds each
+  private static final int WINDOW_SLOT_COUNT = 6;
+  private static final long WINDOW_SLOT_MILLIS = 10 * 1000L;
+  public static final long WINDOW_MILLIS = WINDOW_SLOT_COUNT * WINDOW_SLOT_MILLIS;
 
   /**
-   * Maintain a tally of which tables those actions were against.
-   * 
-   * NOTE: this is NOT thread-safe. All accesses should occur only from within
-   * synchronized methods.
+   * Upper bounds (inclusive) of the latency histogram buckets, in milliseconds.
+   * A final bucket collects everything slower.
    */
-  private final static class RingBufferCountArray {
-    private static final int ARRAY_INCREMENT = 20;
-    private int[] countArray = new int[36];
-
-    RingBufferCountArray() {
-      clear();
-    };
-
-    private void resizeArray(short arrayIdx) {
-      if (arrayIdx >= countArray.length) {
-        int newLen = ((arrayIdx / ARRAY_INCREMENT) + 1) * ARRAY_INCREMENT;
-        int[] newArray = new int[newLen];
-        for (int i = 0; i < newLen; ++i) {
-          newArray[i] = 0;
-        }
-        for (int i = 0; i < countArray.length; ++i) {
-          newArray[i] = countArray[i];
+  private static final long[] LATENCY_BUCKET_MILLIS = { 1L, 2L, 5L, 10L, 25L, 50L, 100L, 250L,
+      500L, 1000L, 2500L, 5000L, 10000L };
+
+  public enum Operation {
+    QUERY, GET, PUT, DELETE
+  }
+
+  /**
+   * A count kept since startup and over the rolling window.
+   */
+  private static final class WindowedCounter {
+    private final LongAdder total = new LongAdder();
+    private final LongAdder[] slots = new LongAdder[WINDOW_SLOT_COUNT];
+    private final AtomicLongArray slotEpochs = new AtomicLongArray(WINDOW_SLOT_COUNT);
+
+    WindowedCounter() {
+      for (int i = 0; i < WINDOW_SLOT_COUNT; ++i) {
+        slots[i] = new LongAdder();
+        slotEpochs.set(i, -1L);
+      }
+    }
+
+    void add(long now, long incCount) {
+      total.add(incCount);
+      long epoch = now / WINDOW_SLOT_MILLIS;
+      int idx = (int) (epoch % WINDOW_SLOT_COUNT);
+      long slotEpoch = slotEpochs.get(idx);
+      if (slotEpoch != epoch && slotEpochs.compareAndSet(idx, slotEpoch, epoch)) {
+        slots[idx].reset();
+      }
+      slots[idx].add(incCount);
+    }
+
+    long getTotal() {
+      return total.sum();
+    }
+
+    long getWindowed(long now) {
+      long epoch = now / WINDOW_SLOT_MILLIS;
+      long sum = 0L;
+      for (int i = 0; i < WINDOW_SLOT_COUNT; ++i) {
+        if (slotEpochs.get(i) > epoch - WINDOW_SLOT_COUNT) {
+          sum += slots[i].sum();
         }
-        countArray = newArray;
-        logger.info("Resizing metrics array to " + newLen);
       }
+      return sum;
     }
+  }
 
-    private void recordUsage(short countArrayIdx, int incCount) {
-      // make sure our count array is sized big enough...
-      resizeArray(countArrayIdx);
+  /**
+   * Latency histogram kept since startup.
+   */
+  private static final class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKET_MILLIS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+      for (int i = 0; i < buckets.length; ++i) {
+        buckets[i] = new LongAdder();
+      }
+    }
 
-      countArray[countArrayIdx] = countArray[countArrayIdx] + incCount;
+    void record(long elapsedNanos) {
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+      int i = 0;
+      while (i < LATENCY_BUCKET_MILLIS.length && elapsedMillis > LATENCY_BUCKET_MILLIS[i]) {
+        ++i;
+      }
+      buckets[i].increment();
+      count.increment();
+      sumNanos.add(elapsedNanos);
     }
+  }
+
+  private static final class OperationMetrics {
+    final WindowedCounter calls = new WindowedCounter();
+    final WindowedCounter rows = new WindowedCounter();
+    final LatencyHistogram latency = new LatencyHistogram();
+  }
+
+  private static final class TableMetrics {
+    final OperationMetrics[] operations = new OperationMetrics[Operation.values().length];
+    // rows read from the database by queries; rows returned are in operations
+    final WindowedCounter queryRowsRead = new WindowedCounter();
 
-    private Integer getUsage(short countArrayIdx) {
-      // make sure our count array is sized big enough...
-      resizeArray(countArrayIdx);
+    TableMetrics() {
+      for (int i = 0; i < operations.length; ++i) {
+        operations[i] = new OperationMetrics();
+      }
+    }
+  }
 
-      return countArray[countArrayIdx];
+  /**
+   * Snapshot of one operation against one table.
+   */
+  public static final class OperationSnapshot {
+    public final long callCount;
+    public final long rowCount;
+    public final long windowCallCount;
+    public final long windowRowCount;
+    /** number of calls with a recorded latency */
+    public final long latencyCount;
+    public final long latencySumNanos;
+    /** non-cumulative bucket counts; see {@link #getLatencyBucketMillis()} */
+    public final long[] latencyBuckets;
+
+    /**
+     * The sum of two snapshots of the same operation.
+     */
+    private OperationSnapshot(OperationSnapshot a, OperationSnapshot b) {
+      callCount = a.callCount + b.callCount;
+      rowCount = a.rowCount + b.rowCount;
+      windowCallCount = a.windowCallCount + b.windowCallCount;
+      windowRowCount = a.windowRowCount + b.windowRowCount;
+      latencyCount = a.latencyCount + b.latencyCount;
+      latencySumNanos = a.latencySumNanos + b.latencySumNanos;
+      latencyBuckets = new long[a.latencyBuckets.length];
+      for (int i = 0; i < latencyBuckets.length; ++i) {
+        latencyBuckets[i] = a.latencyBuckets[i] + b.latencyBuckets[i];
+      }
     }
 
-    private void clear() {
-      for (int i = 0; i < countArray.length; ++i) {
-        countArray[i] = 0;
+    private OperationSnapshot(OperationMetrics m, long now) {
+      callCount = m.calls.getTotal();
+      rowCount = m.rows.getTotal();
+      windowCallCount = m.calls.getWindowed(now);
+      windowRowCount = m.rows.getWindowed(now);
+      latencyCount = m.latency.count.sum();
+      latencySumNanos = m.latency.sumNanos.sum();
+      latencyBuckets = new long[m.latency.buckets.length];
+      for (int i = 0; i < latencyBuckets.length; ++i) {
+        latencyBuckets[i] = m.latency.buckets[i].sum();
       }
     }
   }
 
+  /**
+   * Snapshot of the metrics of one table.
+   */
+  public static final class TableSnapshot {
+    public final String tableName;
+    public final Map<Operation, OperationSnapshot> operations;
+    public final long queryRowsRead;
+    public final long windowQueryRowsRead;
+
+    private TableSnapshot(String tableName, TableMetrics m, long now) {
+      this.tableName = tableName;
+      Map<Operation, OperationSnapshot> ops = new TreeMap<Operation, OperationSnapshot>();
+      for (Operation op : Operation.values()) {
+        ops.put(op, new OperationSnapshot(m.operations[op.ordinal()], now));
+      }
+      this.operations = Collections.unmodifiableMap(ops);
+      this.queryRowsRead = m.queryRowsRead.getTotal();
+      this.windowQueryRowsRead = m.queryRowsRead.getWindowed(now);
+    }
+
+    /**
+     * The sum of two snapshots of the same table.
+     */
+    private TableSnapshot(TableSnapshot a, TableSnapshot b) {
+      this.tableName = a.tableName;
+      Map<Operation, OperationSnapshot> ops = new TreeMap<Operation, OperationSnapshot>();
+      for (Operation op : Operation.values()) {
+        ops.put(op, new OperationSnapshot(a.operations.get(op), b.operations.get(op)));
+      }
+      this.operations = Collections.unmodifiableMap(ops);
+      this.queryRowsRead = a.queryRowsRead + b.queryRowsRead;
+      this.windowQueryRowsRead = a.windowQueryRowsRead + b.windowQueryRowsRead;
+    }
+  }
+
   // 20-second dump
   private static final long ACCESS_METRIC_DUMP_INTERVAL = 20 * 1000L;
+  // or every 500 rows read, whichever comes first
+  private static final int ACCESS_METRIC_DUMP_READ_COUNT = 500;
 
-  private long lastLogging = 0L;
-  private final RingBufferCountArray countQueryArray = new RingBufferCountArray();
-  private final RingBufferCountArray countQueryResultArray = new RingBufferCountArray();
-  private final RingBufferCountArray countGetArray = new RingBufferCountArray();
-  private final RingBufferCountArray countPutArray = new RingBufferCountArray();
-  private final RingBufferCountArray countDeleteArray = new RingBufferCountArray();
+  // map of fully qualified table name to its metrics.
+  private final ConcurrentHashMap<String, TableMetrics> tableMap = new ConcurrentHashMap<String, TableMetrics>();
+  private final AtomicLong readCount = new AtomicLong();
+  private final AtomicLong lastLogging = new AtomicLong(System.currentTimeMillis());
 
   public DatastoreAccessMetrics() {
+    synchronized (instances) {
+      instances.add(this);
+    }
+  }
+
+  /**
+   * @return a snapshot of the metrics of every table, summed over all the
+   *         datastores in this JVM so that each table is reported once, and
+   *         ordered by table name.
+   */
+  public static List<TableSnapshot> getCombinedSnapshot() {
+    List<DatastoreAccessMetrics> live;
+    synchronized (instances) {
+      live = new ArrayList<DatastoreAccessMetrics>(instances);
+    }
+    TreeMap<String, TableSnapshot> combined = new TreeMap<String, TableSnapshot>();
+    for (DatastoreAccessMetrics dam : live) {
+      for (TableSnapshot t : dam.getSnapshot()) {
+        TableSnapshot prior = combined.get(t.tableName);
+        combined.put(t.tableName, (prior == null) ? t : new TableSnapshot(prior, t));
+      }
+    }
+    return new ArrayList<TableSnapshot>(combined.values());
+  }
+
+  /**
+   * @return the upper bounds (inclusive, in milliseconds) of all but the last
+   *         latency histogram bucket.
+   */
+  public static long[] getLatencyBucketMillis() {
+    return LATENCY_BUCKET_MILLIS.clone();
+  }
+
+  /**
+   * @return a snapshot of the metrics of every table, ordered by table name.
+   */
+  public List<TableSnapshot> getSnapshot() {
+    long now = System.currentTimeMillis();
+    TreeMap<String, TableMetrics> sorted = new TreeMap<String, TableMetrics>(tableMap);
+    List<TableSnapshot> snapshot = new ArrayList<TableSnapshot>(sorted.size());
+    for (Map.Entry<String, TableMetrics> entry : sorted.entrySet()) {
+      snapshot.add(new TableSnapshot(entry.getKey(), entry.getValue(), now));
+    }
+    return snapshot;
   }
 
-  public synchronized void logUsage() {
+  /**
+   * Logs the per-table counts for the rolling window: table, queries, rows
+   * read by queries, rows returned by queries, gets, puts, deletes.
+   */
+  public void logUsage() {
     long now = System.currentTimeMillis();
-    lastLogging = now;
+    lastLogging.set(now);
     String gmtDate = WebUtils.iso8601Date(new java.util.Date(now));
-    logger.info("---------- " + gmtDate + " @ " + readCount + " ------------");
-    for (Map.Entry<String, Short> entry : tableMap.entrySet()) {
-      Short idx = entry.getValue();
-      logger.info(entry.getKey() + "," + countQueryArray.getUsage(idx) + ","
-          + countQueryResultArray.getUsage(idx) + "," + countGetArray.getUsage(idx) + ","
-          + countPutArray.getUsage(idx) + "," + countDeleteArray.getUsage(idx));
+    logger.info("---------- " + gmtDate + " @ " + readCount.get() + " ------------");
+    for (TableSnapshot t : getSnapshot()) {
+      logger.info(t.tableName + "," + t.operations.get(Operation.QUERY).windowCallCount + ","
+          + t.windowQueryRowsRead + "," + t.operations.get(Operation.QUERY).windowRowCount + ","
+          + t.operations.get(Operation.GET).windowRowCount + ","
+          + t.operations.get(Operation.PUT).windowRowCount + ","
+          + t.operations.get(Operation.DELETE).windowRowCount);
     }
     logger.info("-----------------------------------------");
-    countQueryArray.clear();
-    countQueryResultArray.clear();
-    countGetArray.clear();
-    countPutArray.clear();
-    countDeleteArray.clear();
   }
 
   /**
-   * NOTE: This method is NOT thread-safe. Call only from within a synchronized
-   * method!
+   * Periodically dumps the usage to the log when debug logging is enabled.
+   * Only the thread that wins the race to advance lastLogging does the dump.
    */
   private void logUsage(int incCount) {
+    long oldReadCount = readCount.getAndAdd(incCount);
+    long newReadCount = oldReadCount + incCount;
+    if (!logger.isDebugEnabled()) {
+      return;
+    }
     long now = System.currentTimeMillis();
-    int oldReadCount = readCount;
-    readCount = readCount + incCount;
-    if ((readCount / 500) != (oldReadCount / 500)
-        || (lastLogging + ACCESS_METRIC_DUMP_INTERVAL < now)) {
+    long last = lastLogging.get();
+    if ((newReadCount / ACCESS_METRIC_DUMP_READ_COUNT) != (oldReadCount
+        / ACCESS_METRIC_DUMP_READ_COUNT) || (last + ACCESS_METRIC_DUMP_INTERVAL < now)) {
+      if (lastLogging.compareAndSet(last, now)) {
+        logUsage();
+      }
     }
   }
 
-  /**
-   * Synchronized - this is the ONLY method that should manipulate the
-   * RingBufferCountArray or log usage statistics.
-   * 
-   * @param fullyQualifiedName
-   * @param rbc
-   */
-  private synchronized void synchronizedRecordUsage(String fullyQualifiedName,
-      RingBufferCountArray rbc, int incCount) {
-    Short countArrayIdx = tableMap.get(fullyQualifiedName);
-    if (countArrayIdx == null) {
-      countArrayIdx = nextCountIdx++;
-      tableMap.put(fullyQualifiedName, countArrayIdx);
+  private TableMetrics getTableMetrics(String fullyQualifiedName) {
+    TableMetrics m = tableMap.get(fullyQualifiedName);
+    if (m == null) {
+      TableMetrics prior = tableMap.putIfAbsent(fullyQualifiedName, m = new TableMetrics());
+      if (prior != null) {
+        m = prior;
+      }
     }
+    return m;
+  }
 
-    rbc.recordUsage(countArrayIdx, incCount);
-    logUsage(incCount);
+  private static String getFullyQualifiedName(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
   }
 
-  private void recordUsage(String fullyQualifiedName, RingBufferCountArray rbc, int incCount) {
+  /**
+   * @param fullyQualifiedName
+   * @param op
+   * @param rowCount
+   *          rows affected or returned.
+   * @param readCount
+   *          rows read from the database.
+   * @param elapsedNanos
+   *          elapsed time of the call, or a negative value if not measured.
+   */
+  private void recordUsage(String fullyQualifiedName, Operation op, int rowCount, int readCount,
+      long elapsedNanos) {
     try {
-      synchronizedRecordUsage(fullyQualifiedName, rbc, incCount);
+      long now = System.currentTimeMillis();
+      TableMetrics m = getTableMetrics(fullyQualifiedName);
+      OperationMetrics om = m.operations[op.ordinal()];
+      om.calls.add(now, 1L);
+      om.rows.add(now, rowCount);
+      if (elapsedNanos >= 0L) {
+        om.latency.record(elapsedNanos);
+      }
+      if (op == Operation.QUERY) {
+        m.queryRowsRead.add(now, readCount);
+      }
+      logUsage(readCount);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
-  private void recordUsage(String fullyQualifiedName, RingBufferCountArray rbc) {
-    recordUsage(fullyQualifiedName, rbc, 1);
+  public void recordQueryUsage(String specialTableName, int resultCount) {
+    recordUsage(specialTableName, Operation.QUERY, resultCount, resultCount, -1L);
   }
 
-  private void recordUsage(CommonFieldsBase relation, RingBufferCountArray rbc, int incCount) {
-    String fullyQualifiedName = relation.getSchemaName() + "." + relation.getTableName();
-    recordUsage(fullyQualifiedName, rbc, incCount);
+  public void recordQueryUsage(CommonFieldsBase relation, int resultCount) {
+    recordUsage(getFullyQualifiedName(relation), Operation.QUERY, resultCount, resultCount, -1L);
   }
 
-  private void recordUsage(CommonFieldsBase relation, RingBufferCountArray rbc) {
-    recordUsage(relation, rbc, 1);
+  /**
+   * @param relation
+   * @param readCount
+   *          rows read from the database, including any skipped over.
+   * @param resultCount
+   *          rows returned to the caller.
+   * @param elapsedNanos
+   */
+  public void recordQueryUsage(CommonFieldsBase relation, int readCount, int resultCount,
+      long elapsedNanos) {
+    recordUsage(getFullyQualifiedName(relation), Operation.QUERY, resultCount, readCount,
+        elapsedNanos);
   }
 
-  public void recordQueryUsage(String specialTableName, int resultCount) {
-    recordUsage(specialTableName, countQueryArray);
-    recordUsage(specialTableName, countQueryResultArray, resultCount);
+  public void recordGetUsage(String specialTableName) {
+    recordUsage(specialTableName, Operation.GET, 1, 1, -1L);
   }
 
-  public void recordQueryUsage(CommonFieldsBase relation, int resultCount) {
-    recordUsage(relation, countQueryArray);
-    recordUsage(relation, countQueryResultArray, resultCount);
+  public void recordGetUsage(String specialTableName, long elapsedNanos) {
+    recordUsage(specialTableName, Operation.GET, 1, 1, elapsedNanos);
   }
 
-  public void recordGetUsage(String specialTableName) {
-    recordUsage(specialTableName, countGetArray);
+  public void recordGetUsage(CommonFieldsBase relation) {
+    recordUsage(getFullyQualifiedName(relation), Operation.GET, 1, 1, -1L);
   }
 
-  public void recordGetUsage(CommonFieldsBase relation) {
-    recordUsage(relation, countGetArray);
+  public void recordGetUsage(CommonFieldsBase relation, long elapsedNanos) {
+    recordUsage(getFullyQualifiedName(relation), Operation.GET, 1, 1, elapsedNanos);
   }
 
   public void recordPutUsage(String specialTableName) {
-    recordUsage(specialTableName, countPutArray);
+    recordUsage(specialTableName, Operation.PUT, 1, 0, -1L);
   }
 
   public void recordPutUsage(CommonFieldsBase relation) {
-    recordUsage(relation, countPutArray);
+    recordUsage(getFullyQualifiedName(relation), Operation.PUT, 1, 0, -1L);
+  }
+
+  /**
+   * @param relation
+   * @param putCount
+   *          rows written by the (possibly batched) statement.
+   * @param elapsedNanos
+   */
+  public void recordPutUsage(CommonFieldsBase relation, int putCount, long elapsedNanos) {
+    recordUsage(getFullyQualifiedName(relation), Operation.PUT, putCount, 0, elapsedNanos);
   }
 
   public void recordDeleteUsage(String specialTableName) {
-    recordUsage(specialTableName, countDeleteArray);
+    recordUsage(specialTableName, Operation.DELETE, 1, 0, -1L);
   }
 
   public void recordDeleteUsage(EntityKey key) {
-    recordUsage(key.getRelation(), countDeleteArray);
+    recordUsage(getFullyQualifiedName(key.getRelation()), Operation.DELETE, 1, 0, -1L);
+  }
+
+  public void recordDeleteUsage(CommonFieldsBase relation, int deleteCount) {
+    recordUsage(getFullyQualifiedName(relation), Operation.DELETE, deleteCount, 0, -1L);
+  }
+
+  public void recordDeleteUsage(CommonFieldsBase relation, int deleteCount, long elapsedNanos) {
+    recordUsage(getFullyQualifiedName(relation), Operation.DELETE, deleteCount, 0,
+        elapsedNanos);
   }
 }
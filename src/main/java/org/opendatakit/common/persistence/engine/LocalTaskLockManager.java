@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.ITaskLockType;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WaitableTaskLock;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory task lock table that fronts the datastore's TaskLock.
+ *
+ * Locks are held as leases in a table striped across STRIPE_COUNT
+ * ReentrantLocks, each stripe keyed by (formId, taskType) and recording the
+ * lockId holding the lease and when it expires. Contending tasks of this
+ * server wait on their stripe's Condition rather than polling the _task_lock
+ * table.
+ *
+ * With clusterMode set (the default), a task that obtains the local lease
+ * then obtains the datastore's persistent lock as well, so that other servers
+ * are excluded; only one task per server ever contends for the persistent
+ * lock. With clusterMode cleared, the local lease is the lock and the
+ * datastore is not touched. Clear it only when this is the sole server
+ * (or all requests for a form are routed to one server). A persistent lock
+ * that cannot itself wait is polled, with randomized exponential backoff,
+ * until the caller's wait expires.
+ *
+ * Time spent waiting for local leases is reported to the datastore metrics
+ * as reads of the _local_task_lock pseudo-table.
+ *
+ * Thread-safe.
+ */
+public class LocalTaskLockManager {
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalTaskLockManager.class);
+
+  private static final String LOCAL_TASK_LOCK_TABLE_NAME = "_local_task_lock";
+  private static final int STRIPE_COUNT = 64;
+  private static final long INITIAL_MAX_BACKOFF_MILLIS = 100L;
+  private static final long MAX_BACKOFF_MILLIS = 2000L;
+
+  private static final class Lease {
+    final String lockId;
+    long expiresAt;
+
+    Lease(String lockId, long expiresAt) {
+      this.lockId = lockId;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition released = lock.newCondition();
+    // guarded by lock
+    final Map<String, Lease> leases = new HashMap<String, Lease>();
+  }
+
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+  private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+
+  private boolean clusterMode = true;
+
+  public LocalTaskLockManager() {
+    for (int i = 0; i < STRIPE_COUNT; ++i) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  public boolean isClusterMode() {
+    return clusterMode;
+  }
+
+  public void setClusterMode(boolean clusterMode) {
+    this.clusterMode = clusterMode;
+  }
+
+  /**
+   * @param datastore
+   * @param user
+   * @return a TaskLock that takes a local lease before (in cluster mode)
+   *         obtaining the datastore's lock.
+   */
+  public TaskLock createTaskLock(Datastore datastore, User user) {
+    return new LocalTaskLock(clusterMode ? datastore.createTaskLock(user) : null);
+  }
+
+  private static String leaseKey(String formId, ITaskLockType taskType) {
+    return formId + "\u0000" + taskType.getName();
+  }
+
+  private Stripe getStripe(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return stripes[h & (STRIPE_COUNT - 1)];
+  }
+
+  /**
+   * Obtains the local lease, waiting up to maxWaitMillis for it.
+   *
+   * @return true if the lease was obtained (or extended, if already held by
+   *         lockId).
+   */
+  boolean obtainLease(String lockId, String key, long leaseMillis, long maxWaitMillis) {
+    Stripe stripe = getStripe(key);
+    long startNanos = System.nanoTime();
+    long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    boolean obtained = false;
+    stripe.lock.lock();
+    try {
+      for (;;) {
+        long now = System.currentTimeMillis();
+        Lease lease = stripe.leases.get(key);
+        if (lease == null || lease.expiresAt <= now || lease.lockId.equals(lockId)) {
+          stripe.leases.put(key, new Lease(lockId, now + leaseMillis));
+          obtained = true;
+          break;
+        }
+        if (remainingNanos <= 0L) {
+          break;
+        }
+        // wake no later than the holder's lease expiration
+        long untilExpiry = TimeUnit.MILLISECONDS.toNanos(lease.expiresAt - now);
+        try {
+          long waitNanos = Math.min(remainingNanos, untilExpiry);
+          remainingNanos -= waitNanos - stripe.released.awaitNanos(waitNanos);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+    dam.recordGetUsage(LOCAL_TASK_LOCK_TABLE_NAME, System.nanoTime() - startNanos);
+    return obtained;
+  }
+
+  /**
+   * @return false if lockId does not hold an unexpired lease.
+   */
+  boolean renewLease(String lockId, String key, long leaseMillis) {
+    Stripe stripe = getStripe(key);
+    stripe.lock.lock();
+    try {
+      Lease lease = stripe.leases.get(key);
+      long now = System.currentTimeMillis();
+      if (lease == null || !lease.lockId.equals(lockId) || lease.expiresAt <= now) {
+        return false;
+      }
+      lease.expiresAt = now + leaseMillis;
+      return true;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Releases the lease if it is held by lockId and wakes its waiters.
+   */
+  void releaseLease(String lockId, String key) {
+    Stripe stripe = getStripe(key);
+    stripe.lock.lock();
+    try {
+      Lease lease = stripe.leases.get(key);
+      if (lease != null && lease.lockId.equals(lockId)) {
+        stripe.leases.remove(key);
+        stripe.released.signalAll();
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * TaskLock decorator handed out by createTaskLock. The local lease is always
+   * taken first and released last, so a server never has two of its tasks
+   * contending for the same persistent lock.
+   */
+  private final class LocalTaskLock implements WaitableTaskLock {
+
+    // null unless in cluster mode
+    private final TaskLock persistentLock;
+
+    LocalTaskLock(TaskLock persistentLock) {
+      this.persistentLock = persistentLock;
+    }
+
+    @Override
+    public boolean obtainLock(String lockId, String formId, ITaskLockType taskType,
+        long maxWaitMillis) throws ODKTaskLockException {
+      String key = leaseKey(formId, taskType);
+      long deadline = System.currentTimeMillis() + maxWaitMillis;
+      if (!obtainLease(lockId, key, taskType.getLockExpirationTimeout(), maxWaitMillis)) {
+        return false;
+      }
+      if (persistentLock == null) {
+        return true;
+      }
+      boolean success = false;
+      try {
+        if (persistentLock instanceof WaitableTaskLock) {
+          long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+          success = ((WaitableTaskLock) persistentLock).obtainLock(lockId, formId, taskType,
+              remaining);
+        } else {
+          success = pollPersistentLock(lockId, formId, taskType, deadline);
+        }
+      } finally {
+        if (!success) {
+          releaseLease(lockId, key);
+        }
+      }
+      return success;
+    }
+
+    private boolean pollPersistentLock(String lockId, String formId, ITaskLockType taskType,
+        long deadline) throws ODKTaskLockException {
+      long maxBackoffMillis = INITIAL_MAX_BACKOFF_MILLIS;
+      for (;;) {
+        if (persistentLock.obtainLock(lockId, formId, taskType)) {
+          return true;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0L) {
+          return false;
+        }
+        long backoff = 1L + (long) (ThreadLocalRandom.current().nextDouble() * maxBackoffMillis);
+        try {
+          Thread.sleep(Math.min(backoff, remaining));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+        maxBackoffMillis = Math.min(2L * maxBackoffMillis, MAX_BACKOFF_MILLIS);
+      }
+    }
+
+    @Override
+    public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
+      try {
+        return obtainLock(lockId, formId, taskType, 0L);
+      } catch (ODKTaskLockException e) {
+        // unexpected failure...
+        e.printStackTrace();
+        return false;
+      }
+    }
+
+    @Override
+    public boolean renewLock(String lockId, String formId, ITaskLockType taskType)
+        throws ODKTaskLockException {
+      String key = leaseKey(formId, taskType);
+      if (!renewLease(lockId, key, taskType.getLockExpirationTimeout())) {
+        return false;
+      }
+      if (persistentLock == null) {
+        return true;
+      }
+      return persistentLock.renewLock(lockId, formId, taskType);
+    }
+
+    @Override
+    public boolean releaseLock(String lockId, String formId, ITaskLockType taskType)
+        throws ODKTaskLockException {
+      boolean result = true;
+      try {
+        if (persistentLock != null) {
+          result = persistentLock.releaseLock(lockId, formId, taskType);
+          if (!result) {
+            logger.info("persistent task lock release failed!");
+          }
+        }
+      } finally {
+        releaseLease(lockId, leaseKey(formId, taskType));
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the table definitions that a relational engine has read from the
+ * information schema and verified, so that asserting the same relation again
+ * does not need to go back to the database catalog.
+ *
+ * The cache carries a version that is advanced whenever the engine issues DDL.
+ * A definition is only stored if no DDL was issued between the time the
+ * caller noted the version and the time it offers the definition; this keeps
+ * a catalog read that raced a CREATE or DROP from repopulating the cache with
+ * a stale definition.
+ *
+ * Only DDL issued through the owning datastore is seen. Tables dropped or
+ * recreated by another server are detected when the engine invalidates the
+ * entry after a failed write.
+ *
+ * Thread-safe.
+ *
+ * @param <V>
+ *          the engine's representation of a table definition.
+ */
+public final class RelationSchemaCache<V> {
+
+  private final ConcurrentHashMap<String, V> cache = new ConcurrentHashMap<String, V>();
+
+  private long version = 0L;
+
+  public RelationSchemaCache() {
+  }
+
+  private static String tableKey(String schemaName, String tableName) {
+    return schemaName + "." + tableName;
+  }
+
+  /**
+   * @return the current version; note it before reading the information
+   *         schema and pass it to put().
+   */
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * @param schemaName
+   * @param tableName
+   * @return the cached definition of the table, or null if there is none.
+   */
+  public V get(String schemaName, String tableName) {
+    return cache.get(tableKey(schemaName, tableName));
+  }
+
+  /**
+   * Caches the definition of the table if no DDL has been issued since
+   * readVersion was obtained from getVersion().
+   *
+   * @param schemaName
+   * @param tableName
+   * @param definition
+   * @param readVersion
+   */
+  public synchronized void put(String schemaName, String tableName, V definition,
+      long readVersion) {
+    if (readVersion == version) {
+      cache.put(tableKey(schemaName, tableName), definition);
+    }
+  }
+
+  /**
+   * Discards the definition of the given table and advances the version.
+   * Called whenever DDL is issued against the table.
+   *
+   * @param schemaName
+   * @param tableName
+   */
+  public synchronized void invalidate(String schemaName, String tableName) {
+    ++version;
+    cache.remove(tableKey(schemaName, tableName));
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Caches the SQL text that a relational engine generates for a relation so
+ * that it is built once rather than on every call.
+ *
+ * Entries are keyed by statement kind and fully qualified table name. Each
+ * entry remembers the column list it was generated from; if a relation with
+ * the same name but a different column list is presented (e.g., a form was
+ * deleted and another uploaded into the same table name), the entry is
+ * regenerated.
+ *
+ * Thread-safe.
+ */
+public final class RelationSqlCache {
+
+  /**
+   * Generates the SQL text for a statement kind against a relation.
+   */
+  public interface SqlGenerator {
+    String generate(CommonFieldsBase relation);
+  }
+
+  private static final class Entry {
+    final String[] columnNames;
+    final String sql;
+
+    Entry(CommonFieldsBase relation, String sql) {
+      List<DataField> fields = relation.getFieldList();
+      this.columnNames = new String[fields.size()];
+      for (int i = 0; i < columnNames.length; ++i) {
+        columnNames[i] = fields.get(i).getName();
+      }
+      this.sql = sql;
+    }
+
+    boolean isFor(CommonFieldsBase relation) {
+      List<DataField> fields = relation.getFieldList();
+      if (fields.size() != columnNames.length) {
+        return false;
+      }
+      for (int i = 0; i < columnNames.length; ++i) {
+        if (!columnNames[i].equals(fields.get(i).getName())) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+  public RelationSqlCache() {
+  }
+
+  private static String tableKey(String schemaName, String tableName) {
+    return schemaName + "." + tableName;
+  }
+
+  /**
+   * Returns the cached SQL text for this statement kind and relation,
+   * generating and caching it if it is not already present.
+   *
+   * @param statementKind
+   *          distinguishes the statements cached for a single relation.
+   * @param relation
+   * @param generator
+   *          used to construct the SQL text if it is not cached.
+   * @return the SQL text.
+   */
+  public String getSql(String statementKind, CommonFieldsBase relation, SqlGenerator generator) {
+    String key = statementKind + ":"
+        + tableKey(relation.getSchemaName(), relation.getTableName());
+    Entry e = cache.get(key);
+    if (e == null || !e.isFor(relation)) {
+      e = new Entry(relation, generator.generate(relation));
+      cache.put(key, e);
+    }
+    return e.sql;
+  }
+
+  /**
+   * Discards all statements cached for the given table.
+   *
+   * @param schemaName
+   * @param tableName
+   */
+  public void invalidate(String schemaName, String tableName) {
+    String suffix = ":" + tableKey(schemaName, tableName);
+    for (String key : cache.keySet()) {
+      if (key.endsWith(suffix)) {
+        cache.remove(key);
+      }
+    }
+  }
+}
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.LoggerFactory;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -258,6 +259,38 @@ public class DatastoreImpl implements Datastore {
     return (T) row;
   }
 
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T extends CommonFieldsBase> List<T> getEntities(T relation, Collection<String> uris,
+      User user) throws ODKDatastoreException {
+    List<Key> keys = new ArrayList<Key>();
+    for (String uri : uris) {
+      keys.add(constructGaeKey(relation, uri));
+    }
+    Map<Key, com.google.appengine.api.datastore.Entity> gaeEntities;
+    try {
+      gaeEntities = ds.get(keys);
+    } catch (OverQuotaException e) {
+      throw new ODKOverQuotaException(e);
+    } catch (Exception e) {
+      throw new ODKDatastoreException(e);
+    }
+
+    List<T> results = new ArrayList<T>();
+    for (com.google.appengine.api.datastore.Entity gaeEntity : gaeEntities.values()) {
+      dam.recordGetUsage(relation);
+      CommonFieldsBase row;
+      try {
+        row = relation.getEmptyRow(user);
+      } catch (Exception e) {
+        throw new IllegalStateException("failed to create empty row", e);
+      }
+      updateRowFromGae(row, gaeEntity);
+      results.add((T) row);
+    }
+    return results;
+  }
+
   @Override
   public Query createQuery(CommonFieldsBase table, String loggingContextTag, User user) {
     Query query = new QueryImpl(table, loggingContextTag, this, user);
@@ -59,6 +59,8 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
 
   private static final boolean isWorkingZigZagEqualityFiltering = false;
 
+  private static final int DEFAULT_STREAM_FETCH_SIZE = 500;
+
   static final Map<FilterOperation, FilterOperator> operationMap = new HashMap<FilterOperation, FilterOperator>();
 
   static {
@@ -953,6 +955,28 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
     }
   }
 
+  @Override
+  public void forEach(RowCallback callback, int fetchSize) throws ODKDatastoreException,
+      ODKOverQuotaException {
+    // page through the query with resume cursors; the core query logic
+    // already reads each page through chunked GAE iterators.
+    int pageSize = (fetchSize > 0) ? fetchSize : DEFAULT_STREAM_FETCH_SIZE;
+    establishDominantSort();
+    QueryResumePoint cursor = null;
+    for (;;) {
+      QueryResult r = executeQuery(cursor, pageSize);
+      for (CommonFieldsBase cb : r.getResultList()) {
+        if (!callback.processRow(cb)) {
+          return;
+        }
+      }
+      if (!r.hasMoreResults()) {
+        return;
+      }
+      cursor = r.getResumeCursor();
+    }
+  }
+
   @Override
   public Set<EntityKey> executeForeignKeyQuery(CommonFieldsBase topLevelTable,
       DataField topLevelAuri) throws ODKDatastoreException, ODKOverQuotaException {
@@ -1012,4 +1036,97 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
     }
     return values;
   }
+
+  @Override
+  public long count() throws ODKDatastoreException, ODKOverQuotaException {
+    // filters that GAE cannot evaluate are applied in memory by the core
+    // query logic, so the native entity count would be wrong; count the
+    // matching rows as they stream past instead.
+    final long[] count = { 0L };
+    forEach(new RowCallback() {
+      @Override
+      public boolean processRow(CommonFieldsBase row) {
+        ++count[0];
+        return true;
+      }
+    }, 0);
+    return count[0];
+  }
+
+  private static Object getAggregateFieldValue(CommonFieldsBase row, DataField dataField) {
+    switch (dataField.getDataType()) {
+    case BINARY:
+      throw new IllegalStateException("cannot aggregate a binary field");
+    case LONG_STRING:
+    case URI:
+    case STRING:
+      return row.getStringField(dataField);
+    case INTEGER:
+      return row.getLongField(dataField);
+    case DECIMAL:
+      return row.getNumericField(dataField);
+    case BOOLEAN:
+      return row.getBooleanField(dataField);
+    case DATETIME:
+      return row.getDateField(dataField);
+    default:
+      throw new IllegalStateException("unexpected data type");
+    }
+  }
+
+  private Object executeMinMax(final DataField dataField, final boolean isMax)
+      throws ODKDatastoreException, ODKOverQuotaException {
+    if (dataField.getDataType() == DataType.BINARY) {
+      throw new IllegalStateException("cannot aggregate a binary field");
+    }
+    final Object[] extreme = { null };
+    forEach(new RowCallback() {
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      @Override
+      public boolean processRow(CommonFieldsBase row) {
+        Object value = getAggregateFieldValue(row, dataField);
+        if (value != null) {
+          if (extreme[0] == null) {
+            extreme[0] = value;
+          } else {
+            int cmp = ((Comparable) value).compareTo(extreme[0]);
+            if (isMax ? (cmp > 0) : (cmp < 0)) {
+              extreme[0] = value;
+            }
+          }
+        }
+        return true;
+      }
+    }, 0);
+    return extreme[0];
+  }
+
+  @Override
+  public Object min(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException {
+    return executeMinMax(dataField, false);
+  }
+
+  @Override
+  public Object max(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException {
+    return executeMinMax(dataField, true);
+  }
+
+  @Override
+  public Map<Object, Long> countByValue(final DataField dataField) throws ODKDatastoreException,
+      ODKOverQuotaException {
+    if (dataField.getDataType() == DataType.BINARY) {
+      throw new IllegalStateException("cannot aggregate a binary field");
+    }
+    final Map<Object, Long> counts = new HashMap<Object, Long>();
+    forEach(new RowCallback() {
+      @Override
+      public boolean processRow(CommonFieldsBase row) {
+        Object value = getAggregateFieldValue(row, dataField);
+        Long count = counts.get(value);
+        counts.put(value, (count == null) ? 1L : count + 1L);
+        return true;
+      }
+    }, 0);
+    return counts;
+  }
 }
@@ -20,6 +20,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -33,10 +35,11 @@ import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
-import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.RelationSchemaCache;
+import org.opendatakit.common.persistence.engine.RelationSqlCache;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -68,7 +71,13 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   // unknown what the limit is MySQL capacity; I suspect 64k.
   private static final int MAX_BIND_PARAMS = 65000;
 
+  // number of keys bound into a single ... WHERE _URI IN (...) statement
+  private static final int MAX_IN_CLAUSE_KEYS = 1000;
+
   private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  private final RelationSqlCache sqlCache = new RelationSqlCache();
+  private final RelationSchemaCache<Map<String, TableDefinition>> schemaCache =
+      new RelationSchemaCache<Map<String, TableDefinition>>();
   private DataSource dataSource = null;
   private DataSourceTransactionManager tm = null;
 
@@ -133,6 +142,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_UPDATE = "UPDATE ";
   public static final String K_SET = " SET ";
   public static final String K_DELETE_FROM = "DELETE FROM ";
+  public static final String K_IN = " IN ";
 
   public static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   public static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
@@ -462,6 +472,11 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     dam.recordQueryUsage(relation, recCount);
   }
 
+  void recordQueryUsage(CommonFieldsBase relation, int readCount, int resultCount,
+      long elapsedNanos) {
+    dam.recordQueryUsage(relation, readCount, resultCount, elapsedNanos);
+  }
+
   @Override
   public String getDefaultSchemaName() {
     return schemaName;
@@ -484,81 +499,93 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   private final boolean updateRelation(JdbcTemplate jc, CommonFieldsBase relation,
       String originalStatement) {
 
+    long version = schemaCache.getVersion();
     Map<String, TableDefinition> map = TableDefinition.query(relation.getSchemaName(),
         relation.getTableName(), jc, dam);
 
     if (map.size() > 0) {
+      verifyRelation(relation, map, originalStatement);
+      schemaCache.put(relation.getSchemaName(), relation.getTableName(), map, version);
+      return true;
+    } else {
+      return false;
+    }
+  }
 
-      // we may have gotten some results into columns -- go through the fields
-      // and
-      // assemble the results... we don't care about additional columns in the
-      // map...
-      for (DataField f : relation.getFieldList()) {
-        TableDefinition d = map.get(f.getName());
-        if (d == null) {
-          StringBuilder b = new StringBuilder();
-          if (originalStatement == null) {
-            b.append(" Retrieving expected definition (");
-            boolean first = true;
-            for (DataField field : relation.getFieldList()) {
-              if (!first) {
-                b.append(K_CS);
-              }
-              first = false;
-              b.append(field.getName());
+  /**
+   * Verifies that the table definition read from the information schema can
+   * hold the relation, and updates the relation's fields with the actual
+   * column dimensions. The table definition is not modified.
+   */
+  private static void verifyRelation(CommonFieldsBase relation,
+      Map<String, TableDefinition> map, String originalStatement) {
+    // we may have gotten some results into columns -- go through the fields
+    // and
+    // assemble the results... we don't care about additional columns in the
+    // map...
+    for (DataField f : relation.getFieldList()) {
+      TableDefinition d = map.get(f.getName());
+      if (d == null) {
+        StringBuilder b = new StringBuilder();
+        if (originalStatement == null) {
+          b.append(" Retrieving expected definition (");
+          boolean first = true;
+          for (DataField field : relation.getFieldList()) {
+            if (!first) {
+              b.append(K_CS);
             }
-            b.append(")");
-          } else {
-            b.append(" Created with: ");
-            b.append(originalStatement);
+            first = false;
+            b.append(field.getName());
           }
-          throw new IllegalStateException(
-              "did not find expected column " + f.getName() + " in table "
-                  + relation.getSchemaName() + "." + relation.getTableName() + b.toString());
-        }
-        if (f.getDataType() == DataField.DataType.BOOLEAN
-            && d.getDataType() == DataField.DataType.STRING) {
-          d.setDataType(DataField.DataType.BOOLEAN);
-          // don't care about size...
+          b.append(")");
+        } else {
+          b.append(" Created with: ");
+          b.append(originalStatement);
         }
+        throw new IllegalStateException(
+            "did not find expected column " + f.getName() + " in table "
+                + relation.getSchemaName() + "." + relation.getTableName() + b.toString());
+      }
+      DataField.DataType columnType = d.getDataType();
+      if (f.getDataType() == DataField.DataType.BOOLEAN
+          && columnType == DataField.DataType.STRING) {
+        columnType = DataField.DataType.BOOLEAN;
+        // don't care about size...
+      }
 
-        if (d.getDataType() == DataField.DataType.STRING && f.getMaxCharLen() != null
-            && f.getMaxCharLen().compareTo(d.getMaxCharLen()) > 0) {
-          throw new IllegalStateException("column " + f.getName() + " in table "
-              + relation.getSchemaName() + "." + relation.getTableName()
-              + " stores string-valued keys but is shorter than required by Aggregate "
-              + d.getMaxCharLen().toString() + " < " + f.getMaxCharLen().toString());
-        }
+      if (columnType == DataField.DataType.STRING && f.getMaxCharLen() != null
+          && f.getMaxCharLen().compareTo(d.getMaxCharLen()) > 0) {
+        throw new IllegalStateException("column " + f.getName() + " in table "
+            + relation.getSchemaName() + "." + relation.getTableName()
+            + " stores string-valued keys but is shorter than required by Aggregate "
+            + d.getMaxCharLen().toString() + " < " + f.getMaxCharLen().toString());
+      }
 
-        if (f.getDataType() == DataField.DataType.URI) {
-          if (d.getDataType() != DataField.DataType.STRING) {
-            throw new IllegalStateException(
-                "column " + f.getName() + " in table " + relation.getSchemaName() + "."
-                    + relation.getTableName() + " stores URIs but is not a string field");
-          }
-          d.setDataType(DataField.DataType.URI);
+      if (f.getDataType() == DataField.DataType.URI) {
+        if (columnType != DataField.DataType.STRING) {
+          throw new IllegalStateException(
+              "column " + f.getName() + " in table " + relation.getSchemaName() + "."
+                  + relation.getTableName() + " stores URIs but is not a string field");
         }
+        columnType = DataField.DataType.URI;
+      }
 
-        if (d.getDataType() != f.getDataType()) {
-          throw new IllegalStateException("column " + f.getName() + " in table "
-              + relation.getSchemaName() + "." + relation.getTableName()
-              + " is not of the expected type " + f.getDataType().toString());
-        }
+      if (columnType != f.getDataType()) {
+        throw new IllegalStateException("column " + f.getName() + " in table "
+            + relation.getSchemaName() + "." + relation.getTableName()
+            + " is not of the expected type " + f.getDataType().toString());
+      }
 
-        // it is OK for the data model to be more strict than the data store.
-        if (!d.isNullable() && f.getNullable()) {
-          throw new IllegalStateException("column " + f.getName() + " in table "
-              + relation.getSchemaName() + "." + relation.getTableName()
-              + " is defined as NOT NULL but the data model requires NULL");
-        }
-        f.setMaxCharLen(d.getMaxCharLen());
-        f.setNumericPrecision(d.getNumericPrecision());
-        f.setNumericScale(d.getNumericScale());
-        f.asDoublePrecision(d.isDoublePrecision());
+      // it is OK for the data model to be more strict than the data store.
+      if (!d.isNullable() && f.getNullable()) {
+        throw new IllegalStateException("column " + f.getName() + " in table "
+            + relation.getSchemaName() + "." + relation.getTableName()
+            + " is defined as NOT NULL but the data model requires NULL");
       }
-      return true;
-    } else {
-      return false;
+      f.setMaxCharLen(d.getMaxCharLen());
+      f.setNumericPrecision(d.getNumericPrecision());
+      f.setNumericScale(d.getNumericScale());
+      f.asDoublePrecision(d.isDoublePrecision());
     }
   }
 
@@ -567,6 +594,19 @@ public class DatastoreImpl implements Datastore, InitializingBean {
    */
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    Map<String, TableDefinition> cachedDefinition = schemaCache.get(relation.getSchemaName(),
+        relation.getTableName());
+    if (cachedDefinition != null) {
+      try {
+        // already verified against the information schema
+        verifyRelation(relation, cachedDefinition, null);
+        return;
+      } catch (IllegalStateException e) {
+        // the relation differs from the cached definition; consult the
+        // information schema, which will report the error if it persists.
+        schemaCache.invalidate(relation.getSchemaName(), relation.getTableName());
+      }
+    }
     JdbcTemplate jc = getJdbcConnection();
     // TODO: transactions are questionable here, as MySQL (and Oracle) do 
     // TODO: not evaluate DDL statements under transactional semantics.
@@ -735,6 +775,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         String createTableStmt = b.toString();
         LoggerFactory.getLogger(DatastoreImpl.class).info("Attempting: " + createTableStmt);
         jc.execute(createTableStmt);
+        schemaCache.invalidate(relation.getSchemaName(), relation.getTableName());
+        sqlCache.invalidate(relation.getSchemaName(), relation.getTableName());
         LoggerFactory.getLogger(DatastoreImpl.class)
             .info("create table success (before updateRelation): " + relation.getTableName());
 
@@ -796,6 +838,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       LoggerFactory.getLogger(DatastoreImpl.class)
           .info("Executing " + b.toString() + " by user " + user.getUriUser());
       getJdbcConnection().execute(b.toString());
+      schemaCache.invalidate(relation.getSchemaName(), relation.getTableName());
+      sqlCache.invalidate(relation.getSchemaName(), relation.getTableName());
     } catch (Exception e) {
       LoggerFactory.getLogger(DatastoreImpl.class)
           .warn(relation.getTableName() + " exception: " + e.toString());
@@ -823,24 +867,264 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return row;
   }
 
+  private static final String K_STMT_SELECT = "select";
+  private static final String K_STMT_SELECT_BY_URI = "selectByUri";
+  private static final String K_STMT_SELECT_BY_URI_PREFIX = "selectByUriPrefix";
+  private static final String K_STMT_INSERT = "insert";
+  private static final String K_STMT_UPDATE_BY_URI = "updateByUri";
+  private static final String K_STMT_DELETE_BY_URI = "deleteByUri";
+  private static final String K_STMT_DELETE_BY_URI_PREFIX = "deleteByUriPrefix";
+
+  private static void appendTableName(StringBuilder b, CommonFieldsBase relation) {
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+  }
+
+  /**
+   * SELECT ... FROM ... -- the caller appends any WHERE and ORDER BY clauses.
+   */
+  private static final RelationSqlCache.SqlGenerator select = new RelationSqlCache.SqlGenerator() {
+    @Override
+    public String generate(CommonFieldsBase relation) {
+      StringBuilder b = new StringBuilder();
+      b.append(K_SELECT);
+      boolean first = true;
+      for (DataField f : relation.getFieldList()) {
+        if (!first) {
+          b.append(K_CS);
+        }
+        first = false;
+        b.append(K_BQ);
+        b.append(f.getName());
+        b.append(K_BQ);
+      }
+      b.append(K_FROM);
+      appendTableName(b, relation);
+      return b.toString();
+    }
+  };
+
+  /**
+   * SELECT ... FROM ... WHERE _URI -- the caller appends the comparison.
+   */
+  private static final RelationSqlCache.SqlGenerator selectByUriPrefix = new RelationSqlCache.SqlGenerator() {
+    @Override
+    public String generate(CommonFieldsBase relation) {
+      StringBuilder b = new StringBuilder(select.generate(relation));
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+      return b.toString();
+    }
+  };
+
+  private static final RelationSqlCache.SqlGenerator selectByUri = new RelationSqlCache.SqlGenerator() {
+    @Override
+    public String generate(CommonFieldsBase relation) {
+      return selectByUriPrefix.generate(relation) + K_EQ + K_BIND_VALUE;
+    }
+  };
+
+  /**
+   * INSERT INTO ... ( all fields ) VALUES ( ?, ... ) -- bind the values with
+   * buildInsertArgumentList().
+   */
+  private static final RelationSqlCache.SqlGenerator insert = new RelationSqlCache.SqlGenerator() {
+    @Override
+    public String generate(CommonFieldsBase relation) {
+      StringBuilder b = new StringBuilder();
+      b.append(K_INSERT_INTO);
+      appendTableName(b, relation);
+      boolean first = true;
+      b.append(K_OPEN_PAREN);
+      // fields...
+      for (DataField f : relation.getFieldList()) {
+        if (!first) {
+          b.append(K_CS);
+        }
+        first = false;
+        b.append(K_BQ);
+        b.append(f.getName());
+        b.append(K_BQ);
+      }
+      b.append(K_CLOSE_PAREN);
+      b.append(K_VALUES);
+
+      first = true;
+      b.append(K_OPEN_PAREN);
+      for (int i = 0; i < relation.getFieldList().size(); ++i) {
+        if (!first) {
+          b.append(K_CS);
+        }
+        first = false;
+        b.append(K_BIND_VALUE);
+      }
+      b.append(K_CLOSE_PAREN);
+      return b.toString();
+    }
+  };
+
+  /**
+   * UPDATE ... SET (non-key fields) = ? WHERE _URI = ? -- bind the values with
+   * buildUpdateArgumentList().
+   */
+  private static final RelationSqlCache.SqlGenerator updateByUri = new RelationSqlCache.SqlGenerator() {
+    @Override
+    public String generate(CommonFieldsBase relation) {
+      StringBuilder b = new StringBuilder();
+      b.append(K_UPDATE);
+      appendTableName(b, relation);
+      b.append(K_SET);
+
+      boolean first = true;
+      // fields...
+      for (DataField f : relation.getFieldList()) {
+        // primary key goes in the where clause...
+        if (f == relation.primaryKey)
+          continue;
+        if (!first) {
+          b.append(K_CS);
+        }
+        first = false;
+        b.append(K_BQ);
+        b.append(f.getName());
+        b.append(K_BQ);
+        b.append(K_EQ);
+        b.append(K_BIND_VALUE);
+      }
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      return b.toString();
+    }
+  };
+
+  /**
+   * DELETE FROM ... WHERE _URI -- the caller appends the comparison.
+   */
+  private static final RelationSqlCache.SqlGenerator deleteByUriPrefix = new RelationSqlCache.SqlGenerator() {
+    @Override
+    public String generate(CommonFieldsBase relation) {
+      StringBuilder b = new StringBuilder();
+      b.append(K_DELETE_FROM);
+      appendTableName(b, relation);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+      return b.toString();
+    }
+  };
+
+  private static final RelationSqlCache.SqlGenerator deleteByUri = new RelationSqlCache.SqlGenerator() {
+    @Override
+    public String generate(CommonFieldsBase relation) {
+      return deleteByUriPrefix.generate(relation) + K_EQ + K_BIND_VALUE;
+    }
+  };
+
+  /**
+   * @param relation
+   * @return the cached SELECT ... FROM ... statement for the relation.
+   */
+  String getSelectSql(CommonFieldsBase relation) {
+    return sqlCache.getSql(K_STMT_SELECT, relation, select);
+  }
+
+  private static List<SqlParameterValue> buildInsertArgumentList(CommonFieldsBase entity) {
+    List<SqlParameterValue> pv = new ArrayList<SqlParameterValue>(entity.getFieldList().size());
+    for (DataField f : entity.getFieldList()) {
+      buildArgumentList(pv, entity, f);
+    }
+    return pv;
+  }
+
+  private static List<SqlParameterValue> buildUpdateArgumentList(CommonFieldsBase entity) {
+    List<SqlParameterValue> pv = new ArrayList<SqlParameterValue>(entity.getFieldList().size());
+    for (DataField f : entity.getFieldList()) {
+      // primary key goes in the where clause...
+      if (f == entity.primaryKey)
+        continue;
+      buildArgumentList(pv, entity, f);
+    }
+    buildArgumentList(pv, entity, entity.primaryKey);
+    return pv;
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user)
       throws ODKEntityNotFoundException {
-    Query query = new QueryImpl(relation, "getEntity", this, user);
-    query.addFilter(relation.primaryKey, FilterOperation.EQUAL, uri);
-    dam.recordGetUsage(relation);
+    String sql = sqlCache.getSql(K_STMT_SELECT_BY_URI, relation, selectByUri);
+    List<? extends CommonFieldsBase> results;
+    long startNanos = System.nanoTime();
     try {
-      List<? extends CommonFieldsBase> results = query.executeQuery();
-      if (results == null || results.size() != 1) {
-        throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
-            + relation.getTableName() + " key: " + uri);
-      }
-      return (T) results.get(0);
-    } catch (ODKDatastoreException e) {
+      results = getJdbcConnection().query(sql,
+          new Object[] { getBindValue(relation.primaryKey, uri) },
+          new RelationRowMapper(relation, user));
+    } catch (Exception e) {
       throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
           + relation.getTableName() + " key: " + uri, e);
+    } finally {
+      dam.recordGetUsage(relation, System.nanoTime() - startNanos);
+    }
+    if (results == null || results.size() != 1) {
+      throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
+          + relation.getTableName() + " key: " + uri);
+    }
+    return (T) results.get(0);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T extends CommonFieldsBase> List<T> getEntities(T relation, Collection<String> uris,
+      User user) throws ODKDatastoreException {
+    List<T> results = new ArrayList<T>();
+    if (uris.isEmpty()) {
+      return results;
+    }
+    List<String> uriList = new ArrayList<String>(new LinkedHashSet<String>(uris));
+    String prefix = sqlCache.getSql(K_STMT_SELECT_BY_URI_PREFIX, relation, selectByUriPrefix);
+    RelationRowMapper rowMapper = new RelationRowMapper(relation, user);
+
+    for (int idxStart = 0; idxStart < uriList.size(); idxStart += MAX_IN_CLAUSE_KEYS) {
+      int idxAfterEnd = Math.min(idxStart + MAX_IN_CLAUSE_KEYS, uriList.size());
+      StringBuilder b = new StringBuilder(prefix);
+      b.append(K_IN);
+      b.append(K_OPEN_PAREN);
+      Object[] args = new Object[idxAfterEnd - idxStart];
+      for (int i = idxStart; i < idxAfterEnd; ++i) {
+        if (i != idxStart) {
+          b.append(K_CS);
+        }
+        b.append(K_BIND_VALUE);
+        args[i - idxStart] = getBindValue(relation.primaryKey, uriList.get(i));
+      }
+      b.append(K_CLOSE_PAREN);
+
+      long startNanos = System.nanoTime();
+      try {
+        List<CommonFieldsBase> l = getJdbcConnection().query(b.toString(), args, rowMapper);
+        dam.recordQueryUsage(relation, l.size(), l.size(), System.nanoTime() - startNanos);
+        for (CommonFieldsBase cb : l) {
+          results.add((T) cb);
+        }
+      } catch (Exception e) {
+        dam.recordQueryUsage(relation, 0);
+        throw new ODKDatastoreException("Unable to retrieve " + relation.getSchemaName() + "."
+            + relation.getTableName() + " keys", e);
+      }
     }
+    return results;
   }
 
   @Override
@@ -932,113 +1216,58 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
-    dam.recordPutUsage(entity);
+    long startNanos = System.nanoTime();
     try {
-      boolean first;
-      StringBuilder b = new StringBuilder();
       if (entity.isFromDatabase()) {
         // we need to do an update
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-        b.append(K_UPDATE);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        b.append(K_SET);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          // primary key goes in the where clause...
-          if (f == entity.primaryKey)
-            continue;
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
-          buildArgumentList(pv, entity, f);
-        }
-        b.append(K_WHERE);
-        b.append(K_BQ);
-        b.append(entity.primaryKey.getName());
-        b.append(K_BQ);
-        b.append(K_EQ);
-        b.append(K_BIND_VALUE);
-        buildArgumentList(pv, entity, entity.primaryKey);
-
         // update...
-        String sql = b.toString();
-        ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
+        String sql = sqlCache.getSql(K_STMT_UPDATE_BY_URI, entity, updateByUri);
+        ReusableStatementSetter setter = new ReusableStatementSetter(sql,
+            buildUpdateArgumentList(entity));
         getJdbcConnection().update(sql, setter);
       } else {
         // not yet in database -- insert
-        b.append(K_INSERT_INTO);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-        }
-        b.append(K_CLOSE_PAREN);
-        b.append(K_VALUES);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BIND_VALUE);
-          buildArgumentList(pv, entity, f);
-        }
-        b.append(K_CLOSE_PAREN);
-
-        // insert...
-        String sql = b.toString();
-        ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
+        String sql = sqlCache.getSql(K_STMT_INSERT, entity, insert);
+        ReusableStatementSetter setter = new ReusableStatementSetter(sql,
+            buildInsertArgumentList(entity));
         getJdbcConnection().update(sql, setter);
         entity.setFromDatabase(true); // now it is in the database...
       }
     } catch (Exception e) {
+      // the table may have been dropped or recreated by another server
+      schemaCache.invalidate(entity.getSchemaName(), entity.getTableName());
       throw new ODKEntityPersistException(e);
+    } finally {
+      dam.recordPutUsage(entity, 1, System.nanoTime() - startNanos);
     }
   }
 
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entityList, User user)
       throws ODKEntityPersistException {
+    // group the entities by relation and by insert vs. update so that
+    // each group can be sent to the database as a JDBC batch.
+    Map<String, List<CommonFieldsBase>> batches = new LinkedHashMap<String, List<CommonFieldsBase>>();
     for (CommonFieldsBase d : entityList) {
-      putEntity(d, user);
+      String batchKey = (d.isFromDatabase() ? K_UPDATE : K_INSERT_INTO) + d.getSchemaName() + "."
+          + d.getTableName();
+      List<CommonFieldsBase> batch = batches.get(batchKey);
+      if (batch == null) {
+        batch = new ArrayList<CommonFieldsBase>();
+        batches.put(batchKey, batch);
+      }
+      batch.add(d);
+    }
+
+    for (List<CommonFieldsBase> batch : batches.values()) {
+      if (batch.size() == 1) {
+        putEntity(batch.get(0), user);
+      } else {
+        batchAlterData(batch, user);
+      }
     }
   }
 
@@ -1095,122 +1324,29 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       return;
     }
 
-    boolean generateSQL = true;
-    String sql = null;
-    List<List<SqlParameterValue> > batchArgs = new ArrayList<List<SqlParameterValue> >();
-    StringBuilder b = new StringBuilder();
+    // the changes were grouped by relation and by insert vs. update
+    CommonFieldsBase firstEntity = allChanges.get(idxStart);
+    String sql = firstEntity.isFromDatabase()
+        ? sqlCache.getSql(K_STMT_UPDATE_BY_URI, firstEntity, updateByUri)
+        : sqlCache.getSql(K_STMT_INSERT, firstEntity, insert);
+    List<List<SqlParameterValue> > batchArgs = new ArrayList<List<SqlParameterValue> >(
+        idxAfterEnd - idxStart);
 
     for (int idx = idxStart ; idx < idxAfterEnd ; ++idx ) {
       CommonFieldsBase entity = allChanges.get(idx);
-      dam.recordPutUsage(entity);
-
-      boolean first;
-      b.setLength(0);
-
-      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
 
       if (entity.isFromDatabase()) {
         // we need to do an update
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
-
-        if (generateSQL) {
-          b.append(K_UPDATE);
-          b.append(K_BQ);
-          b.append(entity.getSchemaName());
-          b.append(K_BQ);
-          b.append(".");
-          b.append(K_BQ);
-          b.append(entity.getTableName());
-          b.append(K_BQ);
-          b.append(K_SET);
-        }
-
-        first = true;
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          // primary key goes in the where clause...
-          if (f == entity.primaryKey)
-            continue;
-
-          if (generateSQL) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BQ);
-            b.append(f.getName());
-            b.append(K_BQ);
-            b.append(K_EQ);
-            b.append(K_BIND_VALUE);
-          }
-
-          buildArgumentList(pv, entity, f);
-        }
-        if (generateSQL) {
-          b.append(K_WHERE);
-          b.append(K_BQ);
-          b.append(entity.primaryKey.getName());
-          b.append(K_BQ);
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
-        }
-        buildArgumentList(pv, entity, entity.primaryKey);
-
+        batchArgs.add(buildUpdateArgumentList(entity));
       } else {
-        if (generateSQL) {
-          // not yet in database -- insert
-          b.append(K_INSERT_INTO);
-          b.append(K_BQ);
-          b.append(entity.getSchemaName());
-          b.append(K_BQ);
-          b.append(".");
-          b.append(K_BQ);
-          b.append(entity.getTableName());
-          b.append(K_BQ);
-          first = true;
-          b.append(K_OPEN_PAREN);
-          // fields...
-          for (DataField f : entity.getFieldList()) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BQ);
-            b.append(f.getName());
-            b.append(K_BQ);
-          }
-          b.append(K_CLOSE_PAREN);
-          b.append(K_VALUES);
-          b.append(K_OPEN_PAREN);
-        }
-
-        first = true;
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (generateSQL) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BIND_VALUE);
-          }
-          buildArgumentList(pv, entity, f);
-        }
-
-        if (generateSQL) {
-          b.append(K_CLOSE_PAREN);
-        }
-      }
-
-      if (generateSQL) {
-        b.append(K_COLON);
-        sql = b.toString();
+        // not yet in database -- insert
+        batchArgs.add(buildInsertArgumentList(entity));
       }
-      generateSQL = false;
-      batchArgs.add(pv);
     }
 
+    long startNanos = System.nanoTime();
     try {
       // update...
       BatchStatementFieldSetter setter = new BatchStatementFieldSetter(sql, batchArgs);
@@ -1224,51 +1360,62 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         }
       }
     } catch (Exception e) {
+      // the table may have been dropped or recreated by another server
+      schemaCache.invalidate(firstEntity.getSchemaName(), firstEntity.getTableName());
       throw new ODKEntityPersistException(e);
+    } finally {
+      dam.recordPutUsage(allChanges.get(idxStart), idxAfterEnd - idxStart,
+          System.nanoTime() - startNanos);
     }
   }
 
   @Override
   public void deleteEntity(EntityKey key, User user) throws ODKDatastoreException {
 
-    dam.recordDeleteUsage(key);
+    long startNanos = System.nanoTime();
     try {
       CommonFieldsBase d = key.getRelation();
+      String sql = sqlCache.getSql(K_STMT_DELETE_BY_URI, d, deleteByUri);
 
-      StringBuilder b = new StringBuilder();
-      b.append(K_DELETE_FROM);
-      b.append(K_BQ);
-      b.append(d.getSchemaName());
-      b.append(K_BQ);
-      b.append(".");
-      b.append(K_BQ);
-      b.append(d.getTableName());
-      b.append(K_BQ);
-      b.append(K_WHERE);
-      b.append(K_BQ);
-      b.append(d.primaryKey.getName());
-      b.append(K_BQ);
-      b.append(K_EQ);
-      b.append(K_BIND_VALUE);
-
-      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[] { key.getKey() });
+      getJdbcConnection().update(sql, new Object[] { key.getKey() });
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
+    } finally {
+      dam.recordDeleteUsage(key.getRelation(), 1, System.nanoTime() - startNanos);
     }
   }
 
   @Override
   public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
-    ODKDatastoreException e = null;
+    // group the keys by relation. The access-ordered map places each
+    // relation at the position of its last key, so that relations whose
+    // keys precede their parents' keys are still deleted first.
+    Map<String, List<EntityKey>> groups = new LinkedHashMap<String, List<EntityKey>>(16, 0.75f,
+        true);
     for (EntityKey k : keys) {
-      try {
-        deleteEntity(k, user);
-      } catch (ODKDatastoreException ex) {
-        ex.printStackTrace();
-        if (e == null) {
-          e = ex; // save the first exception...
+      CommonFieldsBase d = k.getRelation();
+      String groupKey = d.getSchemaName() + "." + d.getTableName();
+      List<EntityKey> group = groups.get(groupKey);
+      if (group == null) {
+        group = new ArrayList<EntityKey>();
+        groups.put(groupKey, group);
+      }
+      group.add(k);
+    }
+
+    ODKDatastoreException e = null;
+    for (List<EntityKey> group : groups.values()) {
+      for (int idxStart = 0; idxStart < group.size(); idxStart += MAX_IN_CLAUSE_KEYS) {
+        int idxAfterEnd = Math.min(idxStart + MAX_IN_CLAUSE_KEYS, group.size());
+        try {
+          partialDeleteEntities(group.subList(idxStart, idxAfterEnd), user);
+        } catch (ODKDatastoreException ex) {
+          ex.printStackTrace();
+          if (e == null) {
+            e = ex; // save the first exception...
+          }
         }
       }
     }
@@ -1276,6 +1423,50 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       throw e; // throw the first exception...
   }
 
+  /**
+   * Deletes a chunk of rows from a single relation with one
+   * DELETE ... WHERE _URI IN (...) statement.
+   *
+   * @param keys
+   *          keys of the rows to delete; all within the same relation.
+   * @param user
+   * @throws ODKDatastoreException
+   */
+  private void partialDeleteEntities(List<EntityKey> keys, User user)
+      throws ODKDatastoreException {
+    if (keys.size() == 1) {
+      deleteEntity(keys.get(0), user);
+      return;
+    }
+
+    CommonFieldsBase d = keys.get(0).getRelation();
+    long startNanos = System.nanoTime();
+    try {
+      StringBuilder b = new StringBuilder(
+          sqlCache.getSql(K_STMT_DELETE_BY_URI_PREFIX, d, deleteByUriPrefix));
+      b.append(K_IN);
+      b.append(K_OPEN_PAREN);
+      Object[] args = new Object[keys.size()];
+      for (int i = 0; i < keys.size(); ++i) {
+        if (i != 0) {
+          b.append(K_CS);
+        }
+        b.append(K_BIND_VALUE);
+        args[i] = keys.get(i).getKey();
+      }
+      b.append(K_CLOSE_PAREN);
+
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + K_DELETE_FROM
+          + d.getSchemaName() + "." + d.getTableName() + " with " + keys.size()
+          + " keys by user " + user.getUriUser());
+      getJdbcConnection().update(b.toString(), args);
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    } finally {
+      dam.recordDeleteUsage(d, keys.size(), System.nanoTime() - startNanos);
+    }
+  }
+
   @Override
   public TaskLock createTaskLock(User user) {
     return new TaskLockImpl(this, dam, user);
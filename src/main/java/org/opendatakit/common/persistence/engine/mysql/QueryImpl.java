@@ -13,6 +13,8 @@
  */
 package org.opendatakit.common.persistence.engine.mysql;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -34,6 +36,8 @@ import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.engine.EngineUtils;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.security.User;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
 
@@ -54,10 +58,17 @@ public class QueryImpl implements Query {
   private static final String K_FROM = " FROM ";
   private static final String K_WHERE = " WHERE ";
   private static final String K_AND = " AND ";
+  private static final String K_OR = " OR ";
   private static final String K_IN_OPEN = " IN (";
   private static final String K_IN_CLOSE = ")";
   private static final String K_BIND_VALUE = " ? ";
   private static final String K_ORDER_BY = " ORDER BY ";
+  private static final String K_GROUP_BY = " GROUP BY ";
+  private static final String K_COUNT_ALL = "COUNT(*)";
+  private static final String K_MIN = "MIN(";
+  private static final String K_MAX = "MAX(";
+  private static final String K_CLOSE_PAREN = ")";
+  private static final String K_LIMIT = " LIMIT ";
 
   private static Map<FilterOperation, String> operationMap = new HashMap<FilterOperation, String>();
   private static Map<Direction, String> directionMap = new HashMap<Direction, String>();
@@ -81,6 +92,8 @@ public class QueryImpl implements Query {
   private DataField dominantSortAttr = null;
   private Direction dominantSortDirection = null;
   private boolean isSortedByUri = false;
+  private int sortCount = 0;
+  private boolean isKeysetOrdered = false;
 
   private final StringBuilder queryBindBuilder = new StringBuilder();
   private final List<Object> bindValues = new ArrayList<Object>();
@@ -96,31 +109,8 @@ public class QueryImpl implements Query {
   }
 
   private String generateQuery() {
-    // generate the query
-    StringBuilder baseQueryBuilder = new StringBuilder();
-
-    baseQueryBuilder.append(K_SELECT);
-
-    boolean first = true;
-    for (DataField f : relation.getFieldList()) {
-      if (!first) {
-        baseQueryBuilder.append(K_CS);
-      }
-      first = false;
-      baseQueryBuilder.append(K_BQ);
-      baseQueryBuilder.append(f.getName());
-      baseQueryBuilder.append(K_BQ);
-    }
-    baseQueryBuilder.append(K_FROM);
-    baseQueryBuilder.append(K_BQ);
-    baseQueryBuilder.append(relation.getSchemaName());
-    baseQueryBuilder.append(K_BQ);
-    baseQueryBuilder.append(".");
-    baseQueryBuilder.append(K_BQ);
-    baseQueryBuilder.append(relation.getTableName());
-    baseQueryBuilder.append(K_BQ);
-
-    return baseQueryBuilder.toString();
+    // the SELECT ... FROM ... text is cached per relation by the datastore
+    return dataStoreImpl.getSelectSql(relation);
   }
 
   private String generateDistinctFieldValueQuery(DataField dataField) {
@@ -173,12 +163,21 @@ public class QueryImpl implements Query {
    * Constructs the necessary filter clause to append to the Query filters to
    * support continuation cursors.
    * 
+   * If the sort order is just the dominant sort followed by the PK (or the
+   * dominant sort is the PK), the filter is a keyset predicate on the
+   * (dominant sort, PK) pair and the rows up to and including the last
+   * returned row are excluded by the database. Otherwise, the filter only
+   * excludes rows before the continuation value and the caller must skip
+   * forward to the last returned PK.
+   * 
    * @param queryContinuationBindBuilder
    * @param continuationValue
+   * @param uriLastReturnedValue
+   * @param useKeyset
    * @return the updated bindArgs
    */
   private ArrayList<Object> addContinuationFilter(StringBuilder queryContinuationBindBuilder,
-      Object continuationValue) {
+      Object continuationValue, String uriLastReturnedValue, boolean useKeyset) {
     if (dominantSortAttr == null) {
       throw new IllegalStateException("unexpected state");
     }
@@ -191,18 +190,60 @@ public class QueryImpl implements Query {
     } else {
       queryContinuationBindBuilder.append(K_AND);
     }
+    boolean isAscending = dominantSortDirection.equals(Direction.ASCENDING);
+    String afterOp = operationMap.get(isAscending ? FilterOperation.GREATER_THAN
+        : FilterOperation.LESS_THAN);
+    String atOrAfterOp = operationMap.get(isAscending ? FilterOperation.GREATER_THAN_OR_EQUAL
+        : FilterOperation.LESS_THAN_OR_EQUAL);
+    ArrayList<Object> values = new ArrayList<Object>();
+    values.addAll(bindValues);
+
+    if (useKeyset && dominantSortAttr.equals(relation.primaryKey)) {
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(afterOp);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      values.add(DatastoreImpl.getBindValue(dominantSortAttr, uriLastReturnedValue));
+      return values;
+    }
+
+    // the leading range test keeps this usable as an index range scan
     queryContinuationBindBuilder.append(K_BQ);
     queryContinuationBindBuilder.append(dominantSortAttr.getName());
     queryContinuationBindBuilder.append(K_BQ);
-    queryContinuationBindBuilder.append(operationMap.get(dominantSortDirection
-        .equals(Direction.ASCENDING) ? FilterOperation.GREATER_THAN_OR_EQUAL
-        : FilterOperation.LESS_THAN_OR_EQUAL));
+    queryContinuationBindBuilder.append(atOrAfterOp);
     queryContinuationBindBuilder.append(K_BIND_VALUE);
-    
-    ArrayList<Object> values = new ArrayList<Object>();
-    values.addAll(bindValues);
     values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
-    
+
+    if (useKeyset) {
+      // AND ( dominant > value OR ( dominant = value AND PK > uriLast ) )
+      queryContinuationBindBuilder.append(K_AND);
+      queryContinuationBindBuilder.append("(");
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(afterOp);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      queryContinuationBindBuilder.append(K_OR);
+      queryContinuationBindBuilder.append("(");
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(operationMap.get(FilterOperation.EQUAL));
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      queryContinuationBindBuilder.append(K_AND);
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(relation.primaryKey.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(afterOp);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      queryContinuationBindBuilder.append("))");
+      values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
+      values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
+      values.add(DatastoreImpl.getBindValue(relation.primaryKey, uriLastReturnedValue));
+    }
+
     return values;
   }
 
@@ -240,6 +281,7 @@ public class QueryImpl implements Query {
     querySortBuilder.append(attributeName.getName());
     querySortBuilder.append(K_BQ);
     querySortBuilder.append(directionMap.get(direction));
+    ++sortCount;
 
     // keep track of the dominant sort attribute...
     if (dominantSortAttr == null) {
@@ -250,6 +292,11 @@ public class QueryImpl implements Query {
     // track whether or not the PK is a sort criteria
     if (attributeName.equals(relation.primaryKey)) {
       isSortedByUri = true;
+      // (dominant sort, PK) uniquely orders the rows if the PK is the
+      // dominant sort or immediately follows it in the same direction.
+      if (sortCount == 1 || (sortCount == 2 && direction.equals(dominantSortDirection))) {
+        isKeysetOrdered = true;
+      }
     }
   }
 
@@ -261,11 +308,13 @@ public class QueryImpl implements Query {
     RowMapper<? extends CommonFieldsBase> rowMapper = null;
     rowMapper = new RelationRowMapper(relation, user);
 
+    long startNanos = System.nanoTime();
     try {
       queryStringLogger.debug(query);
       List<? extends CommonFieldsBase> l = dataStoreImpl.getJdbcConnection().query(query,
           bindValues.toArray(), rowMapper);
-      dataStoreImpl.recordQueryUsage(relation, l.size());
+      dataStoreImpl.recordQueryUsage(relation, l.size(), l.size(),
+          System.nanoTime() - startNanos);
       return l;
     } catch (Exception e) {
       dataStoreImpl.recordQueryUsage(relation, 0);
@@ -274,6 +323,35 @@ public class QueryImpl implements Query {
     }
   }
 
+  /**
+   * fetchSize is ignored: the driver streams the rows one at a time, since it
+   * does not honor other fetch sizes unless the connection sets
+   * useCursorFetch.
+   */
+  @Override
+  public void forEach(RowCallback callback, int fetchSize) throws ODKDatastoreException {
+
+    String query = generateQuery() + queryBindBuilder.toString() + querySortBuilder.toString()
+        + ";";
+    RowCallbackConnectionCallback cb = new RowCallbackConnectionCallback(query, callback,
+        new RelationRowMapper(relation, user));
+
+    long startNanos = System.nanoTime();
+    try {
+      queryStringLogger.debug(query);
+      dataStoreImpl.getJdbcConnection().execute(cb);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new ODKDatastoreException(e);
+    } finally {
+      dataStoreImpl.recordQueryUsage(relation, cb.readCount, cb.readCount,
+          System.nanoTime() - startNanos);
+    }
+    if (cb.callbackException != null) {
+      throw cb.callbackException;
+    }
+  }
+
   @Override
   public List<?> executeDistinctValueForDataField(DataField dataField) throws ODKDatastoreException {
 
@@ -312,6 +390,182 @@ public class QueryImpl implements Query {
     return keySet;
   }
 
+  private String generateAggregateQuery(String selectList) {
+    StringBuilder baseQueryBuilder = new StringBuilder();
+    // generate the query
+    baseQueryBuilder.append(K_SELECT);
+    baseQueryBuilder.append(selectList);
+    baseQueryBuilder.append(K_FROM);
+    baseQueryBuilder.append(K_BQ);
+    baseQueryBuilder.append(relation.getSchemaName());
+    baseQueryBuilder.append(K_BQ);
+    baseQueryBuilder.append(".");
+    baseQueryBuilder.append(K_BQ);
+    baseQueryBuilder.append(relation.getTableName());
+    baseQueryBuilder.append(K_BQ);
+
+    return baseQueryBuilder.toString();
+  }
+
+  private void verifyAggregateField(DataField dataField) {
+    if (!relation.getFieldList().contains(dataField)) {
+      throw new IllegalStateException("Attempting to aggregate non-existent data field "
+          + dataField.getName() + " from " + relation.getSchemaName() + "."
+          + relation.getTableName());
+    }
+    if (dataField.getDataType() == DataField.DataType.BINARY) {
+      throw new IllegalStateException("cannot aggregate a binary field");
+    }
+  }
+
+  private String getMinMaxTerm(DataField dataField, boolean isMax) {
+    String column = K_BQ + dataField.getName() + K_BQ;
+    return (isMax ? K_MAX : K_MIN) + column + K_CLOSE_PAREN;
+  }
+
+  @Override
+  public long count() throws ODKDatastoreException {
+
+    // sort criteria are irrelevant to a count
+    String query = generateAggregateQuery(K_COUNT_ALL) + queryBindBuilder.toString() + ";";
+
+    long startNanos = System.nanoTime();
+    try {
+      queryStringLogger.debug(query);
+      Long value = dataStoreImpl.getJdbcConnection().queryForObject(query,
+          bindValues.toArray(), Long.class);
+      dataStoreImpl.recordQueryUsage(relation, 1, 1, System.nanoTime() - startNanos);
+      return (value == null) ? 0L : value;
+    } catch (Exception e) {
+      dataStoreImpl.recordQueryUsage(relation, 0);
+      e.printStackTrace();
+      throw new ODKDatastoreException(e);
+    }
+  }
+
+  private Object executeMinMax(final DataField dataField, boolean isMax)
+      throws ODKDatastoreException {
+    verifyAggregateField(dataField);
+
+    String query = generateAggregateQuery(getMinMaxTerm(dataField, isMax))
+        + queryBindBuilder.toString() + ";";
+
+    long startNanos = System.nanoTime();
+    try {
+      queryStringLogger.debug(query);
+      Object value = dataStoreImpl.getJdbcConnection().query(query, bindValues.toArray(),
+          new ResultSetExtractor<Object>() {
+            @Override
+            public Object extractData(ResultSet rs) throws SQLException {
+              return rs.next() ? RelationRowMapper.getColumnValue(rs, 1, dataField) : null;
+            }
+          });
+      dataStoreImpl.recordQueryUsage(relation, 1, 1, System.nanoTime() - startNanos);
+      return value;
+    } catch (Exception e) {
+      dataStoreImpl.recordQueryUsage(relation, 0);
+      e.printStackTrace();
+      throw new ODKDatastoreException(e);
+    }
+  }
+
+  @Override
+  public Object min(DataField dataField) throws ODKDatastoreException {
+    return executeMinMax(dataField, false);
+  }
+
+  @Override
+  public Object max(DataField dataField) throws ODKDatastoreException {
+    return executeMinMax(dataField, true);
+  }
+
+  @Override
+  public Map<Object, Long> countByValue(final DataField dataField) throws ODKDatastoreException {
+    verifyAggregateField(dataField);
+
+    String column = K_BQ + dataField.getName() + K_BQ;
+    String query = generateAggregateQuery(column + K_CS + K_COUNT_ALL)
+        + queryBindBuilder.toString() + K_GROUP_BY + column + ";";
+
+    long startNanos = System.nanoTime();
+    try {
+      queryStringLogger.debug(query);
+      Map<Object, Long> counts = dataStoreImpl.getJdbcConnection().query(query,
+          bindValues.toArray(), new ResultSetExtractor<Map<Object, Long>>() {
+            @Override
+            public Map<Object, Long> extractData(ResultSet rs) throws SQLException {
+              Map<Object, Long> counts = new HashMap<Object, Long>();
+              while (rs.next()) {
+                counts.put(RelationRowMapper.getColumnValue(rs, 1, dataField), rs.getLong(2));
+              }
+              return counts;
+            }
+          });
+      dataStoreImpl.recordQueryUsage(relation, counts.size(), counts.size(),
+          System.nanoTime() - startNanos);
+      return counts;
+    } catch (Exception e) {
+      dataStoreImpl.recordQueryUsage(relation, 0);
+      e.printStackTrace();
+      throw new ODKDatastoreException(e);
+    }
+  }
+
+  /**
+   * Runs the query on its own connection and hands each row to the
+   * RowCallback as it is read from a forward-only result set.
+   */
+  private class RowCallbackConnectionCallback implements ConnectionCallback<Object> {
+
+    private final String query;
+    private final RowCallback callback;
+    private final RowMapper<? extends CommonFieldsBase> rowMapper;
+    int readCount = 0;
+    ODKDatastoreException callbackException = null;
+
+    RowCallbackConnectionCallback(String query, RowCallback callback,
+        RowMapper<? extends CommonFieldsBase> rowMapper) {
+      this.query = query;
+      this.callback = callback;
+      this.rowMapper = rowMapper;
+    }
+
+    @Override
+    public Object doInConnection(Connection conn) throws SQLException {
+      scan(conn);
+      return null;
+    }
+
+    private void scan(Connection conn) throws SQLException {
+      PreparedStatement ps = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+          ResultSet.CONCUR_READ_ONLY);
+      try {
+        // Integer.MIN_VALUE makes the driver stream rows one at a time;
+        // it does not honor other fetch sizes without useCursorFetch.
+        ps.setFetchSize(Integer.MIN_VALUE);
+        new ArgumentPreparedStatementSetter(bindValues.toArray()).setValues(ps);
+        ResultSet rs = ps.executeQuery();
+        try {
+          while (rs.next()) {
+            CommonFieldsBase cb = rowMapper.mapRow(rs, readCount++);
+            try {
+              if (!callback.processRow(cb)) {
+                break;
+              }
+            } catch (ODKDatastoreException e) {
+              callbackException = e;
+              break;
+            }
+          }
+        } finally {
+          rs.close();
+        }
+      } finally {
+        ps.close();
+      }
+    }
+  }
+
   private class CoreResult {
     final List<CommonFieldsBase> results;
     final boolean hasMoreResults;
@@ -325,13 +579,16 @@ public class QueryImpl implements Query {
   private class RowMapperFilteredResultSetExtractor implements ResultSetExtractor<CoreResult> {
 
     private int readCount = 0;
+    private int resultCount = 0;
     private final QueryResumePoint startCursor;
+    private final boolean skipToStartUri;
     private final int fetchLimit;
     private final RowMapper<? extends CommonFieldsBase> rowMapper;
 
-    RowMapperFilteredResultSetExtractor(QueryResumePoint startCursor, int fetchLimit,
-        RowMapper<? extends CommonFieldsBase> rowMapper) {
+    RowMapperFilteredResultSetExtractor(QueryResumePoint startCursor, boolean skipToStartUri,
+        int fetchLimit, RowMapper<? extends CommonFieldsBase> rowMapper) {
       this.startCursor = startCursor;
+      this.skipToStartUri = skipToStartUri;
       this.fetchLimit = fetchLimit;
       this.rowMapper = rowMapper;
     }
@@ -341,7 +598,7 @@ public class QueryImpl implements Query {
       boolean hasMoreResults = false;
       List<CommonFieldsBase> results = new ArrayList<CommonFieldsBase>();
       String startUri = (startCursor == null) ? null : startCursor.getUriLastReturnedValue();
-      boolean beforeUri = (startUri != null);
+      boolean beforeUri = skipToStartUri && (startUri != null);
       while (rs.next()) {
         ++readCount;
         CommonFieldsBase cb = this.rowMapper.mapRow(rs, results.size());
@@ -349,6 +606,9 @@ public class QueryImpl implements Query {
           if (startUri.equals(cb.getUri())) {
             beforeUri = false;
           }
+        } else if (startUri != null && startUri.equals(cb.getUri())) {
+          // keyset filter should have excluded this; never return it twice.
+          continue;
         } else if (fetchLimit == 0 || results.size() < fetchLimit) {
           results.add(cb);
         } else {
@@ -356,6 +616,7 @@ public class QueryImpl implements Query {
           break;
         }
       }
+      resultCount = results.size();
       return new CoreResult(results, hasMoreResults);
     }
     
@@ -363,6 +624,10 @@ public class QueryImpl implements Query {
       return readCount;
     }
 
+    public int getResultCount() {
+      return resultCount;
+    }
+
   }
 
   @Override
@@ -379,6 +644,11 @@ public class QueryImpl implements Query {
     if (!isSortedByUri) {
       addSort(relation.primaryKey, dominantSortDirection);
     }
+    // double-precision values may not survive the round trip through the
+    // cursor string exactly, so an equality test on them is unreliable.
+    boolean useKeyset = isKeysetOrdered && (startCursor != null)
+        && (startCursor.getUriLastReturnedValue() != null)
+        && !dominantSortAttr.isDoublePrecision();
 
     // for continuation executions of queries
     StringBuilder queryContinuationBindBuilder = new StringBuilder();
@@ -405,25 +675,42 @@ public class QueryImpl implements Query {
 
       Object continuationValue = EngineUtils.getDominantSortAttributeValueFromString(
           startCursor.getValue(), dominantSortAttr);
-      values = addContinuationFilter(queryContinuationBindBuilder, continuationValue);
+      values = addContinuationFilter(queryContinuationBindBuilder, continuationValue,
+          startCursor.getUriLastReturnedValue(), useKeyset);
     } else {
       values = bindValues;
     }
 
+    // without a keyset filter, a cursor with a last returned PK must be
+    // skipped forward to in Java, so the rows preceding it are returned too.
+    boolean skipToStartUri = (startCursor != null)
+        && (startCursor.getUriLastReturnedValue() != null) && !useKeyset;
+
+    // the row limit can only be pushed into the database if it does not
+    // need to return the rows preceding the start cursor. Fetch one extra
+    // row to determine whether there are more results.
+    int rowLimit = 0;
+    if (fetchLimit > 0 && !skipToStartUri) {
+      rowLimit = fetchLimit + 1;
+    }
+
     String query = generateQuery() + queryBindBuilder.toString()
-        + queryContinuationBindBuilder.toString() + querySortBuilder.toString() + ";";
+        + queryContinuationBindBuilder.toString() + querySortBuilder.toString()
+        + ((rowLimit > 0) ? (K_LIMIT + Integer.toString(rowLimit)) : "") + ";";
     RowMapper<? extends CommonFieldsBase> rowMapper = null;
     rowMapper = new RelationRowMapper(relation, user);
     RowMapperFilteredResultSetExtractor rse = new RowMapperFilteredResultSetExtractor(startCursor,
-        fetchLimit, rowMapper);
+        skipToStartUri, fetchLimit, rowMapper);
 
     try {
       CoreResult r;
+      long startNanos = System.nanoTime();
       try {
         queryStringLogger.debug(query);
         r = dataStoreImpl.getJdbcConnection().query(query, values.toArray(), rse);
       } finally {
-        dataStoreImpl.recordQueryUsage(relation, rse.getReadCount());
+        dataStoreImpl.recordQueryUsage(relation, rse.getReadCount(), rse.getResultCount(),
+            System.nanoTime() - startNanos);
       }
 
       if (r.results.size() == 0) {
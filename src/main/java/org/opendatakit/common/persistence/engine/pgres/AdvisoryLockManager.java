@@ -0,0 +1,511 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.pgres;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds PostgreSQL session-level advisory locks on behalf of the TaskLocks of
+ * this server.
+ *
+ * Lock keys are spread over a fixed number of lock sessions, each with its own
+ * connection, so a key is always locked and unlocked through the same session.
+ * Each session's monitor guards only its connection and leases, so traffic on
+ * one session does not hold up the others. Because advisory locks are
+ * re-entrant within a session, exclusion between the TaskLocks of this server
+ * is done here, with a lease per lock key recording the lockId holding it and
+ * when that lease expires. An expired lease is released so that other servers
+ * can obtain the lock, mirroring the expiration of rows in the _task_lock
+ * table.
+ *
+ * Waiters block on their session's monitor and are only woken for their own
+ * key: when it is released on this server or, through LISTEN/NOTIFY on a
+ * separate connection, when it is released on another server.
+ *
+ * Every session keeps its connection, once opened, for the lifetime of this
+ * manager, as does the listener; these count against the maxTotal of the
+ * connection pool.
+ *
+ * If a session's connection fails, the database has dropped (or will drop,
+ * once the connection is closed) every advisory lock it held, so all leases of
+ * that session are discarded and their holders will fail to renew them.
+ */
+class AdvisoryLockManager {
+
+  private static final Logger logger = LoggerFactory.getLogger(AdvisoryLockManager.class);
+
+  private static final String K_CHANNEL = "odk_task_lock";
+  private static final String K_TRY_LOCK = "SELECT pg_try_advisory_lock(?)";
+  private static final String K_UNLOCK = "SELECT pg_advisory_unlock(?)";
+  private static final String K_UNLOCK_ALL = "SELECT pg_advisory_unlock_all()";
+  private static final String K_NOTIFY = "SELECT pg_notify('" + K_CHANNEL + "', ?)";
+  private static final String K_LISTEN = "LISTEN " + K_CHANNEL;
+
+  // number of lock sessions (and connections) used by default
+  static final int DEFAULT_SESSION_COUNT = 4;
+  // longest a waiter sleeps before re-checking the lock if no wakeup arrives
+  private static final long MAX_WAIT_SLICE_MILLIS = 1000L;
+  // longest the listener blocks for notifications before expiring leases
+  private static final int LISTEN_TIMEOUT_MILLIS = 250;
+
+  private static final class Lease {
+    final String lockId;
+    long expiresAt;
+
+    Lease(String lockId, long expiresAt) {
+      this.lockId = lockId;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final class Waiters {
+    int count = 0;
+    // bumped whenever the key may have become available
+    long generation = 0L;
+  }
+
+  /**
+   * One connection and the advisory locks held through it. All fields are
+   * guarded by the session's monitor.
+   */
+  private final class LockSession {
+    private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+    private final Map<Long, Waiters> waiters = new HashMap<Long, Waiters>();
+    private Connection connection = null;
+
+    private Connection getConnection() throws SQLException {
+      if (connection == null) {
+        connection = dataSource.getConnection();
+        connection.setAutoCommit(true);
+      }
+      return connection;
+    }
+
+    /**
+     * Abandons the connection and every lease held through it. The connection
+     * is returned to the pool, so release any advisory locks it still holds
+     * first.
+     */
+    private void discardConnection() {
+      leases.clear();
+      if (connection != null) {
+        try {
+          Statement stmt = connection.createStatement();
+          try {
+            stmt.execute(K_UNLOCK_ALL);
+          } finally {
+            stmt.close();
+          }
+        } catch (SQLException e) {
+          // the connection is broken; the pool will not reuse it
+        }
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          logger.warn("unable to close advisory lock connection", e);
+        }
+        connection = null;
+      }
+      wakeAll();
+    }
+
+    private void wake(long key) {
+      Waiters w = waiters.get(key);
+      if (w != null) {
+        ++w.generation;
+        notifyAll();
+      }
+    }
+
+    private void wakeAll() {
+      if (!waiters.isEmpty()) {
+        for (Waiters w : waiters.values()) {
+          ++w.generation;
+        }
+        notifyAll();
+      }
+    }
+
+    private boolean executeBooleanFunction(String sql, long key) throws SQLException {
+      PreparedStatement ps = getConnection().prepareStatement(sql);
+      try {
+        ps.setLong(1, key);
+        ResultSet rs = ps.executeQuery();
+        try {
+          return rs.next() && rs.getBoolean(1);
+        } finally {
+          rs.close();
+        }
+      } finally {
+        ps.close();
+      }
+    }
+
+    private void notifyRelease(long key) throws SQLException {
+      PreparedStatement ps = getConnection().prepareStatement(K_NOTIFY);
+      try {
+        ps.setString(1, Long.toString(key));
+        ps.executeQuery().close();
+      } finally {
+        ps.close();
+      }
+    }
+
+    private void releaseAdvisoryLock(long key) throws SQLException {
+      executeBooleanFunction(K_UNLOCK, key);
+      wake(key);
+      notifyRelease(key);
+    }
+
+    private void expireLeases(long now) throws SQLException {
+      Iterator<Map.Entry<Long, Lease>> it = leases.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Long, Lease> e = it.next();
+        if (e.getValue().expiresAt <= now) {
+          it.remove();
+          releaseAdvisoryLock(e.getKey());
+        }
+      }
+    }
+
+    private boolean tryObtain(String lockId, long key, long leaseMillis) throws SQLException {
+      long now = System.currentTimeMillis();
+      expireLeases(now);
+      Lease lease = leases.get(key);
+      if (lease != null) {
+        if (lease.lockId.equals(lockId)) {
+          lease.expiresAt = now + leaseMillis;
+          return true;
+        }
+        return false;
+      }
+      if (!executeBooleanFunction(K_TRY_LOCK, key)) {
+        return false;
+      }
+      leases.put(key, new Lease(lockId, now + leaseMillis));
+      return true;
+    }
+
+    synchronized boolean obtain(String lockId, long key, long leaseMillis, long maxWaitMillis)
+        throws SQLException {
+      long deadline = System.currentTimeMillis() + maxWaitMillis;
+      Waiters w = null;
+      try {
+        for (;;) {
+          if (closed) {
+            return false;
+          }
+          try {
+            if (tryObtain(lockId, key, leaseMillis)) {
+              return true;
+            }
+          } catch (SQLException e) {
+            discardConnection();
+            throw e;
+          }
+          long now = System.currentTimeMillis();
+          if (deadline <= now) {
+            return false;
+          }
+          if (w == null) {
+            w = waiters.get(key);
+            if (w == null) {
+              w = new Waiters();
+              waiters.put(key, w);
+            }
+            ++w.count;
+          }
+          // wakeups for other keys of this session do not send us back to
+          // the database; only ours, or the end of the slice, do.
+          long generation = w.generation;
+          long sliceEnd = Math.min(deadline, now + MAX_WAIT_SLICE_MILLIS);
+          while (w.generation == generation && !closed && now < sliceEnd) {
+            wait(sliceEnd - now);
+            now = System.currentTimeMillis();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        if (w != null && --w.count == 0) {
+          waiters.remove(key);
+        }
+      }
+    }
+
+    synchronized boolean renew(String lockId, long key, long leaseMillis) {
+      Lease lease = leases.get(key);
+      if (lease == null || !lease.lockId.equals(lockId)) {
+        return false;
+      }
+      long now = System.currentTimeMillis();
+      if (lease.expiresAt <= now) {
+        return false;
+      }
+      lease.expiresAt = now + leaseMillis;
+      return true;
+    }
+
+    synchronized boolean release(String lockId, long key) {
+      Lease lease = leases.get(key);
+      if (lease == null || !lease.lockId.equals(lockId)) {
+        // already released or expired -- nothing to do
+        return true;
+      }
+      leases.remove(key);
+      try {
+        releaseAdvisoryLock(key);
+        return true;
+      } catch (SQLException e) {
+        logger.warn("advisory lock release failed; discarding lock connection", e);
+        discardConnection();
+        return false;
+      }
+    }
+
+    synchronized void expire() {
+      try {
+        expireLeases(System.currentTimeMillis());
+      } catch (SQLException e) {
+        logger.warn("advisory lock expiration failed; discarding lock connection", e);
+        discardConnection();
+      }
+    }
+
+    synchronized void onRemoteRelease(long key) {
+      wake(key);
+    }
+
+    synchronized void close() {
+      discardConnection();
+      notifyAll();
+    }
+  }
+
+  private final DataSource dataSource;
+  private final LockSession[] sessions;
+
+  private volatile boolean closed = false;
+  // guarded by this
+  private Thread listener = null;
+
+  AdvisoryLockManager(DataSource dataSource) {
+    this(dataSource, DEFAULT_SESSION_COUNT);
+  }
+
+  AdvisoryLockManager(DataSource dataSource, int sessionCount) {
+    this.dataSource = dataSource;
+    this.sessions = new LockSession[sessionCount];
+    for (int i = 0; i < sessionCount; ++i) {
+      sessions[i] = new LockSession();
+    }
+  }
+
+  /**
+   * Maps a (formId, taskType) pair onto the 64-bit advisory lock key space
+   * using FNV-1a. Collisions only cause unrelated tasks to contend.
+   */
+  static long lockKey(String formId, String taskType) {
+    long h = 0xcbf29ce484222325L;
+    String s = formId + "\u0000" + taskType;
+    for (int i = 0; i < s.length(); ++i) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /**
+   * @return the index of the session through which key is always locked.
+   */
+  static int sessionIndex(long key, int sessionCount) {
+    return ((int) (key ^ (key >>> 32)) & 0x7fffffff) % sessionCount;
+  }
+
+  private LockSession sessionFor(long key) {
+    return sessions[sessionIndex(key, sessions.length)];
+  }
+
+  synchronized void start() {
+    if (listener != null) {
+      return;
+    }
+    listener = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        listen();
+      }
+    }, "AdvisoryLockManager listener");
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  void close() {
+    closed = true;
+    Thread t;
+    synchronized (this) {
+      t = listener;
+      listener = null;
+    }
+    for (LockSession session : sessions) {
+      session.close();
+    }
+    if (t != null) {
+      t.interrupt();
+    }
+  }
+
+  /**
+   * Obtains the lock, waiting up to maxWaitMillis for it.
+   *
+   * @return true if the lock was obtained.
+   * @throws SQLException
+   *           if the database could not be reached.
+   */
+  boolean obtain(String lockId, long key, long leaseMillis, long maxWaitMillis)
+      throws SQLException {
+    return sessionFor(key).obtain(lockId, key, leaseMillis, maxWaitMillis);
+  }
+
+  /**
+   * Extends the lease on a lock held by lockId.
+   *
+   * @return false if lockId does not hold the lock (e.g., its lease expired).
+   */
+  boolean renew(String lockId, long key, long leaseMillis) {
+    return sessionFor(key).renew(lockId, key, leaseMillis);
+  }
+
+  /**
+   * Releases the lock if it is held by lockId.
+   *
+   * @return true unless the database could not be reached.
+   */
+  boolean release(String lockId, long key) {
+    return sessionFor(key).release(lockId, key);
+  }
+
+  /**
+   * Releases the expired leases of every session.
+   */
+  void expireLeases() {
+    for (LockSession session : sessions) {
+      session.expire();
+    }
+  }
+
+  private void onNotifications(PGNotification[] notifications) {
+    if (notifications == null) {
+      return;
+    }
+    for (PGNotification n : notifications) {
+      long key;
+      try {
+        key = Long.parseLong(n.getParameter());
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      sessionFor(key).onRemoteRelease(key);
+    }
+  }
+
+  /**
+   * Body of the listener thread: LISTENs for lock releases by other servers
+   * and expires the leases of this server.
+   */
+  private void listen() {
+    Connection conn = null;
+    PGConnection pgConn = null;
+    while (!closed) {
+      try {
+        if (conn == null) {
+          conn = dataSource.getConnection();
+          conn.setAutoCommit(true);
+          try {
+            pgConn = conn.unwrap(PGConnection.class);
+            Statement stmt = conn.createStatement();
+            try {
+              stmt.execute(K_LISTEN);
+            } finally {
+              stmt.close();
+            }
+          } catch (SQLException e) {
+            // the pool does not expose the driver connection; waiters
+            // fall back to re-checking every MAX_WAIT_SLICE_MILLIS.
+            logger.info("LISTEN unavailable for advisory locks: " + e.toString());
+            pgConn = null;
+          }
+        }
+        if (pgConn != null) {
+          // blocks until a notification arrives or the timeout elapses
+          onNotifications(pgConn.getNotifications(LISTEN_TIMEOUT_MILLIS));
+        } else {
+          Thread.sleep(LISTEN_TIMEOUT_MILLIS);
+        }
+        expireLeases();
+      } catch (InterruptedException e) {
+        break;
+      } catch (SQLException e) {
+        if (closed) {
+          break;
+        }
+        logger.warn("advisory lock listener failed; reconnecting", e);
+        conn = closeListenConnection(conn);
+        pgConn = null;
+        try {
+          Thread.sleep(MAX_WAIT_SLICE_MILLIS);
+        } catch (InterruptedException ie) {
+          break;
+        }
+      }
+    }
+    closeListenConnection(conn);
+  }
+
+  private static Connection closeListenConnection(Connection conn) {
+    if (conn != null) {
+      try {
+        Statement stmt = conn.createStatement();
+        try {
+          stmt.execute("UNLISTEN *");
+        } finally {
+          stmt.close();
+        }
+      } catch (SQLException e) {
+        // broken connection; the pool will discard it
+      }
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        // ignore
+      }
+    }
+    return null;
+  }
+}
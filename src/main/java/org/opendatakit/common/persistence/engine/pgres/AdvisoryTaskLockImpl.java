@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.pgres;
+
+import java.sql.SQLException;
+
+import org.opendatakit.common.persistence.ITaskLockType;
+import org.opendatakit.common.persistence.WaitableTaskLock;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TaskLock implemented with PostgreSQL advisory locks rather than rows in the
+ * _task_lock table. Enabled by setting the advisoryTaskLocks property of the
+ * pgres DatastoreImpl. Every server of a cluster must use the same kind of
+ * task lock, as the two kinds do not exclude each other.
+ *
+ * The lock is keyed by a hash of the formId and task type; the lockId
+ * identifies the holder, and the lock's lease lasts for the task type's
+ * lock expiration timeout unless renewed.
+ */
+public class AdvisoryTaskLockImpl implements WaitableTaskLock {
+
+  private static final String PERSISTENCE_LAYER_PROBLEM = "Persistence layer failure";
+  private static final String TASK_LOCK_TABLE_NAME = "_task_lock";
+
+  private final AdvisoryLockManager manager;
+  private final DatastoreAccessMetrics dam;
+
+  AdvisoryTaskLockImpl(AdvisoryLockManager manager, DatastoreAccessMetrics dam) {
+    this.manager = manager;
+    this.dam = dam;
+  }
+
+  @Override
+  public boolean obtainLock(String lockId, String formId, ITaskLockType taskType,
+      long maxWaitMillis) throws ODKTaskLockException {
+    dam.recordPutUsage(TASK_LOCK_TABLE_NAME);
+    try {
+      return manager.obtain(lockId, AdvisoryLockManager.lockKey(formId, taskType.getName()),
+          taskType.getLockExpirationTimeout(), maxWaitMillis);
+    } catch (SQLException e) {
+      throw new ODKTaskLockException(PERSISTENCE_LAYER_PROBLEM, e);
+    }
+  }
+
+  @Override
+  public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
+    try {
+      return obtainLock(lockId, formId, taskType, 0L);
+    } catch (ODKTaskLockException e) {
+      // unexpected failure...
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  @Override
+  public boolean renewLock(String lockId, String formId, ITaskLockType taskType) {
+    return manager.renew(lockId, AdvisoryLockManager.lockKey(formId, taskType.getName()),
+        taskType.getLockExpirationTimeout());
+  }
+
+  @Override
+  public boolean releaseLock(String lockId, String formId, ITaskLockType taskType) {
+    dam.recordDeleteUsage(TASK_LOCK_TABLE_NAME);
+    boolean result = manager.release(lockId,
+        AdvisoryLockManager.lockKey(formId, taskType.getName()));
+    if (!result) {
+      LoggerFactory.getLogger(AdvisoryTaskLockImpl.class).info("advisory lock release failed!");
+    }
+    return result;
+  }
+}
@@ -106,4 +106,36 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
     }
     return row;
   }
+
+  /**
+   * Returns the value of a single (e.g., aggregate) result column, typed
+   * according to the data field it was computed from.
+   */
+  static Object getColumnValue(ResultSet rs, int columnIndex, DataField f) throws SQLException {
+    switch (f.getDataType()) {
+    case LONG_STRING:
+    case URI:
+    case STRING:
+      return rs.getString(columnIndex);
+    case INTEGER: {
+      long l = rs.getLong(columnIndex);
+      return rs.wasNull() ? null : Long.valueOf(l);
+    }
+    case DECIMAL: {
+      String value = rs.getString(columnIndex);
+      return (value == null) ? null : new WrappedBigDecimal(value);
+    }
+    case BOOLEAN: {
+      boolean b = rs.getBoolean(columnIndex);
+      return rs.wasNull() ? null : Boolean.valueOf(b);
+    }
+    case DATETIME: {
+      Calendar cal = Calendar.getInstance(new SimpleTimeZone(0, "UTC"));
+      Date d = rs.getTimestamp(columnIndex, cal);
+      return (d == null) ? null : (Date) d.clone();
+    }
+    default:
+      throw new IllegalStateException("Did not expect non-primitive type in column fetch");
+    }
+  }
 }
@@ -17,6 +17,7 @@ package org.opendatakit.common.utils;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Map;
 
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.ConnectionConfig;
@@ -47,5 +48,22 @@ public interface HttpClientFactory {
      */
   public CloseableHttpClient createHttpClient(SocketConfig socketConfig, ConnectionConfig connectionConfig, RequestConfig requestConfig);
 
+  /**
+   * The shared client keeps its connections alive and pools them across all
+   * of its callers. Callers must not close it, must consume each response
+   * entity so that its connection is returned to the pool, and should set
+   * their timeouts on each request. Its default cookie store is shared by all
+   * callers, so each request should be executed with its own HttpContext
+   * holding its own cookie store.
+   *
+   * @return the process-wide shared client.
+   */
+  public CloseableHttpClient getSharedHttpClient();
+
+  /**
+   * @return counters describing the shared client's connection pool.
+   */
+  public Map<String, Long> getConnectionMetrics();
+
   public HttpTransport getGoogleOAuth2Transport() throws GeneralSecurityException, IOException;
 }
@@ -15,6 +15,9 @@
  */
 package org.opendatakit.common.utils.gae;
 
+import java.util.Collections;
+import java.util.Map;
+
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
@@ -44,6 +47,20 @@ public class GaeHttpClientFactoryImpl implements HttpClientFactory {
       return HttpClientBuilder.create().setConnectionManager(new GaeHttpClientConnectionManager(socketConfig, connectionConfig, requestConfig)).build();
   }
 
+  /**
+   * URLFetch manages its own connections, so there is nothing to pool;
+   * this returns a new client each time.
+   */
+  @Override
+  public CloseableHttpClient getSharedHttpClient() {
+    return createHttpClient(null, null, null);
+  }
+
+  @Override
+  public Map<String, Long> getConnectionMetrics() {
+    return Collections.emptyMap();
+  }
+
   @Override
   public HttpTransport getGoogleOAuth2Transport() {
     return new UrlFetchTransport();
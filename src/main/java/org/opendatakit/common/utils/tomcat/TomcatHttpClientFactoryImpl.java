@@ -17,24 +17,51 @@ package org.opendatakit.common.utils.tomcat;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.opendatakit.common.utils.HttpClientFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 import com.google.api.client.googleapis.apache.GoogleApacheHttpTransport;
 import com.google.api.client.http.HttpTransport;
 
 /**
  * Implementation that just uses Apache's default http client.
+ *
+ * The shared client draws on a single pool of at most maxTotalConnections
+ * connections, maxConnectionsPerRoute to any one host. Connections are kept
+ * alive for the server's Keep-Alive timeout, capped at keepAliveMillis (or
+ * for keepAliveMillis if the server gives none), and a background thread
+ * closes those that are expired or have been idle for idleConnectionMillis.
  * 
  * @author mitchellsundt@gmail.com
  * 
  */
-public class TomcatHttpClientFactoryImpl implements HttpClientFactory {
+public class TomcatHttpClientFactoryImpl implements HttpClientFactory, DisposableBean {
+
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+  private int maxTotalConnections = 200;
+  private int maxConnectionsPerRoute = 50;
+  private long keepAliveMillis = 30000L;
+  private long idleConnectionMillis = 60000L;
+
+  private final Object sharedClientLock = new Object();
+  private volatile PoolingHttpClientConnectionManager connectionManager = null;
+  private volatile CloseableHttpClient sharedClient = null;
 
   public TomcatHttpClientFactoryImpl() {
   }
@@ -55,9 +82,102 @@ public class TomcatHttpClientFactoryImpl implements HttpClientFactory {
     return builder.build();
   }
 
+  @Override
+  public CloseableHttpClient getSharedHttpClient() {
+    CloseableHttpClient client = sharedClient;
+    if (client == null) {
+      synchronized (sharedClientLock) {
+        client = sharedClient;
+        if (client == null) {
+          PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager();
+          manager.setMaxTotal(maxTotalConnections);
+          manager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+          manager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+          final long maxKeepAlive = keepAliveMillis;
+          client = HttpClientBuilder.create()
+              .setConnectionManager(manager)
+              .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                  long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+                      .getKeepAliveDuration(response, context);
+                  return (duration > 0L && duration < maxKeepAlive) ? duration : maxKeepAlive;
+                }
+              })
+              .evictExpiredConnections()
+              .evictIdleConnections(idleConnectionMillis, TimeUnit.MILLISECONDS)
+              .build();
+          connectionManager = manager;
+          sharedClient = client;
+        }
+      }
+    }
+    return client;
+  }
+
+  @Override
+  public Map<String, Long> getConnectionMetrics() {
+    Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+    PoolingHttpClientConnectionManager manager = connectionManager;
+    if (manager != null) {
+      PoolStats stats = manager.getTotalStats();
+      metrics.put("leased", (long) stats.getLeased());
+      metrics.put("available", (long) stats.getAvailable());
+      metrics.put("pending", (long) stats.getPending());
+      metrics.put("max", (long) stats.getMax());
+      metrics.put("routes", (long) manager.getRoutes().size());
+    }
+    return metrics;
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    synchronized (sharedClientLock) {
+      if (sharedClient != null) {
+        // also shuts down the connection manager and the eviction thread
+        sharedClient.close();
+        sharedClient = null;
+        connectionManager = null;
+      }
+    }
+  }
+
   @Override
   public HttpTransport getGoogleOAuth2Transport() throws GeneralSecurityException, IOException {
     return GoogleApacheHttpTransport.newTrustedTransport();
   }
 
+  public int getMaxTotalConnections() {
+    return maxTotalConnections;
+  }
+
+  public void setMaxTotalConnections(int maxTotalConnections) {
+    this.maxTotalConnections = maxTotalConnections;
+  }
+
+  public int getMaxConnectionsPerRoute() {
+    return maxConnectionsPerRoute;
+  }
+
+  public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+  }
+
+  public long getKeepAliveMillis() {
+    return keepAliveMillis;
+  }
+
+  public void setKeepAliveMillis(long keepAliveMillis) {
+    this.keepAliveMillis = keepAliveMillis;
+  }
+
+  public long getIdleConnectionMillis() {
+    return idleConnectionMillis;
+  }
+
+  public void setIdleConnectionMillis(long idleConnectionMillis) {
+    this.idleConnectionMillis = idleConnectionMillis;
+  }
+
 }
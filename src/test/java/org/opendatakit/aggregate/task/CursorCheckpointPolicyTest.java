@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests when CursorCheckpointPolicy asks for the cursor to be written.
+ */
+public class CursorCheckpointPolicyTest {
+
+  @Test
+  public void nothingUnwrittenIsNeverDue() {
+    assertFalse(CursorCheckpointPolicy.EVERY_SUBMISSION.isCheckpointDue(0, 60000L));
+    assertFalse(CursorCheckpointPolicy.DEFAULT.isCheckpointDue(0, 60000L));
+  }
+
+  @Test
+  public void dueAfterEverySubmissions() {
+    CursorCheckpointPolicy policy = new CursorCheckpointPolicy(25, 5000L);
+    assertFalse(policy.isCheckpointDue(24, 0L));
+    assertTrue(policy.isCheckpointDue(25, 0L));
+    assertTrue(policy.isCheckpointDue(30, 0L));
+  }
+
+  @Test
+  public void dueOnceEveryMillisHavePassed() {
+    CursorCheckpointPolicy policy = new CursorCheckpointPolicy(25, 5000L);
+    assertFalse(policy.isCheckpointDue(1, 4999L));
+    assertTrue(policy.isCheckpointDue(1, 5000L));
+  }
+
+  @Test
+  public void zeroDisablesATrigger() {
+    CursorCheckpointPolicy countOnly = new CursorCheckpointPolicy(3, 0L);
+    assertFalse(countOnly.isCheckpointDue(2, Long.MAX_VALUE));
+    assertTrue(countOnly.isCheckpointDue(3, 0L));
+
+    CursorCheckpointPolicy timeOnly = new CursorCheckpointPolicy(0, 1000L);
+    assertFalse(timeOnly.isCheckpointDue(Integer.MAX_VALUE, 999L));
+    assertTrue(timeOnly.isCheckpointDue(1, 1000L));
+  }
+
+  @Test
+  public void presetPolicies() {
+    assertTrue(CursorCheckpointPolicy.EVERY_SUBMISSION.isCheckpointDue(1, 0L));
+    assertFalse(CursorCheckpointPolicy.BATCH_END.isCheckpointDue(Integer.MAX_VALUE,
+        Long.MAX_VALUE));
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.security.User;
+
+/**
+ * Tests the write-behind of FormServiceCursorWriter: merging of checkpoints
+ * requested while a write is in flight, and reporting of failed writes.
+ */
+public class FormServiceCursorWriterTest {
+
+  private FormServiceCursor fsc;
+  private Datastore ds;
+  private User user;
+  private ExecutorService executor;
+
+  /**
+   * Holds its tasks until they are run explicitly.
+   */
+  private static final class ManualExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  /**
+   * FormServiceCursor is final and only built through the datastore, so use
+   * its relation prototype as the cursor being written.
+   */
+  private static FormServiceCursor newCursor() throws Exception {
+    Constructor<FormServiceCursor> c = FormServiceCursor.class
+        .getDeclaredConstructor(String.class);
+    c.setAccessible(true);
+    return c.newInstance("test");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    fsc = newCursor();
+    ds = mock(Datastore.class);
+    user = mock(User.class);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void withoutExecutorCheckpointWritesImmediately() throws Exception {
+    FormServiceCursorWriter writer = new FormServiceCursorWriter(fsc, null, ds, user);
+    writer.checkpoint();
+    verify(ds).putEntity(fsc, user);
+  }
+
+  @Test
+  public void checkpointsBeforeTheWriteRunAreOneWrite() throws Exception {
+    ManualExecutor manual = new ManualExecutor();
+    FormServiceCursorWriter writer = new FormServiceCursorWriter(fsc, manual, ds, user);
+    writer.checkpoint();
+    writer.checkpoint();
+    writer.checkpoint();
+    assertEquals(1, manual.tasks.size());
+    verify(ds, times(0)).putEntity(fsc, user);
+
+    manual.runAll();
+    verify(ds, times(1)).putEntity(fsc, user);
+  }
+
+  @Test
+  public void checkpointsDuringAWriteAreMergedIntoOneMore() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      private boolean first = true;
+
+      @Override
+      public Void answer(InvocationOnMock invocation) throws InterruptedException {
+        if (first) {
+          first = false;
+          writing.countDown();
+          assertTrue(proceed.await(10, TimeUnit.SECONDS));
+        }
+        return null;
+      }
+    }).when(ds).putEntity(fsc, user);
+
+    FormServiceCursorWriter writer = new FormServiceCursorWriter(fsc, executor, ds, user);
+    writer.checkpoint();
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 5; ++i) {
+      writer.checkpoint();
+    }
+    proceed.countDown();
+    writer.close();
+    verify(ds, times(2)).putEntity(fsc, user);
+  }
+
+  @Test
+  public void flushWaitsForTheWriteInFlightAndWritesAgain() throws Exception {
+    ManualExecutor manual = new ManualExecutor();
+    final FormServiceCursorWriter writer = new FormServiceCursorWriter(fsc, manual, ds, user);
+    writer.checkpoint();
+    final Runnable inFlight = manual.tasks.remove(0);
+    Thread runner = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100L);
+        } catch (InterruptedException e) {
+          return;
+        }
+        inFlight.run();
+      }
+    };
+    runner.start();
+    writer.flush();
+    verify(ds, times(2)).putEntity(fsc, user);
+    runner.join();
+  }
+
+  @Test
+  public void failedWriteIsThrownFromTheNextCheckpoint() throws Exception {
+    ManualExecutor manual = new ManualExecutor();
+    FormServiceCursorWriter writer = new FormServiceCursorWriter(fsc, manual, ds, user);
+    doThrow(new ODKEntityPersistException("write failed")).doNothing().when(ds)
+        .putEntity(fsc, user);
+    writer.checkpoint();
+    manual.runAll();
+
+    try {
+      writer.checkpoint();
+      fail("expected the failed write to be reported");
+    } catch (ODKEntityPersistException e) {
+      assertEquals("write failed", e.getMessage());
+    }
+    // reported once only
+    writer.checkpoint();
+    manual.runAll();
+    verify(ds, times(2)).putEntity(fsc, user);
+  }
+
+  @Test
+  public void failedWriteIsThrownFromFlush() throws Exception {
+    ManualExecutor manual = new ManualExecutor();
+    FormServiceCursorWriter writer = new FormServiceCursorWriter(fsc, manual, ds, user);
+    doThrow(new ODKOverQuotaException("over quota")).when(ds).putEntity(fsc, user);
+    writer.checkpoint();
+    manual.runAll();
+
+    doNothing().when(ds).putEntity(fsc, user);
+    try {
+      writer.flush();
+      fail("expected the failed write to be reported");
+    } catch (ODKOverQuotaException e) {
+      assertEquals("over quota", e.getMessage());
+    }
+    // the final write is not attempted after a failure
+    verify(ds, times(1)).putEntity(fsc, user);
+  }
+
+  @Test
+  public void rejectedWriteIsMadeImmediately() throws Exception {
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException("shutting down");
+      }
+    };
+    FormServiceCursorWriter writer = new FormServiceCursorWriter(fsc, rejecting, ds, user);
+    writer.checkpoint();
+    verify(ds).putEntity(fsc, user);
+    // nothing is left in flight
+    writer.flush();
+    verify(ds, times(2)).putEntity(fsc, user);
+  }
+}
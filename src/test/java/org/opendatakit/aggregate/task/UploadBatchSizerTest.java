@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests how UploadBatchSizer sizes batches from the observed send times.
+ */
+public class UploadBatchSizerTest {
+
+  @Test
+  public void firstBatchIsTheMinimumSize() {
+    assertEquals(10, new UploadBatchSizer(10, 500, 10000L).getBatchSize());
+  }
+
+  @Test
+  public void fastPublisherGrowsByAtMostDoublingUpToTheMaximum() {
+    UploadBatchSizer sizer = new UploadBatchSizer(10, 500, 10000L);
+    int expected = 10;
+    for (int i = 0; i < 10; ++i) {
+      sizer.recordBatch(sizer.getBatchSize(), 0L);
+      expected = Math.min(500, 2 * expected);
+      assertEquals(expected, sizer.getBatchSize());
+    }
+    assertEquals(500, sizer.getBatchSize());
+  }
+
+  @Test
+  public void slowPublisherShrinksToTheMinimum() {
+    UploadBatchSizer sizer = new UploadBatchSizer(10, 500, 10000L);
+    for (int i = 0; i < 6; ++i) {
+      sizer.recordBatch(sizer.getBatchSize(), 0L);
+    }
+    assertEquals(500, sizer.getBatchSize());
+
+    // the moving average needs a few slow batches to come down
+    for (int i = 0; i < 20; ++i) {
+      sizer.recordBatch(sizer.getBatchSize(), 5000L * sizer.getBatchSize());
+    }
+    assertEquals(10, sizer.getBatchSize());
+  }
+
+  @Test
+  public void batchTakesAboutTheTargetTimeAtTheAverageRate() {
+    UploadBatchSizer sizer = new UploadBatchSizer(1, 1000, 10000L);
+    // 100 ms per submission: doubles from 1 until it reaches 10000 / 100
+    int[] expected = { 2, 4, 8, 16, 32, 64, 100, 100 };
+    for (int size : expected) {
+      sizer.recordBatch(sizer.getBatchSize(), 100L * sizer.getBatchSize());
+      assertEquals(size, sizer.getBatchSize());
+    }
+
+    // one batch at 200 ms per submission moves the average to 130 ms
+    sizer.recordBatch(100, 20000L);
+    assertEquals(76, sizer.getBatchSize());
+  }
+
+  @Test
+  public void emptyBatchIsIgnored() {
+    UploadBatchSizer sizer = new UploadBatchSizer(10, 500, 10000L);
+    sizer.recordBatch(0, 60000L);
+    assertEquals(10, sizer.getBatchSize());
+    sizer.recordBatch(10, 10L);
+    assertEquals(20, sizer.getBatchSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidBoundsAreRejected() {
+    new UploadBatchSizer(20, 10, 10000L);
+  }
+}
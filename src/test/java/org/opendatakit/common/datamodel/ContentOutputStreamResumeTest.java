@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.ContentOutputStream;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests that content streamed into the datastore, interrupted after a
+ * checkpoint and resumed from it (as an export is on a retry), is identical to
+ * content streamed in one go.
+ */
+public class ContentOutputStreamResumeTest {
+
+  private static final String FILE_PATH = "resume.bin";
+  private static final String CONTENT_TYPE = "application/octet-stream";
+
+  private CallingContext cc;
+  private BinaryContent ctnt;
+  private BinaryContentRefBlob vref;
+  private RefBlob blb;
+  private String uri;
+
+  @Before
+  public void setUp() throws Exception {
+    cc = TestContextFactory.getCallingContext();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    ctnt = new BinaryContent(ds.getDefaultSchemaName(), "_test_resume_bin");
+    ds.assertRelation(ctnt, user);
+    vref = new BinaryContentRefBlob(ds.getDefaultSchemaName(), "_test_resume_ref");
+    ds.assertRelation(vref, user);
+    blb = new RefBlob(ds.getDefaultSchemaName(), "_test_resume_blb");
+    ds.assertRelation(blb, user);
+    uri = CommonFieldsBase.newUri();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    ds.dropRelation(ctnt, user);
+    ds.dropRelation(vref, user);
+    ds.dropRelation(blb, user);
+  }
+
+  private BinaryContentManipulator newManipulator() {
+    return new BinaryContentManipulator(uri, uri, ctnt, vref, blb);
+  }
+
+  @Test
+  public void resumedContentIsIdenticalToUninterruptedContent() throws Exception {
+    int partSize = blb.value.getMaxCharLen().intValue();
+    byte[] expected = new byte[3 * partSize + partSize / 2];
+    new Random(25L).nextBytes(expected);
+
+    // the first attempt checkpoints part way through its second part...
+    int checkpointOffset = partSize + partSize / 2;
+    ContentOutputStream first = newManipulator().newContentOutputStream(CONTENT_TYPE,
+        FILE_PATH, cc);
+    first.write(expected, 0, checkpointOffset);
+    long partCount = first.checkpoint();
+    assertEquals(2L, partCount);
+
+    // ...then persists another part before it is interrupted. What it wrote
+    // after the checkpoint must be discarded on resume.
+    byte[] lost = Arrays.copyOfRange(expected, checkpointOffset, checkpointOffset + partSize);
+    Arrays.fill(lost, (byte) 0x5a);
+    first.write(lost);
+    assertEquals(3L, first.getPartCount());
+
+    ContentOutputStream resumed = newManipulator().resumeContentOutputStream(FILE_PATH,
+        partCount, cc);
+    assertEquals(checkpointOffset, resumed.getPersistedLength());
+    resumed.write(expected, checkpointOffset, expected.length - checkpointOffset);
+    resumed.commit();
+
+    BinaryContentManipulator result = newManipulator();
+    assertEquals(1, result.getAttachmentCount(cc));
+    assertArrayEquals(expected, result.getBlob(1, cc));
+    assertEquals(Long.valueOf(expected.length), result.getContentLength(1, cc));
+    assertEquals(CommonFieldsBase.newMD5HashUri(expected), result.getContentHash(1, cc));
+  }
+
+  @Test
+  public void contentResumedFromItsFirstCheckpointIsIdentical() throws Exception {
+    byte[] expected = "name,value\n1,one\n2,two\n3,three\n".getBytes("UTF-8");
+    int checkpointOffset = 11;
+
+    ContentOutputStream first = newManipulator().newContentOutputStream(CONTENT_TYPE,
+        FILE_PATH, cc);
+    first.write(expected, 0, checkpointOffset);
+    long partCount = first.checkpoint();
+    first.write(expected, checkpointOffset, 6);
+    first.checkpoint();
+
+    ContentOutputStream resumed = newManipulator().resumeContentOutputStream(FILE_PATH,
+        partCount, cc);
+    resumed.write(expected, checkpointOffset, expected.length - checkpointOffset);
+    resumed.commit();
+
+    BinaryContentManipulator result = newManipulator();
+    assertArrayEquals(expected, result.getBlob(1, cc));
+    assertEquals(CommonFieldsBase.newMD5HashUri(expected), result.getContentHash(1, cc));
+  }
+}
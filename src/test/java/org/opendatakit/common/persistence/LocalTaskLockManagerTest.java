@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.common.persistence.engine.LocalTaskLockManager;
+import org.opendatakit.common.security.User;
+
+/**
+ * Tests the local lease table of LocalTaskLockManager and how it obtains the
+ * datastore's persistent lock.
+ */
+public class LocalTaskLockManagerTest {
+
+  private static final String FORM_ID = "localTaskLockForm";
+  private static final TaskLockType TASK_TYPE = TaskLockType.UPLOAD_SUBMISSION;
+
+  private LocalTaskLockManager manager;
+  private Datastore datastore;
+  private User user;
+
+  @Before
+  public void setUp() {
+    manager = new LocalTaskLockManager();
+    datastore = mock(Datastore.class);
+    user = mock(User.class);
+  }
+
+  @Test
+  public void localLeaseExcludesOtherLocksUntilReleased() throws Exception {
+    manager.setClusterMode(false);
+    TaskLock first = manager.createTaskLock(datastore, user);
+    TaskLock second = manager.createTaskLock(datastore, user);
+
+    assertTrue(first.obtainLock("a", FORM_ID, TASK_TYPE));
+    assertFalse(second.obtainLock("b", FORM_ID, TASK_TYPE));
+    assertTrue(first.releaseLock("a", FORM_ID, TASK_TYPE));
+    assertTrue(second.obtainLock("b", FORM_ID, TASK_TYPE));
+    verify(datastore, never()).createTaskLock(user);
+  }
+
+  @Test
+  public void waiterIsWokenWhenLeaseIsReleased() throws Exception {
+    manager.setClusterMode(false);
+    final TaskLock first = manager.createTaskLock(datastore, user);
+    WaitableTaskLock second = (WaitableTaskLock) manager.createTaskLock(datastore, user);
+    assertTrue(first.obtainLock("a", FORM_ID, TASK_TYPE));
+
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100L);
+          first.releaseLock("a", FORM_ID, TASK_TYPE);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    releaser.start();
+    long start = System.currentTimeMillis();
+    assertTrue(second.obtainLock("b", FORM_ID, TASK_TYPE, 10000L));
+    assertTrue(System.currentTimeMillis() - start < 5000L);
+    releaser.join();
+  }
+
+  @Test
+  public void nonWaitablePersistentLockIsRetriedUntilObtained() throws Exception {
+    TaskLock persistent = mock(TaskLock.class);
+    when(persistent.obtainLock("a", FORM_ID, TASK_TYPE)).thenReturn(false, false, true);
+    when(datastore.createTaskLock(user)).thenReturn(persistent);
+
+    WaitableTaskLock lock = (WaitableTaskLock) manager.createTaskLock(datastore, user);
+    assertTrue(lock.obtainLock("a", FORM_ID, TASK_TYPE, 10000L));
+    verify(persistent, times(3)).obtainLock("a", FORM_ID, TASK_TYPE);
+  }
+
+  @Test
+  public void nonWaitablePersistentLockGivesUpAtDeadlineAndReleasesLease() throws Exception {
+    TaskLock contended = mock(TaskLock.class);
+    when(contended.obtainLock(anyString(), eq(FORM_ID), eq(TASK_TYPE))).thenReturn(false);
+    TaskLock free = mock(TaskLock.class);
+    when(free.obtainLock(anyString(), eq(FORM_ID), eq(TASK_TYPE))).thenReturn(true);
+    when(datastore.createTaskLock(user)).thenReturn(contended, free);
+
+    WaitableTaskLock lock = (WaitableTaskLock) manager.createTaskLock(datastore, user);
+    long start = System.currentTimeMillis();
+    assertFalse(lock.obtainLock("a", FORM_ID, TASK_TYPE, 500L));
+    long elapsed = System.currentTimeMillis() - start;
+    assertTrue("gave up after " + elapsed + " ms", elapsed >= 450L && elapsed < 5000L);
+    verify(contended, atLeast(2)).obtainLock(anyString(), eq(FORM_ID), eq(TASK_TYPE));
+
+    // the local lease must not be left behind
+    TaskLock other = manager.createTaskLock(datastore, user);
+    assertTrue(other.obtainLock("b", FORM_ID, TASK_TYPE));
+  }
+
+  @Test
+  public void waitablePersistentLockIsGivenTheRemainingWait() throws Exception {
+    WaitableTaskLock persistent = mock(WaitableTaskLock.class);
+    when(persistent.obtainLock(eq("a"), eq(FORM_ID), eq(TASK_TYPE), anyLong())).thenReturn(true);
+    when(datastore.createTaskLock(user)).thenReturn(persistent);
+
+    WaitableTaskLock lock = (WaitableTaskLock) manager.createTaskLock(datastore, user);
+    assertTrue(lock.obtainLock("a", FORM_ID, TASK_TYPE, 1000L));
+    verify(persistent).obtainLock(eq("a"), eq(FORM_ID), eq(TASK_TYPE), anyLong());
+    verify(persistent, never()).obtainLock("a", FORM_ID, TASK_TYPE);
+  }
+}
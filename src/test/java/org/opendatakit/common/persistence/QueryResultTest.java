@@ -17,15 +17,21 @@ package org.opendatakit.common.persistence;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.opendatakit.common.persistence.Query.Direction.ASCENDING;
+import static org.opendatakit.common.persistence.Query.Direction.DESCENDING;
 import static org.opendatakit.common.persistence.TestTable.booleanField;
 import static org.opendatakit.common.persistence.TestTable.dateField;
 import static org.opendatakit.common.persistence.TestTable.doubleField;
 import static org.opendatakit.common.persistence.TestTable.integerField;
 import static org.opendatakit.common.persistence.TestTable.stringField;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -113,6 +119,123 @@ public class QueryResultTest {
     assertEquals(DATES.length, query.executeDistinctValueForDataField(dateField).size());
   }
 
+  @Test
+  public void query_count_with_filter() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_count_with_filter", user);
+    assertEquals(TEST_ROWS.length, query.count());
+
+    query = ds.createQuery(table, "query_count_with_filter", user);
+    query.addFilter(stringField, Query.FilterOperation.EQUAL, "A");
+    assertEquals(TEST_ROWS.length / STRINGS.length, query.count());
+  }
+
+  @Test
+  public void query_min_max_integer_field() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_min_max_integer_field", user);
+    assertEquals(0L, query.min(integerField));
+
+    query = ds.createQuery(table, "query_min_max_integer_field", user);
+    assertEquals((long) (SET_SIZE - 1), query.max(integerField));
+  }
+
+  @Test
+  public void query_countByValue_string_field() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_countByValue_string_field", user);
+    Map<Object, Long> counts = query.countByValue(stringField);
+
+    assertEquals(STRINGS.length, counts.size());
+    for (String s : STRINGS)
+      assertEquals(Long.valueOf(TEST_ROWS.length / STRINGS.length), counts.get(s));
+  }
+
+  @Test
+  public void query_forEach_rows_arrive_in_sort_order() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_forEach_rows_arrive_in_sort_order", user);
+    query.addSort(integerField, ASCENDING);
+    query.addSort(stringField, DESCENDING);
+
+    final List<TestTable> rows = new ArrayList<>();
+    query.forEach(new Query.RowCallback() {
+      @Override
+      public boolean processRow(CommonFieldsBase row) {
+        rows.add((TestTable) row);
+        return true;
+      }
+    }, 10);
+
+    assertEquals(TEST_ROWS.length, rows.size());
+    for (int i = 1; i < rows.size(); i++) {
+      long prevInteger = rows.get(i - 1).getLongField(integerField);
+      long integer = rows.get(i).getLongField(integerField);
+      assertTrue(prevInteger <= integer);
+      if (prevInteger == integer)
+        assertTrue(rows.get(i - 1).getStringField(stringField)
+            .compareTo(rows.get(i).getStringField(stringField)) >= 0);
+    }
+  }
+
+  @Test
+  public void query_forEach_returning_false_stops_the_scan() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_forEach_returning_false_stops_the_scan", user);
+    query.addSort(stringField, ASCENDING);
+
+    final int[] count = new int[1];
+    query.forEach(new Query.RowCallback() {
+      @Override
+      public boolean processRow(CommonFieldsBase row) {
+        return ++count[0] < 10;
+      }
+    }, 4);
+
+    assertEquals(10, count[0]);
+  }
+
+  @Test
+  public void query_forEach_rethrows_callback_exception() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_forEach_rethrows_callback_exception", user);
+    query.addSort(stringField, ASCENDING);
+
+    final ODKDatastoreException thrown = new ODKDatastoreException("stop");
+    final int[] count = new int[1];
+    try {
+      query.forEach(new Query.RowCallback() {
+        @Override
+        public boolean processRow(CommonFieldsBase row) throws ODKDatastoreException {
+          if (++count[0] == 3)
+            throw thrown;
+          return true;
+        }
+      }, 0);
+      fail("expected the callback's exception");
+    } catch (ODKDatastoreException e) {
+      assertSame(thrown, e);
+    }
+    assertEquals(3, count[0]);
+  }
+
+  @Test
+  public void query_forEach_applies_filters() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_forEach_applies_filters", user);
+    query.addFilter(stringField, Query.FilterOperation.EQUAL, "A");
+    query.addFilter(integerField, Query.FilterOperation.GREATER_THAN, 0L);
+    query.addSort(integerField, ASCENDING);
+
+    final List<TestTable> rows = new ArrayList<>();
+    query.forEach(new Query.RowCallback() {
+      @Override
+      public boolean processRow(CommonFieldsBase row) {
+        rows.add((TestTable) row);
+        return true;
+      }
+    }, 0);
+
+    assertEquals(TEST_ROWS.length / STRINGS.length * (SET_SIZE - 1) / SET_SIZE, rows.size());
+    for (TestTable row : rows) {
+      assertEquals("A", row.getStringField(stringField));
+      assertTrue(row.getLongField(integerField) > 0);
+    }
+  }
+
   @Test
   public void query_executeQuery_unique_pks() throws ODKDatastoreException {
     // This test focuses on the insertions... it shouldn't be here
@@ -188,6 +311,71 @@ public class QueryResultTest {
     assertFalse(lastPage.hasMoreResults());
   }
 
+  @Test
+  public void query_executeQuery_keyset_pages_by_dominant_sort_and_pk() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeQuery_keyset_pages_by_dominant_sort_and_pk", user);
+    query.addSort(stringField, ASCENDING);
+    query.addSort(table.primaryKey, ASCENDING);
+
+    assertPagesCoverAllRows(query, 10);
+  }
+
+  @Test
+  public void query_executeQuery_keyset_pages_descending() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeQuery_keyset_pages_descending", user);
+    query.addSort(stringField, DESCENDING);
+
+    assertPagesCoverAllRows(query, 10);
+  }
+
+  @Test
+  public void query_executeQuery_keyset_pages_by_pk() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeQuery_keyset_pages_by_pk", user);
+    query.addSort(table.primaryKey, ASCENDING);
+
+    assertPagesCoverAllRows(query, 7);
+  }
+
+  @Test
+  public void query_executeQuery_pages_by_double_without_keyset() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeQuery_pages_by_double_without_keyset", user);
+    query.addSort(doubleField, ASCENDING);
+
+    assertPagesCoverAllRows(query, 10);
+  }
+
+  @Test
+  public void query_executeQuery_cursor_without_last_uri_is_limited() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeQuery_cursor_without_last_uri_is_limited", user);
+    query.addSort(stringField, ASCENDING);
+
+    QueryResumePoint startCursor = new QueryResumePoint(stringField.getName(), "B", null, true);
+    QueryResult page = query.executeQuery(startCursor, 5);
+
+    assertEquals(5, page.getResultList().size());
+    assertTrue(page.hasMoreResults());
+    for (CommonFieldsBase cb : page.getResultList())
+      assertEquals("B", ((TestTable) cb).getStringField(stringField));
+  }
+
+  private void assertPagesCoverAllRows(Query query, int pageSize) throws ODKDatastoreException {
+    Set<String> pks = new HashSet<>();
+    QueryResumePoint startCursor = null;
+    int pages = 0;
+    QueryResult page;
+    do {
+      page = query.executeQuery(startCursor, pageSize);
+      for (CommonFieldsBase cb : page.getResultList())
+        assertTrue("row returned twice: " + cb.getUri(), pks.add(cb.getUri()));
+      if (page.hasMoreResults())
+        assertEquals(pageSize, page.getResultList().size());
+      startCursor = page.getResumeCursor();
+      assertTrue("too many pages", ++pages <= TEST_ROWS.length);
+    } while (page.hasMoreResults());
+
+    assertEquals(TEST_ROWS.length, pks.size());
+  }
+
   private static synchronized TestTable createTestTable() throws ODKDatastoreException {
     System.out.println("Creating the test table");
     TestTable tablePrototype = new TestTable(ds.getDefaultSchemaName());
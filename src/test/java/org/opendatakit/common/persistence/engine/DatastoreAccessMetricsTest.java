@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.Operation;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.TableSnapshot;
+
+/**
+ * Tests how the metrics of several datastores are combined for reporting.
+ */
+public class DatastoreAccessMetricsTest {
+
+  private static TableSnapshot findTable(String tableName) {
+    TableSnapshot found = null;
+    for (TableSnapshot t : DatastoreAccessMetrics.getCombinedSnapshot()) {
+      if (t.tableName.equals(tableName)) {
+        assertEquals("table reported more than once: " + tableName, null, found);
+        found = t;
+      }
+    }
+    return found;
+  }
+
+  @Test
+  public void tableRecordedByTwoDatastoresIsReportedOnce() {
+    String tableName = "metricsTest.sharedTable";
+    DatastoreAccessMetrics first = new DatastoreAccessMetrics();
+    DatastoreAccessMetrics second = new DatastoreAccessMetrics();
+
+    first.recordGetUsage(tableName, 1000000L);
+    second.recordGetUsage(tableName, 3000000L);
+    second.recordPutUsage(tableName);
+
+    TableSnapshot t = findTable(tableName);
+    assertNotNull(t);
+    assertEquals(2L, t.operations.get(Operation.GET).callCount);
+    assertEquals(2L, t.operations.get(Operation.GET).latencyCount);
+    assertEquals(4000000L, t.operations.get(Operation.GET).latencySumNanos);
+    assertEquals(1L, t.operations.get(Operation.PUT).callCount);
+    assertEquals(0L, t.operations.get(Operation.DELETE).callCount);
+  }
+
+  @Test
+  public void discardedDatastoreIsNoLongerReported() throws Exception {
+    String tableName = "metricsTest.discardedTable";
+    new DatastoreAccessMetrics().recordGetUsage(tableName);
+
+    // the registry holds instances weakly, so the unreferenced one goes away
+    for (int i = 0; i < 50 && findTable(tableName) != null; ++i) {
+      System.gc();
+      Thread.sleep(20L);
+    }
+    assertEquals(null, findTable(tableName));
+  }
+}
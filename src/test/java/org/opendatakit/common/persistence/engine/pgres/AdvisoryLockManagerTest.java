@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.pgres;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests the local leases of AdvisoryLockManager against a mocked database that
+ * tracks which advisory locks are held by another server.
+ */
+public class AdvisoryLockManagerTest {
+
+  private static final long KEY = AdvisoryLockManager.lockKey("advisoryLockForm",
+      "UPLOAD_SUBMISSION");
+  private static final long LEASE_MILLIS = 60000L;
+
+  // advisory locks held by another server
+  private final Set<Long> heldElsewhere = new HashSet<Long>();
+  // every advisory lock function executed, as "sql key"
+  private final List<String> executed = new ArrayList<String>();
+  private volatile boolean failing = false;
+
+  private DataSource dataSource;
+  private Connection connection;
+  private AdvisoryLockManager manager;
+
+  private PreparedStatement newStatement(final String sql) throws SQLException {
+    final long[] key = new long[1];
+    PreparedStatement ps = mock(PreparedStatement.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        key[0] = invocation.getArgument(1);
+        return null;
+      }
+    }).when(ps).setLong(anyInt(), anyLong());
+    when(ps.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+      @Override
+      public ResultSet answer(InvocationOnMock invocation) throws SQLException {
+        if (failing) {
+          throw new SQLException("connection lost");
+        }
+        boolean result;
+        synchronized (AdvisoryLockManagerTest.this) {
+          executed.add(sql + " " + key[0]);
+          result = !sql.contains("pg_try_advisory_lock") || !heldElsewhere.contains(key[0]);
+        }
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true);
+        when(rs.getBoolean(1)).thenReturn(result);
+        return rs;
+      }
+    });
+    return ps;
+  }
+
+  private synchronized int countExecuted(String function, long key) {
+    int count = 0;
+    for (String s : executed) {
+      if (s.contains(function) && s.endsWith(" " + key)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    connection = mock(Connection.class);
+    when(connection.prepareStatement(anyString())).thenAnswer(new Answer<PreparedStatement>() {
+      @Override
+      public PreparedStatement answer(InvocationOnMock invocation) throws SQLException {
+        return newStatement(invocation.<String> getArgument(0));
+      }
+    });
+    when(connection.createStatement()).thenReturn(mock(Statement.class));
+    dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+    manager = new AdvisoryLockManager(dataSource);
+  }
+
+  @After
+  public void tearDown() {
+    manager.close();
+  }
+
+  @Test
+  public void localLeaseExcludesOtherLockIdsUntilReleased() throws Exception {
+    assertTrue(manager.obtain("a", KEY, LEASE_MILLIS, 0L));
+    assertFalse(manager.obtain("b", KEY, LEASE_MILLIS, 0L));
+    assertTrue(manager.release("a", KEY));
+    assertTrue(manager.obtain("b", KEY, LEASE_MILLIS, 0L));
+    assertEquals(1, countExecuted("pg_advisory_unlock(", KEY));
+  }
+
+  @Test
+  public void sameLockIdReentersWithoutTakingTheLockAgain() throws Exception {
+    assertTrue(manager.obtain("a", KEY, LEASE_MILLIS, 0L));
+    assertTrue(manager.obtain("a", KEY, LEASE_MILLIS, 0L));
+    assertTrue(manager.renew("a", KEY, LEASE_MILLIS));
+    assertFalse(manager.renew("b", KEY, LEASE_MILLIS));
+    assertEquals(1, countExecuted("pg_try_advisory_lock", KEY));
+  }
+
+  @Test
+  public void lockHeldByAnotherServerIsNotObtained() throws Exception {
+    heldElsewhere.add(KEY);
+    long start = System.currentTimeMillis();
+    assertFalse(manager.obtain("a", KEY, LEASE_MILLIS, 200L));
+    assertTrue(System.currentTimeMillis() - start >= 150L);
+    assertFalse(manager.renew("a", KEY, LEASE_MILLIS));
+  }
+
+  @Test
+  public void releaseWakesWaiterPromptly() throws Exception {
+    assertTrue(manager.obtain("a", KEY, LEASE_MILLIS, 0L));
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100L);
+          manager.release("a", KEY);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    releaser.start();
+    long start = System.currentTimeMillis();
+    assertTrue(manager.obtain("b", KEY, LEASE_MILLIS, 10000L));
+    long elapsed = System.currentTimeMillis() - start;
+    // well before the waiter's own re-check
+    assertTrue("obtained after " + elapsed + " ms", elapsed < 800L);
+    releaser.join();
+  }
+
+  @Test
+  public void expiredLeaseIsReleasedToTheNextLockId() throws Exception {
+    assertTrue(manager.obtain("a", KEY, 50L, 0L));
+    assertFalse(manager.obtain("b", KEY, LEASE_MILLIS, 0L));
+    Thread.sleep(100L);
+    manager.expireLeases();
+    assertEquals(1, countExecuted("pg_advisory_unlock(", KEY));
+    assertFalse(manager.renew("a", KEY, LEASE_MILLIS));
+    assertTrue(manager.obtain("b", KEY, LEASE_MILLIS, 0L));
+  }
+
+  @Test
+  public void connectionFailureDiscardsLeasesOfThatSession() throws Exception {
+    manager = new AdvisoryLockManager(dataSource, 1);
+    long otherKey = AdvisoryLockManager.lockKey("otherForm", "UPLOAD_SUBMISSION");
+    assertTrue(manager.obtain("a", KEY, LEASE_MILLIS, 0L));
+
+    failing = true;
+    try {
+      manager.obtain("b", otherKey, LEASE_MILLIS, 0L);
+      fail("expected the failure to be reported");
+    } catch (SQLException e) {
+      // expected
+    }
+    verify(connection).close();
+    assertFalse(manager.renew("a", KEY, LEASE_MILLIS));
+
+    failing = false;
+    assertTrue(manager.obtain("b", KEY, LEASE_MILLIS, 0L));
+    verify(dataSource, times(2)).getConnection();
+  }
+
+  @Test
+  public void keysOfDifferentSessionsUseDifferentConnections() throws Exception {
+    manager = new AdvisoryLockManager(dataSource, 2);
+    assertNotEquals(AdvisoryLockManager.sessionIndex(0L, 2),
+        AdvisoryLockManager.sessionIndex(1L, 2));
+    assertTrue(manager.obtain("a", 0L, LEASE_MILLIS, 0L));
+    assertTrue(manager.obtain("a", 1L, LEASE_MILLIS, 0L));
+    verify(dataSource, times(2)).getConnection();
+    manager.close();
+    verify(connection, atLeastOnce()).close();
+  }
+
+  @Test
+  public void lockKeyIsDeterministicAndDistinguishesTasks() {
+    assertEquals(AdvisoryLockManager.lockKey("form", "UPLOAD_SUBMISSION"),
+        AdvisoryLockManager.lockKey("form", "UPLOAD_SUBMISSION"));
+    assertNotEquals(AdvisoryLockManager.lockKey("form", "UPLOAD_SUBMISSION"),
+        AdvisoryLockManager.lockKey("form", "WORKSHEET_CREATION"));
+    // the separator keeps the two parts from running together
+    assertNotEquals(AdvisoryLockManager.lockKey("ab", "c"),
+        AdvisoryLockManager.lockKey("a", "bc"));
+    for (int n = 1; n <= 8; ++n) {
+      int index = AdvisoryLockManager.sessionIndex(KEY, n);
+      assertTrue(index >= 0 && index < n);
+    }
+  }
+}